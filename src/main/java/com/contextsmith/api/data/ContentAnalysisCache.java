@@ -0,0 +1,191 @@
+package com.contextsmith.api.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.mail.internet.InternetAddress;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.contextsmith.nlp.annotator.Annotation;
+import com.contextsmith.nlp.sentiment.SentimentItem;
+import com.contextsmith.nlp.time.TemporalItem;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * The results of EmailMessage.processContent() other than the search
+ * annotations, which depend on the query, keyed by the Message-ID, the
+ * resolved names of the sender and recipients (which the parser uses to find
+ * the salutation and signature), the ANALYZER_VERSION and what was asked for,
+ * so messages shown again and again are parsed and annotated once.
+ *
+ * The results are kept in memory, up to 'maxEntries' of the recently used
+ * ones, and also as JSON files in 'dir' if it is not null.  Bump
+ * ANALYZER_VERSION when the parser or an annotator changes its results.
+ */
+public class ContentAnalysisCache {
+  private static final Logger log = LoggerFactory.getLogger(ContentAnalysisCache.class);
+
+  public static final int ANALYZER_VERSION = 1;
+  public static final String MAX_ENTRIES_PROPERTY = "content.cache.maxEntries";
+  // Directory of the disk tier; it is off if not set.
+  public static final String DIR_PROPERTY = "content.cache.dir";
+  public static final int DEFAULT_MAX_ENTRIES = 20_000;
+  public static final String JSON_EXT = ".json";
+
+  private static ContentAnalysisCache instance = null;
+
+  public static synchronized ContentAnalysisCache getInstance() {
+    if (instance == null) {
+      String dir = System.getProperty(DIR_PROPERTY, "");
+      instance = new ContentAnalysisCache(
+          Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES),
+          dir.isEmpty() ? null : new File(dir));
+    }
+    return instance;
+  }
+
+  /**
+   * What processContent() found in a message; it is shared by whoever gets
+   * it from the cache, so none of it is to be changed.
+   */
+  static class Analysis {
+    MailContent content;
+    List<TemporalItem> temporalItems;
+    List<Annotation> requestAnnotations;
+    List<SentimentItem> sentimentItems;
+    // MailContent leaves the quoted range out of its JSON, so it is kept here
+    // for the disk tier.
+    int quotedBegin;
+    int quotedEnd;
+  }
+
+  static String toKey(String messageId, Set<InternetAddress> senders,
+                      Set<InternetAddress> recipients, boolean parseTime,
+                      boolean parseRequest, Double posSentimentThreshold,
+                      Double negSentimentThreshold) {
+    return String.join("|", messageId, toNames(senders), toNames(recipients),
+                       String.valueOf(ANALYZER_VERSION),
+                       parseTime ? "t" : "", parseRequest ? "r" : "",
+                       String.valueOf(posSentimentThreshold),
+                       String.valueOf(negSentimentThreshold));
+  }
+
+  // The addresses with their names, sorted so the order of 'people' does not
+  // matter.
+  private static String toNames(Set<InternetAddress> people) {
+    if (people == null) return "";
+    return people.stream().map(InternetAddress::toUnicodeString).sorted()
+        .collect(Collectors.joining(","));
+  }
+
+  private final Cache<String, Analysis> memory;
+  private final File dir;
+  private final Gson gson = new Gson();
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong diskMisses = new AtomicLong();
+
+  public ContentAnalysisCache(int maxEntries, File dir) {
+    checkArgument(maxEntries >= 0);
+    this.memory = CacheBuilder.newBuilder()
+        .maximumSize(maxEntries)
+        .recordStats()
+        .build();
+    this.dir = dir;
+  }
+
+  public long getDiskHits() {
+    return this.diskHits.get();
+  }
+
+  public long getDiskMisses() {
+    return this.diskMisses.get();
+  }
+
+  /** Returns the fraction of lookups found in either tier. */
+  public double getHitRate() {
+    CacheStats stats = this.memory.stats();
+    long hits = stats.hitCount() + getDiskHits();
+    return (stats.requestCount() == 0) ? 1.0 : (double) hits / stats.requestCount();
+  }
+
+  public long getMemoryHits() {
+    return this.memory.stats().hitCount();
+  }
+
+  public long getMisses() {
+    return this.memory.stats().missCount() - getDiskHits();
+  }
+
+  public long size() {
+    return this.memory.size();
+  }
+
+  Analysis get(String key) {
+    Analysis analysis = this.memory.getIfPresent(key);
+    if (analysis != null || this.dir == null) return analysis;
+
+    File file = toFile(key);
+    if (file.isFile()) {
+      try {
+        analysis = this.gson.fromJson(
+            FileUtils.readFileToString(file, StandardCharsets.UTF_8), Analysis.class);
+      } catch (IOException | JsonParseException e) {
+        log.warn("Unable to read {}: {}", file, e.toString());
+      }
+    }
+    if (analysis == null) {
+      this.diskMisses.incrementAndGet();
+      return null;
+    }
+    if (analysis.content != null) {
+      analysis.content.quotedBegin = analysis.quotedBegin;
+      analysis.content.quotedEnd = analysis.quotedEnd;
+    }
+    this.diskHits.incrementAndGet();
+    this.memory.put(key, analysis);
+    return analysis;
+  }
+
+  void put(String key, Analysis analysis) {
+    this.memory.put(key, analysis);
+    if (this.dir == null) return;
+    if (analysis.content != null) {
+      analysis.quotedBegin = analysis.content.quotedBegin;
+      analysis.quotedEnd = analysis.content.quotedEnd;
+    }
+
+    File file = toFile(key);
+    try {
+      FileUtils.forceMkdir(file.getParentFile());
+      File temp = File.createTempFile("analysis", ".tmp", file.getParentFile());
+      FileUtils.writeStringToFile(temp, this.gson.toJson(analysis), StandardCharsets.UTF_8);
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                 StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      log.warn("Unable to write {}: {}", file, e.toString());
+    }
+  }
+
+  // Spread over 256 subdirectories by the hash of 'key'.
+  private File toFile(String key) {
+    String hash = DigestUtils.sha1Hex(key);
+    return new File(new File(this.dir, hash.substring(0, 2)), hash + JSON_EXT);
+  }
+}
@@ -0,0 +1,93 @@
+package com.contextsmith.api.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * The process-wide threads which run EmailMessage.processContent() of the
+ * messages of a request in parallel.  The messages are split in halves down
+ * to MESSAGES_PER_TASK each, so a thread done with its share steals from the
+ * others, and the requests running at once share the 'parallelism' threads.
+ */
+public class ContentProcessingPool {
+  public static final String THREADS_PROPERTY = "content.threads";
+  public static final int MESSAGES_PER_TASK = 4;
+
+  private static ContentProcessingPool instance = null;
+
+  public static synchronized ContentProcessingPool getInstance() {
+    if (instance == null) {
+      instance = new ContentProcessingPool(Integer.getInteger(
+          THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    }
+    return instance;
+  }
+
+  private final ForkJoinPool pool;
+
+  public ContentProcessingPool(int parallelism) {
+    checkArgument(parallelism > 0);
+    this.pool = new ForkJoinPool(parallelism);
+  }
+
+  public int getParallelism() {
+    return this.pool.getParallelism();
+  }
+
+  /**
+   * Runs processContent() of each of 'emails' with the same arguments, and
+   * returns once all are done.
+   */
+  public void process(List<EmailMessage> emails,
+                      boolean parseTime,
+                      boolean parseRequest,
+                      Double posSentimentThreshold,
+                      Double negSentimentThreshold,
+                      Pattern searchPattern,
+                      ContentAnalysisCache cache) {
+    if (emails.isEmpty()) return;
+    this.pool.invoke(new ProcessAction(emails, 0, emails.size(), email ->
+        email.processContent(parseTime, parseRequest, posSentimentThreshold,
+                             negSentimentThreshold, searchPattern, cache)));
+  }
+
+  public void shutdown() {
+    this.pool.shutdown();
+  }
+
+  // Runs 'action' on emails[begin..end).
+  private static class ProcessAction extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<EmailMessage> emails;
+    private final int begin;
+    private final int end;
+    private final Consumer<EmailMessage> action;
+
+    ProcessAction(List<EmailMessage> emails, int begin, int end,
+                  Consumer<EmailMessage> action) {
+      this.emails = emails;
+      this.begin = begin;
+      this.end = end;
+      this.action = action;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.end - this.begin <= MESSAGES_PER_TASK) {
+        for (int i = this.begin; i < this.end; ++i) {
+          this.action.accept(this.emails.get(i));
+        }
+        return;
+      }
+      int middle = (this.begin + this.end) >>> 1;
+      invokeAll(new ProcessAction(this.emails, this.begin, middle, this.action),
+                new ProcessAction(this.emails, middle, this.end, this.action));
+    }
+  }
+}
@@ -27,6 +27,7 @@ import com.contextsmith.nlp.time.TaskAnnotator;
 import com.contextsmith.nlp.time.TemporalItem;
 import com.contextsmith.utils.AnnotationUtil;
 import com.contextsmith.utils.MimeMessageUtil;
+import com.contextsmith.utils.RegexUtil;
 import com.google.common.collect.Sets;
 
 public class ContextMessage implements Comparable<ContextMessage> {
@@ -306,12 +307,12 @@ public class ContextMessage implements Comparable<ContextMessage> {
 
     log.trace("      Parsing email text...");
     EnglishEmailTextParser parser = new EnglishEmailTextParser();
-    parser.parse(plainTextContent, this.from, this.getToAndCC());
+    parser.parseNewContent(plainTextContent, this.from, this.getToAndCC());
 
     if (this.content == null) this.content = new Content();
-    this.content.salutation = parser.getSalutation().replaceAll("[ ]+", " ").trim();
-    this.content.body = parser.getBody().replaceAll("[ ]+", " ").trim();
-    this.content.signature = parser.getSignature().replaceAll("[ ]+", " ").trim();
+    this.content.salutation = RegexUtil.collapseSpaces(parser.getSalutation()).trim();
+    this.content.body = RegexUtil.collapseSpaces(parser.getBody()).trim();
+    this.content.signature = RegexUtil.collapseSpaces(parser.getSignature()).trim();
 //    this.content = StringUtil.truncateAtWordBoundary(this.content,
 //                                                     MAX_CONTENT_CHARS);
   }
@@ -47,6 +47,15 @@ public class EmailMessage extends AbstractMessage {
     return Date.from(this.sentDate.toInstant());
   }
 
+  /**
+   * Returns the quoted history of the plain text, which is not parsed, or an
+   * empty string if there is none or the content was not parsed.
+   */
+  public String getQuotedText() {
+    if (this.content == null || getPlainText() == null) return "";
+    return getPlainText().substring(this.content.quotedBegin, this.content.quotedEnd);
+  }
+
   public List<Annotation> getRequestAnnotations() {
     return this.requestAnnotations;
   }
@@ -109,24 +118,67 @@ public class EmailMessage extends AbstractMessage {
                              Double posSentimentThreshold,
                              Double negSentimentThreshold,
                              Pattern searchPattern) {
-    this.content = EmailMessageProcessor.parseEmailText(this);
+    processContent(parseTime, parseRequest, posSentimentThreshold,
+                   negSentimentThreshold, searchPattern, null);
+  }
+
+  /**
+   * Takes what was found in this message before from 'cache', if not null,
+   * and adds what is found otherwise; only the search annotations are found
+   * each time.
+   */
+  public void processContent(boolean parseTime,
+                             boolean parseRequest,
+                             Double posSentimentThreshold,
+                             Double negSentimentThreshold,
+                             Pattern searchPattern,
+                             ContentAnalysisCache cache) {
+    String key = (cache == null || this.messageId == null) ? null :
+        ContentAnalysisCache.toKey(this.messageId, getFrom(), getAllRecipients(),
+                                   parseTime, parseRequest,
+                                   posSentimentThreshold, negSentimentThreshold);
+    ContentAnalysisCache.Analysis analysis = (key == null) ? null : cache.get(key);
+    if (analysis == null) {
+      analysis = analyzeContent(parseTime, parseRequest,
+                                posSentimentThreshold, negSentimentThreshold);
+      if (key != null) cache.put(key, analysis);
+    } else {
+      this.content = analysis.content;
+      this.temporalItems = analysis.temporalItems;
+      this.requestAnnotations = analysis.requestAnnotations;
+      this.sentimentItems = analysis.sentimentItems;
+    }
     // Cannot continue if there is no content parsed.
     if (this.content == null) return;
 
-    if (parseTime) {
-      this.temporalItems = EmailMessageProcessor.parseTemporalItems(this);
-    }
-    if (parseRequest) {
-      this.requestAnnotations = EmailMessageProcessor.annotateRequests(this);
-    }
     if (searchPattern != null) {
       this.searchAnnotations =
           EmailMessageProcessor.annotateKeywords(this, searchPattern);
     }
+  }
+
+  private ContentAnalysisCache.Analysis analyzeContent(boolean parseTime,
+                                                       boolean parseRequest,
+                                                       Double posSentimentThreshold,
+                                                       Double negSentimentThreshold) {
+    ContentAnalysisCache.Analysis analysis = new ContentAnalysisCache.Analysis();
+    this.content = analysis.content = EmailMessageProcessor.parseEmailText(this);
+    // Cannot continue if there is no content parsed.
+    if (this.content == null) return analysis;
+
+    if (parseTime) {
+      this.temporalItems = analysis.temporalItems =
+          EmailMessageProcessor.parseTemporalItems(this);
+    }
+    if (parseRequest) {
+      this.requestAnnotations = analysis.requestAnnotations =
+          EmailMessageProcessor.annotateRequests(this);
+    }
     if (posSentimentThreshold != null || negSentimentThreshold != null) {
-      this.sentimentItems = EmailMessageProcessor.analyzeSentiment(
+      this.sentimentItems = analysis.sentimentItems = EmailMessageProcessor.analyzeSentiment(
           this, posSentimentThreshold, negSentimentThreshold);
     }
+    return analysis;
   }
 }
 
@@ -134,4 +186,7 @@ class MailContent {
   public String salutation;
   public String body;
   public String signature;
+  // Quoted history of the plain text, the range is empty if there is none.
+  public transient int quotedBegin;
+  public transient int quotedEnd;
 }
\ No newline at end of file
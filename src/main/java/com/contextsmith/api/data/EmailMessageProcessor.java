@@ -17,6 +17,7 @@ import com.contextsmith.nlp.sentiment.SentimentScorer;
 import com.contextsmith.nlp.time.TaskAnnotator;
 import com.contextsmith.nlp.time.TemporalItem;
 import com.contextsmith.utils.AnnotationUtil;
+import com.contextsmith.utils.RegexUtil;
 import com.google.common.collect.Sets;
 
 public class EmailMessageProcessor {
@@ -99,13 +100,17 @@ public class EmailMessageProcessor {
   public static MailContent parseEmailText(AbstractMessage mail) {
     if (StringUtil.isBlank(mail.getPlainText())) return null;
 
+    // Only the new content is parsed, the quoted history is kept as a range.
+    String text = mail.getPlainText();
     EnglishEmailTextParser parser = new EnglishEmailTextParser();
-    parser.parse(mail.getPlainText(), mail.getFrom(), mail.getAllRecipients());
+    parser.parseNewContent(text, mail.getFrom(), mail.getAllRecipients());
 
     MailContent content = new MailContent();
-    content.salutation = parser.getSalutation().replaceAll("[ ]+", " ").trim();
-    content.body = parser.getBody().replaceAll("[ ]+", " ").trim();
-    content.signature = parser.getSignature().replaceAll("[ ]+", " ").trim();
+    content.quotedBegin = parser.getQuotedBegin();
+    content.quotedEnd = text.length();
+    content.salutation = RegexUtil.collapseSpaces(parser.getSalutation()).trim();
+    content.body = RegexUtil.collapseSpaces(parser.getBody()).trim();
+    content.signature = RegexUtil.collapseSpaces(parser.getSignature()).trim();
     return content;
   }
 
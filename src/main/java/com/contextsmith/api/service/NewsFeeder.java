@@ -3,12 +3,16 @@ package com.contextsmith.api.service;
 import com.contextsmith.api.data.*;
 import com.contextsmith.email.cluster.EmailClusterer;
 import com.contextsmith.email.cluster.EmailClusterer.ClusteringMethod;
+import com.contextsmith.email.parser.EnglishEmailTextParser;
+import com.contextsmith.email.provider.CrawlScheduler;
 import com.contextsmith.email.provider.GmailQueryBuilder;
+import com.contextsmith.email.provider.GmailSync;
 import com.contextsmith.email.provider.GoogleServiceProvider;
 import com.contextsmith.email.provider.UserEventCrawler;
 import com.contextsmith.email.provider.UserInboxCrawler;
 import com.contextsmith.email.provider.exchange.AQSBuilder;
 import com.contextsmith.email.provider.exchange.ExchangeServiceProvider;
+import com.contextsmith.email.store.MessageStore;
 import com.contextsmith.utils.*;
 import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
@@ -36,8 +40,9 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -49,8 +54,6 @@ public class NewsFeeder {
     public static final int MIN_QUERY_TOKEN_LENGTH = 3;
     static final UrlValidator urlValidator = Environment.mode == Mode.production ? UrlValidator.getInstance() : new UrlValidator(UrlValidator.ALLOW_LOCAL_URLS + UrlValidator.ALLOW_ALL_SCHEMES);
     private static final Logger log = LoggerFactory.getLogger(NewsFeeder.class);
-    // For callback.
-    private static ExecutorService executor = Executors.newCachedThreadPool();
 
     public static enum MessageType {EMAIL, EVENT}
 
@@ -260,16 +263,43 @@ public class NewsFeeder {
         }
         log.info("[{}] sent a request: {}", request.getInternalDomain(), request.toString());
 
+        Future<String> response;
+        try {
+            response = CrawlScheduler.getInstance().submitRequest(
+                    request.getInternalDomain(),
+                    new ProcessRequestCallable(request, Thread.currentThread().getName()));
+        } catch (RejectedExecutionException e) {
+            log.warn(CrawlScheduler.getInstance().toString());
+            return makeJsonError("Too many requests, please retry later.",
+                    HttpStatus.TOO_MANY_REQUESTS_429);
+        }
         if (StringUtils.isBlank(callbackUrl)) {  // No callback. Blocking
-            String jsonOutput = processRequest(request);
-            return jsonOutput;
+            try {
+                return response.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return makeJsonError(e.toString(), 500);
+            } catch (ExecutionException e) {
+                return makeJsonError(e.getCause().toString(), 500);
+            }
         } else {  // Non-blocking
-            executor.submit(new ProcessRequestCallable(
-                    request, Thread.currentThread().getName()));
             return "";
         }
     }
 
+    /**
+     * Returns the number of running and queued requests and crawls, and under
+     * "parser" the lines parsed and features evaluated since startup.
+     */
+    @GET
+    @Path("crawls")
+    @Produces(MediaType.APPLICATION_JSON)
+    public static String getCrawlMetrics() {
+        Map<String, Map<String, Number>> metrics = CrawlScheduler.getInstance().getMetrics();
+        metrics.put("parser", EnglishEmailTextParser.getMetrics());
+        return StringUtil.toJson(metrics);
+    }
+
     @POST
     @Path("event")
     @Produces(MediaType.APPLICATION_JSON)
@@ -425,6 +455,13 @@ public class NewsFeeder {
             subjectQuery = String.format("subject:\"%s\"", subjectToRetain);
         }
         UserInboxCrawler inboxCrawler = new UserInboxCrawler(accessToken -> new GoogleServiceProvider(accessToken), () -> new ExchangeServiceProvider());
+        // Clustering and making projects only need the headers; the filter
+        // then checks body traits guessed from them (see
+        // MimeMessageUtil.guessBodyTraits()).
+        inboxCrawler.setHeadersOnly(!request.isShowContent())
+                .setTenant(request.getInternalDomain())
+                .setGmailSync(GmailSync.getInstance())
+                .setMessageStore(MessageStore.getInstance());
 
         String finalSubjectQuery = subjectQuery; // needed for lambda
         List<InternetAddress> aliases = Arrays.stream(request.getSourceConfiguration().sources).map(source -> {
@@ -454,6 +491,9 @@ public class NewsFeeder {
         Set<Project> projects = new TreeSet<>();
         // Throws GoogleJsonResponseException
         inboxCrawler.setSubjectRetainPattern(subjectRetainPattern).startCrawl();
+        log.info("[{}] Fetched {} KB of {}.", request.getInternalDomain(),
+                inboxCrawler.getBytesFetched() / 1024,
+                inboxCrawler.isHeadersOnly() ? "headers" : "messages");
         if (inboxCrawler.getMessages() == null ||
                 inboxCrawler.getMessages().isEmpty()) {
             log.warn("No messages retrieved.");
@@ -486,7 +526,9 @@ public class NewsFeeder {
         if (request.isShowContent()) {
             Stopwatch processWatch = Stopwatch.createStarted();
             processContent(projects, request);
-            log.info("E-mail content processing time: {}", processWatch);
+            ContentAnalysisCache cache = ContentAnalysisCache.getInstance();
+            log.info("E-mail content processing time: {} (cache hit rate {})",
+                     processWatch, String.format("%.2f", cache.getHitRate()));
         }
         return projects;
     }
@@ -519,7 +561,8 @@ public class NewsFeeder {
             return projects;
         }
 
-        UserEventCrawler eventCrawler = new UserEventCrawler(accessToken -> new GoogleServiceProvider(accessToken), () -> new ExchangeServiceProvider());
+        UserEventCrawler eventCrawler = new UserEventCrawler(accessToken -> new GoogleServiceProvider(accessToken), () -> new ExchangeServiceProvider())
+                .setTenant(request.getInternalDomain());
         List<InternetAddress> aliases = Arrays.stream(request.getSourceConfiguration().sources).map(source -> {
             switch (source.kind) {
                 case gmail: {
@@ -589,6 +632,25 @@ public class NewsFeeder {
             numKeywords = StringUtils.countMatches(searchPattern.pattern(), '|') + 1;
         }
 
+        // Process each message once, in parallel, then drop those without
+        // search results, and what is left empty, serially.
+        Set<EmailMessage> emails = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Project project : projects) {
+            for (Conversation conversation : project.getConversations()) {
+                for (Messageable message : conversation.getMessages()) {
+                    emails.add((EmailMessage) message);
+                }
+            }
+        }
+        ContentProcessingPool.getInstance().process(
+                new ArrayList<>(emails),
+                request.isParseTime(),
+                request.isParseRequest(),
+                request.getPosSentimentThreshold(),
+                request.getNegSentimentThreshold(),
+                searchPattern,
+                ContentAnalysisCache.getInstance());
+
         for (Iterator<Project> i = projects.iterator(); i.hasNext(); ) {
             Project project = i.next();
             if (searchPattern != null) {
@@ -601,13 +663,6 @@ public class NewsFeeder {
                 for (Iterator<Messageable> k = conversation.getMessages().iterator();
                      k.hasNext(); ) {
                     EmailMessage email = (EmailMessage) k.next();
-                    email.processContent(
-                            request.isParseTime(),
-                            request.isParseRequest(),
-                            request.getPosSentimentThreshold(),
-                            request.getNegSentimentThreshold(),
-                            searchPattern);
-
                     if (searchPattern != null) {
                         // Must have search results here or discard this context message.
                         if (email.getSearchAnnotations() == null ||
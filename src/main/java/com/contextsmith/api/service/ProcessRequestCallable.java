@@ -15,6 +15,8 @@ import org.eclipse.jetty.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.contextsmith.email.provider.CrawlScheduler;
+
 public class ProcessRequestCallable implements Callable<String> {
   private static final Logger log = LoggerFactory.getLogger(
       ProcessRequestCallable.class);
@@ -91,10 +93,19 @@ public class ProcessRequestCallable implements Callable<String> {
 
   @Override
   public String call() throws Exception {
+    // Runs on the shared request threads, see CrawlScheduler.
+    String threadName = Thread.currentThread().getName();
     Thread.currentThread().setName(this.parentThreadName);
-    String jsonOutput = NewsFeeder.processRequest(this.request);
-    execCallback(jsonOutput, this.request.getCallbackUrl(),
-                 this.request.getStartTimeInSec(), this.request.getEndTimeInSec());
-    return jsonOutput;
+    try {
+      final String jsonOutput = NewsFeeder.processRequest(this.request);
+      if (StringUtils.isNotBlank(this.request.getCallbackUrl())) {
+        CrawlScheduler.getInstance().executeCallback(() -> execCallback(
+            jsonOutput, this.request.getCallbackUrl(),
+            this.request.getStartTimeInSec(), this.request.getEndTimeInSec()));
+      }
+      return jsonOutput;
+    } finally {
+      Thread.currentThread().setName(threadName);
+    }
   }
 }
@@ -15,6 +15,7 @@ import org.slf4j.LoggerFactory;
 
 import com.contextsmith.utils.EventUtil;
 import com.contextsmith.utils.MimeMessageUtil;
+import com.contextsmith.utils.RegexUtil;
 import com.google.api.services.calendar.model.Event;
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Multiset;
@@ -26,10 +27,10 @@ public class EmailNameResolver {
 
   public static String normalizePersonalName(String name) {
     // Remove parenthesized substrings.
-    name = name.replaceAll("\\([^()]+\\)", "").trim();
+    name = RegexUtil.PARENTHESIZED_PAT.matcher(name).replaceAll("").trim();
     // Remove double and single surrounding quotes.
-    name = name.replaceAll("^[\"']+|[\"']+$", "").trim();
-    name = name.replaceAll("\\s+", " ").trim();
+    name = RegexUtil.SURROUNDING_QUOTES_PAT.matcher(name).replaceAll("").trim();
+    name = RegexUtil.WHITESPACES_PAT.matcher(name).replaceAll(" ").trim();
     name = flip(name, ',');  // Flip if "<last name>, <first name>"
     return name;
   }
@@ -1,12 +1,17 @@
 package com.contextsmith.email.parser;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.regex.Pattern;
 
 import javax.mail.internet.InternetAddress;
@@ -15,13 +20,9 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.contextsmith.nlp.annotator.FirstNameAnnotator;
-import com.contextsmith.nlp.annotator.LastNameAnnotator;
-import com.contextsmith.nlp.annotator.SalutationAnnotator;
-import com.contextsmith.nlp.annotator.ValedictionAnnotator;
+import com.contextsmith.nlp.annotator.SharedDictionary;
+import com.contextsmith.utils.RegexUtil;
 import com.google.common.base.Joiner;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
 
 public class EnglishEmailTextParser {
 
@@ -57,6 +58,17 @@ public class EnglishEmailTextParser {
   public static final double MIN_SENTENCE_SCORE = 0.02;
   public static final String END_LINE_RE = "\r?\n";
 
+  // Number of times each feature was computed, across all parsers.
+  private static final AtomicLongArray featureEvaluations =
+      new AtomicLongArray(LineFeature.values().length);
+  private static final AtomicLong linesParsed = new AtomicLong();
+
+  static {
+    // Features of a line are stored as bits of a long.
+    checkState(LineFeature.values().length <= Long.SIZE,
+               "Too many line features: %s", LineFeature.values().length);
+  }
+
   public static void main(String[] args) {
     /*List<MimeMessage> messages = EmailClustererMain.fetchEmails();
     EnglishEmailBodyParser parser = new EnglishEmailBodyParser();
@@ -83,14 +95,101 @@ public class EnglishEmailTextParser {
     log.debug(parser.parse(plainText).toString());
   }
 
+  /**
+   * Returns the length of the prefix of 'text' that parse() needs in order to
+   * find the salutation, body and signature, i.e. the text up to and
+   * including the first quoted line (a '>' line, a "From:/Sent:" field or an
+   * "On ... wrote:" header).  The rest of the text is quoted history, which
+   * parse() would only label as QUOTED.  Returns text.length() if there is no
+   * quoted line.
+   *
+   * This is a single linear scan, so long reply chains need not be split and
+   * scored line by line.
+   */
+  public static int findNewContentEnd(String text) {
+    int length = text.length();
+    int lineBegin = 0;
+    while (lineBegin < length && text.charAt(lineBegin) <= ' ') ++lineBegin;
+
+    // One of the first MAX_SALUTATION_LINES lines may become the salutation
+    // even if it looks quoted, in which case the next quoted line is the
+    // first QUOTED one.  Those first lines are always kept.
+    boolean hasSkippedQuotedLine = false;
+    int lastLineIndex = -1;  // Last line of the new content.
+    for (int lineIndex = 0; lineBegin < length; ++lineIndex) {
+      int lineEnd = text.indexOf('\n', lineBegin);
+      if (lineEnd < 0) lineEnd = length;
+
+      if (lastLineIndex < 0 && isQuotedLine(text.substring(lineBegin, lineEnd).trim())) {
+        if (lineIndex < MAX_SALUTATION_LINES && !hasSkippedQuotedLine) {
+          hasSkippedQuotedLine = true;
+        } else {
+          lastLineIndex = Math.max(lineIndex, MAX_SALUTATION_LINES - 1);
+        }
+      }
+      if (lastLineIndex >= 0 && lineIndex >= lastLineIndex) return lineEnd;
+      lineBegin = lineEnd + 1;
+    }
+    return length;
+  }
+
+  /**
+   * Returns the number of times each feature has been computed since startup
+   * (or the last reset).  Since features are evaluated lazily, comparing these
+   * with getLinesParsed() shows how much work the rules actually needed.
+   */
+  public static Map<LineFeature, Long> getFeatureEvaluationCounts() {
+    Map<LineFeature, Long> counts = new EnumMap<>(LineFeature.class);
+    for (LineFeature feature : LineFeature.values()) {
+      counts.put(feature, featureEvaluations.get(feature.ordinal()));
+    }
+    return counts;
+  }
+
+  public static long getLinesParsed() {
+    return linesParsed.get();
+  }
+
+  /**
+   * Returns getLinesParsed() as "linesParsed" and the counts of
+   * getFeatureEvaluationCounts() by feature name, e.g. for the crawl metrics.
+   */
+  public static Map<String, Number> getMetrics() {
+    Map<String, Number> metrics = new LinkedHashMap<>();
+    metrics.put("linesParsed", getLinesParsed());
+    for (Map.Entry<LineFeature, Long> entry : getFeatureEvaluationCounts().entrySet()) {
+      metrics.put(entry.getKey().name(), entry.getValue());
+    }
+    return metrics;
+  }
+
+  public static void resetMetrics() {
+    for (int i = 0; i < featureEvaluations.length(); ++i) {
+      featureEvaluations.set(i, 0);
+    }
+    linesParsed.set(0);
+  }
+
+  // Same as HAS_QUOTED_PREFIX || (IS_QUOTED_HEADER && HAS_EMAIL_ADDRESS), see
+  // identifyQuoted().
+  private static boolean isQuotedLine(String line) {
+    return line.startsWith(">") ||
+           RegexUtil.QUOTED_FIELD_PAT.matcher(line).matches() ||
+           (line.indexOf('@') >= 0 &&
+            RegexUtil.QUOTED_HEADER_PAT.matcher(line).matches() &&
+            RegexUtil.EMAIL_ADDRESS_PAT.matcher(line).matches());
+  }
+
   private static Pattern makeNamePattern(Set<InternetAddress> people) {
     List<String> tokens = new ArrayList<>();
     for (InternetAddress person : people) {
       String name = person.getPersonal();
       if (StringUtils.isBlank(name)) {
-        name = person.getAddress().replaceFirst("@.+$", "");
+        name = person.getAddress();
+        int at = name.indexOf('@');  // Same as replaceFirst("@.+$", "").
+        if (at >= 0 && at < name.length() - 1) name = name.substring(0, at);
       }
-      String[] words = name.split("[\\p{Punct}\\s]+");
+      String[] words = RegexUtil.NAME_SEPARATOR_PAT.split(name);
       for (String word : words) {
         if (word.length() > 2) tokens.add(word);
       }
@@ -101,20 +200,58 @@ public class EnglishEmailTextParser {
 
   private String[] lines;
   private LineCategory[] lineLabels;
-  private Table<Integer, LineFeature, Double> featureTable;
+  // Features are computed on demand by hasFeature().  Bit 'f.ordinal()' of
+  // evaluatedFeatures[i] is set once feature 'f' of line i is known, and the
+  // same bit of lineFeatures[i] holds its value.
+  private long[] lineFeatures;
+  private long[] evaluatedFeatures;
+  // Per-line intermediate results shared by several features (-1 or NaN
+  // until computed).
+  private int[] dictionaryMatches;
+  private int[] tokenCounts;
+  private double[] sentenceScores;
+  private Pattern senderNamePat;
+  private Pattern recipientNamePat;
+  // The text after the new content, see parseNewContent(), and the offset of
+  // the quoted history in the whole text.
+  private String unparsedText;
+  private int quotedBegin;
 
   public EnglishEmailTextParser() {
     this.lines = null;
     this.lineLabels = null;
-    this.featureTable = null;
+    this.unparsedText = "";
+    this.quotedBegin = 0;
+    this.lineFeatures = null;
+    this.evaluatedFeatures = null;
   }
 
   public String getBody() {
     return getLinesByCategory(LineCategory.BODY);
   }
 
+  /**
+   * Returns the QUOTED lines, also those of the text parseNewContent() left
+   * unparsed, which parse() would label QUOTED.
+   */
   public String getQuoted() {
-    return getLinesByCategory(LineCategory.QUOTED);
+    String quoted = getLinesByCategory(LineCategory.QUOTED);
+    if (quoted == null || this.unparsedText.isEmpty()) return quoted;
+
+    StringBuilder builder = new StringBuilder(quoted);
+    for (String line : RegexUtil.END_LINE_PAT.split(this.unparsedText.trim())) {
+      line = line.trim();
+      if (isQuotedLine(line)) builder.append(line).append(System.lineSeparator());
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns the offset of the quoted history in the text, i.e. of its first
+   * QUOTED line, or the length of the parsed text if there is none.
+   */
+  public int getQuotedBegin() {
+    return this.quotedBegin;
   }
 
   public String getSalutation() {
@@ -133,36 +270,34 @@ public class EnglishEmailTextParser {
                                       Set<InternetAddress> recipients) {
     checkNotNull(text);
 
-    Pattern senderNamePat = null;
+    this.senderNamePat = null;
     if (senders != null) {
-      senderNamePat = makeNamePattern(senders);
-      log.trace("Sender name pattern: {}", senderNamePat);
+      this.senderNamePat = makeNamePattern(senders);
+      log.trace("Sender name pattern: {}", this.senderNamePat);
     }
 
-    Pattern recipientNamePat = null;
+    this.recipientNamePat = null;
     if (recipients != null) {
-      recipientNamePat = makeNamePattern(recipients);
-      log.trace("Recipient pattern: {}", recipientNamePat);
+      this.recipientNamePat = makeNamePattern(recipients);
+      log.trace("Recipient pattern: {}", this.recipientNamePat);
     }
 
     // Initialization.
-    this.featureTable = HashBasedTable.create();
-    this.lines = text.trim().split(END_LINE_RE);
-    this.lineLabels = new LineCategory[this.lines.length];
-    Arrays.fill(this.lineLabels, null);
-
-    // Generate feature table.
+    this.lines = RegexUtil.END_LINE_PAT.split(text.trim());
     for (int i = 0; i < this.lines.length; ++i) {
       this.lines[i] = this.lines[i].trim();
-
-      for (LineFeature feature : LineFeature.values()) {
-//        System.out.println(String.format("%d. [%s] \"%s\"", i, feature, this.lines[i]));
-        if (matchesFeature(this.lines[i], feature, senderNamePat, recipientNamePat)) {
-//          System.out.println("^^^^^^^^^^^^^^^^^^^^^^^^");
-          this.featureTable.put(i, feature, (double) 1);
-        }
-      }
     }
+    this.lineLabels = new LineCategory[this.lines.length];
+    this.lineFeatures = new long[this.lines.length];
+    this.evaluatedFeatures = new long[this.lines.length];
+    this.dictionaryMatches = new int[this.lines.length];
+    this.tokenCounts = new int[this.lines.length];
+    this.sentenceScores = new double[this.lines.length];
+    Arrays.fill(this.lineLabels, null);
+    Arrays.fill(this.dictionaryMatches, -1);
+    Arrays.fill(this.tokenCounts, -1);
+    Arrays.fill(this.sentenceScores, Double.NaN);
+    linesParsed.addAndGet(this.lines.length);
 
     // Order is important here.
     identifySalutation();
@@ -170,6 +305,21 @@ public class EnglishEmailTextParser {
     identifySignature();
     identifyBody();
 
+    this.unparsedText = "";
+    this.quotedBegin = findQuotedBegin(text);
+    return this;
+  }
+
+  /**
+   * Same as parse(), but only the new content of 'text' is split and scored,
+   * see findNewContentEnd().  The rest is quoted history: its QUOTED lines
+   * are only looked for by getQuoted().
+   */
+  public EnglishEmailTextParser parseNewContent(String text, Set<InternetAddress> senders,
+                                                Set<InternetAddress> recipients) {
+    int newContentEnd = findNewContentEnd(text);
+    parse(text.substring(0, newContentEnd), senders, recipients);
+    this.unparsedText = text.substring(newContentEnd);
     return this;
   }
 
@@ -185,6 +335,19 @@ public class EnglishEmailTextParser {
     return builder.toString();
   }
 
+  // Returns the offset in 'text' of the first QUOTED line, whose lines are
+  // those of this.lines, or text.length() if there is none.
+  private int findQuotedBegin(String text) {
+    int lineBegin = 0;
+    while (lineBegin < text.length() && text.charAt(lineBegin) <= ' ') ++lineBegin;
+    for (int i = 0; i < this.lineLabels.length; ++i) {
+      if (this.lineLabels[i] == LineCategory.QUOTED) return lineBegin;
+      lineBegin = text.indexOf('\n', lineBegin) + 1;
+      if (lineBegin <= 0) break;
+    }
+    return text.length();
+  }
+
   private String getLinesByCategory(LineCategory category) {
     if (this.lineLabels == null) {
       log.error("Must execute parse() first!");
@@ -199,6 +362,40 @@ public class EnglishEmailTextParser {
     return builder.toString();
   }
 
+  private int getDictionaryMatches(int line) {
+    if (this.dictionaryMatches[line] < 0) {
+      // One pass over the line for all dictionary-based features.
+      this.dictionaryMatches[line] =
+          SharedDictionary.getInstance().match(this.lines[line]);
+    }
+    return this.dictionaryMatches[line];
+  }
+
+  private double getSentenceScore(int line) {
+    if (Double.isNaN(this.sentenceScores[line])) {
+      this.sentenceScores[line] =
+          EnglishScorer.getInstance().computeScore(this.lines[line]);
+    }
+    return this.sentenceScores[line];
+  }
+
+  private int getTokenCount(int line) {
+    if (this.tokenCounts[line] < 0) {
+      this.tokenCounts[line] = EnglishScorer.countTokens(this.lines[line]);
+    }
+    return this.tokenCounts[line];
+  }
+
+  private boolean hasFeature(int line, LineFeature feature) {
+    long bit = 1L << feature.ordinal();
+    if ((this.evaluatedFeatures[line] & bit) == 0) {
+      featureEvaluations.incrementAndGet(feature.ordinal());
+      if (matchesFeature(line, feature)) this.lineFeatures[line] |= bit;
+      this.evaluatedFeatures[line] |= bit;
+    }
+    return (this.lineFeatures[line] & bit) != 0;
+  }
+
   private void identifyBody() {
     // Start from line 0 or salutation, whichever is bigger.
     int bodyStartLine = 0;
@@ -225,8 +422,7 @@ public class EnglishEmailTextParser {
 
     // Assign category.
     for (int i = bodyStartLine; i < bodyEndLine; ++i) {
-//      Map<LineFeature, Double> map = this.featureTable.row(i);
-//      if (map != null && map.containsKey(LineFeature.EMPTY_LINE)) continue;
+//      if (hasFeature(i, LineFeature.IS_EMPTY_LINE)) continue;
       this.lineLabels[i] = LineCategory.BODY;
     }
   }
@@ -234,14 +430,10 @@ public class EnglishEmailTextParser {
   private void identifyQuoted() {
     for (int i = 0; i < this.lineLabels.length; ++i) {
       if (this.lineLabels[i] != null) continue;
-      Map<LineFeature, Double> map = this.featureTable.row(i);
-      if (map == null) continue;
-
-      boolean condition1 = map.containsKey(LineFeature.IS_QUOTED_HEADER) &&
-                           map.containsKey(LineFeature.HAS_EMAIL_ADDRESS);
-      boolean condition2 = map.containsKey(LineFeature.HAS_QUOTED_PREFIX);
 
-      if (condition1 || condition2) {
+      if (hasFeature(i, LineFeature.HAS_QUOTED_PREFIX) ||
+          (hasFeature(i, LineFeature.IS_QUOTED_HEADER) &&
+           hasFeature(i, LineFeature.HAS_EMAIL_ADDRESS))) {
         this.lineLabels[i] = LineCategory.QUOTED;
       }
     }
@@ -250,19 +442,15 @@ public class EnglishEmailTextParser {
   private void identifySalutation() {
     for (int i = 0; i < Math.min(MAX_SALUTATION_LINES, this.lineLabels.length); ++i) {
       if (this.lineLabels[i] != null) continue;
-      Map<LineFeature, Double> map = this.featureTable.row(i);
-      if (map == null) continue;
 
       // Salutation must not be a sentence.
-      if (map.containsKey(LineFeature.HAS_MANY_TOKENS)) break;
+      if (hasFeature(i, LineFeature.HAS_MANY_TOKENS)) break;
 
-      boolean condition1 = map.containsKey(LineFeature.HAS_SALUTATION_PREFIX);
-      boolean condition2 = map.containsKey(LineFeature.HAS_PERSON_NAME);
-      boolean condition3 = map.containsKey(LineFeature.HAS_PUNCTUATION_SUFFIX);
-//      boolean condition5 = map.containsKey(LineFeature.HAS_FEW_TOKENS);
-      boolean condition4 = map.containsKey(LineFeature.HAS_RECIPIENT_NAME_PREFIX);
-
-      if (condition1 || ((condition2 || condition4) && condition3)) {
+      // Cheapest features first, the rest are evaluated only if needed.
+      if (hasFeature(i, LineFeature.HAS_SALUTATION_PREFIX) ||
+          (hasFeature(i, LineFeature.HAS_PUNCTUATION_SUFFIX) &&
+           (hasFeature(i, LineFeature.HAS_RECIPIENT_NAME_PREFIX) ||
+            hasFeature(i, LineFeature.HAS_PERSON_NAME)))) {
         this.lineLabels[i] = LineCategory.SALUTATION;
         break;  // Salutation usually has only one line.
       }
@@ -284,15 +472,13 @@ public class EnglishEmailTextParser {
     for (int i = bottomLine;
          i >= Math.max(bottomLine - MAX_SIGNATURE_LINES, 0); --i) {
       if (this.lineLabels[i] != null) continue;
-      Map<LineFeature, Double> map = this.featureTable.row(i);
-      if (map == null) continue;
 
       // Signature line must not be a sentence.
-      if (map.containsKey(LineFeature.IS_SENTENCE)) break;
+      if (hasFeature(i, LineFeature.IS_SENTENCE)) break;
 
-      boolean condition1 = map.containsKey(LineFeature.HAS_VALEDICTION_PREFIX);
-      boolean condition2 = map.containsKey(LineFeature.HAS_FEW_TOKENS);
-      boolean condition3 = map.containsKey(LineFeature.HAS_PERSON_NAME);
+      boolean condition1 = hasFeature(i, LineFeature.HAS_VALEDICTION_PREFIX);
+      boolean condition2 = hasFeature(i, LineFeature.HAS_FEW_TOKENS);
+      boolean condition3 = hasFeature(i, LineFeature.HAS_PERSON_NAME);
 
       if (condition1) {
         this.lineLabels[i] = LineCategory.SIGNATURE;
@@ -314,47 +500,41 @@ public class EnglishEmailTextParser {
       // If this line already has label, then skip.
       if (this.lineLabels[i] != null) continue;
 
-      Map<LineFeature, Double> map1 = this.featureTable.row(i);
-      if (map1 == null) continue;
-
-      // Signature line must not be a sentence.
-      if (map1.containsKey(LineFeature.IS_SENTENCE)) continue;
-
-      boolean condition10 = map1.containsKey(LineFeature.IS_EMPTY_LINE);
-      boolean condition11 = map1.containsKey(LineFeature.HAS_VALEDICTION_PREFIX);
-      boolean condition12 = map1.containsKey(LineFeature.HAS_FEW_TOKENS);
-      boolean condition13 = map1.containsKey(LineFeature.HAS_PERSON_NAME);
-      boolean condition14 = map1.containsKey(LineFeature.HAS_SENDER_NAME_PREFIX);
-
       int nextNonEmptyLine = i + 1;
       for (; nextNonEmptyLine < quotedLineBeginRow; ++nextNonEmptyLine) {
-        Map<LineFeature, Double> map = this.featureTable.row(nextNonEmptyLine);
-        if (!map.containsKey(LineFeature.IS_EMPTY_LINE)) break;
+        if (!hasFeature(nextNonEmptyLine, LineFeature.IS_EMPTY_LINE)) break;
       }
 
+      // The cheap features decide whether a line could be labeled at all;
+      // IS_SENTENCE (the English scorer) is only computed for candidates.
       if (nextNonEmptyLine < quotedLineBeginRow) {  // Has next non-empty line.
-        Map<LineFeature, Double> map2 = this.featureTable.row(nextNonEmptyLine);
-        if (map2 != null) {
-          // Signature line must not be a sentence.
-          if (map2.containsKey(LineFeature.IS_SENTENCE)) continue;
-
-//          boolean condition20 = map2.containsKey(LineFeature.IS_EMPTY_LINE);
-          boolean condition21 = map2.containsKey(LineFeature.HAS_VALEDICTION_PREFIX);
-          boolean condition22 = map2.containsKey(LineFeature.HAS_FEW_TOKENS);
-          boolean condition23 = map2.containsKey(LineFeature.HAS_PERSON_NAME);
-          boolean condition24 = map2.containsKey(LineFeature.HAS_SENDER_NAME_PREFIX);
-
-          if (condition11 && (condition21 || condition22 || condition23 || condition24)) {
-            this.lineLabels[i] = LineCategory.SIGNATURE;
-            this.lineLabels[nextNonEmptyLine] = LineCategory.SIGNATURE;
-            break;  // Stop looking.
-          } else if (condition10 && condition22 && (condition23 || condition24)) {
-            this.lineLabels[nextNonEmptyLine] = LineCategory.SIGNATURE;
-            break;  // Stop looking.
-          }
-        }
+        int j = nextNonEmptyLine;
+        boolean condition10 = hasFeature(i, LineFeature.IS_EMPTY_LINE);
+        boolean condition11 = !condition10 &&
+                              hasFeature(i, LineFeature.HAS_VALEDICTION_PREFIX);
+        if (!condition10 && !condition11) continue;
+
+        boolean condition22 = hasFeature(j, LineFeature.HAS_FEW_TOKENS);
+        boolean condition2324 = hasFeature(j, LineFeature.HAS_SENDER_NAME_PREFIX) ||
+                                hasFeature(j, LineFeature.HAS_PERSON_NAME);
+        boolean labelBoth = condition11 &&
+            (condition22 || condition2324 ||
+             hasFeature(j, LineFeature.HAS_VALEDICTION_PREFIX));
+        boolean labelNext = condition10 && condition22 && condition2324;
+        if (!labelBoth && !labelNext) continue;
+
+        // Signature lines must not be sentences.
+        if (hasFeature(i, LineFeature.IS_SENTENCE) ||
+            hasFeature(j, LineFeature.IS_SENTENCE)) continue;
+
+        if (labelBoth) this.lineLabels[i] = LineCategory.SIGNATURE;
+        this.lineLabels[j] = LineCategory.SIGNATURE;
+        break;  // Stop looking.
       } else {  // Does not have next line.
-        if (condition12 && (condition13 || condition14)) {
+        if (hasFeature(i, LineFeature.HAS_FEW_TOKENS) &&
+            (hasFeature(i, LineFeature.HAS_SENDER_NAME_PREFIX) ||
+             hasFeature(i, LineFeature.HAS_PERSON_NAME)) &&
+            !hasFeature(i, LineFeature.IS_SENTENCE)) {  // Must not be a sentence.
           this.lineLabels[i] = LineCategory.SIGNATURE;
           break;
         }
@@ -362,51 +542,49 @@ public class EnglishEmailTextParser {
     }
   }
 
-  private boolean matchesFeature(String line, LineFeature feature,
-                                 Pattern senderNamePat,
-                                 Pattern recipientNamePat) {
+  private boolean matchesFeature(int lineIndex, LineFeature feature) {
+    String line = this.lines[lineIndex];
     switch (feature) {
     case IS_QUOTED_HEADER:
       // On Wed, Oct 21, 2015 at 11:02 AM, Richard Wang <rcwang@gmail.com> wrote:
-      return line.matches(".+? wrote:") ||
-             line.matches(".+? 寫道﹕") ||
-             line.matches(".+? a écrit :") ||
-             line.matches(".+?>:") ||
-             line.matches("On .+?>") ||
-             line.matches("On .+? <");
+      return RegexUtil.QUOTED_HEADER_PAT.matcher(line).matches();
     case HAS_EMAIL_ADDRESS:
-      return line.matches(".*\\b[\\w-]+@[\\w-]+(\\.[\\w-]+)+\\b.*");
+      return line.indexOf('@') >= 0 &&
+             RegexUtil.EMAIL_ADDRESS_PAT.matcher(line).matches();
     case HAS_QUOTED_PREFIX:
       return line.startsWith(">") ||
-             line.matches("(From|Sent|To|Subject): .+");
+             RegexUtil.QUOTED_FIELD_PAT.matcher(line).matches();
     case HAS_SALUTATION_PREFIX:
-      return !SalutationAnnotator.getInstance().annotate(line).isEmpty();
+      return SharedDictionary.hasMatch(getDictionaryMatches(lineIndex),
+                                       SharedDictionary.SALUTATION);
     case HAS_VALEDICTION_PREFIX:
-      return line.matches("-{2,3}([^-]+|$)") ||
-             !ValedictionAnnotator.getInstance().annotate(line).isEmpty();
+      return RegexUtil.VALEDICTION_DASHES_PAT.matcher(line).matches() ||
+             SharedDictionary.hasMatch(getDictionaryMatches(lineIndex),
+                                       SharedDictionary.VALEDICTION);
     case HAS_PUNCTUATION_SUFFIX:
       return line.endsWith(",") || line.endsWith(":") || line.endsWith("-");
     case HAS_PERSON_NAME:
-      return !FirstNameAnnotator.getInstance().annotate(line).isEmpty() ||
-             !LastNameAnnotator.getInstance().annotate(line).isEmpty();
+      int dictionaryMatches = getDictionaryMatches(lineIndex);
+      return SharedDictionary.hasMatch(dictionaryMatches, SharedDictionary.FIRST_NAME) ||
+             SharedDictionary.hasMatch(dictionaryMatches, SharedDictionary.LAST_NAME);
     case HAS_SENDER_NAME_PREFIX:
-      if (senderNamePat == null) return false;
-      return senderNamePat.matcher(line).find();
+      if (this.senderNamePat == null) return false;
+      return this.senderNamePat.matcher(line).find();
     case HAS_RECIPIENT_NAME_PREFIX:
-      if (recipientNamePat == null) return false;
-      return recipientNamePat.matcher(line).find();
+      if (this.recipientNamePat == null) return false;
+      return this.recipientNamePat.matcher(line).find();
     case HAS_FEW_TOKENS:
       return StringUtils.isNotBlank(line) &&
-             EnglishScorer.tokenize(line).size() <= MAX_FEW_TOKENS;
+             getTokenCount(lineIndex) <= MAX_FEW_TOKENS;
     case HAS_MANY_TOKENS:
       return StringUtils.isNotBlank(line) &&
-             EnglishScorer.tokenize(line).size() > MAX_FEW_TOKENS;
+             getTokenCount(lineIndex) > MAX_FEW_TOKENS;
     case IS_SENTENCE:
       return StringUtils.isNotBlank(line) &&
-             EnglishScorer.getInstance().computeScore(line) >= MIN_SENTENCE_SCORE;
+             getSentenceScore(lineIndex) >= MIN_SENTENCE_SCORE;
     case IS_NOT_SENTENCE:
       return StringUtils.isNotBlank(line) &&
-             EnglishScorer.getInstance().computeScore(line) < MIN_SENTENCE_SCORE;
+             getSentenceScore(lineIndex) < MIN_SENTENCE_SCORE;
     case IS_EMPTY_LINE:
       return StringUtils.isBlank(line);
     default: return false;
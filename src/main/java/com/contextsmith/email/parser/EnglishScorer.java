@@ -2,9 +2,12 @@ package com.contextsmith.email.parser;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.regex.Matcher;
@@ -15,7 +18,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.contextsmith.utils.FileUtil;
+import com.contextsmith.utils.RegexUtil;
 
+/**
+ * Scores how much a text looks like English, as the cosine similarity between
+ * the word distribution of the text and that of English.
+ *
+ * computeScore() tokenizes straight from the text, and looks the words up in
+ * a primitive open-addressed table, without allocating a String per word.
+ * It sums over the words in the order a HashMap<String, Double> of them
+ * would iterate, so its result is bit-for-bit that of the original
+ * implementation (lower-case the text, count the words in such a HashMap,
+ * sum over the map).  The original implementation is kept unchanged for
+ * the few texts the fast path cannot handle.
+ */
 public class EnglishScorer {
   private static final Logger log = LoggerFactory.getLogger(EnglishScorer.class);
 
@@ -23,9 +39,32 @@ public class EnglishScorer {
   public static final String DEFAULT_EN_WORD_PROB_FILE = "top-en-words-prob.txt";
   public static final Pattern EN_WORD_TOKEN_RE = Pattern.compile("[a-zA-Z]+");
 
+  // Sizing policy of java.util.HashMap, see orderAsHashMap().
+  private static final int HASH_MAP_INITIAL_CAPACITY = 16;
+  private static final int HASH_MAP_TREEIFY_THRESHOLD = 8;
+  private static final int HASH_MAP_MIN_TREEIFY_CAPACITY = 64;
+
+  private static final ThreadLocal<WordCounts> wordCounts =
+      ThreadLocal.withInitial(WordCounts::new);
+
   private static EnglishScorer instance = null;
 
-  public static EnglishScorer getInstance() {
+  /**
+   * Returns the number of tokens tokenize() would return, without
+   * allocating them.
+   */
+  public static int countTokens(CharSequence latinText) {
+    int count = 0;
+    boolean inToken = false;
+    for (int i = 0; i < latinText.length(); ++i) {
+      boolean isLetter = isAsciiLetter(latinText.charAt(i));
+      if (isLetter && !inToken) ++count;
+      inToken = isLetter;
+    }
+    return count;
+  }
+
+  public static synchronized EnglishScorer getInstance() {
     if (instance == null) instance = new EnglishScorer().loadData();
     return instance;
   }
@@ -65,17 +104,70 @@ public class EnglishScorer {
     return resultMap;
   }
 
-  private Map<String, Double> wordProbMap;
+  private static boolean isAsciiLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  // Returns true if text.toLowerCase() lower-cases the ASCII letters of
+  // 'text' one by one, and produces no other ASCII letter.  Only the
+  // following locales and characters do otherwise.
+  private static boolean isAsciiLowerCaseSafe(String text) {
+    String language = Locale.getDefault().getLanguage();
+    if (language.equals("tr") || language.equals("az") || language.equals("lt")) {
+      return false;
+    }
+    for (int i = 0; i < text.length(); ++i) {
+      char c = text.charAt(i);
+      // Latin capital I with dot above, Kelvin sign.
+      if (c == '\u0130' || c == '\u212A') return false;
+    }
+    return true;
+  }
+
+  private static char toLowerCase(char c) {
+    return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  // Word 'i' is wordPool[wordBegin[i]] to wordPool[wordBegin[i + 1]].
+  private char[] wordPool;
+  private int[] wordBegin;
+  private double[] wordProbs;
+  private int numWords;
+  // Open-addressed table of (word index + 1), 0 for an empty slot.
+  private int[] wordSlots;
   private double wordProbMagnitude;
 
   EnglishScorer() {
-    this.wordProbMap = new HashMap<>();
+    this.wordPool = new char[0];
+    this.wordBegin = new int[] { 0 };
+    this.wordProbs = new double[0];
+    this.numWords = 0;
+    this.wordSlots = new int[1];
     this.wordProbMagnitude = 0;
   }
 
   public double computeScore(String text) {
-    Map<String, Double> freqDist = computeFreqDist(text);
-    return cosineSimilarity(freqDist);
+    if (!isAsciiLowerCaseSafe(text)) return computeScoreSlowly(text);
+
+    WordCounts counts = wordCounts.get();
+    counts.count(text);
+    int capacity = counts.orderAsHashMap();
+    if (capacity < 0) return computeScoreSlowly(text);
+
+    double dotProduct = 0;
+    double inputMagnitude = 0;
+    for (int i = 0; i < counts.numWords; ++i) {
+      int word = (int) counts.order[i];
+      double inputProb = (double) counts.counts[word] / counts.total;
+      inputMagnitude += Math.pow(inputProb, 2);
+
+      int entry = findWord(text, counts.begins[word], counts.ends[word],
+                           counts.hashes[word]);
+      if (entry >= 0) dotProduct += inputProb * this.wordProbs[entry];
+    }
+    inputMagnitude = Math.sqrt(inputMagnitude);
+    if (inputMagnitude == 0 || this.wordProbMagnitude == 0) return 0;
+    return dotProduct / (inputMagnitude * this.wordProbMagnitude);
   }
 
   public EnglishScorer loadData() {
@@ -86,20 +178,27 @@ public class EnglishScorer {
     List<String> lines = FileUtil.findResourceAsStringList(path);
     for (String line : lines) {
       if (StringUtils.isBlank(line)) continue;
-      String[] parts = line.split("\\s+");
+      String[] parts = RegexUtil.WHITESPACES_PAT.split(line);
       if (parts.length != 2 || StringUtils.isBlank(parts[0]) ||
           StringUtils.isBlank(parts[1])) {
         log.error("Error in file: " + path);
         continue;
       }
       double prob = Double.parseDouble(parts[1].trim());
-      this.wordProbMap.put(parts[0].trim(), prob);
+      putWord(parts[0].trim(), prob);
       this.wordProbMagnitude += Math.pow(prob, 2);
     }
     this.wordProbMagnitude = Math.sqrt(this.wordProbMagnitude);
     return this;
   }
 
+  // The original implementation, for texts which computeScore() cannot
+  // score from the raw chars.
+  private double computeScoreSlowly(String text) {
+    Map<String, Double> freqDist = computeFreqDist(text);
+    return cosineSimilarity(freqDist);
+  }
+
   private double cosineSimilarity(Map<String, Double> inputMap) {
     checkNotNull(inputMap);
     double dotProduct = 0;
@@ -110,11 +209,203 @@ public class EnglishScorer {
       double inputProb = entry.getValue();
       inputMagnitude += Math.pow(inputProb, 2);
 
-      Double wordProb = this.wordProbMap.get(word);
-      if (wordProb != null) dotProduct += inputProb * wordProb;
+      int index = findWord(word, 0, word.length(), word.hashCode());
+      if (index >= 0) dotProduct += inputProb * this.wordProbs[index];
     }
     inputMagnitude = Math.sqrt(inputMagnitude);
     if (inputMagnitude == 0 || this.wordProbMagnitude == 0) return 0;
     return dotProduct / (inputMagnitude * this.wordProbMagnitude);
   }
+
+  // Returns the index of the word text[begin, end) lower-cased (which has
+  // String.hashCode() 'hash'), or -1 if it has no probability.
+  private int findWord(CharSequence text, int begin, int end, int hash) {
+    int mask = this.wordSlots.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int entry = this.wordSlots[slot] - 1;
+      if (entry < 0) return -1;
+      int wordBegin = this.wordBegin[entry];
+      if (this.wordBegin[entry + 1] - wordBegin != end - begin) continue;
+      boolean isEqual = true;
+      for (int i = 0; i < end - begin && isEqual; ++i) {
+        isEqual = this.wordPool[wordBegin + i] == toLowerCase(text.charAt(begin + i));
+      }
+      if (isEqual) return entry;
+    }
+  }
+
+  // Same as wordProbMap.put(word, prob).
+  private void putWord(String word, double prob) {
+    for (int i = 0; i < this.numWords; ++i) {
+      if (word.contentEquals(CharBuffer.wrap(
+              this.wordPool, this.wordBegin[i], this.wordBegin[i + 1] - this.wordBegin[i]))) {
+        this.wordProbs[i] = prob;
+        return;
+      }
+    }
+    if (2 * (this.numWords + 1) > this.wordSlots.length) {
+      this.wordSlots = new int[Math.max(16, 4 * this.wordSlots.length)];
+      for (int i = 0; i < this.numWords; ++i) insertSlot(i);
+    }
+    int poolEnd = this.wordBegin[this.numWords];
+    this.wordPool = Arrays.copyOf(this.wordPool, poolEnd + word.length());
+    word.getChars(0, word.length(), this.wordPool, poolEnd);
+    this.wordBegin = Arrays.copyOf(this.wordBegin, this.numWords + 2);
+    this.wordBegin[this.numWords + 1] = poolEnd + word.length();
+    this.wordProbs = Arrays.copyOf(this.wordProbs, this.numWords + 1);
+    this.wordProbs[this.numWords] = prob;
+    insertSlot(this.numWords++);
+  }
+
+  private void insertSlot(int entry) {
+    int hash = 0;
+    for (int i = this.wordBegin[entry]; i < this.wordBegin[entry + 1]; ++i) {
+      hash = 31 * hash + this.wordPool[i];
+    }
+    int mask = this.wordSlots.length - 1;
+    int slot = hash & mask;
+    while (this.wordSlots[slot] != 0) slot = (slot + 1) & mask;
+    this.wordSlots[slot] = entry + 1;
+  }
+
+  /**
+   * Per-thread buffers counting the distinct lower-cased words of a text.
+   */
+  private static final class WordCounts {
+    // Distinct words in order of first occurrence: offsets of the first
+    // occurrence, String.hashCode() of the lower-cased word, and count.
+    int[] begins = new int[64];
+    int[] ends = new int[64];
+    int[] hashes = new int[64];
+    int[] counts = new int[64];
+    int numWords;
+    int total;
+    // Open-addressed table of (word + 1), 0 for an empty slot.
+    int[] slots = new int[128];
+    // Words in iteration order, see orderAsHashMap().
+    long[] order = new long[64];
+    int[] binSizes = new int[HASH_MAP_INITIAL_CAPACITY];
+
+    void count(String text) {
+      this.numWords = 0;
+      this.total = 0;
+      Arrays.fill(this.slots, 0);
+      int length = text.length();
+      for (int i = 0; i < length; ) {
+        if (!isAsciiLetter(text.charAt(i))) {
+          ++i;
+          continue;
+        }
+        int begin = i;
+        int hash = 0;
+        for (; i < length && isAsciiLetter(text.charAt(i)); ++i) {
+          hash = 31 * hash + toLowerCase(text.charAt(i));
+        }
+        add(text, begin, i, hash);
+      }
+    }
+
+    /**
+     * Sorts the words into the order in which a HashMap<String, ?> holding
+     * them (inserted in order of first occurrence) would iterate over them:
+     * by bin, then in insertion order within a bin.  Returns the capacity of
+     * that HashMap, or -1 if it would have turned a bin into a tree, whose
+     * order is not emulated.
+     */
+    int orderAsHashMap() {
+      int capacity = countBinSizes(HASH_MAP_INITIAL_CAPACITY, 0);
+      for (int word = 0; word < this.numWords; ++word) {
+        int bin = spread(this.hashes[word]) & (capacity - 1);
+        if (this.binSizes[bin]++ >= HASH_MAP_TREEIFY_THRESHOLD) {
+          // Small tables grow instead of making a tree.
+          if (capacity >= HASH_MAP_MIN_TREEIFY_CAPACITY) return -1;
+          capacity = countBinSizes(capacity * 2, word + 1);
+        }
+        if (word + 1 > capacity / 4 * 3) {  // Load factor 0.75.
+          capacity = countBinSizes(capacity * 2, word + 1);
+        }
+      }
+
+      int mask = capacity - 1;
+      for (int word = 0; word < this.numWords; ++word) {
+        long bin = spread(this.hashes[word]) & mask;
+        this.order[word] = (bin << 32) | word;
+      }
+      Arrays.sort(this.order, 0, this.numWords);
+      return capacity;
+    }
+
+    private void add(String text, int begin, int end, int hash) {
+      ++this.total;
+      int mask = this.slots.length - 1;
+      int slot = hash & mask;
+      for (; this.slots[slot] != 0; slot = (slot + 1) & mask) {
+        int word = this.slots[slot] - 1;
+        if (this.hashes[word] == hash &&
+            regionEqualsIgnoreCase(text, this.begins[word], this.ends[word],
+                                   begin, end)) {
+          ++this.counts[word];
+          return;
+        }
+      }
+      int word = this.numWords++;
+      if (word == this.begins.length) grow();
+      this.begins[word] = begin;
+      this.ends[word] = end;
+      this.hashes[word] = hash;
+      this.counts[word] = 1;
+      if (2 * this.numWords > this.slots.length) {
+        rehash();
+      } else {
+        this.slots[slot] = word + 1;
+      }
+    }
+
+    // Counts the bin sizes of the first 'numWords' words in a table of
+    // 'capacity', and returns 'capacity'.
+    private int countBinSizes(int capacity, int numWords) {
+      if (this.binSizes.length < capacity) this.binSizes = new int[capacity];
+      Arrays.fill(this.binSizes, 0, capacity, 0);
+      for (int word = 0; word < numWords; ++word) {
+        ++this.binSizes[spread(this.hashes[word]) & (capacity - 1)];
+      }
+      return capacity;
+    }
+
+    private void grow() {
+      int newLength = this.begins.length * 2;
+      this.begins = Arrays.copyOf(this.begins, newLength);
+      this.ends = Arrays.copyOf(this.ends, newLength);
+      this.hashes = Arrays.copyOf(this.hashes, newLength);
+      this.counts = Arrays.copyOf(this.counts, newLength);
+      this.order = new long[newLength];
+    }
+
+    private void rehash() {
+      this.slots = new int[this.slots.length * 2];
+      int mask = this.slots.length - 1;
+      for (int word = 0; word < this.numWords; ++word) {
+        int slot = this.hashes[word] & mask;
+        while (this.slots[slot] != 0) slot = (slot + 1) & mask;
+        this.slots[slot] = word + 1;
+      }
+    }
+
+    private static boolean regionEqualsIgnoreCase(String text, int begin1, int end1,
+                                                  int begin2, int end2) {
+      if (end1 - begin1 != end2 - begin2) return false;
+      for (int i = 0; i < end1 - begin1; ++i) {
+        if (toLowerCase(text.charAt(begin1 + i)) !=
+            toLowerCase(text.charAt(begin2 + i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // Same as HashMap.hash().
+    private static int spread(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+  }
 }
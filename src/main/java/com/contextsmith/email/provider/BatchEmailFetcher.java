@@ -2,35 +2,42 @@ package com.contextsmith.email.provider;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.contextsmith.email.store.MessageStore;
+import com.contextsmith.email.store.StoredMessage;
 import com.contextsmith.utils.MimeMessageUtil;
 import com.contextsmith.utils.ProcessUtil;
+import com.contextsmith.utils.SpillFile;
 import com.google.api.client.googleapis.batch.BatchRequest;
 import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.repackaged.org.apache.commons.codec.binary.Base64;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.ListMessagesResponse;
 import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePartHeader;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class BatchEmailFetcher {
@@ -38,129 +45,357 @@ public class BatchEmailFetcher {
 
   public static final int MAX_REQUEST_PER_BATCH = 100;
   public static final int MAX_GMAIL_ID_FETCHING_RETRIES = 2;
-  public static final int MAX_GMAIL_MSG_FETCHING_RETRIES = 2;
+  // Retries of each message, backed off exponentially (see RetryScheduler).
+  public static final int MAX_GMAIL_MSG_FETCHING_RETRIES = 5;
   public static final int MAX_CONCURRENT_THREADS = 4;
-  public static final long MIN_MILLIS_BETWEEN_BATCH_REQUEST = 1_000;  // 1 sec. - to prevent getting rejected by Google API
+  // Pages of Gmail IDs listed ahead of the batches fetching their messages.
+  public static final int MAX_QUEUED_ID_PAGES = 4;
+  // How long to wait for new IDs before sending a partial batch.
+  public static final long POLL_MILLIS = 100;
   public static final Properties PROPS = new Properties();
+  // Headers fetched in headers-only mode: all that filtering, clustering and
+  // making projects out of messages read, and those the body traits are
+  // guessed from (see MimeMessageUtil.guessBodyTraits()).
+  public static final List<String> METADATA_HEADERS = Collections.unmodifiableList(
+      Arrays.asList(MimeMessageUtil.MIME_MESSAGE_ID_HEADER,
+                    MimeMessageUtil.SENT_DATE_HEADER,
+                    "From", "Sender", "Reply-To", "To", "Cc", "Subject",
+                    MimeMessageUtil.REFERENCES_HEADER,
+                    MimeMessageUtil.DELIVERED_TO_HEADER,
+                    MimeMessageUtil.LIST_UNSUBSCRIBE_HEADER,
+                    MimeMessageUtil.CONTENT_TYPE_HEADER,
+                    MimeMessageUtil.CONTENT_CLASS_HEADER));
 
-  private static List<Message> findUnfetchedGmailMessages(
-      List<Message> emailsToFetch,
-      List<MimeMessage> emailsFetched) {
-    Set<String> fetchedIds = new HashSet<>();
-    for (MimeMessage message : emailsFetched) {
-      String id = MimeMessageUtil.getGmailMessageId(message);  // gmail id.
-      if (id == null) continue;
-      fetchedIds.add(id);
+  /**
+   * How a get of a message failed.
+   */
+  public enum FetchFailure {
+    RATE_LIMITED(true),
+    SERVER_ERROR(true),
+    BATCH_ERROR(true),  // The batch request failed, or had no response for it.
+    NOT_FOUND(false),
+    CLIENT_ERROR(false);
+
+    private final boolean isRetryable;
+
+    FetchFailure(boolean isRetryable) {
+      this.isRetryable = isRetryable;
     }
-    List<Message> missingMessages = new ArrayList<>();
-    for (Message message : emailsToFetch) {
-      String id = message.getId();  // gmail id.
-      if (!fetchedIds.contains(id)) {
-        missingMessages.add(message);
-      }
+
+    public boolean isRetryable() {
+      return this.isRetryable;
     }
-    return missingMessages;
   }
 
-  private static JsonBatchCallback<Message> makeJsonBatchCallback(
-      final List<MimeMessage> mimeMessages,
-      final int maxMessages,
-      final Stopwatch stopwatch) {
-    return new JsonBatchCallback<Message>() {
-      @Override
-      public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
-          throws IOException {
-      }
+  // Marks the end of the pages of Gmail IDs, compared by identity.
+  private static final List<Message> END_OF_PAGES =
+      Collections.unmodifiableList(new ArrayList<Message>());
 
-      @Override
-      public void onSuccess(Message message, HttpHeaders responseHeaders)
-          throws IOException {
-        byte[] emailBytes = Base64.decodeBase64(message.getRaw());
-        InputStream is = new ByteArrayInputStream(emailBytes);
-        Session session = Session.getDefaultInstance(PROPS, null);
-        MimeMessage mimeMessage = null;
+  /**
+   * Returns how a get of a message failed with 'error'.
+   */
+  public static FetchFailure classifyFailure(GoogleJsonError error) {
+    if (QuotaRateLimiter.isRateLimitError(error)) return FetchFailure.RATE_LIMITED;
+    if (error.getCode() == 404) return FetchFailure.NOT_FOUND;
+    if (error.getCode() >= 500) return FetchFailure.SERVER_ERROR;
+    return FetchFailure.CLIENT_ERROR;
+  }
 
-        try {
-          mimeMessage = new MimeMessage(session, is);
-          // We store gmail's message id to later determine those messages that
-          // are missing, and need to be re-fetched.
-          mimeMessage.addHeader(MimeMessageUtil.GMAIL_MESSAGE_ID_HEADER,
-                                message.getId());
-          mimeMessage.addHeader(MimeMessageUtil.GMAIL_THREAD_ID_HEADER,
-                                message.getThreadId());
-        } catch (MessagingException e) {
-          log.error(e.toString());
-          e.printStackTrace();
-        }
-        if (mimeMessage == null) return;
-
-        // Important: Ensures thread-safe!
-        synchronized (mimeMessages) {
-          mimeMessages.add(mimeMessage);
-
-          if (mimeMessages.size() % MAX_REQUEST_PER_BATCH == 0 ||  // moved it into synchronized block
-                  mimeMessages.size() == maxMessages) {
-            log.debug(String.format(
-                    "[%d%%] %d/%d fetched @ %.1f emails/sec. %s",
-                    Math.round(100.0 * mimeMessages.size() / maxMessages),
-                    mimeMessages.size(), maxMessages,
-                    1000.0 * mimeMessages.size() / stopwatch.elapsed(TimeUnit.MILLISECONDS),
-                    ProcessUtil.getHeapConsumption()));
-          }
-        }
+  // Returns the bytes of the message's raw content or headers, whichever
+  // was fetched.
+  private static long estimatePayloadBytes(Message message) {
+    if (message.getRaw() != null) return message.getRaw().length();
+    long bytes = 0;
+    if (message.getPayload() != null && message.getPayload().getHeaders() != null) {
+      for (MessagePartHeader header : message.getPayload().getHeaders()) {
+        bytes += header.getName().length() + header.getValue().length() + 4;
       }
-    };
+    }
+    return bytes;
   }
 
-  private static void waitForAllRunnables(BatchRequestRunnable[] runnables)
-      throws InterruptedException {
-    while (true) {
-      boolean allAvailable = true;
-      for (BatchRequestRunnable runnable : runnables) {
-        if (runnable != null && !runnable.isAvailable()) {
-          allAvailable = false;
+  private static MimeMessage parseMessage(Message message) {
+    Session session = Session.getDefaultInstance(PROPS, null);
+    MimeMessage mimeMessage = null;
+
+    try {
+      if (message.getRaw() != null) {
+        // Only the headers of the parsed message stay on the heap.
+        mimeMessage = MimeMessageUtil.parseBase64Url(session, message.getRaw(),
+                                                     SpillFile.getInstance());
+        message.setRaw(null);
+        // The traits are those of the parts, whatever the sender claims.
+        mimeMessage.removeHeader(MimeMessageUtil.BODY_TRAITS_HEADER);
+      } else {  // Fetched in headers-only mode.
+        if (message.getPayload() == null) return null;
+        mimeMessage = new MimeMessage(session);
+        mimeMessage.setText("");
+        // The empty body keeps its own type; that of the message only tells
+        // which parts it likely had.
+        String contentType = message.getPayload().getMimeType();
+        if (message.getPayload().getHeaders() != null) {
+          for (MessagePartHeader header : message.getPayload().getHeaders()) {
+            if (header.getName().equalsIgnoreCase(MimeMessageUtil.CONTENT_TYPE_HEADER)) {
+              contentType = header.getValue();
+            } else {
+              mimeMessage.addHeader(header.getName(), header.getValue());
+            }
+          }
         }
+        MimeMessageUtil.setBodyTraits(
+            mimeMessage, MimeMessageUtil.guessBodyTraits(mimeMessage, contentType));
       }
-      if (allAvailable) break;
-      Thread.sleep(100);
+      // Keep gmail's message and thread ids with the message.
+      mimeMessage.addHeader(MimeMessageUtil.GMAIL_MESSAGE_ID_HEADER,
+                            message.getId());
+      mimeMessage.addHeader(MimeMessageUtil.GMAIL_THREAD_ID_HEADER,
+                            message.getThreadId());
+    } catch (MessagingException e) {
+      log.error(e.toString());
+      e.printStackTrace();
     }
+    return mimeMessage;
   }
 
   private Gmail gmailService;
+  private QuotaRateLimiter rateLimiter;
+  private Map<FetchFailure, AtomicInteger> failureCounts;
+  private AtomicLong bytesFetched;
+  private boolean isHeadersOnly;
+  private MessageStore messageStore;
+  private String messageStoreSource;
+  private AtomicInteger numFromStore;
 
   public BatchEmailFetcher(Gmail service) {
+    this(service, new QuotaRateLimiter(UserInboxCrawler.DEFAULT_GMAIL_USER,
+                                       QuotaRateLimiter.DEFAULT_ACCOUNT_UNITS_PER_SEC));
+  }
+
+  /**
+   * @param rateLimiter Limiter of the account of 'service', which should be
+   * shared by all fetchers of the account (see QuotaRateLimiter.forAccount()).
+   */
+  public BatchEmailFetcher(Gmail service, QuotaRateLimiter rateLimiter) {
     checkNotNull(service);
+    checkNotNull(rateLimiter);
     this.gmailService = service;
+    this.rateLimiter = rateLimiter;
+    this.failureCounts = new EnumMap<>(FetchFailure.class);
+    this.bytesFetched = new AtomicLong();
+    this.isHeadersOnly = false;
+    this.messageStore = null;
+    this.messageStoreSource = null;
+    this.numFromStore = new AtomicInteger();
+    for (FetchFailure failure : FetchFailure.values()) {
+      this.failureCounts.put(failure, new AtomicInteger());
+    }
   }
 
-  public List<MimeMessage> fetchMimeMessages(String userId, String query,
-                                             long maxMessages) throws IOException {
-    List<Message> gmailMessages = fetchGmailMessages(userId, query, maxMessages);
-    if (gmailMessages == null) return null;
-    List<MimeMessage> mimeMessages = new ArrayList<>();
-
-    for (int retriesLeft = MAX_GMAIL_MSG_FETCHING_RETRIES; retriesLeft >= 0;
-        --retriesLeft) {
-      log.info("Fetching remaining {} emails ({} retry left)...",
-          gmailMessages.size(), retriesLeft);
-      mimeMessages.addAll(fetchMimeMessages(userId, gmailMessages));
-      gmailMessages = findUnfetchedGmailMessages(gmailMessages, mimeMessages);
-      if (gmailMessages.isEmpty()) break;
+  public List<MimeMessage> fetchMimeMessages(final String userId,
+                                             final String query,
+                                             final long maxMessages)
+      throws IOException {
+    if (this.gmailService == null) return null;
+    Stopwatch stopwatch = Stopwatch.createStarted();
+
+    // List Gmail IDs in the background, and fetch the messages of each page
+    // while the next one is listed.
+    final BlockingQueue<List<Message>> pages =
+        new ArrayBlockingQueue<>(MAX_QUEUED_ID_PAGES);
+    ExecutorService listExecutor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat(
+            Thread.currentThread().getName() + ".list").build());
+    Future<List<Message>> listFuture = listExecutor.submit(
+        new Callable<List<Message>>() {
+          @Override
+          public List<Message> call() throws Exception {
+            try {
+              return fetchGmailMessages(userId, query, maxMessages, pages);
+            } finally {
+              pages.put(END_OF_PAGES);
+            }
+          }
+        });
+    listExecutor.shutdown();
+
+    log.info("Fetching max {} emails while listing their IDs...", maxMessages);
+    List<MimeMessage> mimeMessages = null;
+    List<Message> gmailMessages = null;
+    try {
+      mimeMessages = new MessageFetch(userId, maxMessages).run(pages);
+      // If fetching stopped early, let listing finish.
+      while (!listFuture.isDone()) pages.poll(100, TimeUnit.MILLISECONDS);
+      gmailMessages = listFuture.get();
+    } catch (InterruptedException e) {
+      log.error(e.toString());
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof GoogleJsonResponseException) {
+        throw (GoogleJsonResponseException) e.getCause();
+      }
+      log.error(e.getCause().toString());
+    } finally {
+      listExecutor.shutdownNow();  // In case listing is blocked on the queue.
     }
+    if (gmailMessages == null) return null;
+
+    log.debug(String.format("Fetched %d/%d emails (%d stored, %d KB%s) @ %.1f emails/sec. %s; failures: %s",
+        mimeMessages.size(), gmailMessages.size(), getNumFromStore(),
+        getBytesFetched() / 1024, this.isHeadersOnly ? " of headers" : "",
+        1000.0 * mimeMessages.size() / Math.max(1, stopwatch.elapsed(TimeUnit.MILLISECONDS)),
+        this.rateLimiter, getFailureCounts()));
     return mimeMessages;
   }
 
+  /**
+   * Fetches the messages of the given Gmail IDs, e.g. those a sync found
+   * added since the last crawl (see GmailSync).
+   */
+  public List<MimeMessage> fetchMimeMessagesById(String userId, List<String> ids) {
+    if (this.gmailService == null) return null;
+    if (ids.isEmpty()) return new ArrayList<>();
+
+    BlockingQueue<List<Message>> pages = new LinkedBlockingQueue<>();
+    for (List<String> page : Lists.partition(ids, MAX_REQUEST_PER_BATCH)) {
+      List<Message> messages = new ArrayList<>(page.size());
+      for (String id : page) messages.add(new Message().setId(id));
+      pages.add(messages);
+    }
+    pages.add(END_OF_PAGES);
+    try {
+      return new MessageFetch(userId, ids.size()).run(pages);
+    } catch (InterruptedException e) {
+      log.error(e.toString());
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Lists the Gmail IDs of up to 'maxMessages' messages matching 'query',
+   * newest first, without fetching the messages.
+   */
+  public List<String> listMessageIds(String userId, String query, long maxMessages)
+      throws IOException {
+    List<Message> messages;
+    try {
+      messages = fetchGmailMessages(userId, query, maxMessages,
+                                    new LinkedBlockingQueue<List<Message>>());
+    } catch (InterruptedException e) {
+      log.error(e.toString());
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    if (messages == null) return null;
+    List<String> ids = new ArrayList<>(messages.size());
+    for (Message message : messages) ids.add(message.getId());
+    return ids;
+  }
+
+  /**
+   * Returns the number of failed gets of messages by how they failed,
+   * retried ones included.
+   */
+  public Map<FetchFailure, Integer> getFailureCounts() {
+    Map<FetchFailure, Integer> counts = new EnumMap<>(FetchFailure.class);
+    for (Map.Entry<FetchFailure, AtomicInteger> entry : this.failureCounts.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().get());
+    }
+    return counts;
+  }
+
+  /**
+   * Returns the bytes of raw messages, or of headers in headers-only mode,
+   * fetched so far.
+   */
+  public long getBytesFetched() {
+    return this.bytesFetched.get();
+  }
+
+  /**
+   * Returns the number of messages taken from the MessageStore instead of
+   * fetched.
+   */
+  public int getNumFromStore() {
+    return this.numFromStore.get();
+  }
+
+  public Gmail getGmailService() {
+    return this.gmailService;
+  }
+
+  public QuotaRateLimiter getRateLimiter() {
+    return this.rateLimiter;
+  }
+
+  public boolean isHeadersOnly() {
+    return this.isHeadersOnly;
+  }
+
+  /**
+   * Fetches only METADATA_HEADERS of messages (Gmail's "metadata" format)
+   * instead of their raw content, which leaves them with an empty body.
+   * EmailFilterer then filters them by body traits guessed from the headers,
+   * see MimeMessageUtil.guessBodyTraits(), which may differ from those of
+   * their parts.
+   */
+  public BatchEmailFetcher setHeadersOnly(boolean isHeadersOnly) {
+    this.isHeadersOnly = isHeadersOnly;
+    return this;
+  }
+
+  /**
+   * Takes the messages in 'store' from there instead of fetching them, and
+   * stores those fetched; 'source' is the address of the inbox, and null
+   * 'store' stores nothing.
+   */
+  public BatchEmailFetcher setMessageStore(MessageStore store, String source) {
+    this.messageStore = StringUtils.isBlank(source) ? null : store;
+    this.messageStoreSource = source;
+    return this;
+  }
+
+  // Returns the stored message of Gmail ID 'id', or null if not stored with
+  // what is to be fetched.
+  private MimeMessage getStoredMessage(String id) {
+    if (this.messageStore == null) return null;
+    StoredMessage stored = this.messageStore.getByProviderId(this.messageStoreSource, id);
+    if (stored == null || !stored.hasBodyTraits()) return null;
+    if (!this.isHeadersOnly && !stored.hasText()) return null;
+    try {
+      MimeMessage message = stored.toMimeMessage(
+          Session.getDefaultInstance(PROPS, null), !this.isHeadersOnly);
+      this.numFromStore.incrementAndGet();
+      return message;
+    } catch (MessagingException e) {
+      log.error(e.toString());
+      return null;
+    }
+  }
+
+  private void storeMessage(String id, MimeMessage message) {
+    if (this.messageStore == null) return;
+    try {
+      this.messageStore.put(this.messageStoreSource,
+                            StoredMessage.from(message, id, !this.isHeadersOnly));
+    } catch (IOException | MessagingException e) {
+      log.error("Unable to store email {}: {}", id, e.toString());
+    }
+  }
+
   /**
    * List all Messages of the user's mailbox matching the query.
    * @param userId User's email address. The special value "me"
    * can be used to indicate the authenticated user.
    * @param query String used to filter the Messages listed.
+   * @param pages Receives each non-empty page of Messages as it is listed.
    *
    * @throws IOException
    */
   private List<Message> fetchGmailMessages(String userId, String query,
-                                           long maxMessages)
-    throws GoogleJsonResponseException {
+                                           long maxMessages,
+                                           BlockingQueue<List<Message>> pages)
+    throws GoogleJsonResponseException, InterruptedException {
     if (this.gmailService == null) return null;
 
     Stopwatch stopWatch = Stopwatch.createStarted();
@@ -172,6 +407,7 @@ public class BatchEmailFetcher {
       for (int retriesLeft = MAX_GMAIL_ID_FETCHING_RETRIES; retriesLeft >= 0;
           --retriesLeft) {
         try {
+          this.rateLimiter.acquire(QuotaRateLimiter.MESSAGES_LIST_UNITS);
           response = this.gmailService.users()
               .messages()
               .list(userId)
@@ -181,7 +417,11 @@ public class BatchEmailFetcher {
           //throw new SocketTimeoutException("read time out");
         } catch (IOException e) {
           if (e instanceof GoogleJsonResponseException) {
-            throw (GoogleJsonResponseException) e;
+            GoogleJsonError error = ((GoogleJsonResponseException) e).getDetails();
+            if (!QuotaRateLimiter.isRateLimitError(error)) {
+              throw (GoogleJsonResponseException) e;
+            }
+            this.rateLimiter.onRateLimited(error);
           }
           log.error(e.toString());
         }
@@ -195,7 +435,8 @@ public class BatchEmailFetcher {
         return null;
       }
       pageToken = response.getNextPageToken();
-      if (response.getMessages() != null) {
+      if (response.getMessages() != null && !response.getMessages().isEmpty()) {
+        pages.put(response.getMessages());
         messages.addAll(response.getMessages());
         if (pageToken != null && messages.size() % 1e3 == 0) {
           log.debug("{} Gmail IDs fetched.", messages.size());
@@ -210,82 +451,221 @@ public class BatchEmailFetcher {
     return messages;
   }
 
-  private List<MimeMessage> fetchMimeMessages(String userId,
-                                              List<Message> messages) {
-    // Build a new authorized API client service.
-    if (this.gmailService == null) return null;
+  /**
+   * One run of fetching messages, which sends batches of new IDs and of IDs
+   * due for a retry as they fill up, while earlier batches are in flight on
+   * the Gmail batch threads shared by all fetches (see CrawlScheduler).
+   * Each failed message is scheduled for a retry on its own.
+   */
+  private class MessageFetch {
+    private final String userId;
+    private final int maxMessages;
+    private final Stopwatch stopwatch = Stopwatch.createStarted();
+    private final List<MimeMessage> mimeMessages = new ArrayList<>();
+    private final RetryScheduler<String> retries =
+        new RetryScheduler<>(MAX_GMAIL_MSG_FETCHING_RETRIES);
+    // IDs neither fetched nor given up on: batched, in flight or to retry.
+    private final AtomicInteger numPending = new AtomicInteger();
+    private BlockingQueue<GetBatch> availableBatches;
+    // Batches sent to the shared executor and maybe still running.
+    private final List<Future<?>> inFlight = new ArrayList<>();
 
-    // Create callback.
-    final List<MimeMessage> mimeMessages = new ArrayList<MimeMessage>();
-    // callback received all Messages, converts it to MimeMessage and adds it to mimeMessages
-    JsonBatchCallback<Message> callback = makeJsonBatchCallback(
-        mimeMessages, messages.size(), Stopwatch.createStarted());
-
-    int numThreads = Math.min(Runtime.getRuntime().availableProcessors(),
-        MAX_CONCURRENT_THREADS);
-    //BatchRequestRunnable[] runnables = new BatchRequestRunnable[numThreads];
-    BlockingQueue<BatchRequestRunnable> bq = new ArrayBlockingQueue<>(numThreads);
-    for (int i = 0; i < numThreads; i++ ) {
-      BatchRequest batchRequest = this.gmailService.batch();
-      bq.add(new BatchRequestRunnable(batchRequest){
-        @Override
-        public void run() {
-          super.run();
+    MessageFetch(String userId, long maxMessages) {
+      this.userId = userId;
+      this.maxMessages = (int) Math.min(maxMessages, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Fetches the messages of each page taken from 'pages' until
+     * END_OF_PAGES, and retries the failed ones until they are fetched or
+     * have no retries left.
+     */
+    List<MimeMessage> run(BlockingQueue<List<Message>> pages)
+        throws InterruptedException {
+      int numThreads = Math.min(Runtime.getRuntime().availableProcessors(),
+          MAX_CONCURRENT_THREADS);
+      this.availableBatches = new ArrayBlockingQueue<>(numThreads);
+      for (int i = 0; i < numThreads; i++) {
+        this.availableBatches.add(new GetBatch(gmailService.batch()));
+      }
+
+      try {
+        GetBatch batch = this.availableBatches.take();
+        boolean isListed = false;
+        while (!isListed || this.numPending.get() > 0) {
+          RetryScheduler.Retry<String> retry = this.retries.poll();
+          if (retry != null) {
+            batch = add(batch, retry.getItem(), retry.getFailures());
+            continue;
+          }
+          if (!isListed) {
+            List<Message> page = pages.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (page == END_OF_PAGES) {
+              isListed = true;
+            } else if (page != null) {
+              for (Message message : page) {
+                this.numPending.incrementAndGet();
+                MimeMessage stored = getStoredMessage(message.getId());
+                if (stored != null) {
+                  onSuccess(stored);
+                } else {
+                  batch = add(batch, message.getId(), 0);
+                }
+              }
+              continue;
+            }
+          }
+          // No new IDs for now: send what is batched, or wait for retries.
+          if (batch.size() > 0) {
+            batch = execute(batch);
+          } else if (isListed) {
+            retry = this.retries.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (retry != null) batch = add(batch, retry.getItem(), retry.getFailures());
+          }
+        }
+      } catch (IOException e) {
+        log.error(e.toString());
+        e.printStackTrace();
+      } finally {
+        for (Future<?> future : this.inFlight) {
           try {
-            bq.put(this);
-          } catch (InterruptedException e) {
-            e.printStackTrace();
+            future.get();
+          } catch (ExecutionException e) {
+            log.error(e.getCause().toString());
           }
         }
-      });
+      }
+      log.debug("{} retries, gave up on {} emails.",
+                this.retries.getNumScheduled(), this.retries.getNumExhausted());
+      return this.mimeMessages;
     }
 
-    ExecutorService executorService = Executors.newFixedThreadPool(
-        numThreads,
-        new ThreadFactoryBuilder().setNameFormat(
-            Thread.currentThread().getName() + ".%d").build());
+    // Adds a get of 'id' to 'batch', and returns the batch to add to next.
+    private GetBatch add(GetBatch batch, String id, int failures)
+        throws IOException, InterruptedException {
+      GetCallback callback = new GetCallback(id, failures);
+      Gmail.Users.Messages.Get get = gmailService.users()
+      .messages()
+      .get(this.userId, id);
+      if (isHeadersOnly) {
+        get.setFormat("metadata").setMetadataHeaders(METADATA_HEADERS);
+      } else {
+        get.setFormat("raw");
+      }
+      get.queue(batch.getBatchRequest(), callback);
+      batch.callbacks.add(callback);
+      return (batch.size() == MAX_REQUEST_PER_BATCH) ? execute(batch) : batch;
+    }
 
-    try {
-      BatchRequestRunnable currRunnable = bq.take(); //findAvailableBatchRequestRunnable(runnables);
-      // Batch all mail requests.
-      for (int i = 0; i < messages.size(); ++i) {
-        this.gmailService.users()
-        .messages()
-        .get(userId, messages.get(i).getId())
-        .setFormat("raw")
-        .queue(currRunnable.getBatchRequest(), callback);
-
-        if ((i + 1) % MAX_REQUEST_PER_BATCH == 0 || i == messages.size() - 1) {
-          // Start fetching mails in the background.
-          executorService.execute(currRunnable);
-          Thread.sleep(MIN_MILLIS_BETWEEN_BATCH_REQUEST);
-          currRunnable = bq.take();//findAvailableBatchRequestRunnable(runnables);
+    // Waits for the quota of 'batch', then starts fetching its messages in
+    // the background.  Returns the next available batch.
+    private GetBatch execute(GetBatch batch) throws InterruptedException {
+      rateLimiter.acquire(batch.size() * QuotaRateLimiter.MESSAGES_GET_UNITS);
+      this.inFlight.removeIf(Future::isDone);
+      this.inFlight.add(CrawlScheduler.getInstance().submitGmailBatch(batch));
+      return this.availableBatches.take();
+    }
+
+    private void onFailure(String id, int failures, FetchFailure failure) {
+      failureCounts.get(failure).incrementAndGet();
+      if (failure.isRetryable() && this.retries.schedule(id, failures)) return;
+      log.warn("Gave up on fetching email {} after {} failure(s), last: {}",
+               id, failures, failure);
+      this.numPending.decrementAndGet();
+    }
+
+    private void onSuccess(MimeMessage mimeMessage) {
+      // Important: Ensures thread-safe!
+      synchronized (this.mimeMessages) {
+        this.mimeMessages.add(mimeMessage);
+
+        if (this.mimeMessages.size() % MAX_REQUEST_PER_BATCH == 0 ||  // moved it into synchronized block
+                this.mimeMessages.size() == this.maxMessages) {
+          log.debug(String.format(
+                  "[%d%%] %d/%d fetched @ %.1f emails/sec. %s",
+                  Math.round(100.0 * this.mimeMessages.size() / this.maxMessages),
+                  this.mimeMessages.size(), this.maxMessages,
+                  1000.0 * this.mimeMessages.size() /
+                      Math.max(1, this.stopwatch.elapsed(TimeUnit.MILLISECONDS)),
+                  ProcessUtil.getHeapConsumption()));
         }
       }
-      executorService.shutdown();
-      executorService.awaitTermination(1, TimeUnit.HOURS);
-      //waitForAllRunnables(runnables);  // Make sure all runnables are done.
-    } catch (IOException | InterruptedException e) {
-      log.error(e.toString());
-      e.printStackTrace();
+      this.numPending.decrementAndGet();
     }
-    return mimeMessages;
-  }
 
-  private BatchRequestRunnable findAvailableBatchRequestRunnable(
-      BatchRequestRunnable[] runnables) {
-    while (true) {
-      for (int i = 0; i < runnables.length; ++i) {
-        if (runnables[i] == null) {
-          BatchRequest batchRequest = this.gmailService.batch();
-          runnables[i] = new BatchRequestRunnable(batchRequest);
+    private class GetBatch extends BatchRequestRunnable {
+      private final List<GetCallback> callbacks = new ArrayList<>();
+
+      GetBatch(BatchRequest batchRequest) {
+        super(batchRequest);
+      }
+
+      // The fetch waits on availableBatches for a batch to take the place of
+      // this one, so it is given back however run() ends.
+      @Override
+      public void run() {
+        try {
+          super.run();
+        } finally {
+          try {
+            // Messages without a response, e.g. when the whole batch failed.
+            for (GetCallback callback : this.callbacks) {
+              if (!callback.isDone) {
+                onFailure(callback.id, callback.failures + 1, FetchFailure.BATCH_ERROR);
+              }
+            }
+          } finally {
+            // A batch request which failed may still hold its requests, so a
+            // new one is given back.  This one was taken, so there is room
+            // and offer() neither blocks nor fails on an interrupted thread.
+            if (!availableBatches.offer(new GetBatch(gmailService.batch()))) {
+              log.error("Unable to give back a batch of {}", this.callbacks.size());
+            }
+          }
         }
-        if (runnables[i].isAvailable()) {
-          return runnables[i];
+      }
+
+      int size() {
+        return this.callbacks.size();
+      }
+    }
+
+    private class GetCallback extends JsonBatchCallback<Message> {
+      private final String id;
+      private final int failures;  // Before this try.
+      private boolean isDone = false;
+
+      GetCallback(String id, int failures) {
+        this.id = id;
+        this.failures = failures;
+      }
+
+      @Override
+      public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
+          throws IOException {
+        this.isDone = true;
+        FetchFailure failure = classifyFailure(e);
+        if (failure == FetchFailure.RATE_LIMITED) rateLimiter.onRateLimited(e);
+        log.trace("Failed to fetch email {}: {} {}", this.id, e.getCode(), e.getMessage());
+        MessageFetch.this.onFailure(this.id, this.failures + 1, failure);
+      }
+
+      @Override
+      public void onSuccess(Message message, HttpHeaders responseHeaders)
+          throws IOException {
+        rateLimiter.onSuccess(QuotaRateLimiter.MESSAGES_GET_UNITS);
+        bytesFetched.addAndGet(estimatePayloadBytes(message));
+        MimeMessage mimeMessage = parseMessage(message);
+        if (mimeMessage != null) storeMessage(this.id, mimeMessage);
+        // Done only now, so GetBatch.run() retries the message if the above
+        // threw.
+        this.isDone = true;
+        if (mimeMessage == null) {
+          MessageFetch.this.numPending.decrementAndGet();  // Not worth retrying.
+          return;
         }
+        MessageFetch.this.onSuccess(mimeMessage);
       }
-      try { Thread.sleep(100); }
-      catch (InterruptedException e) {}
     }
   }
 
@@ -0,0 +1,278 @@
+package com.contextsmith.email.provider;
+
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The process-wide threads of requests and of the crawls they start, so that
+ * a burst of requests queues up instead of starting threads of its own.
+ *
+ * Requests run on a bounded pool which rejects them once its queue is full
+ * (see submitRequest()), and which serves the tenants (internal domains)
+ * with queued requests in turn.  What the requests wait on, i.e. crawls,
+ * page requests (Gmail batches, Exchange pages) and callbacks, runs in one
+ * of two modes:
+ *
+ * POOLED: the crawls of each provider run on a tenant-fair pool of their
+ * own, page requests on one more pool, and callbacks on the request thread.
+ *
+ * VIRTUAL: all of them run on a thread each (virtual threads on Java 21+,
+ * otherwise a cached pool), and how many run at once is limited by a
+ * semaphore per upstream instead, so threads blocked on HTTP cost next to
+ * nothing and the limits are those of the upstreams.
+ *
+ * The mode and limits are set by the system properties named by the
+ * *_PROPERTY constants.
+ */
+public class CrawlScheduler {
+  private static final Logger log = LoggerFactory.getLogger(CrawlScheduler.class);
+
+  public enum Provider { GOOGLE, EXCHANGE }
+
+  public enum ExecutionMode { POOLED, VIRTUAL }
+
+  public static final String EXECUTION_MODE_PROPERTY = "crawl.executionMode";
+  public static final String REQUEST_THREADS_PROPERTY = "crawl.request.threads";
+  public static final String MAX_QUEUED_REQUESTS_PROPERTY = "crawl.request.maxQueued";
+  public static final String CRAWL_THREADS_PROPERTY = "crawl.provider.threads";
+  public static final String PAGE_THREADS_PROPERTY = "crawl.page.threads";
+  public static final String CALLBACK_PERMITS_PROPERTY = "crawl.callback.permits";
+
+  public static final int DEFAULT_REQUEST_THREADS = 8;
+  public static final int DEFAULT_MAX_QUEUED_REQUESTS = 64;
+  public static final int DEFAULT_CRAWL_THREADS = 16;
+  public static final int DEFAULT_PAGE_THREADS =
+      2 * BatchEmailFetcher.MAX_CONCURRENT_THREADS * DEFAULT_CRAWL_THREADS;
+  public static final int DEFAULT_CALLBACK_PERMITS = 16;
+
+  private static final CrawlScheduler INSTANCE = new CrawlScheduler(
+      ExecutionMode.valueOf(System.getProperty(
+          EXECUTION_MODE_PROPERTY, ExecutionMode.POOLED.name())),
+      Integer.getInteger(REQUEST_THREADS_PROPERTY, DEFAULT_REQUEST_THREADS),
+      Integer.getInteger(MAX_QUEUED_REQUESTS_PROPERTY, DEFAULT_MAX_QUEUED_REQUESTS),
+      Integer.getInteger(CRAWL_THREADS_PROPERTY, DEFAULT_CRAWL_THREADS),
+      Integer.getInteger(PAGE_THREADS_PROPERTY, DEFAULT_PAGE_THREADS),
+      Integer.getInteger(CALLBACK_PERMITS_PROPERTY, DEFAULT_CALLBACK_PERMITS));
+
+  public static CrawlScheduler getInstance() {
+    return INSTANCE;
+  }
+
+  // Runs 'task' in a thread named after the one submitting it, for the logs.
+  private static <T> Callable<T> inParentThreadName(final Callable<T> task) {
+    final String parentName = Thread.currentThread().getName();
+    return () -> {
+      Thread thread = Thread.currentThread();
+      String name = thread.getName();
+      thread.setName(parentName + "." + name);
+      try {
+        return task.call();
+      } finally {
+        thread.setName(name);
+      }
+    };
+  }
+
+  // Returns an executor starting a virtual thread per task if the JVM has
+  // them (Java 21+), which this code cannot refer to while built for Java 8.
+  private static ExecutorService newThreadPerTaskExecutor() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      log.warn("No virtual threads before Java 21, using a cached thread pool.");
+      return Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("crawl-%d")
+                                    .setDaemon(true).build());
+    }
+  }
+
+  private static Map<String, Number> getMetrics(TenantFairExecutor executor) {
+    Map<String, Number> metrics = new LinkedHashMap<>();
+    metrics.put("active", executor.getNumActive());
+    metrics.put("queued", executor.getNumQueued());
+    metrics.put("threads", executor.getNumThreads());
+    metrics.put("rejected", executor.getNumRejected());
+    return metrics;
+  }
+
+  private static Map<String, Number> getMetrics(Semaphore permits, int numPermits) {
+    Map<String, Number> metrics = new LinkedHashMap<>();
+    metrics.put("active", numPermits - permits.availablePermits());
+    metrics.put("queued", permits.getQueueLength());
+    metrics.put("permits", numPermits);
+    return metrics;
+  }
+
+  private final ExecutionMode mode;
+  private final TenantFairExecutor requests;
+  // POOLED mode.
+  private Map<Provider, TenantFairExecutor> crawls;
+  private ExecutorService pageRequests;
+  // VIRTUAL mode: permits of each upstream.
+  private ExecutorService threadPerTask;
+  private Map<Provider, Semaphore> crawlPermits;
+  private Semaphore pagePermits;
+  private Semaphore callbackPermits;
+  private int numCrawlPermits;
+  private int numPagePermits;
+  private int numCallbackPermits;
+
+  public CrawlScheduler(int requestThreads, int maxQueuedRequests,
+                        int crawlThreads, int pageThreads) {
+    this(ExecutionMode.POOLED, requestThreads, maxQueuedRequests,
+         crawlThreads, pageThreads, DEFAULT_CALLBACK_PERMITS);
+  }
+
+  /**
+   * @param crawlThreads Threads, or in VIRTUAL mode permits, of the crawls of
+   * each provider.
+   * @param pageThreads Threads, or permits, of the page requests.
+   * @param callbackPermits Callbacks sent at once in VIRTUAL mode.
+   */
+  public CrawlScheduler(ExecutionMode mode, int requestThreads,
+                        int maxQueuedRequests, int crawlThreads,
+                        int pageThreads, int callbackPermits) {
+    this.mode = mode;
+    this.requests = new TenantFairExecutor(
+        "request", requestThreads, maxQueuedRequests);
+    if (mode == ExecutionMode.POOLED) {
+      this.crawls = new EnumMap<>(Provider.class);
+      for (Provider provider : Provider.values()) {
+        this.crawls.put(provider, new TenantFairExecutor(
+            "crawl-" + provider.name().toLowerCase(), crawlThreads,
+            TenantFairExecutor.UNBOUNDED));
+      }
+      this.pageRequests = Executors.newFixedThreadPool(
+          pageThreads,
+          new ThreadFactoryBuilder().setNameFormat("page-request-%d")
+                                    .setDaemon(true).build());
+    } else {
+      this.threadPerTask = newThreadPerTaskExecutor();
+      this.crawlPermits = new EnumMap<>(Provider.class);
+      for (Provider provider : Provider.values()) {
+        this.crawlPermits.put(provider, new Semaphore(crawlThreads, true));
+      }
+      this.pagePermits = new Semaphore(pageThreads, true);
+      this.callbackPermits = new Semaphore(callbackPermits, true);
+      this.numCrawlPermits = crawlThreads;
+      this.numPagePermits = pageThreads;
+      this.numCallbackPermits = callbackPermits;
+    }
+  }
+
+  /**
+   * Sends a callback of a finished request: on the request thread in POOLED
+   * mode, and on a thread of its own in VIRTUAL mode.
+   */
+  public void executeCallback(Runnable callback) {
+    if (this.mode == ExecutionMode.POOLED) {
+      callback.run();
+    } else {
+      submitWithPermit(this.callbackPermits, Executors.callable(callback));
+    }
+  }
+
+  public ExecutionMode getExecutionMode() {
+    return this.mode;
+  }
+
+  /**
+   * Returns the number of running and queued tasks of each pool, or in
+   * VIRTUAL mode of each upstream.
+   */
+  public Map<String, Map<String, Number>> getMetrics() {
+    Map<String, Map<String, Number>> metrics = new LinkedHashMap<>();
+    metrics.put("requests", getMetrics(this.requests));
+    for (Provider provider : Provider.values()) {
+      String name = "crawls." + provider.name().toLowerCase();
+      metrics.put(name, (this.mode == ExecutionMode.POOLED) ?
+          getMetrics(this.crawls.get(provider)) :
+          getMetrics(this.crawlPermits.get(provider), this.numCrawlPermits));
+    }
+    if (this.mode == ExecutionMode.VIRTUAL) {
+      metrics.put("pageRequests", getMetrics(this.pagePermits, this.numPagePermits));
+      metrics.put("callbacks", getMetrics(this.callbackPermits, this.numCallbackPermits));
+    }
+    return metrics;
+  }
+
+  public boolean isSaturated() {
+    return this.requests.isSaturated();
+  }
+
+  /**
+   * Queues a crawl of 'provider' for 'tenant'.  Crawls are not rejected,
+   * since requests running them are bounded already.
+   */
+  public <T> Future<T> submitCrawl(Provider provider, String tenant,
+                                   Callable<T> crawl) {
+    if (this.mode == ExecutionMode.POOLED) {
+      return this.crawls.get(provider).submit(tenant, inParentThreadName(crawl));
+    }
+    return submitWithPermit(this.crawlPermits.get(provider), inParentThreadName(crawl));
+  }
+
+  /**
+   * Queues a batch request of a Gmail fetch.
+   */
+  public Future<?> submitGmailBatch(Runnable batch) {
+    return submitPageRequest(Executors.callable(batch));
+  }
+
+  /**
+   * Queues a request of a page of items, e.g. one of several a crawl keeps
+   * in flight.  It must not wait for other page requests.
+   */
+  public <T> Future<T> submitPageRequest(Callable<T> request) {
+    if (this.mode == ExecutionMode.POOLED) {
+      return this.pageRequests.submit(request);
+    }
+    return submitWithPermit(this.pagePermits, request);
+  }
+
+  /**
+   * Queues a request of 'tenant', or throws RejectedExecutionException if
+   * too many requests are waiting already.
+   */
+  public <T> Future<T> submitRequest(String tenant, Callable<T> request) {
+    return this.requests.submit(tenant, request);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder(this.requests.toString());
+    if (this.mode == ExecutionMode.POOLED) {
+      for (TenantFairExecutor executor : this.crawls.values()) {
+        builder.append("; ").append(executor);
+      }
+    } else {
+      builder.append("; ").append(getMetrics());
+    }
+    return builder.toString();
+  }
+
+  private <T> Future<T> submitWithPermit(final Semaphore permits,
+                                         final Callable<T> task) {
+    return this.threadPerTask.submit(() -> {
+      permits.acquire();
+      try {
+        return task.call();
+      } finally {
+        permits.release();
+      }
+    });
+  }
+}
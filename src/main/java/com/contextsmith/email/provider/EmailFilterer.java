@@ -10,14 +10,14 @@ import java.util.regex.Pattern;
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
-import javax.ws.rs.core.MediaType;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.contextsmith.utils.MimeMessageUtil;
-import com.google.common.collect.Multimap;
+import com.contextsmith.utils.MimeMessageUtil.BodyTrait;
+import com.contextsmith.utils.RegexUtil;
 
 public class EmailFilterer {
   private static final Logger log = LoggerFactory.getLogger(EmailFilterer.class);
@@ -25,17 +25,29 @@ public class EmailFilterer {
   public static final boolean DEFAULT_REMOVE_MAILLIST_MSGS = false;
   public static final boolean DEFAULT_REMOVE_PRIVATE_MSGS = false;
 
-  // Email address regex pattern.
-  public static final String NO_REPLY_ADDR_RE = "(?i).*?reply.*?@.+";
-  public static final String GIBBERISH_ADDR_RE = "(?i).*?([a-z]+[0-9]+){3,}.*?@.+";
+  // Email address regex pattern.  Kept as a String for callers matching with
+  // String.matches(); the filter itself uses the compiled
+  // RegexUtil.GIBBERISH_ADDR_PAT, so the pattern lives there.
+  public static final String GIBBERISH_ADDR_RE = RegexUtil.GIBBERISH_ADDR_PAT.pattern();
 
   // Mailing-List indicator in email body.
-  public static final String BODY_SUBSCRIBE_WORD = "subscribe";
+  public static final String BODY_SUBSCRIBE_WORD = MimeMessageUtil.SUBSCRIBE_WORD;
 
   private boolean removeMailListMessages;
   private boolean removePrivateMessages;
   private Pattern subjectRetainPattern;
 
+  /**
+   * Returns true if 'address' has "reply" in any case, followed by '@' and
+   * at least one more character, e.g. "no-reply@example.com".
+   */
+  public static boolean isNoReplyAddress(String address) {
+    int reply = StringUtils.indexOfIgnoreCase(address, "reply");
+    if (reply < 0) return false;
+    int at = address.indexOf('@', reply + "reply".length());
+    return at >= 0 && at < address.length() - 1;
+  }
+
   public EmailFilterer() {
     this.removeMailListMessages = DEFAULT_REMOVE_MAILLIST_MSGS;
     this.removePrivateMessages = DEFAULT_REMOVE_PRIVATE_MSGS;
@@ -85,11 +97,11 @@ public class EmailFilterer {
       return false;
     }
     String senderAddr = senders.iterator().next().getAddress();
-    if (senderAddr.matches(NO_REPLY_ADDR_RE)) {
+    if (isNoReplyAddress(senderAddr)) {
       log.trace("Message filtered: Sender has no-reply address '{}'", senderAddr);
       return false;
     }
-    if (senderAddr.matches(GIBBERISH_ADDR_RE)) {
+    if (RegexUtil.GIBBERISH_ADDR_PAT.matcher(senderAddr).matches()) {
       log.trace("Message filtered: Sender has gibberish address '{}'", senderAddr);
       return false;
     }
@@ -113,11 +125,11 @@ public class EmailFilterer {
         return false;
       }
       String replyToAddr = replyToAddrs.iterator().next().getAddress();
-      if (replyToAddr.matches(NO_REPLY_ADDR_RE)) {
+      if (isNoReplyAddress(replyToAddr)) {
         log.trace("Message filtered: Reply-To has no-reply address '{}'", replyToAddr);
         return false;
       }
-      if (replyToAddr.matches(GIBBERISH_ADDR_RE)) {
+      if (RegexUtil.GIBBERISH_ADDR_PAT.matcher(replyToAddr).matches()) {
         log.trace("Message filtered: Reply-To has gibberish address '{}'", replyToAddr);
         return false;
       }
@@ -156,21 +168,20 @@ public class EmailFilterer {
       }
     }
 
-    Multimap<String, String> multimap =
-        MimeMessageUtil.collectPartsRecursively(message);
+    // The same for messages rebuilt without their original body (e.g. by
+    // StoredMessage), which keep what is checked here in a header, and for
+    // those fetched headers-only, whose header has what the fetcher guessed.
+    Set<BodyTrait> bodyTraits = MimeMessageUtil.getBodyTraits(message);
 
     // Check if this message is HTML and contains the string 'subscribe'.
-    for (String html : multimap.get(MediaType.TEXT_HTML)) {
-      if (html != null && MimeMessageUtil.isHtml(html) &&
-          StringUtils.containsIgnoreCase(html, BODY_SUBSCRIBE_WORD)) {
-        log.trace("Message filtered: Message is HTML and contains '{}'",
-                  BODY_SUBSCRIBE_WORD);
-        return false;
-      }
+    if (bodyTraits.contains(BodyTrait.SUBSCRIBE_HTML)) {
+      log.trace("Message filtered: Message is HTML and contains '{}'",
+                BODY_SUBSCRIBE_WORD);
+      return false;
     }
 
     // Check if this message contains a calendar event.
-    if (!multimap.get(MimeMessageUtil.TEXT_CALENDAR_TYPE).isEmpty()) {
+    if (bodyTraits.contains(BodyTrait.CALENDAR)) {
       log.trace("Message filtered: Message contains a calendar event.");
       return false;
     }
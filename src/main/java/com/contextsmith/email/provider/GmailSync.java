@@ -0,0 +1,467 @@
+package com.contextsmith.email.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.contextsmith.utils.MimeMessageUtil;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.DataStoreFactory;
+import com.google.api.client.util.store.FileDataStoreFactory;
+import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.HistoryMessageAdded;
+import com.google.api.services.gmail.model.HistoryMessageDeleted;
+import com.google.api.services.gmail.model.ListHistoryResponse;
+import com.google.common.base.Stopwatch;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Crawls of Gmail inboxes which, once a source (account, query and whether
+ * headers only) has been crawled, fetch only what was added to it since.
+ *
+ * The state of each source is kept in a DataStore: the historyId of the
+ * mailbox at the last crawl, and the Gmail IDs of the messages found then,
+ * newest first.  A later crawl lists the history since (users.history.list),
+ * drops the deleted messages, lists which added ones match the query, and
+ * fetches only the messages not cached in memory.  If deletions leave fewer
+ * than 'maxMessages' of a source which had more, it lists the source again
+ * to backfill older messages.  Without a state, or when Gmail no longer has
+ * its history, it crawls from scratch.
+ *
+ * A FileDataStore rewrites its whole file on each set(), so the states of
+ * all sources are kept in memory and written as one value, at most once per
+ * STATE_WRITE_INTERVAL_MILLIS (and by flush()).  A state lost in between
+ * only costs its source a crawl from scratch.  So are the states of the
+ * sources synced least recently beyond 'maxStates', and those older than
+ * MAX_STATE_AGE_MILLIS, which would be crawled from scratch anyway.
+ *
+ * Label changes are not followed, so a message which no longer matches the
+ * query stays until the next crawl from scratch, at most MAX_STATE_AGE_MILLIS
+ * later.
+ */
+public class GmailSync {
+  private static final Logger log = LoggerFactory.getLogger(GmailSync.class);
+
+  // Directory of the state store; GmailSync is off if set to "".
+  public static final String STATE_DIR_PROPERTY = "gmail.sync.dir";
+  public static final File DEFAULT_STATE_DIR = new File(
+      System.getProperty("user.home"), ".contextsmith/gmail-sync");
+  public static final String STATE_STORE_ID = "GmailSync";
+  // Key of the states of all sources in the state store.
+  public static final String STATES_KEY = "states";
+  public static final long STATE_WRITE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  public static final String MAX_CACHED_BYTES_PROPERTY = "gmail.sync.maxCachedBytes";
+  public static final long DEFAULT_MAX_CACHED_BYTES = 256L << 20;
+  public static final String MAX_STATES_PROPERTY = "gmail.sync.maxStates";
+  public static final int DEFAULT_MAX_STATES = 10_000;
+  public static final long MAX_STATE_AGE_MILLIS = TimeUnit.HOURS.toMillis(24);
+  // How far before the last crawl added messages are listed from, as Gmail
+  // matches "after:" against the date a message was received.
+  public static final long ADDED_LISTING_SLACK_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+  private static GmailSync instance = null;
+  private static boolean isInstanceDisabled = false;
+
+  /**
+   * Returns the GmailSync with its state in STATE_DIR_PROPERTY, or null if
+   * it is off.
+   */
+  public static synchronized GmailSync getInstance() {
+    if (instance != null || isInstanceDisabled) return instance;
+    String dir = System.getProperty(STATE_DIR_PROPERTY, DEFAULT_STATE_DIR.getPath());
+    if (dir.isEmpty()) {
+      isInstanceDisabled = true;
+      return null;
+    }
+    try {
+      instance = new GmailSync(new FileDataStoreFactory(new File(dir)),
+          Long.getLong(MAX_CACHED_BYTES_PROPERTY, DEFAULT_MAX_CACHED_BYTES),
+          Integer.getInteger(MAX_STATES_PROPERTY, DEFAULT_MAX_STATES));
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          instance.flush();
+        } catch (IOException e) {
+          log.error("Unable to write the Gmail sync state: {}", e.toString());
+        }
+      }));
+    } catch (IOException e) {
+      log.error("Gmail sync is off, unable to open its state in {}: {}", dir, e.toString());
+      isInstanceDisabled = true;
+    }
+    return instance;
+  }
+
+  /**
+   * What is known of a source after its last crawl.
+   */
+  static class SyncState implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final BigInteger historyId;
+    final long crawledFromScratchMillis;
+    final long syncedMillis;
+    final long maxMessages;
+    final ArrayList<String> messageIds;  // Newest first.
+
+    SyncState(BigInteger historyId, long crawledFromScratchMillis,
+              long syncedMillis, long maxMessages, List<String> messageIds) {
+      this.historyId = historyId;
+      this.crawledFromScratchMillis = crawledFromScratchMillis;
+      this.syncedMillis = syncedMillis;
+      this.maxMessages = maxMessages;
+      this.messageIds = new ArrayList<>(messageIds);
+    }
+  }
+
+  // The messages added and deleted since a historyId, and the latest one.
+  private static class HistoryChanges {
+    final List<String> addedIds = new ArrayList<>();
+    final Set<String> deletedIds = new HashSet<>();
+    BigInteger historyId;
+  }
+
+  private static String getStateKey(String account, String query, boolean isHeadersOnly) {
+    return account + "|" + (isHeadersOnly ? "headers" : "raw") + "|" + query;
+  }
+
+  private static String getMessageKey(String account, boolean isHeadersOnly, String id) {
+    return account + "|" + (isHeadersOnly ? "headers" : "raw") + "|" + id;
+  }
+
+  private final DataStore<HashMap<String, SyncState>> stateStore;
+  // The states of all sources, least recently synced first, written to
+  // stateStore by flush().
+  private final LinkedHashMap<String, SyncState> states;
+  private boolean hasUnwrittenStates = false;
+  private long statesWrittenMillis = 0;
+  // The messages of all sources, as bytes so each crawl parses copies of
+  // its own to add headers to, up to 'maxCachedBytes' of them.
+  private final Cache<String, byte[]> messages;
+  private final AtomicInteger numCrawlsFromScratch = new AtomicInteger();
+  private final AtomicInteger numIncrementalCrawls = new AtomicInteger();
+
+  public GmailSync(DataStoreFactory stateStoreFactory, long maxCachedBytes)
+      throws IOException {
+    this(stateStoreFactory, maxCachedBytes, DEFAULT_MAX_STATES);
+  }
+
+  public GmailSync(DataStoreFactory stateStoreFactory, long maxCachedBytes, int maxStates)
+      throws IOException {
+    this.stateStore = stateStoreFactory.getDataStore(STATE_STORE_ID);
+    this.states = new LinkedHashMap<String, SyncState>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SyncState> eldest) {
+        return size() > maxStates;
+      }
+    };
+    HashMap<String, SyncState> stored = this.stateStore.get(STATES_KEY);
+    if (stored != null) {
+      List<Map.Entry<String, SyncState>> entries = new ArrayList<>(stored.entrySet());
+      Collections.sort(entries, Comparator.comparingLong(entry -> entry.getValue().syncedMillis));
+      for (Map.Entry<String, SyncState> entry : entries) {
+        this.states.put(entry.getKey(), entry.getValue());
+      }
+      evictExpiredStates();
+    }
+    this.messages = CacheBuilder.newBuilder()
+        .maximumWeight(maxCachedBytes)
+        .weigher((String key, byte[] bytes) -> key.length() + bytes.length)
+        .build();
+  }
+
+  /**
+   * Returns up to 'maxMessages' messages of 'account' matching 'query', as
+   * fetcher.fetchMimeMessages() does, fetching only those added since the
+   * last call for the same source if possible.
+   */
+  public List<MimeMessage> fetchMimeMessages(BatchEmailFetcher fetcher,
+                                             String account, String query,
+                                             long maxMessages)
+      throws IOException {
+    if (StringUtils.isBlank(account)) {
+      return fetcher.fetchMimeMessages(UserInboxCrawler.DEFAULT_GMAIL_USER, query, maxMessages);
+    }
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    String key = getStateKey(account, query, fetcher.isHeadersOnly());
+    SyncState state = getState(key);
+    List<MimeMessage> mimeMessages = null;
+    if (state != null && state.maxMessages >= maxMessages &&
+        System.currentTimeMillis() - state.crawledFromScratchMillis < MAX_STATE_AGE_MILLIS) {
+      mimeMessages = crawlIncrementally(fetcher, account, query, maxMessages, key, state);
+    }
+    if (mimeMessages == null) {
+      mimeMessages = crawlFromScratch(fetcher, account, query, maxMessages, key);
+    }
+    log.debug("Synced {} emails of {} in {}.", mimeMessages == null ? 0 : mimeMessages.size(),
+              account, stopwatch);
+    return mimeMessages;
+  }
+
+  /** Writes the states not written yet to the state store. */
+  public synchronized void flush() throws IOException {
+    evictExpiredStates();
+    if (!this.hasUnwrittenStates) return;
+    this.stateStore.set(STATES_KEY, new HashMap<>(this.states));
+    this.hasUnwrittenStates = false;
+    this.statesWrittenMillis = System.currentTimeMillis();
+  }
+
+  public long getNumCachedMessages() {
+    return this.messages.size();
+  }
+
+  public int getNumCrawlsFromScratch() {
+    return this.numCrawlsFromScratch.get();
+  }
+
+  public int getNumIncrementalCrawls() {
+    return this.numIncrementalCrawls.get();
+  }
+
+  public synchronized int getNumStates() {
+    return this.states.size();
+  }
+
+  private synchronized SyncState getState(String key) {
+    return this.states.get(key);
+  }
+
+  private synchronized void setState(String key, SyncState state) throws IOException {
+    this.states.remove(key);  // So that it moves to the end.
+    this.states.put(key, state);
+    this.hasUnwrittenStates = true;
+    if (System.currentTimeMillis() - this.statesWrittenMillis >= STATE_WRITE_INTERVAL_MILLIS) {
+      flush();
+    }
+  }
+
+  private synchronized void evictExpiredStates() {
+    long now = System.currentTimeMillis();
+    Iterator<SyncState> it = this.states.values().iterator();
+    while (it.hasNext()) {
+      if (now - it.next().crawledFromScratchMillis >= MAX_STATE_AGE_MILLIS) {
+        it.remove();
+        this.hasUnwrittenStates = true;
+      }
+    }
+  }
+
+  private List<MimeMessage> crawlFromScratch(BatchEmailFetcher fetcher, String account,
+                                             String query, long maxMessages, String key)
+      throws IOException {
+    this.numCrawlsFromScratch.incrementAndGet();
+    // Taken first, so that nothing added while crawling is missed later.
+    BigInteger historyId = getHistoryId(fetcher);
+    List<MimeMessage> mimeMessages = fetcher.fetchMimeMessages(
+        UserInboxCrawler.DEFAULT_GMAIL_USER, query, maxMessages);
+    if (mimeMessages == null || historyId == null) return mimeMessages;
+
+    // Newest first, as listed, so the oldest are dropped beyond maxMessages.
+    List<MimeMessage> sorted = new ArrayList<>(mimeMessages);
+    Collections.sort(sorted, Comparator.comparing(GmailSync::getSentDate,
+        Comparator.nullsLast(Comparator.<ZonedDateTime>reverseOrder())));
+    List<String> ids = new ArrayList<>(sorted.size());
+    for (MimeMessage message : sorted) {
+      String id = MimeMessageUtil.getGmailMessageId(message);
+      cache(account, fetcher.isHeadersOnly(), id, message);
+      ids.add(id);
+    }
+    long now = System.currentTimeMillis();
+    setState(key, new SyncState(historyId, now, now, maxMessages, ids));
+    return mimeMessages;
+  }
+
+  // Returns null if Gmail no longer has the history since the last crawl.
+  private List<MimeMessage> crawlIncrementally(BatchEmailFetcher fetcher, String account,
+                                               String query, long maxMessages,
+                                               String key, SyncState state)
+      throws IOException {
+    HistoryChanges changes = listHistory(fetcher, state.historyId);
+    if (changes == null) return null;
+    this.numIncrementalCrawls.incrementAndGet();
+
+    LinkedHashSet<String> ids = new LinkedHashSet<>(state.messageIds);
+    ids.removeAll(changes.deletedIds);
+    Set<String> addedIds = new HashSet<>(changes.addedIds);
+    addedIds.removeAll(changes.deletedIds);
+    addedIds.removeAll(ids);
+    if (!addedIds.isEmpty()) {
+      // Of the added messages, those matching the query.
+      long afterSeconds = state.syncedMillis / 1000 - ADDED_LISTING_SLACK_SECONDS;
+      List<String> listedIds = fetcher.listMessageIds(
+          UserInboxCrawler.DEFAULT_GMAIL_USER,
+          StringUtils.isBlank(query) ? "after:" + afterSeconds : query + " after:" + afterSeconds,
+          maxMessages);
+      if (listedIds == null) return null;
+      LinkedHashSet<String> newIds = new LinkedHashSet<>();
+      for (String id : listedIds) {
+        if (addedIds.contains(id)) newIds.add(id);
+      }
+      newIds.addAll(ids);
+      ids = newIds;
+    }
+    if (ids.size() < maxMessages && state.messageIds.size() >= state.maxMessages) {
+      // Deletions left room for messages older than the last crawl kept:
+      // list the source again, and fetch only the messages not cached.
+      List<String> listedIds = fetcher.listMessageIds(
+          UserInboxCrawler.DEFAULT_GMAIL_USER, query, maxMessages);
+      if (listedIds == null) return null;
+      log.debug("Listed {} emails to backfill the deleted ones.", listedIds.size());
+      ids = new LinkedHashSet<>(listedIds);
+    }
+    List<String> keptIds = new ArrayList<>(ids);
+    if (keptIds.size() > maxMessages) keptIds = keptIds.subList(0, (int) maxMessages);
+
+    Map<String, MimeMessage> idToMessage = getMessages(fetcher, account, keptIds);
+    if (idToMessage == null) return null;
+    List<MimeMessage> mimeMessages = new ArrayList<>(idToMessage.size());
+    List<String> fetchedIds = new ArrayList<>(idToMessage.size());
+    for (String id : keptIds) {
+      MimeMessage message = idToMessage.get(id);
+      if (message == null) continue;  // E.g. deleted meanwhile.
+      mimeMessages.add(message);
+      fetchedIds.add(id);
+    }
+    BigInteger historyId = changes.historyId != null ? changes.historyId : state.historyId;
+    setState(key, new SyncState(historyId, state.crawledFromScratchMillis,
+                                System.currentTimeMillis(), maxMessages, fetchedIds));
+    log.debug("Since the last crawl of {}: {} added, {} deleted.", account,
+              addedIds.size(), changes.deletedIds.size());
+    return mimeMessages;
+  }
+
+  // Returns copies of the cached messages of 'ids', and fetches the others.
+  private Map<String, MimeMessage> getMessages(BatchEmailFetcher fetcher, String account,
+                                               List<String> ids)
+      throws IOException {
+    Session session = Session.getDefaultInstance(BatchEmailFetcher.PROPS, null);
+    Map<String, MimeMessage> idToMessage = new HashMap<>();
+    List<String> missingIds = new ArrayList<>();
+    for (String id : ids) {
+      byte[] bytes = this.messages.getIfPresent(
+          getMessageKey(account, fetcher.isHeadersOnly(), id));
+      if (bytes == null) {
+        missingIds.add(id);
+        continue;
+      }
+      try {
+        idToMessage.put(id, new MimeMessage(session, new SharedByteArrayInputStream(bytes)));
+      } catch (MessagingException e) {
+        log.error(e.toString());
+        missingIds.add(id);
+      }
+    }
+    List<MimeMessage> fetched = fetcher.fetchMimeMessagesById(
+        UserInboxCrawler.DEFAULT_GMAIL_USER, missingIds);
+    if (fetched == null) return null;
+    for (MimeMessage message : fetched) {
+      String id = MimeMessageUtil.getGmailMessageId(message);
+      cache(account, fetcher.isHeadersOnly(), id, message);
+      idToMessage.put(id, message);
+    }
+    return idToMessage;
+  }
+
+  private void cache(String account, boolean isHeadersOnly, String id, MimeMessage message) {
+    try {
+      this.messages.put(getMessageKey(account, isHeadersOnly, id),
+                        MimeMessageUtil.toBytes(message));
+    } catch (IOException | MessagingException e) {
+      log.error("Unable to cache email {}: {}", id, e.toString());
+    }
+  }
+
+  private static BigInteger getHistoryId(BatchEmailFetcher fetcher) throws IOException {
+    acquire(fetcher, QuotaRateLimiter.GET_PROFILE_UNITS);
+    return fetcher.getGmailService().users()
+        .getProfile(UserInboxCrawler.DEFAULT_GMAIL_USER).execute().getHistoryId();
+  }
+
+  // Returns null if the history since 'startHistoryId' is no longer kept.
+  private static HistoryChanges listHistory(BatchEmailFetcher fetcher,
+                                            BigInteger startHistoryId)
+      throws IOException {
+    HistoryChanges changes = new HistoryChanges();
+    String pageToken = null;
+    do {
+      acquire(fetcher, QuotaRateLimiter.HISTORY_LIST_UNITS);
+      ListHistoryResponse response;
+      try {
+        response = fetcher.getGmailService().users().history()
+            .list(UserInboxCrawler.DEFAULT_GMAIL_USER)
+            .setStartHistoryId(startHistoryId)
+            .setPageToken(pageToken)
+            .execute();
+      } catch (GoogleJsonResponseException e) {
+        if (e.getStatusCode() == 404) {
+          log.info("History since {} has expired.", startHistoryId);
+          return null;
+        }
+        throw e;
+      }
+      if (response.getHistory() != null) {
+        for (History history : response.getHistory()) {
+          if (history.getMessagesAdded() != null) {
+            for (HistoryMessageAdded added : history.getMessagesAdded()) {
+              changes.addedIds.add(added.getMessage().getId());
+            }
+          }
+          if (history.getMessagesDeleted() != null) {
+            for (HistoryMessageDeleted deleted : history.getMessagesDeleted()) {
+              changes.deletedIds.add(deleted.getMessage().getId());
+            }
+          }
+        }
+      }
+      if (response.getHistoryId() != null) changes.historyId = response.getHistoryId();
+      pageToken = response.getNextPageToken();
+    } while (pageToken != null);
+    return changes;
+  }
+
+  private static void acquire(BatchEmailFetcher fetcher, int units) throws IOException {
+    try {
+      fetcher.getRateLimiter().acquire(units);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.toString());
+    }
+  }
+
+  private static ZonedDateTime getSentDate(MimeMessage message) {
+    try {
+      return MimeMessageUtil.getSentDate(message);
+    } catch (MessagingException e) {
+      return null;
+    }
+  }
+}
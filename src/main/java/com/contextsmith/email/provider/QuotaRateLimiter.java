@@ -0,0 +1,257 @@
+package com.contextsmith.email.provider;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonError.ErrorInfo;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Token bucket of Gmail API quota units (messages.get and messages.list cost
+ * 5 units each, and Gmail allows about 250 units per user per second).
+ *
+ * A request may take more units than there are in the bucket; it is granted
+ * right away and later requests wait until the debt is refilled, so a whole
+ * batch is paid for in one acquire().  The refill rate adapts to Gmail's
+ * responses: on 429 or 403 rate-limit errors it is halved and requests
+ * pause for a second, and it grows slowly back up to the maximum rate as
+ * requests succeed.
+ */
+public class QuotaRateLimiter {
+  private static final Logger log = LoggerFactory.getLogger(QuotaRateLimiter.class);
+
+  // Quota units of the Gmail API methods we call.
+  public static final int MESSAGES_GET_UNITS = 5;
+  public static final int MESSAGES_LIST_UNITS = 5;
+  public static final int HISTORY_LIST_UNITS = 2;
+  public static final int GET_PROFILE_UNITS = 1;
+
+  public static final double DEFAULT_ACCOUNT_UNITS_PER_SEC = 250;
+  public static final double DEFAULT_GLOBAL_UNITS_PER_SEC = 10_000;
+  // Up to how many times the default rate we speed up to without errors.
+  public static final double MAX_SPEEDUP = 4;
+  // Down to what fraction of the default rate we back off to.
+  public static final double MIN_SLOWDOWN = 0.1;
+  // Units the bucket holds, in seconds of the current rate.
+  public static final double BURST_SECONDS = 2;
+  public static final double BACKOFF_FACTOR = 0.5;
+  // Errors within this time after a back-off are of the requests sent before
+  // it, so they do not back off again.
+  public static final long BACKOFF_INTERVAL_MILLIS = 1_000;
+  // Units per second gained for each unit of successful requests.
+  public static final double SPEEDUP_PER_UNIT = 0.02;
+  public static final long ACCOUNT_EXPIRE_MINUTES = 60;
+
+  public static final String RATE_LIMIT_EXCEEDED = "rateLimitExceeded";
+  public static final String USER_RATE_LIMIT_EXCEEDED = "userRateLimitExceeded";
+
+  private static final QuotaRateLimiter GLOBAL =
+      new QuotaRateLimiter("global", DEFAULT_GLOBAL_UNITS_PER_SEC, null);
+  private static final LoadingCache<String, QuotaRateLimiter> ACCOUNTS =
+      CacheBuilder.newBuilder()
+                  .expireAfterAccess(ACCOUNT_EXPIRE_MINUTES, TimeUnit.MINUTES)
+                  .build(new CacheLoader<String, QuotaRateLimiter>() {
+                    @Override
+                    public QuotaRateLimiter load(String account) {
+                      return new QuotaRateLimiter(account,
+                                                  DEFAULT_ACCOUNT_UNITS_PER_SEC);
+                    }
+                  });
+
+  /**
+   * Returns the limiter shared by all fetchers of 'account'.
+   */
+  public static QuotaRateLimiter forAccount(String account) {
+    try {
+      return ACCOUNTS.get(account);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns the limiter shared by all accounts, i.e. of the project quota.
+   */
+  public static QuotaRateLimiter getGlobal() {
+    return GLOBAL;
+  }
+
+  /**
+   * Returns true if 'error' is one Gmail returns when requests are sent too
+   * fast, as opposed to e.g. an exhausted daily quota.
+   */
+  public static boolean isRateLimitError(GoogleJsonError error) {
+    if (error == null) return false;
+    if (error.getCode() == 429) return true;
+    if (error.getCode() != 403 || error.getErrors() == null) return false;
+    for (ErrorInfo info : error.getErrors()) {
+      if (RATE_LIMIT_EXCEEDED.equals(info.getReason()) ||
+          USER_RATE_LIMIT_EXCEEDED.equals(info.getReason())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private final String name;
+  private final QuotaRateLimiter global;  // Null if not limited by another.
+  private final Ticker ticker;
+  private final double minUnitsPerSec;
+  private final double maxUnitsPerSec;
+  private double unitsPerSec;
+  private double availableUnits;  // Negative when in debt.
+  private long lastRefillNanos;
+  private long lastBackOffNanos;
+
+  private final AtomicLong unitsAcquired = new AtomicLong();
+  private final AtomicLong unitsSucceeded = new AtomicLong();
+  private final AtomicLong rateLimitErrors = new AtomicLong();
+  private final AtomicLong throttledNanos = new AtomicLong();
+
+  /**
+   * Creates a limiter also limited by the global one, see getGlobal().
+   */
+  public QuotaRateLimiter(String name, double unitsPerSec) {
+    this(name, unitsPerSec, GLOBAL);
+  }
+
+  /**
+   * Creates a limiter also limited by 'global', unless it is null.
+   */
+  public QuotaRateLimiter(String name, double unitsPerSec, QuotaRateLimiter global) {
+    this(name, unitsPerSec, global, Ticker.systemTicker());
+  }
+
+  QuotaRateLimiter(String name, double unitsPerSec, QuotaRateLimiter global,
+                   Ticker ticker) {
+    checkArgument(unitsPerSec > 0);
+    this.name = name;
+    this.global = global;
+    this.ticker = ticker;
+    this.minUnitsPerSec = unitsPerSec * MIN_SLOWDOWN;
+    this.maxUnitsPerSec = unitsPerSec * MAX_SPEEDUP;
+    this.unitsPerSec = unitsPerSec;
+    this.availableUnits = unitsPerSec * BURST_SECONDS;
+    this.lastRefillNanos = ticker.read();
+    this.lastBackOffNanos = this.lastRefillNanos -
+        TimeUnit.MILLISECONDS.toNanos(BACKOFF_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Takes 'units' from this and the global bucket, if any, waiting for
+   * whichever one needs longer to refill.
+   */
+  public void acquire(int units) throws InterruptedException {
+    long waitNanos = reserve(units);
+    if (this.global != null) {
+      waitNanos = Math.max(waitNanos, this.global.reserve(units));
+    }
+    if (waitNanos <= 0) return;
+    this.throttledNanos.addAndGet(waitNanos);
+    TimeUnit.NANOSECONDS.sleep(waitNanos);
+  }
+
+  public String getName() {
+    return this.name;
+  }
+
+  public int getRateLimitErrors() {
+    return this.rateLimitErrors.intValue();
+  }
+
+  public long getThrottledMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(this.throttledNanos.get());
+  }
+
+  public long getUnitsAcquired() {
+    return this.unitsAcquired.get();
+  }
+
+  public synchronized double getUnitsPerSec() {
+    return this.unitsPerSec;
+  }
+
+  public long getUnitsSucceeded() {
+    return this.unitsSucceeded.get();
+  }
+
+  /**
+   * Backs off after Gmail rejected a request for going too fast.  For a
+   * 403 rateLimitExceeded, which is about the project's quota (a 429 is
+   * about the user's), the global limiter backs off as well.
+   */
+  public void onRateLimited(GoogleJsonError error) {
+    backOff();
+    if (this.global == null || error == null || error.getCode() != 403 ||
+        error.getErrors() == null) {
+      return;
+    }
+    for (ErrorInfo info : error.getErrors()) {
+      if (RATE_LIMIT_EXCEEDED.equals(info.getReason())) {
+        this.global.backOff();
+        break;
+      }
+    }
+  }
+
+  public synchronized void onSuccess(int units) {
+    this.unitsSucceeded.addAndGet(units);
+    this.unitsPerSec = Math.min(this.maxUnitsPerSec,
+                                this.unitsPerSec + units * SPEEDUP_PER_UNIT);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s: %.0f units/sec, %d units acquired, %d succeeded, " +
+        "%d rate-limit errors, throttled %d ms",
+        this.name, getUnitsPerSec(), getUnitsAcquired(), getUnitsSucceeded(),
+        getRateLimitErrors(), getThrottledMillis());
+  }
+
+  synchronized void backOff() {
+    this.rateLimitErrors.incrementAndGet();
+    refill();
+    if (this.lastRefillNanos - this.lastBackOffNanos <
+        TimeUnit.MILLISECONDS.toNanos(BACKOFF_INTERVAL_MILLIS)) {
+      return;
+    }
+    this.lastBackOffNanos = this.lastRefillNanos;
+    this.unitsPerSec = Math.max(this.minUnitsPerSec,
+                                this.unitsPerSec * BACKOFF_FACTOR);
+    // Requests already in flight were too many; pause for the interval.
+    this.availableUnits = Math.min(this.availableUnits, 0) -
+        this.unitsPerSec * BACKOFF_INTERVAL_MILLIS / 1000.0;
+    log.debug("{} backed off to {} units/sec.", this.name, this.unitsPerSec);
+  }
+
+  /**
+   * Takes 'units' from the bucket and returns the nanoseconds to wait
+   * before sending the request.
+   */
+  synchronized long reserve(int units) {
+    refill();
+    this.unitsAcquired.addAndGet(units);
+    double waitSec = -this.availableUnits / this.unitsPerSec;
+    this.availableUnits -= units;
+    return (waitSec <= 0) ? 0 : (long) (waitSec * 1e9);
+  }
+
+  private void refill() {
+    long now = this.ticker.read();
+    double elapsedSec = (now - this.lastRefillNanos) / 1e9;
+    this.lastRefillNanos = now;
+    this.availableUnits = Math.min(this.unitsPerSec * BURST_SECONDS,
+                                   this.availableUnits + elapsedSec * this.unitsPerSec);
+  }
+}
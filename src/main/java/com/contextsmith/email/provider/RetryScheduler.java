@@ -0,0 +1,141 @@
+package com.contextsmith.email.provider;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds failed items until they are due for another try, with jittered
+ * exponential backoff: after the n-th failure an item waits a random time
+ * between half and all of min(maxDelay, baseDelay * 2^(n-1)), so that items
+ * which failed together are not retried together.
+ */
+public class RetryScheduler<T> {
+
+  public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+  public static final long DEFAULT_MAX_DELAY_MILLIS = 30_000;
+
+  /**
+   * An item due for a retry, and how many times it has failed.
+   */
+  public static class Retry<T> implements Delayed {
+    private final T item;
+    private final int failures;
+    private final long dueNanos;
+
+    private Retry(T item, int failures, long dueNanos) {
+      this.item = item;
+      this.failures = failures;
+      this.dueNanos = dueNanos;
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS),
+                          other.getDelay(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(this.dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public int getFailures() {
+      return this.failures;
+    }
+
+    public T getItem() {
+      return this.item;
+    }
+  }
+
+  private final DelayQueue<Retry<T>> queue = new DelayQueue<>();
+  private final int maxRetries;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final Random random;
+
+  private final AtomicInteger numScheduled = new AtomicInteger();
+  private final AtomicInteger numExhausted = new AtomicInteger();
+
+  public RetryScheduler(int maxRetries) {
+    this(maxRetries, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+         new Random());
+  }
+
+  public RetryScheduler(int maxRetries, long baseDelayMillis,
+                        long maxDelayMillis, Random random) {
+    checkArgument(maxRetries >= 0);
+    checkArgument(baseDelayMillis >= 0 && maxDelayMillis >= baseDelayMillis);
+    this.maxRetries = maxRetries;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.random = random;
+  }
+
+  /**
+   * Returns the milliseconds to wait after the 'failures'-th failure.
+   */
+  public long computeDelayMillis(int failures) {
+    checkArgument(failures > 0);
+    long delay = this.maxDelayMillis;
+    if (failures <= Long.numberOfLeadingZeros(this.baseDelayMillis)) {
+      delay = Math.min(delay, this.baseDelayMillis << (failures - 1));
+    }
+    double jitter;
+    synchronized (this.random) {
+      jitter = this.random.nextDouble();
+    }
+    return (long) (delay * (1 + jitter) / 2);
+  }
+
+  public int getNumExhausted() {
+    return this.numExhausted.get();
+  }
+
+  public int getNumScheduled() {
+    return this.numScheduled.get();
+  }
+
+  public boolean isEmpty() {
+    return this.queue.isEmpty();
+  }
+
+  /**
+   * Returns an item due for a retry, or null if there is none.
+   */
+  public Retry<T> poll() {
+    return this.queue.poll();
+  }
+
+  /**
+   * Waits up to 'timeout' for an item due for a retry.
+   */
+  public Retry<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return this.queue.poll(timeout, unit);
+  }
+
+  /**
+   * Schedules 'item' which has failed 'failures' times (this one included),
+   * or returns false if it has no retries left.
+   */
+  public boolean schedule(T item, int failures) {
+    if (failures > this.maxRetries) {
+      this.numExhausted.incrementAndGet();
+      return false;
+    }
+    long dueNanos = System.nanoTime() +
+        TimeUnit.MILLISECONDS.toNanos(computeDelayMillis(failures));
+    this.queue.add(new Retry<>(item, failures, dueNanos));
+    this.numScheduled.incrementAndGet();
+    return true;
+  }
+
+  public int size() {
+    return this.queue.size();
+  }
+}
@@ -0,0 +1,170 @@
+package com.contextsmith.email.provider;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed number of threads running the tasks of several tenants (e.g. the
+ * internal domains of requests), which takes one task of each tenant with
+ * queued tasks in turn, so that a tenant queueing many tasks does not hold
+ * up the others.  Tasks beyond 'maxQueued' waiting ones are rejected.
+ */
+public class TenantFairExecutor {
+  private static final Logger log = LoggerFactory.getLogger(TenantFairExecutor.class);
+
+  public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+  private final String name;
+  private final int maxQueued;
+  private final Thread[] threads;
+  // Queued tasks of each tenant, and the tenants with any in the order they
+  // are served.
+  private final Map<String, Queue<FutureTask<?>>> tenantTasks = new HashMap<>();
+  private final Queue<String> tenants = new ArrayDeque<>();
+
+  private int numQueued = 0;
+  private int numActive = 0;
+  private long numRejected = 0;
+  private boolean isShutdown = false;
+
+  public TenantFairExecutor(String name, int numThreads, int maxQueued) {
+    checkArgument(numThreads > 0);
+    checkArgument(maxQueued >= 0);
+    this.name = name;
+    this.maxQueued = maxQueued;
+    this.threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; ++i) {
+      this.threads[i] = new Thread(this::runTasks, name + "-" + i);
+      this.threads[i].setDaemon(true);
+      this.threads[i].start();
+    }
+  }
+
+  public synchronized int getNumActive() {
+    return this.numActive;
+  }
+
+  public synchronized int getNumQueued() {
+    return this.numQueued;
+  }
+
+  public synchronized long getNumRejected() {
+    return this.numRejected;
+  }
+
+  public int getNumThreads() {
+    return this.threads.length;
+  }
+
+  /**
+   * Returns true if a task submitted now would be rejected.
+   */
+  public synchronized boolean isSaturated() {
+    return (long) this.numActive + this.numQueued >=
+           (long) this.threads.length + this.maxQueued;
+  }
+
+  public synchronized void shutdown() {
+    this.isShutdown = true;
+    notifyAll();
+  }
+
+  /**
+   * Queues 'task' of 'tenant', or throws RejectedExecutionException if all
+   * threads are busy and 'maxQueued' tasks are waiting already.
+   */
+  public <T> Future<T> submit(String tenant, Callable<T> task) {
+    checkNotNull(tenant);
+    FutureTask<T> future = new FutureTask<>(task);
+    synchronized (this) {
+      if (this.isShutdown || isSaturated()) {
+        ++this.numRejected;
+        throw new RejectedExecutionException(String.format(
+            "%s is saturated: %d active, %d queued", this.name,
+            this.numActive, this.numQueued));
+      }
+      Queue<FutureTask<?>> queue = this.tenantTasks.get(tenant);
+      if (queue == null) {
+        queue = new ArrayDeque<>();
+        this.tenantTasks.put(tenant, queue);
+        this.tenants.add(tenant);
+      }
+      queue.add(future);
+      ++this.numQueued;
+      notifyAll();
+    }
+    return future;
+  }
+
+  public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (this.numActive + this.numQueued > 0) {
+      long millis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (millis <= 0) return false;
+      wait(millis);
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%s: %d/%d active, %d queued (%d tenants), %d rejected",
+        this.name, this.numActive, this.threads.length, this.numQueued,
+        this.tenants.size(), this.numRejected);
+  }
+
+  // Waits for the next task, taken from the tenant whose turn it is; null
+  // once shut down with no tasks left.
+  private synchronized FutureTask<?> takeTask() throws InterruptedException {
+    while (this.tenants.isEmpty()) {
+      if (this.isShutdown) return null;
+      wait();
+    }
+    String tenant = this.tenants.poll();
+    Queue<FutureTask<?>> queue = this.tenantTasks.get(tenant);
+    FutureTask<?> task = queue.poll();
+    if (queue.isEmpty()) {
+      this.tenantTasks.remove(tenant);
+    } else {
+      this.tenants.add(tenant);  // Back of the line.
+    }
+    --this.numQueued;
+    ++this.numActive;
+    return task;
+  }
+
+  private void runTasks() {
+    while (true) {
+      FutureTask<?> task;
+      try {
+        task = takeTask();
+      } catch (InterruptedException e) {
+        log.error(e.toString());
+        return;
+      }
+      if (task == null) return;
+      try {
+        task.run();  // Keeps exceptions in the future.
+      } finally {
+        synchronized (this) {
+          --this.numActive;
+          notifyAll();
+        }
+      }
+    }
+  }
+}
@@ -6,16 +6,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -39,13 +34,10 @@ import com.google.api.services.calendar.Calendar;
 import com.google.api.services.calendar.model.Event;
 import com.google.api.services.calendar.model.Events;
 import com.google.common.base.Stopwatch;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-// TODO(rcwang): Make executor service static.
 public class UserEventCrawler {
   private static final Logger log = LoggerFactory.getLogger(UserEventCrawler.class);
 
-  public static int SHUTDOWN_WAIT_TIME_IN_MILLIS = 1000;
   public static final String DEFAULT_CALENDAR = "primary";
   public static final int MAX_CALENDAR_FETCHING_RETRIES = 2;
 
@@ -166,24 +158,22 @@ public class UserEventCrawler {
   private Supplier<ExchangeServiceProvider> exchangeServiceProvider;
   private Collection<Messageable> messages;
   private EmailNameResolver enResolver;
-  private ExecutorService executor;
-  private Set<Callable<List<Event>>> callables;
+  private Map<Callable<List<Event>>, CrawlScheduler.Provider> callables;
+  private String tenant;
 
   public UserEventCrawler(Function<String, GoogleServiceProvider> googleServiceProvider, Supplier<ExchangeServiceProvider> exchangeServiceProvider) {
       this.googleServiceProvider = googleServiceProvider;
       this.exchangeServiceProvider = exchangeServiceProvider;
-      this.executor = Executors.newCachedThreadPool(
-              new ThreadFactoryBuilder().setNameFormat(
-                      Thread.currentThread().getName() + ".%d").build());
-      this.callables = new HashSet<>();
+      this.callables = new HashMap<>();
       this.enResolver = new EmailNameResolver();
       this.messages = new ArrayList<>();
+      this.tenant = UserInboxCrawler.DEFAULT_TENANT;
   }
 
   public void addGmailTask(final String accessToken, final String email,
                            final long startTime, final long endTime,
                            final int maxEvents) {
-    this.callables.add(new Callable<List<Event>>() {
+    this.callables.put(new Callable<List<Event>>() {
       @Override
       public List<Event> call() throws Exception {
         List<Event> events = fetchEvents(googleServiceProvider.apply(accessToken), startTime, endTime, maxEvents);
@@ -204,11 +194,11 @@ public class UserEventCrawler {
         }
         return events;
       }
-    });
+    }, CrawlScheduler.Provider.GOOGLE);
   }
 
   public void addExchangeTask(Source source, final long startDate, final long endDate, int maxEvents) {
-      this.callables.add(() -> {
+      this.callables.put(() -> {
           ExchangeService exchangeService = exchangeServiceProvider.get().connectAsUser(source.email, source.password.toCharArray(), source.url);
           EventProducer producer = new EventProducer(exchangeService).maxMessages(maxEvents).startDate(startDate).endDate(endDate);
           Runtime runtime = Runtime.getRuntime();
@@ -232,7 +222,7 @@ public class UserEventCrawler {
           System.out.println("Memory increased: " + (usedMemoryAfter - usedMemoryBefore) / 1_000_000);
           System.out.println("Duration (s): " + (System.currentTimeMillis() - startTime) / 1000.0);
           return events;
-      });
+      }, CrawlScheduler.Provider.EXCHANGE);
   }
 
   public EmailNameResolver getEnResolver() {
@@ -243,33 +233,30 @@ public class UserEventCrawler {
     return this.messages;
   }
 
-  public void shutdown(long waitTimeInMillis) {
-    try {
-      this.executor.shutdown();
-      this.executor.awaitTermination(waitTimeInMillis, TimeUnit.MILLISECONDS);
-    } catch (InterruptedException e) {
-      log.error(e.toString());
-    } finally {
-      if (!this.executor.isTerminated()) {
-        log.warn("Force killing non-finished tasks.");
-      }
-      this.executor.shutdownNow();
-    }
+  public String getTenant() {
+    return this.tenant;
+  }
+
+  /**
+   * Sets whose crawls these are, see UserInboxCrawler.setTenant().
+   */
+  public UserEventCrawler setTenant(String tenant) {
+    this.tenant = tenant;
+    return this;
   }
 
   public void startCrawl() throws GoogleJsonResponseException {
     this.messages.clear();
     this.enResolver.reset();
 
-    List<Future<List<Event>>> eventFutures = null;
-    try {
-      eventFutures = this.executor.invokeAll(this.callables);  // Blocking.
-    } catch (InterruptedException e) {
-      log.error(e.toString());
-    } finally {
-      this.callables.clear();
-      this.shutdown(SHUTDOWN_WAIT_TIME_IN_MILLIS);
+    // Waited for by mergeEventWithSameId().
+    List<Future<List<Event>>> eventFutures = new ArrayList<>();
+    for (Map.Entry<Callable<List<Event>>, CrawlScheduler.Provider> entry :
+         this.callables.entrySet()) {
+      eventFutures.add(CrawlScheduler.getInstance().submitCrawl(
+          entry.getValue(), this.tenant, entry.getKey()));
     }
+    this.callables.clear();
     Collection<Event> events = mergeEventWithSameId(eventFutures);
 
     this.enResolver.loadEvents(events);
@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
@@ -22,8 +23,10 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
 import com.contextsmith.api.service.Source;
+import com.contextsmith.email.provider.exchange.AQSBuilder;
 import com.contextsmith.email.provider.exchange.ExchangeServiceProvider;
 import com.contextsmith.email.provider.exchange.MimeMessageProducer;
+import com.contextsmith.email.store.MessageStore;
 import microsoft.exchange.webservices.data.core.ExchangeService;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.math3.analysis.function.Add;
@@ -36,45 +39,56 @@ import com.contextsmith.email.cluster.EmailNameResolver;
 import com.contextsmith.utils.MimeMessageUtil;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.common.base.Stopwatch;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import reactor.core.publisher.Flux;
 
-// TODO(rcwang): Make executor service static.
 public class UserInboxCrawler {
     public static final String DEFAULT_GMAIL_USER = "me";
     private static final Logger log = LoggerFactory.getLogger(UserInboxCrawler.class);
-    public static int SHUTDOWN_WAIT_TIME_IN_MILLIS = 1000;
+    public static final String DEFAULT_TENANT = "";
     private Function<String, GoogleServiceProvider> googleServiceProvider;
     private Supplier<ExchangeServiceProvider> exchangeServiceProvider;
     private EmailFilterer emailFilterer;
     private EmailNameResolver enResolver;
-    private ExecutorService executor;
     private Collection<Messageable> messages;
     private Collection<MimeMessage> unfilteredMimeMessages;
-    private Set<Callable<List<MimeMessage>>> callables;
+    private Map<Callable<List<MimeMessage>>, CrawlScheduler.Provider> callables;
     private List<Future<List<MimeMessage>>> futures;
     private Pattern subjectRetainPattern;
+    private boolean isHeadersOnly;
+    private AtomicLong bytesFetched;
+    private String tenant;
+    private GmailSync gmailSync;
+    private MessageStore messageStore;
     public UserInboxCrawler(Function<String, GoogleServiceProvider> googleServiceProvider, Supplier<ExchangeServiceProvider> exchangeServiceProvider) {
         this.googleServiceProvider = googleServiceProvider;
         this.exchangeServiceProvider = exchangeServiceProvider;
-        this.executor = Executors.newCachedThreadPool(
-                new ThreadFactoryBuilder().setNameFormat(
-                        Thread.currentThread().getName() + ".%d").build());
-        this.callables = new HashSet<>();
+        this.callables = new HashMap<>();
         this.emailFilterer = new EmailFilterer();
         this.enResolver = new EmailNameResolver();
         this.messages = new ArrayList<>();
 
         this.unfilteredMimeMessages = null;
         this.subjectRetainPattern = null;
+        this.isHeadersOnly = false;
+        this.bytesFetched = new AtomicLong();
+        this.tenant = DEFAULT_TENANT;
+        this.gmailSync = null;
+        this.messageStore = null;
     }
 
     public void addGmailTask(final String query, final String accessToken,
                              final String email, final int maxMessages) {
-        this.callables.add(new Callable<List<MimeMessage>>() {
+        this.callables.put(new Callable<List<MimeMessage>>() {
             @Override
             public List<MimeMessage> call() throws Exception {
-                List<MimeMessage> messages = fetchGmails(query, googleServiceProvider.apply(accessToken), maxMessages);
+                BatchEmailFetcher fetcher = newBatchEmailFetcher(
+                        googleServiceProvider.apply(accessToken), email)
+                        .setHeadersOnly(isHeadersOnly)
+                        .setMessageStore(messageStore, email);
+                List<MimeMessage> messages = (gmailSync == null) ?
+                        fetchGmails(fetcher, query, maxMessages) :
+                        gmailSync.fetchMimeMessages(fetcher, email, query, maxMessages);
+                bytesFetched.addAndGet(fetcher.getBytesFetched());
                 if (messages == null) return null;
 
                 // Insert user's email address into MimeMessage.
@@ -90,14 +104,21 @@ public class UserInboxCrawler {
                 }
                 return messages;
             }
-        });
+        }, CrawlScheduler.Provider.GOOGLE);
     }
 
     public void addExchangeTask(String exchangeQuery, Source source, List<Set<InternetAddress>> externalClusters, int maxMessages) {
 
-        this.callables.add(() -> {
+        this.callables.put(() -> {
             ExchangeService exchangeService = exchangeServiceProvider.get().connectAsUser(source.email, source.password.toCharArray(), source.url);
-            MimeMessageProducer producer = new MimeMessageProducer(exchangeService).query(exchangeQuery).maxMessages(maxMessages);
+            // Only the messages of the clusters, if known, in as many queries as it takes;
+            // filterMessages() still checks them.
+            List<String> queries = new AQSBuilder(exchangeQuery).toQueries(
+                    externalClusters == null ? null : externalClusters.stream()
+                            .flatMap(Collection::stream).collect(Collectors.toList()),
+                    AQSBuilder.MAX_QUERY_LENGTH);
+            MimeMessageProducer producer = new MimeMessageProducer(exchangeService).queries(queries).maxMessages(maxMessages)
+                    .headersOnly(isHeadersOnly).messageStore(messageStore, source.email);
             Runtime runtime = Runtime.getRuntime();
             long usedMemoryBefore = runtime.totalMemory() - runtime.freeMemory();
             System.out.println("Used Memory before: " + usedMemoryBefore / 1_000_000);
@@ -105,13 +126,14 @@ public class UserInboxCrawler {
             Flux<MimeMessage> mimeMessageFlux = producer.asFlux();
 
             List<MimeMessage> mimeMessages = filterMessages(source, externalClusters, mimeMessageFlux);
+            bytesFetched.addAndGet(producer.getBytesFetched());
 
             System.out.println("Received " + mimeMessages.size() + " messages");
             long usedMemoryAfter = runtime.totalMemory() - runtime.freeMemory();
             System.out.println("Memory increased: " + (usedMemoryAfter - usedMemoryBefore) / 1_000_000);
             System.out.println("Duration (s): " + (System.currentTimeMillis() - startTime) / 1000.0);
             return mimeMessages;
-        });
+        }, CrawlScheduler.Provider.EXCHANGE);
     }
 
     List<MimeMessage> filterMessages(Source source, List<Set<InternetAddress>> externalClusters, Flux<MimeMessage> mimeMessageFlux) {
@@ -147,6 +169,14 @@ public class UserInboxCrawler {
         return false;
     }
 
+    /**
+     * Returns the bytes of messages, or of their headers in headers-only
+     * mode, fetched by all crawls so far.
+     */
+    public long getBytesFetched() {
+        return this.bytesFetched.get();
+    }
+
     public EmailNameResolver getEnResolver() {
         return this.enResolver;
     }
@@ -164,22 +194,60 @@ public class UserInboxCrawler {
         return this;
     }
 
+    public boolean isHeadersOnly() {
+        return this.isHeadersOnly;
+    }
+
+    /**
+     * Fetches only the headers of messages, for requests which do not show
+     * or process their content; must be set before startCrawl().
+     */
+    public UserInboxCrawler setHeadersOnly(boolean isHeadersOnly) {
+        this.isHeadersOnly = isHeadersOnly;
+        return this;
+    }
+
+    public GmailSync getGmailSync() {
+        return this.gmailSync;
+    }
+
+    /**
+     * Fetches only the Gmail messages added since the last crawl of the same
+     * source, if 'gmailSync' is not null; must be set before startCrawl().
+     */
+    public UserInboxCrawler setGmailSync(GmailSync gmailSync) {
+        this.gmailSync = gmailSync;
+        return this;
+    }
+
+    public MessageStore getMessageStore() {
+        return this.messageStore;
+    }
+
+    /**
+     * Takes messages crawled before from 'messageStore' instead of fetching
+     * them again, if not null; must be set before startCrawl().
+     */
+    public UserInboxCrawler setMessageStore(MessageStore messageStore) {
+        this.messageStore = messageStore;
+        return this;
+    }
+
     public Collection<MimeMessage> getUnfilteredMimeMessages() {
         return this.unfilteredMimeMessages;
     }
 
-    public void shutdown(long waitTimeInMillis) {
-        try {
-            this.executor.shutdown();
-            this.executor.awaitTermination(waitTimeInMillis, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            log.error(e.toString());
-        } finally {
-            if (!this.executor.isTerminated()) {
-                log.warn("Force killing non-finished tasks.");
-            }
-            this.executor.shutdownNow();
-        }
+    public String getTenant() {
+        return this.tenant;
+    }
+
+    /**
+     * Sets whose crawls these are (e.g. an internal domain), which
+     * CrawlScheduler serves in turn with the crawls of other tenants.
+     */
+    public UserInboxCrawler setTenant(String tenant) {
+        this.tenant = tenant;
+        return this;
     }
 
     public void startCrawl() throws GoogleJsonResponseException {
@@ -187,15 +255,14 @@ public class UserInboxCrawler {
         this.enResolver.reset();
         this.unfilteredMimeMessages = null;
 
-        List<Future<List<MimeMessage>>> inboxFutures = null;
-        try {
-            inboxFutures = this.executor.invokeAll(this.callables);
-        } catch (InterruptedException e) {
-            log.error(e.toString());
-        } finally {
-            this.callables.clear();
-            this.shutdown(SHUTDOWN_WAIT_TIME_IN_MILLIS);
+        // Waited for by mergeMessageWithSameId().
+        List<Future<List<MimeMessage>>> inboxFutures = new ArrayList<>();
+        for (Map.Entry<Callable<List<MimeMessage>>, CrawlScheduler.Provider> entry :
+                this.callables.entrySet()) {
+            inboxFutures.add(CrawlScheduler.getInstance().submitCrawl(
+                    entry.getValue(), this.tenant, entry.getKey()));
         }
+        this.callables.clear();
         this.unfilteredMimeMessages = mergeMessageWithSameId(inboxFutures);
 
         Collection<MimeMessage> filteredMimeMessages = this.emailFilterer
@@ -221,13 +288,32 @@ public class UserInboxCrawler {
                                                 GoogleServiceProvider service,
                                                 long maxMessages)
             throws IOException {
-        checkNotNull(query);
+        return fetchGmails(query, service, maxMessages, null);
+    }
+
+    /**
+     * @param account Address of the inbox, whose Gmail quota is shared by all
+     * concurrent fetches of it; null if unknown.
+     */
+    public static List<MimeMessage> fetchGmails(String query,
+                                                GoogleServiceProvider service,
+                                                long maxMessages,
+                                                String account)
+            throws IOException {
         checkNotNull(service);
+        return fetchGmails(newBatchEmailFetcher(service, account), query, maxMessages);
+    }
+
+    private static List<MimeMessage> fetchGmails(BatchEmailFetcher fetcher,
+                                                 String query,
+                                                 long maxMessages)
+            throws IOException {
+        checkNotNull(query);
 
         Stopwatch stopwatch = Stopwatch.createStarted();
-        log.info("Fetching max {} gmails using query: \"{}\"", maxMessages, query);
+        log.info("Fetching max {} gmails{} using query: \"{}\"", maxMessages,
+                 fetcher.isHeadersOnly() ? " (headers only)" : "", query);
 
-        BatchEmailFetcher fetcher = new BatchEmailFetcher(service.getGmailService());
         List<MimeMessage> messages = fetcher.fetchMimeMessages(
                 DEFAULT_GMAIL_USER, query, maxMessages);
 
@@ -235,6 +321,14 @@ public class UserInboxCrawler {
         return messages;
     }
 
+    private static BatchEmailFetcher newBatchEmailFetcher(
+            GoogleServiceProvider service, String account) {
+        return StringUtils.isBlank(account) ?
+                new BatchEmailFetcher(service.getGmailService()) :
+                new BatchEmailFetcher(service.getGmailService(),
+                                      QuotaRateLimiter.forAccount(account));
+    }
+
     /**
      * If the same message occurs in inboxes of several users, pick the first one and add users to it for any duplicates encountered
      */
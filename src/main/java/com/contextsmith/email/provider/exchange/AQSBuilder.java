@@ -1,14 +1,24 @@
 package com.contextsmith.email.provider.exchange;
 
 
+import javax.mail.internet.InternetAddress;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Created by beders on 4/26/17.
  */
 public class AQSBuilder {
+    /** Longest query to send in one request, well within what EWS accepts. */
+    public static final int MAX_QUERY_LENGTH = 1000;
+
     StringBuilder sb;
 
     DateFormat format = new SimpleDateFormat("MM/dd/yy");
@@ -16,7 +26,7 @@ public class AQSBuilder {
     public AQSBuilder(String... queryStart) {
         sb = new StringBuilder();
         for (String s : queryStart) {
-            append(s);
+            if (s != null && !s.isEmpty()) append(s);
         }
     }
 
@@ -43,6 +53,38 @@ public class AQSBuilder {
         }
     }
 
+    /**
+     * Returns the query so far ANDed with "participants:" clauses (from, to or cc)
+     * of 'addresses', split into as many queries as keep each within 'maxLength'
+     * characters; just the query so far if there are no addresses.
+     */
+    public List<String> toQueries(Collection<InternetAddress> addresses, int maxLength) {
+        String query = toQuery();
+        Set<String> clauses = new LinkedHashSet<>();
+        if (addresses != null) {
+            for (InternetAddress address : addresses) {
+                if (address.getAddress() == null || address.getAddress().trim().isEmpty()) continue;
+                clauses.add("participants:" + quote(address.getAddress().toLowerCase()));
+            }
+        }
+        if (clauses.isEmpty()) return Collections.singletonList(query);
+
+        List<String> queries = new ArrayList<>();
+        String prefix = query.isEmpty() ? "(" : query + " (";
+        StringBuilder chunk = new StringBuilder();
+        for (String clause : clauses) {
+            if (chunk.length() > 0 &&
+                    prefix.length() + chunk.length() + " OR ".length() + clause.length() + 1 > maxLength) {
+                queries.add(prefix + chunk + ")");
+                chunk.setLength(0);
+            }
+            if (chunk.length() > 0) chunk.append(" OR ");
+            chunk.append(clause);
+        }
+        queries.add(prefix + chunk + ")");
+        return queries;
+    }
+
     private AQSBuilder append(String s) {
         if (sb.length() != 0) {
             sb.append(" ");
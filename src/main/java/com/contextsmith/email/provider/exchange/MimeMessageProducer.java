@@ -1,92 +1,332 @@
 package com.contextsmith.email.provider.exchange;
 
+import com.contextsmith.email.provider.CrawlScheduler;
+import com.contextsmith.email.store.MessageStore;
+import com.contextsmith.email.store.StoredMessage;
+import com.contextsmith.utils.MimeMessageUtil;
+import com.contextsmith.utils.MimeMessageUtil.BodyTrait;
 import microsoft.exchange.webservices.data.core.ExchangeService;
 import microsoft.exchange.webservices.data.core.PropertySet;
+import microsoft.exchange.webservices.data.core.enumeration.property.BasePropertySet;
 import microsoft.exchange.webservices.data.core.enumeration.property.BodyType;
 import microsoft.exchange.webservices.data.core.enumeration.property.WellKnownFolderName;
 import microsoft.exchange.webservices.data.core.enumeration.search.SortDirection;
 import microsoft.exchange.webservices.data.core.service.item.EmailMessage;
 import microsoft.exchange.webservices.data.core.service.item.Item;
+import microsoft.exchange.webservices.data.core.service.item.MeetingMessage;
+import microsoft.exchange.webservices.data.core.service.schema.EmailMessageSchema;
 import microsoft.exchange.webservices.data.core.service.schema.ItemSchema;
 import microsoft.exchange.webservices.data.property.complex.EmailAddress;
 import microsoft.exchange.webservices.data.search.FindItemsResults;
 import microsoft.exchange.webservices.data.search.ItemView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Flux;
 
 import javax.mail.Address;
 import javax.mail.Message;
+import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Produces the messages of an Exchange inbox, oldest first for each query.
+ * The pages after the current one are requested ahead, 'pagesInFlight' at a
+ * time.  ExchangeService keeps the state of its requests (e.g. the HTTP
+ * context with its cookies) unsynchronized, so each page in flight has a
+ * service of its own: the one given, or a copy of it (see newService()).
  * Created by beders on 4/24/17.
  */
 public class MimeMessageProducer {
+    private static final Logger log = LoggerFactory.getLogger(MimeMessageProducer.class);
     static final Session session = Session.getDefaultInstance(new Properties());
+    // Properties loaded in headers-only mode, see BatchEmailFetcher.METADATA_HEADERS.
+    static final PropertySet HEADER_PROPERTIES = new PropertySet(BasePropertySet.IdOnly,
+            EmailMessageSchema.InternetMessageId, EmailMessageSchema.DateTimeSent,
+            EmailMessageSchema.From, EmailMessageSchema.Sender, EmailMessageSchema.ReplyTo,
+            EmailMessageSchema.ToRecipients, EmailMessageSchema.CcRecipients,
+            EmailMessageSchema.Subject, EmailMessageSchema.References);
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_PAGES_IN_FLIGHT = 4;
+
+    /**
+     * The messages of one findItems request, the number of items it found (also
+     * those that are not messages), whether later ones may have more, and the
+     * number of items of the query, or -1 if not known.
+     */
+    static class Page {
+        final List<MimeMessage> messages;
+        final int numItems;
+        final boolean isMoreAvailable;
+        final int totalCount;
+
+        Page(List<MimeMessage> messages, int numItems, boolean isMoreAvailable, int totalCount) {
+            this.messages = messages;
+            this.numItems = numItems;
+            this.isMoreAvailable = isMoreAvailable;
+            this.totalCount = totalCount;
+        }
+    }
+
+    // The pages of one query, e.g. of one chunk of the addresses of a crawl.
+    private static class QueryPages {
+        final String query;
+        int nextOffset;
+        // Items of the query, once a page told; no pages are requested past it.
+        int totalCount = Integer.MAX_VALUE;
+        boolean isExhausted;
+
+        QueryPages(String query) {
+            this.query = query;
+        }
+    }
+
+    private static class PageRequest {
+        final QueryPages pages;
+        final int offset;
+        final Future<Page> future;
+
+        PageRequest(QueryPages pages, int offset, Future<Page> future) {
+            this.pages = pages;
+            this.offset = offset;
+            this.future = future;
+        }
+    }
 
-    private ItemView view;
     private ExchangeService service;
+    // The services not fetching a page now, and all of them, to close.
+    private final BlockingQueue<ExchangeService> idleServices = new LinkedBlockingQueue<>();
+    private final List<ExchangeService> services = new ArrayList<>();
     private Queue<MimeMessage> currentBatch;
-    private boolean moreResults;
+    // Requests of the pages after currentBatch, in the order they were made.
+    private final Deque<PageRequest> inFlight = new ArrayDeque<>();
+    private List<QueryPages> queryPages;
+    private int nextQuery;
+    // IDs of the items produced, if several queries may find the same ones.
+    private final Set<String> itemIds = new HashSet<>();
     private int itemsRetrieved;
     private int maxCount = 10000;
-    private int pageSize = 50;
-    private String query;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int pagesInFlight = DEFAULT_PAGES_IN_FLIGHT;
+    private List<String> queries = Collections.singletonList(null);
+    private boolean headersOnly = false;
+    private MessageStore messageStore;
+    private String messageStoreSource;
+    private final AtomicLong bytesFetched = new AtomicLong();
 
     public MimeMessageProducer(ExchangeService service) {
         this.service = service;
     }
 
-    public void prepare() throws Exception {
-        view = new ItemView(Math.min(pageSize, maxCount));
-        view.getOrderBy().add(ItemSchema.DateTimeReceived, SortDirection.Ascending);
+    MimeMessage produceNext() throws Exception {
+        if (queryPages == null) {
+            queryPages = new ArrayList<>();
+            for (String query : queries) queryPages.add(new QueryPages(query));
+        }
+        while (true) {
+            MimeMessage email = currentBatch == null ? null : currentBatch.poll();
+            if (email != null) return email;
+            if (itemsRetrieved >= maxCount) return null;
+
+            requestPages();
+            PageRequest request = inFlight.poll();
+            if (request == null) return null;
+            Page page = getPage(request.future);
+            // A page may have items but no messages, e.g. only meeting
+            // responses; only one without items ends the query.
+            if (!page.isMoreAvailable || page.numItems == 0) {
+                exhaust(request.pages);
+            } else if (page.totalCount >= 0) {
+                truncate(request.pages, Math.max(page.totalCount, request.offset + page.numItems));
+            }
+            currentBatch = new ArrayDeque<>(page.messages.size());
+            for (MimeMessage message : page.messages) {
+                if (itemsRetrieved >= maxCount) break;
+                if (queryPages.size() > 1 && !itemIds.add(getItemId(message))) continue;
+                currentBatch.add(message);
+                itemsRetrieved++;
+            }
+            log.debug("Received {} e-mails", itemsRetrieved);
+            requestPages();
+        }
     }
 
-    MimeMessage produceNext() throws Exception {
-        if (view == null) {
-            prepare();
+    // Keeps up to 'pagesInFlight' page requests running, taking the queries
+    // in turn, so that finding the items of one page overlaps loading the
+    // properties of the others.
+    private void requestPages() {
+        while (inFlight.size() < pagesInFlight) {
+            final QueryPages pages = nextQueryPages();
+            if (pages == null) return;
+            final int offset = pages.nextOffset;
+            final int size = Math.min(pageSize, getEnd(pages) - offset);
+            inFlight.add(new PageRequest(pages, offset, CrawlScheduler.getInstance().submitPageRequest(
+                    () -> fetchPage(pages.query, offset, size))));
+            pages.nextOffset += size;
         }
-        if (currentBatch == null) {
-            moreResults = getNextBatch();
+    }
+
+    // Returns the next query with pages left to request, or null.
+    private QueryPages nextQueryPages() {
+        for (int i = 0; i < queryPages.size(); ++i) {
+            QueryPages pages = queryPages.get(nextQuery);
+            nextQuery = (nextQuery + 1) % queryPages.size();
+            if (!pages.isExhausted && pages.nextOffset < getEnd(pages)) return pages;
+        }
+        return null;
+    }
+
+    // Returns the offset up to which pages of 'pages' may be requested.
+    private int getEnd(QueryPages pages) {
+        return Math.min(maxCount, pages.totalCount);
+    }
+
+    private static Page getPage(Future<Page> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    private static String getItemId(MimeMessage message) throws MessagingException {
+        String id = message.getHeader("X-Private-ID", null);
+        return id == null || id.isEmpty() ? message.getMessageID() : id;
+    }
+
+    // Cancels the requests of the pages of 'pages', which has no more items.
+    private void exhaust(QueryPages pages) {
+        pages.isExhausted = true;
+        for (Iterator<PageRequest> it = inFlight.iterator(); it.hasNext(); ) {
+            PageRequest request = it.next();
+            if (request.pages == pages) {
+                request.future.cancel(true);
+                it.remove();
+            }
         }
-        MimeMessage email = currentBatch.poll();
-        if (email == null && moreResults) {
-            moreResults = getNextBatch();
-            email = currentBatch.poll();
+    }
+
+    // Cancels the requests of the pages of 'pages' past its 'totalCount' items,
+    // which were requested before the count was known.
+    private void truncate(QueryPages pages, int totalCount) {
+        pages.totalCount = totalCount;
+        for (Iterator<PageRequest> it = inFlight.iterator(); it.hasNext(); ) {
+            PageRequest request = it.next();
+            if (request.pages == pages && request.offset >= totalCount) {
+                request.future.cancel(true);
+                it.remove();
+            }
         }
-        return email;
     }
 
-    private boolean getNextBatch() throws Exception {
-        currentBatch = new ArrayDeque<>(pageSize);
+    private void cancelPages() {
+        for (PageRequest request : inFlight) request.future.cancel(true);
+        inFlight.clear();
+    }
 
-        FindItemsResults<Item> findResults;
-        findResults = service.findItems(WellKnownFolderName.Inbox, query, view);
-        if (findResults.getItems().size() == 0) return false;
+    /** Finds the 'size' items of 'query' from 'offset' on and loads their properties. */
+    Page fetchPage(String query, int offset, int size) throws Exception {
+        ExchangeService pageService = takeService();
+        try {
+            return fetchPage(pageService, query, offset, size);
+        } finally {
+            idleServices.add(pageService);
+        }
+    }
 
-        service.loadPropertiesForItems(findResults, PropertySet.FirstClassProperties);
+    Page fetchPage(ExchangeService pageService, String query, int offset, int size) throws Exception {
+        ItemView view = new ItemView(size, offset);
+        view.getOrderBy().add(ItemSchema.DateTimeReceived, SortDirection.Ascending);
+        FindItemsResults<Item> findResults = pageService.findItems(WellKnownFolderName.Inbox, query, view);
+        int numItems = findResults.getItems().size();
+        if (numItems == 0) return new Page(Collections.emptyList(), 0, false, findResults.getTotalCount());
 
+        // Items in the message store are not loaded again.
+        List<MimeMessage> messages = new ArrayList<>(findResults.getItems().size());
+        List<Item> itemsToLoad = new ArrayList<>();
         for (Item item : findResults.getItems()) {
+            MimeMessage stored = getStoredMessage(item);
+            messages.add(stored);
+            if (stored == null) itemsToLoad.add(item);
+        }
+        if (!itemsToLoad.isEmpty()) {
+            pageService.loadPropertiesForItems(itemsToLoad,
+                    headersOnly ? HEADER_PROPERTIES : PropertySet.FirstClassProperties);
+        }
+        for (int i = 0; i < messages.size(); ++i) {
+            if (messages.get(i) != null) continue;
+            Item item = findResults.getItems().get(i);
             if (item instanceof EmailMessage) {
-                EmailMessage msg = ((EmailMessage) item);
-                currentBatch.add(buildMimeMessage(msg));
+                MimeMessage mime = buildMimeMessage((EmailMessage) item);
+                storeMessage(item, mime);
+                messages.set(i, mime);
             } else {
-                System.out.println(item.getClass());
-            }
-            // Do something with the item.
-            itemsRetrieved++;
-            if (itemsRetrieved % pageSize == 0) {
-                System.out.format("Received " + itemsRetrieved + " e-mails\n");
+                log.debug("Skipped item of {}", item.getClass());
             }
         }
-        view.setOffset(view.getOffset() + pageSize);
+        messages.removeIf(Objects::isNull);
+        return new Page(messages, numItems, findResults.isMoreAvailable(), findResults.getTotalCount());
+    }
+
+    // Returns an idle service, or a new one if all are fetching pages.
+    private ExchangeService takeService() throws Exception {
+        ExchangeService idle = idleServices.poll();
+        if (idle != null) return idle;
+        synchronized (services) {
+            ExchangeService created = services.isEmpty() ? service : newService(service);
+            services.add(created);
+            return created;
+        }
+    }
+
+    /** Returns a service connecting to the same account as 'original'. */
+    ExchangeService newService(ExchangeService original) throws Exception {
+        ExchangeService copy = new ExchangeService(original.getRequestedServerVersion());
+        copy.setCredentials(original.getCredentials());
+        copy.setUrl(original.getUrl());
+        copy.setTimeout(original.getTimeout());
+        copy.setImpersonatedUserId(original.getImpersonatedUserId());
+        return copy;
+    }
 
-        return itemsRetrieved < maxCount ? findResults.isMoreAvailable() : false; // false == no more items
+    private MimeMessage getStoredMessage(Item item) throws Exception {
+        if (messageStore == null || item.getId() == null) return null;
+        StoredMessage stored = messageStore.getByProviderId(messageStoreSource, item.getId().getUniqueId());
+        if (stored == null || !stored.hasBodyTraits()) return null;
+        if (!headersOnly && !stored.hasText()) return null;
+        return stored.toMimeMessage(session, !headersOnly);
+    }
+
+    private void storeMessage(Item item, MimeMessage mime) {
+        if (messageStore == null || item.getId() == null) return;
+        try {
+            messageStore.put(messageStoreSource,
+                    StoredMessage.from(mime, item.getId().getUniqueId(), !headersOnly));
+        } catch (Exception e) {
+            log.warn("Unable to store e-mail {}", item.getId().getUniqueId(), e);
+        }
     }
 
     private MimeMessage buildMimeMessage(EmailMessage msg) throws Exception {
@@ -102,21 +342,56 @@ public class MimeMessageProducer {
         for (EmailAddress ea : msg.getCcRecipients()) {
             mime.addRecipient(Message.RecipientType.CC, toIA(ea));
         }
-        String mimeType = msg.getBody().getBodyType() == BodyType.HTML ? "text/html" : "text/plain";
         mime.addHeader("Message-ID", msg.getInternetMessageId());
         mime.addHeader("X-Private-ID", msg.getId() != null ? msg.getId().getUniqueId() : "");
 
-        mime.setContent(msg.getBody().toString(), mimeType);
+        if (headersOnly) {
+            if (msg.getReplyTo() != null) {
+                List<Address> replyTo = new ArrayList<>();
+                for (EmailAddress ea : msg.getReplyTo()) replyTo.add(toIA(ea));
+                mime.setReplyTo(replyTo.toArray(new Address[0]));
+            }
+            if (msg.getReferences() != null) mime.addHeader("References", msg.getReferences());
+            mime.setText("");
+        } else {
+            String mimeType = msg.getBody().getBodyType() == BodyType.HTML ? "text/html" : "text/plain";
+            String body = msg.getBody().toString();
+            mime.setContent(body, mimeType);
+            bytesFetched.addAndGet(body.length());
+        }
         mime.saveChanges();
+        bytesFetched.addAndGet(estimateHeaderBytes(mime));
+
+        // In headers-only mode there are no parts: invites are told by their
+        // item type instead.
+        if (headersOnly) {
+            Set<BodyTrait> traits = EnumSet.noneOf(BodyTrait.class);
+            if (msg instanceof MeetingMessage) traits.add(BodyTrait.CALENDAR);
+            MimeMessageUtil.setBodyTraits(mime, traits);
+        }
         return mime;
     }
 
+    private static long estimateHeaderBytes(MimeMessage mime) throws Exception {
+        long bytes = 0;
+        for (Enumeration<?> e = mime.getAllHeaderLines(); e.hasMoreElements(); ) {
+            bytes += e.nextElement().toString().length() + 2;
+        }
+        return bytes;
+    }
+
     private static InternetAddress toIA(EmailAddress ea) throws UnsupportedEncodingException {
         return new InternetAddress(ea.getAddress(), ea.getName());
     }
 
     private void finish() {
-        service.close();
+        cancelPages();
+        synchronized (services) {
+            if (service != null && !services.contains(service)) service.close();
+            for (ExchangeService created : services) {
+                if (created != null) created.close();
+            }
+        }
     }
 
     static MimeMessageProducer produce(MimeMessageProducer producer, reactor.core.publisher.SynchronousSink<MimeMessage> sink) {
@@ -140,11 +415,57 @@ public class MimeMessageProducer {
 
     /** Query in AQS syntax https://technet.microsoft.com/en-us/library/bb232132(v=exchg.141).aspx */
     public MimeMessageProducer query(String query) {
-        this.query = query; return this;
+        this.queries = Collections.singletonList(query); return this;
+    }
+
+    /**
+     * Produces the items found by any of 'queries', e.g. chunks of a query too
+     * long for one request (see AQSBuilder.toQueries()), whose pages are
+     * requested concurrently.
+     */
+    public MimeMessageProducer queries(List<String> queries) {
+        this.queries = queries; return this;
     }
 
     public MimeMessageProducer maxMessages(int max) {
         this.maxCount = max;
         return this;
     }
+
+    /** Items requested per findItems request. */
+    public MimeMessageProducer pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /** Pages requested at once, see CrawlScheduler.submitPageRequest(). */
+    public MimeMessageProducer pagesInFlight(int pagesInFlight) {
+        this.pagesInFlight = pagesInFlight;
+        return this;
+    }
+
+    /**
+     * Loads only the properties making up the headers, and leaves the body empty.
+     * EmailFilterer then only filters invites by their body traits, not HTML
+     * newsletters, whose parts are not loaded.
+     */
+    public MimeMessageProducer headersOnly(boolean headersOnly) {
+        this.headersOnly = headersOnly;
+        return this;
+    }
+
+    /**
+     * Takes the items in 'store' from there instead of loading them, and
+     * stores those loaded; 'source' is the address of the inbox.
+     */
+    public MimeMessageProducer messageStore(MessageStore store, String source) {
+        this.messageStore = source == null || source.isEmpty() ? null : store;
+        this.messageStoreSource = source;
+        return this;
+    }
+
+    /** Bytes of the messages produced so far, estimated from their headers and body. */
+    public long getBytesFetched() {
+        return bytesFetched.get();
+    }
 }
@@ -0,0 +1,352 @@
+package com.contextsmith.email.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only store of crawled messages (see StoredMessage) on disk,
+ * so that crawls fetch only the messages no earlier crawl stored.
+ *
+ * Each source (e.g. the address of an inbox) has a directory of segment
+ * files, to which records are appended, and an index in memory from the
+ * Message-ID and the provider ID (Gmail ID or Exchange item ID) of each
+ * message to its latest record, which is rebuilt from the segments when
+ * the source is first used.  A record is its length, a CRC32 and the
+ * message, so a record cut short by a crash is dropped with what follows.
+ *
+ * Once the segments of a source exceed 'maxBytesPerSource', compact()
+ * rewrites its latest records, newest first, up to COMPACTED_FRACTION of it,
+ * and drops the others.
+ */
+public class MessageStore {
+  private static final Logger log = LoggerFactory.getLogger(MessageStore.class);
+
+  // Directory of the store; MessageStore is off if set to "".
+  public static final String STORE_DIR_PROPERTY = "message.store.dir";
+  public static final String MAX_BYTES_PER_SOURCE_PROPERTY = "message.store.maxBytesPerSource";
+  public static final File DEFAULT_STORE_DIR = new File(
+      System.getProperty("user.home"), ".contextsmith/messages");
+  public static final long DEFAULT_MAX_BYTES_PER_SOURCE = 256L << 20;
+  public static final long MAX_SEGMENT_BYTES = 16L << 20;
+  public static final double COMPACTED_FRACTION = 0.75;
+  public static final String SEGMENT_SUFFIX = ".seg";
+
+  private static MessageStore instance = null;
+  private static boolean isInstanceDisabled = false;
+
+  /**
+   * Returns the MessageStore in STORE_DIR_PROPERTY, or null if it is off.
+   */
+  public static synchronized MessageStore getInstance() {
+    if (instance != null || isInstanceDisabled) return instance;
+    String dir = System.getProperty(STORE_DIR_PROPERTY, DEFAULT_STORE_DIR.getPath());
+    if (dir.isEmpty()) {
+      isInstanceDisabled = true;
+      return null;
+    }
+    instance = new MessageStore(new File(dir), Long.getLong(
+        MAX_BYTES_PER_SOURCE_PROPERTY, DEFAULT_MAX_BYTES_PER_SOURCE));
+    return instance;
+  }
+
+  // Where a record starts.
+  private static class Location {
+    final int segment;
+    final long offset;
+    final int length;  // Of the whole record.
+
+    Location(int segment, long offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private static String toDirName(String source) {
+    return source.toLowerCase().replaceAll("[^a-z0-9@._-]", "_");
+  }
+
+  private static File segmentFile(File dir, int segment) {
+    return new File(dir, String.format("%08d%s", segment, SEGMENT_SUFFIX));
+  }
+
+  private static byte[] toRecord(StoredMessage message) throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    message.write(new DataOutputStream(payload));
+    byte[] bytes = payload.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+
+    ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+    DataOutputStream out = new DataOutputStream(record);
+    out.writeInt(bytes.length);
+    out.writeInt((int) crc.getValue());
+    out.write(bytes);
+    return record.toByteArray();
+  }
+
+  private final File dir;
+  private final long maxBytesPerSource;
+  private final Map<String, Source> sources = new ConcurrentHashMap<>();
+  private final AtomicLong numHits = new AtomicLong();
+  private final AtomicLong numMisses = new AtomicLong();
+
+  public MessageStore(File dir, long maxBytesPerSource) {
+    checkArgument(maxBytesPerSource > 0);
+    this.dir = dir;
+    this.maxBytesPerSource = maxBytesPerSource;
+  }
+
+  /**
+   * Rewrites the latest records of 'source', and drops the oldest ones if
+   * they exceed COMPACTED_FRACTION of 'maxBytesPerSource'.
+   */
+  public void compact(String source) throws IOException {
+    getSource(source).compact();
+  }
+
+  public StoredMessage getByMessageId(String source, String messageId) {
+    return count(getSource(source).get(messageId, false));
+  }
+
+  public StoredMessage getByProviderId(String source, String providerId) {
+    return count(getSource(source).get(providerId, true));
+  }
+
+  public long getNumHits() {
+    return this.numHits.get();
+  }
+
+  public long getNumMisses() {
+    return this.numMisses.get();
+  }
+
+  /** Returns the bytes of the segments of 'source'. */
+  public long getSizeBytes(String source) {
+    return getSource(source).getSizeBytes();
+  }
+
+  /**
+   * Appends 'message' to the segments of 'source'; it replaces any earlier
+   * record of the same Message-ID or provider ID.
+   */
+  public void put(String source, StoredMessage message) throws IOException {
+    getSource(source).put(message);
+  }
+
+  private StoredMessage count(StoredMessage message) {
+    (message == null ? this.numMisses : this.numHits).incrementAndGet();
+    return message;
+  }
+
+  private Source getSource(String source) {
+    checkArgument(StringUtils.isNotBlank(source));
+    return this.sources.computeIfAbsent(toDirName(source),
+        name -> new Source(new File(this.dir, name)));
+  }
+
+  /**
+   * The segments and index of one source, loaded when first used.
+   */
+  private class Source {
+    private final File dir;
+    private final Map<String, Location> byMessageId = new HashMap<>();
+    private final Map<String, Location> byProviderId = new HashMap<>();
+    private List<Integer> segments = new ArrayList<>();
+    private long sizeBytes = 0;
+    private boolean isLoaded = false;
+
+    Source(File dir) {
+      this.dir = dir;
+    }
+
+    synchronized StoredMessage get(String key, boolean isProviderId) {
+      if (key == null) return null;
+      try {
+        load();
+        Location location = (isProviderId ? this.byProviderId : this.byMessageId).get(key);
+        return (location == null) ? null : read(location);
+      } catch (IOException e) {
+        log.error("Unable to read {} of {}: {}", key, this.dir, e.toString());
+        return null;
+      }
+    }
+
+    synchronized long getSizeBytes() {
+      try {
+        load();
+      } catch (IOException e) {
+        log.error(e.toString());
+      }
+      return this.sizeBytes;
+    }
+
+    synchronized void put(StoredMessage message) throws IOException {
+      load();
+      append(message);
+      if (this.sizeBytes > maxBytesPerSource) compact();
+    }
+
+    synchronized void compact() throws IOException {
+      load();
+      // The latest records, newest first.
+      Set<Location> live = Collections.newSetFromMap(new IdentityHashMap<>());
+      live.addAll(this.byMessageId.values());
+      live.addAll(this.byProviderId.values());
+      List<Location> locations = new ArrayList<>(live);
+      locations.sort(Comparator.<Location>comparingInt(l -> l.segment)
+                               .thenComparingLong(l -> l.offset).reversed());
+      List<StoredMessage> kept = new ArrayList<>();
+      long keptBytes = 0;
+      for (Location location : locations) {
+        if (keptBytes + location.length > COMPACTED_FRACTION * maxBytesPerSource) break;
+        kept.add(read(location));
+        keptBytes += location.length;
+      }
+      Collections.reverse(kept);
+
+      List<Integer> oldSegments = this.segments;
+      int firstSegment = oldSegments.isEmpty() ? 0 : oldSegments.get(oldSegments.size() - 1) + 1;
+      this.segments = new ArrayList<>(Collections.singletonList(firstSegment));
+      this.byMessageId.clear();
+      this.byProviderId.clear();
+      this.sizeBytes = 0;
+      for (StoredMessage message : kept) append(message);
+      for (int segment : oldSegments) {
+        if (!segmentFile(this.dir, segment).delete()) {
+          log.warn("Unable to delete {}", segmentFile(this.dir, segment));
+        }
+      }
+      log.info("Compacted {}: kept {} of {} messages, {} KB.", this.dir,
+               kept.size(), locations.size(), this.sizeBytes / 1024);
+    }
+
+    private void append(StoredMessage message) throws IOException {
+      byte[] record = toRecord(message);
+      int segment = this.segments.get(this.segments.size() - 1);
+      File file = segmentFile(this.dir, segment);
+      if (file.length() > 0 && file.length() + record.length > MAX_SEGMENT_BYTES) {
+        segment += 1;
+        this.segments.add(segment);
+        file = segmentFile(this.dir, segment);
+      }
+      long offset = file.length();
+      try (FileOutputStream out = new FileOutputStream(file, true)) {
+        out.write(record);
+      }
+      index(message, new Location(segment, offset, record.length));
+      this.sizeBytes += record.length;
+    }
+
+    private void index(StoredMessage message, Location location) {
+      if (message.getMessageId() != null) this.byMessageId.put(message.getMessageId(), location);
+      if (message.getProviderId() != null) this.byProviderId.put(message.getProviderId(), location);
+    }
+
+    // Scans the segments, and cuts the last one after its last whole record.
+    private void load() throws IOException {
+      if (this.isLoaded) return;
+      if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+        throw new IOException("Unable to create " + this.dir);
+      }
+      File[] files = this.dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+      Arrays.sort(files);
+      for (File file : files) {
+        int segment = Integer.parseInt(
+            StringUtils.removeEnd(file.getName(), SEGMENT_SUFFIX));
+        this.segments.add(segment);
+        long end = scan(file, segment);
+        if (end < file.length()) {
+          log.warn("Dropping {} bytes of broken records of {}", file.length() - end, file);
+          try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(end);
+          }
+        }
+        this.sizeBytes += end;
+      }
+      if (this.segments.isEmpty()) this.segments.add(0);
+      this.isLoaded = true;
+    }
+
+    // Indexes the whole records of 'file', and returns where they end.
+    private long scan(File file, int segment) throws IOException {
+      long offset = 0;
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+               new FileInputStream(file)))) {
+        while (true) {
+          int length;
+          try {
+            length = in.readInt();
+          } catch (EOFException e) {
+            return offset;
+          }
+          if (length < 0 || offset + 8 + length > file.length()) return offset;
+          int crc = in.readInt();
+          byte[] payload = new byte[length];
+          in.readFully(payload);
+          StoredMessage message = parse(payload, crc);
+          if (message == null) return offset;
+          index(message, new Location(segment, offset, 8 + length));
+          offset += 8 + length;
+        }
+      } catch (EOFException e) {
+        return offset;
+      }
+    }
+
+    private StoredMessage read(Location location) throws IOException {
+      byte[] record = new byte[location.length];
+      try (RandomAccessFile raf = new RandomAccessFile(segmentFile(this.dir, location.segment), "r")) {
+        raf.seek(location.offset);
+        raf.readFully(record);
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+      int length = in.readInt();
+      int crc = in.readInt();
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      StoredMessage message = parse(payload, crc);
+      if (message == null) throw new IOException("Broken record at " + location.offset);
+      return message;
+    }
+
+    // Returns null if 'payload' does not match its CRC or cannot be read.
+    private StoredMessage parse(byte[] payload, int crc) {
+      CRC32 actual = new CRC32();
+      actual.update(payload);
+      if ((int) actual.getValue() != crc) return null;
+      try {
+        return StoredMessage.read(new DataInputStream(new ByteArrayInputStream(payload)));
+      } catch (IOException e) {
+        return null;
+      }
+    }
+  }
+}
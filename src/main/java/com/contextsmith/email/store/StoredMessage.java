@@ -0,0 +1,161 @@
+package com.contextsmith.email.store;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import com.contextsmith.utils.MimeMessageUtil;
+
+/**
+ * What EmailMessage.loadFrom() and the filtering and clustering of crawled
+ * messages read of a message: the headers of STORED_HEADERS, unfolded, and
+ * its plain text unless it was fetched headers-only.  What the filter checks
+ * of the parts (HTML, calendar) is kept as its body traits, see
+ * MimeMessageUtil.getBodyTraits().
+ */
+public class StoredMessage {
+  public static final String EXCHANGE_ID_HEADER = "X-Private-ID";
+  public static final List<String> STORED_HEADERS = Collections.unmodifiableList(
+      Arrays.asList(MimeMessageUtil.MIME_MESSAGE_ID_HEADER,
+                    MimeMessageUtil.SENT_DATE_HEADER,
+                    "From", "Sender", "Reply-To", "To", "Cc", "Subject",
+                    MimeMessageUtil.REFERENCES_HEADER,
+                    MimeMessageUtil.DELIVERED_TO_HEADER,
+                    MimeMessageUtil.LIST_UNSUBSCRIBE_HEADER,
+                    MimeMessageUtil.RETURN_PATH_HEADER,
+                    MimeMessageUtil.GMAIL_MESSAGE_ID_HEADER,
+                    MimeMessageUtil.GMAIL_THREAD_ID_HEADER,
+                    MimeMessageUtil.BODY_TRAITS_HEADER,
+                    EXCHANGE_ID_HEADER));
+
+  private static final byte VERSION = 1;
+
+  /**
+   * Returns what is stored of 'message', whose ID at its provider (Gmail ID
+   * or Exchange item ID) is 'providerId'.
+   *
+   * @param hasText Whether 'message' has its content, i.e. was not fetched
+   * headers-only.
+   */
+  public static StoredMessage from(MimeMessage message, String providerId, boolean hasText)
+      throws IOException, MessagingException {
+    List<String> headers = new ArrayList<>();
+    for (String name : STORED_HEADERS) {
+      String[] values = message.getHeader(name);
+      if (values == null) continue;
+      for (String value : values) {
+        headers.add(name);
+        headers.add(MimeUtility.unfold(value));
+      }
+    }
+    // Found in the parts, which are not stored.
+    if (hasText && message.getHeader(MimeMessageUtil.BODY_TRAITS_HEADER) == null) {
+      headers.add(MimeMessageUtil.BODY_TRAITS_HEADER);
+      headers.add(MimeMessageUtil.formatBodyTraits(MimeMessageUtil.getBodyTraits(message)));
+    }
+    return new StoredMessage(providerId, message.getMessageID(), headers,
+                             hasText ? MimeMessageUtil.extractPlainText(message) : null);
+  }
+
+  static StoredMessage read(DataInput in) throws IOException {
+    if (in.readByte() != VERSION) throw new IOException("Unknown record version");
+    String providerId = readString(in);
+    String messageId = readString(in);
+    int numHeaders = in.readInt();
+    List<String> headers = new ArrayList<>(2 * numHeaders);
+    for (int i = 0; i < 2 * numHeaders; ++i) headers.add(readString(in));
+    return new StoredMessage(providerId, messageId, headers, readString(in));
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) return null;
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeString(DataOutput out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private final String providerId;
+  private final String messageId;
+  private final List<String> headers;  // Names and values in turn.
+  private final String plainText;
+
+  StoredMessage(String providerId, String messageId, List<String> headers, String plainText) {
+    this.providerId = providerId;
+    this.messageId = messageId;
+    this.headers = headers;
+    this.plainText = plainText;
+  }
+
+  public String getMessageId() {
+    return this.messageId;
+  }
+
+  /** Returns null if the message was stored headers-only. */
+  public String getPlainText() {
+    return this.plainText;
+  }
+
+  public String getProviderId() {
+    return this.providerId;
+  }
+
+  public boolean hasText() {
+    return this.plainText != null;
+  }
+
+  /**
+   * Returns true if the body traits of the message are stored; records
+   * written before they were are not filtered as the message would be.
+   */
+  public boolean hasBodyTraits() {
+    for (int i = 0; i < this.headers.size(); i += 2) {
+      if (this.headers.get(i).equalsIgnoreCase(MimeMessageUtil.BODY_TRAITS_HEADER)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns a message of the stored headers and plain text, or an empty body
+   * if 'withText' is false, as BatchEmailFetcher builds headers-only ones.
+   */
+  public MimeMessage toMimeMessage(Session session, boolean withText)
+      throws MessagingException {
+    MimeMessage message = new MimeMessage(session);
+    message.setText(withText && this.plainText != null ? this.plainText : "",
+                    StandardCharsets.UTF_8.name());
+    for (int i = 0; i < this.headers.size(); i += 2) {
+      message.addHeader(this.headers.get(i), this.headers.get(i + 1));
+    }
+    return message;
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeByte(VERSION);
+    writeString(out, this.providerId);
+    writeString(out, this.messageId);
+    out.writeInt(this.headers.size() / 2);
+    for (String s : this.headers) writeString(out, s);
+    writeString(out, this.plainText);
+  }
+}
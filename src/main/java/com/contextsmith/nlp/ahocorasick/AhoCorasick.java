@@ -31,14 +31,27 @@ import java.util.Queue;
  */
 public class AhoCorasick implements Serializable {
   private static final long serialVersionUID = -5604494320998239765L;
-  private final RootState root;
+  // The mutable tree, only alive until prepare() compiles it.
+  private RootState root;
+  private DoubleArrayAutomaton automaton;
   private boolean isPrepared;
 
   public AhoCorasick() {
     this.root = new RootState();
+    this.automaton = null;
     this.isPrepared = false;
   }
 
+  /**
+   * Wraps an automaton that was already compiled, e.g. read from a snapshot.
+   * No keywords can be added to it.
+   */
+  public AhoCorasick(DoubleArrayAutomaton automaton) {
+    this.root = null;
+    this.automaton = automaton;
+    this.isPrepared = true;
+  }
+
   /**
    * Adds a new keyword with the given output.  During search, if
    * the keyword is matched, output will be one of the yielded
@@ -55,6 +68,14 @@ public class AhoCorasick implements Serializable {
    * Returns true if input bytes is a prefix of one of the strings in the tree.
    */
   public boolean hasPrefix(char[] chars) {
+    if (this.isPrepared) {
+      int state = DoubleArrayAutomaton.ROOT;
+      for (char c : chars) {
+        state = this.automaton.child(state, c);
+        if (state < 0) return false;
+      }
+      return true;
+    }
     State state = this.root;
     for (char c : chars) {
       state = state.get(c);
@@ -63,15 +84,22 @@ public class AhoCorasick implements Serializable {
     return true;
   }
 
+  public boolean isPrepared() {
+    return this.isPrepared;
+  }
+
   /**
    * Prepares the automaton for searching.  This must be called
    * before any searching().
    *
    * DANGER DANGER: dense algorithm code ahead.  Very order
    * dependent.  Initializes the fail transitions of all states
-   * except for the root.
+   * except for the root, then compiles the tree into a double-array
+   * automaton and releases it.
    */
   public void prepare() {
+    if (this.isPrepared) throw new IllegalStateException(
+        "prepare() is already called.");
     Queue<State> queue = new LinkedList<State>();
     for (State state : this.root.getCharStateMap().values()) {
       state.setFail(this.root);
@@ -100,25 +128,47 @@ public class AhoCorasick implements Serializable {
         queue.add(nextState);
       }
     }
+    this.automaton = DoubleArrayAutomaton.compile(this.root);
+    this.root = null;
     this.isPrepared = true;
   }
 
+  /**
+   * Searches text[beginOffset..endOffset) and reports every match to
+   * 'visitor' without allocating any object.  Reported offsets are relative
+   * to the beginning of 'text'.  If 'ignoreCase' is true, every character is
+   * lower-cased (Character.toLowerCase) before the transition, which
+   * matches keywords that were added in lower case.
+   */
+  public void search(CharSequence text, int beginOffset, int endOffset,
+                     boolean ignoreCase, MatchVisitor visitor) {
+    if (!this.isPrepared)  throw new IllegalStateException(
+        "Can't start search until prepare() is called.");
+    Searcher.search(this.automaton, text, beginOffset, endOffset, ignoreCase,
+                    visitor);
+  }
+
+  public void search(CharSequence text, boolean ignoreCase,
+                     MatchVisitor visitor) {
+    search(text, 0, text.length(), ignoreCase, visitor);
+  }
+
   /**
    * Starts a new search, and returns an Iterator of SearchResults.
    */
   public Iterator<SearchResult> search(char[] chars) {
     if (!this.isPrepared)  throw new IllegalStateException(
         "Can't start search until prepare() is called.");
-    SearchResult currResult = new SearchResult(this.root, chars, 0);
+    SearchResult currResult = new SearchResult(
+        this.automaton, DoubleArrayAutomaton.ROOT, chars, 0);
     SearchResult nextResult = Searcher.continueSearch(currResult);
     return new Searcher(nextResult);
   }
 
   /**
-   * Returns the root of the tree.  Package protected, since the
-   * user probably shouldn't touch this.
+   * Returns the compiled automaton, or null if prepare() is not called yet.
    */
-  protected RootState getRoot() {
-    return this.root;
+  public DoubleArrayAutomaton getAutomaton() {
+    return this.automaton;
   }
 }
@@ -0,0 +1,315 @@
+package com.contextsmith.nlp.ahocorasick;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * An immutable, compiled form of a prepared Aho-Corasick tree.
+ *
+ * States are laid out in a double-array trie: the child of state 's' on
+ * character 'c' lives at slot (base[s] + code(c)), and is valid only if
+ * check[that slot] == s.  Fail transitions and outputs are kept in parallel
+ * int arrays, so a search never touches an object other than the text.
+ */
+public final class DoubleArrayAutomaton implements Serializable {
+  private static final long serialVersionUID = 3120837720391658452L;
+
+  public static final int ROOT = 0;
+  private static final int NO_STATE = -1;
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final double MIN_OCCUPIED_RATIO = 0.95;
+
+  /**
+   * Compiles the tree rooted at 'root'.  The fail transitions and outputs of
+   * every state must already be set, i.e. AhoCorasick.prepare() has run.
+   */
+  static DoubleArrayAutomaton compile(RootState root) {
+    return new Builder(root).build();
+  }
+
+  /**
+   * Reads an automaton written by writeTo(), starting at the buffer's
+   * current position.  The buffer must be in big-endian order.
+   */
+  public static DoubleArrayAutomaton readFrom(ByteBuffer buffer) {
+    int numStates = buffer.getInt();
+    char[] charCodes = new char[buffer.getInt()];
+    buffer.asCharBuffer().get(charCodes);
+    buffer.position(buffer.position() + 2 * charCodes.length);
+    int[] base = readInts(buffer);
+    int[] check = readInts(buffer);
+    int[] fail = readInts(buffer);
+    int[] outputBegin = readInts(buffer);
+    int[] outputs = readInts(buffer);
+    return new DoubleArrayAutomaton(charCodes, base, check, fail, outputBegin,
+                                    outputs, numStates);
+  }
+
+  private static int[] readInts(ByteBuffer buffer) {
+    int[] ints = new int[buffer.getInt()];
+    IntBuffer intBuffer = buffer.asIntBuffer();
+    intBuffer.get(ints);
+    buffer.position(buffer.position() + 4 * ints.length);
+    return ints;
+  }
+
+  private static void writeInts(DataOutput out, int[] ints) throws IOException {
+    out.writeInt(ints.length);
+    for (int i : ints) out.writeInt(i);
+  }
+
+  // Maps a char to its dense alphabet code (1-based, 0 means "not seen").
+  private final char[] charCodes;
+  private final int[] base;
+  private final int[] check;
+  private final int[] fail;
+  // Outputs of slot 's' are outputs[outputBegin[s]] to outputs[outputBegin[s+1]].
+  private final int[] outputBegin;
+  private final int[] outputs;
+  private final int numStates;
+
+  DoubleArrayAutomaton(char[] charCodes, int[] base, int[] check, int[] fail,
+                       int[] outputBegin, int[] outputs, int numStates) {
+    this.charCodes = charCodes;
+    this.base = base;
+    this.check = check;
+    this.fail = fail;
+    this.outputBegin = outputBegin;
+    this.outputs = outputs;
+    this.numStates = numStates;
+  }
+
+  /**
+   * Returns the child of 'state' on 'c', or -1 if there is none.  Unlike
+   * next(), this does not follow fail transitions.
+   */
+  public int child(int state, char c) {
+    int code = (c < this.charCodes.length) ? this.charCodes[c] : 0;
+    if (code == 0) return NO_STATE;
+    int slot = this.base[state] + code;
+    if (slot >= this.check.length || this.check[slot] != state) return NO_STATE;
+    return slot;
+  }
+
+  public int getNumStates() {
+    return this.numStates;
+  }
+
+  public int getOutput(int state, int i) {
+    return this.outputs[this.outputBegin[state] + i];
+  }
+
+  public int getOutputCount(int state) {
+    return this.outputBegin[state + 1] - this.outputBegin[state];
+  }
+
+  public int[] getOutputs(int state) {
+    return Arrays.copyOfRange(this.outputs, this.outputBegin[state],
+                              this.outputBegin[state + 1]);
+  }
+
+  /**
+   * Returns the state reached from 'state' on 'c', following fail
+   * transitions as needed.  Never fails, since the root loops onto itself.
+   */
+  public int next(int state, char c) {
+    int nextState;
+    while ((nextState = child(state, c)) == NO_STATE) {
+      if (state == ROOT) return ROOT;
+      state = this.fail[state];
+    }
+    return nextState;
+  }
+
+  /**
+   * Writes this automaton in a compact binary form, see readFrom().
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(this.numStates);
+    out.writeInt(this.charCodes.length);
+    for (char c : this.charCodes) out.writeChar(c);
+    writeInts(out, this.base);
+    writeInts(out, this.check);
+    writeInts(out, this.fail);
+    writeInts(out, this.outputBegin);
+    writeInts(out, this.outputs);
+  }
+
+  /**
+   * Returns the approximate number of bytes held by this automaton.
+   */
+  public long sizeInBytes() {
+    return 2L * this.charCodes.length +
+           4L * (this.base.length + this.check.length + this.fail.length +
+                 this.outputBegin.length + this.outputs.length);
+  }
+
+  private static class Builder {
+    private final RootState root;
+    private char[] charCodes;
+    private int[] base;
+    private int[] check;
+    private int[] fail;
+    private int nextCheckPos;
+    private int maxSlot;
+
+    Builder(RootState root) {
+      this.root = root;
+    }
+
+    DoubleArrayAutomaton build() {
+      this.charCodes = makeCharCodes(this.root);
+      this.base = new int[INITIAL_CAPACITY];
+      this.check = new int[INITIAL_CAPACITY];
+      Arrays.fill(this.check, NO_STATE);
+      this.check[ROOT] = ROOT;  // Occupy the root slot.
+      this.nextCheckPos = 1;
+      this.maxSlot = ROOT;
+
+      // Assign a slot to every state, breadth first.
+      Map<State, Integer> slots = new IdentityHashMap<>();
+      slots.put(this.root, ROOT);
+      Queue<State> queue = new LinkedList<>();
+      queue.add(this.root);
+      while (!queue.isEmpty()) {
+        State state = queue.remove();
+        int slot = slots.get(state);
+        char[] keys = state.keys();
+        if (keys.length == 0) continue;
+
+        int[] codes = new int[keys.length];
+        for (int i = 0; i < keys.length; ++i) codes[i] = this.charCodes[keys[i]];
+        Arrays.sort(codes);
+        int b = findBase(codes);
+        this.base[slot] = b;
+        for (int code : codes) {
+          this.check[b + code] = slot;
+          this.maxSlot = Math.max(this.maxSlot, b + code);
+        }
+        for (char key : keys) {
+          State child = state.get(key);
+          slots.put(child, b + this.charCodes[key]);
+          queue.add(child);
+        }
+      }
+
+      // Fail transitions and outputs, indexed by slot.
+      int size = this.maxSlot + 1;
+      this.fail = new int[size];
+      State[] states = new State[size];
+      for (Map.Entry<State, Integer> entry : slots.entrySet()) {
+        states[entry.getValue()] = entry.getKey();
+      }
+      int[] outputBegin = new int[size + 1];
+      List<int[]> outputLists = new ArrayList<>(size);
+      int numOutputs = 0;
+      for (int slot = 0; slot < size; ++slot) {
+        State state = states[slot];
+        outputBegin[slot] = numOutputs;
+        if (state == null) {
+          outputLists.add(null);
+          continue;
+        }
+        State failState = state.getFail();
+        this.fail[slot] = (failState == null) ? ROOT : slots.get(failState);
+        int[] stateOutputs = state.getOutputs();
+        outputLists.add(stateOutputs);
+        numOutputs += stateOutputs.length;
+      }
+      outputBegin[size] = numOutputs;
+
+      int[] outputs = new int[numOutputs];
+      for (int slot = 0; slot < size; ++slot) {
+        int[] stateOutputs = outputLists.get(slot);
+        if (stateOutputs == null) continue;
+        System.arraycopy(stateOutputs, 0, outputs, outputBegin[slot],
+                         stateOutputs.length);
+      }
+
+      return new DoubleArrayAutomaton(
+          this.charCodes, Arrays.copyOf(this.base, size),
+          Arrays.copyOf(this.check, size), this.fail, outputBegin, outputs,
+          slots.size());
+    }
+
+    // Finds a base such that (base + code) is a free slot for all codes.
+    // Like darts, the scan starts from 'nextCheckPos', which is moved forward
+    // once the region behind it is nearly full.
+    private int findBase(int[] codes) {
+      int start = Math.max(this.nextCheckPos, codes[0] + 1);
+      int firstFreePos = -1;
+      int numOccupied = 0;
+      for (int pos = start; ; ++pos) {
+        ensureCapacity(pos + 1);
+        if (this.check[pos] != NO_STATE) {
+          ++numOccupied;
+          continue;
+        }
+        if (firstFreePos < 0) firstFreePos = pos;
+
+        int b = pos - codes[0];
+        ensureCapacity(b + codes[codes.length - 1] + 1);
+        boolean isFree = true;
+        for (int i = 1; i < codes.length; ++i) {
+          if (this.check[b + codes[i]] != NO_STATE) {
+            isFree = false;
+            break;
+          }
+        }
+        if (!isFree) continue;
+
+        if (numOccupied >= MIN_OCCUPIED_RATIO * (pos - start + 1)) {
+          this.nextCheckPos = pos;
+        } else if (start == this.nextCheckPos) {
+          this.nextCheckPos = firstFreePos;
+        }
+        return b;
+      }
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity <= this.check.length) return;
+      int newCapacity = Math.max(capacity, this.check.length * 2);
+      int oldCapacity = this.check.length;
+      this.base = Arrays.copyOf(this.base, newCapacity);
+      this.check = Arrays.copyOf(this.check, newCapacity);
+      Arrays.fill(this.check, oldCapacity, newCapacity, NO_STATE);
+    }
+
+    // Gives the most frequent characters the smallest codes, which keeps the
+    // double array dense.
+    private static char[] makeCharCodes(RootState root) {
+      int[] counts = new int[Character.MAX_VALUE + 1];
+      int maxChar = 0;
+      Queue<State> queue = new LinkedList<>();
+      queue.add(root);
+      while (!queue.isEmpty()) {
+        State state = queue.remove();
+        for (char key : state.keys()) {
+          ++counts[key];
+          maxChar = Math.max(maxChar, key);
+          queue.add(state.get(key));
+        }
+      }
+      Integer[] chars = new Integer[maxChar + 1];
+      for (int i = 0; i < chars.length; ++i) chars[i] = i;
+      Arrays.sort(chars, (a, b) -> Integer.compare(counts[b], counts[a]));
+
+      char[] charCodes = new char[maxChar + 1];
+      for (int i = 0; i < chars.length && counts[chars[i]] > 0; ++i) {
+        charCodes[chars[i]] = (char) (i + 1);
+      }
+      return charCodes;
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package com.contextsmith.nlp.ahocorasick;
+
+/**
+ * Receives the matches of AhoCorasick.search(CharSequence, ...), one call per
+ * (end offset, output) pair, in the same order as the SearchResult iterator.
+ */
+public interface MatchVisitor {
+  /**
+   * Called for every output of a keyword ending right before 'endOffset'.
+   * Returns false to stop the search.
+   */
+  public boolean visit(int endOffset, int output);
+}
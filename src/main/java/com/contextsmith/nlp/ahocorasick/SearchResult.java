@@ -8,11 +8,14 @@ package com.contextsmith.nlp.ahocorasick;
    search, though this is not exposed for public use.)</p>
  */
 public class SearchResult {
-  private final State lastMatchedState;
+  private final DoubleArrayAutomaton automaton;
+  private final int lastMatchedState;
   private final char[] chars;
   private final int lastIndex;
 
-  SearchResult(State lastMatchedState, char[] chars, int lastIndex) {
+  SearchResult(DoubleArrayAutomaton automaton, int lastMatchedState,
+               char[] chars, int lastIndex) {
+    this.automaton = automaton;
     this.lastMatchedState = lastMatchedState;
     this.chars = chars;
     this.lastIndex = lastIndex;
@@ -30,14 +33,18 @@ public class SearchResult {
     return this.lastIndex;
   }
 
-  public State getLastMatchedState() {
-    return this.lastMatchedState;
-  }
-
   /**
        Returns a list of the outputs of this match.
    */
   public int[] getOutputs() {
-    return this.lastMatchedState.getOutputs();
+    return this.automaton.getOutputs(this.lastMatchedState);
+  }
+
+  DoubleArrayAutomaton getAutomaton() {
+    return this.automaton;
+  }
+
+  int getLastMatchedState() {
+    return this.lastMatchedState;
   }
 }
@@ -16,25 +16,49 @@ public class Searcher implements Iterator<SearchResult> {
            ('a' <= c && c <= 'z');
   }
 
+  /**
+   * Runs a whole search over text[beginOffset..endOffset), reporting every
+   * (end offset, output) pair to the visitor.  Package protected.
+   */
+  static void search(DoubleArrayAutomaton automaton, CharSequence text,
+                     int beginOffset, int endOffset, boolean ignoreCase,
+                     MatchVisitor visitor) {
+    int state = DoubleArrayAutomaton.ROOT;
+    for (int currIndex = beginOffset; currIndex < endOffset; ++currIndex) {
+      char c = text.charAt(currIndex);
+      state = automaton.next(state, ignoreCase ? Character.toLowerCase(c) : c);
+
+      // Continue lookup if no substrings ends at current index.
+      int numOutputs = automaton.getOutputCount(state);
+      if (numOutputs == 0) continue;
+
+      // Same end boundary check as continueSearch().
+      if (currIndex + 1 < endOffset) {
+        if (isAlphaNumeric(c) && isAlphaNumeric(text.charAt(currIndex + 1))) {
+          continue;
+        }
+      }
+      for (int i = 0; i < numOutputs; ++i) {
+        if (!visitor.visit(currIndex + 1, automaton.getOutput(state, i))) return;
+      }
+    }
+  }
+
   /**
    * Continues the search, given the initial state described by the lastResult.
    * Package protected.
    */
   protected static SearchResult continueSearch(SearchResult lastResult) {
+    DoubleArrayAutomaton automaton = lastResult.getAutomaton();
     char[] chars = lastResult.getChars();
-    State state = lastResult.getLastMatchedState();
+    int state = lastResult.getLastMatchedState();
 
     for (int currIndex = lastResult.getLastIndex(); currIndex < chars.length;
          ++currIndex) {
-      char c = chars[currIndex];
-      State s;
-      while ((s = state.get(c)) == null) {
-        state = state.getFail();
-      }
-      state = s;
+      state = automaton.next(state, chars[currIndex]);
 
       // Continue lookup if no substrings ends at current index.
-      if (state.getOutputs().length == 0) continue;
+      if (automaton.getOutputCount(state) == 0) continue;
 
       // If current and next characters are both alphanumeric, then continue,
       // to prevent breaking a Latin word from the middle. This only check
@@ -45,7 +69,7 @@ public class Searcher implements Iterator<SearchResult> {
           continue;
         }
       }
-      return new SearchResult(state, chars, currIndex + 1);
+      return new SearchResult(automaton, state, chars, currIndex + 1);
     }
     return null;
   }
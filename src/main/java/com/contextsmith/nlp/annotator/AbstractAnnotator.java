@@ -5,7 +5,6 @@ import static com.google.common.base.Preconditions.checkArgument;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
@@ -14,7 +13,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.contextsmith.nlp.ahocorasick.AhoCorasick;
-import com.contextsmith.nlp.ahocorasick.SearchResult;
+import com.contextsmith.nlp.ahocorasick.DoubleArrayAutomaton;
 import com.contextsmith.utils.AnnotationUtil;
 import com.contextsmith.utils.FileUtil;
 import com.google.common.base.Stopwatch;
@@ -42,6 +41,10 @@ public abstract class AbstractAnnotator implements Annotatable {
 
   private List<Mention> mentionList;  // Required for AhoCorasick.
 
+  // Set if this annotator is a view over a shared automaton.
+  private SharedDictionary sharedDictionary;
+  private int dictionaryIndex;
+
   private String annotatorType;
   private boolean isIgnoreCase;
   private boolean isTitleCase;
@@ -96,6 +99,8 @@ public abstract class AbstractAnnotator implements Annotatable {
 
     this.ahoCorasick = new AhoCorasick();
     this.mentionList = new ArrayList<>();
+    this.sharedDictionary = null;
+    this.dictionaryIndex = 0;
   }
 
   @Override
@@ -111,10 +116,17 @@ public abstract class AbstractAnnotator implements Annotatable {
   }
 
   public void compile() {
+    if (this.ahoCorasick.isPrepared()) {
+      log.debug("Aho-corasick tree is already compiled.");
+      return;
+    }
     log.info("Compiling aho-corasick tree... ");
     Stopwatch stopwatch = Stopwatch.createStarted();
     this.ahoCorasick.prepare();
-    log.info("Finished compilation in {}", stopwatch);
+    DoubleArrayAutomaton automaton = this.ahoCorasick.getAutomaton();
+    log.info("Finished compilation in {} ({} states, {})", stopwatch,
+        automaton.getNumStates(),
+        FileUtil.humanReadableByteCount(automaton.sizeInBytes(), false));
   }
 
   public boolean contains(String s) {
@@ -123,18 +135,15 @@ public abstract class AbstractAnnotator implements Annotatable {
 
   public Mention get(String s) {
     if (s == null) return null;
-    Iterator<SearchResult> iter = this.ahoCorasick.search(s.toCharArray());
-
-    while (iter.hasNext()) {
-      SearchResult result = iter.next();
-      for (int i : result.getOutputs()) {
-        Mention mention = this.mentionList.get(i);
-        if (mention.getCharLength() == s.length()) {
-          return mention;
-        }
-      }
-    }
-    return null;
+    Mention[] found = new Mention[1];
+    this.ahoCorasick.search(s, isFoldCase(), (endOffset, output) -> {
+      Mention mention = getMention(output);
+      if (mention == null || mention.getCharLength() != s.length()) return true;
+      if (!matchesCase(s, 0, endOffset)) return true;
+      found[0] = mention;
+      return false;  // Stop searching.
+    });
+    return found[0];
   }
 
   @Override
@@ -161,8 +170,13 @@ public abstract class AbstractAnnotator implements Annotatable {
     return this.priority;
   }
 
+  /**
+   * Note: for a view over a shared automaton, this tests the prefix
+   * (lower-cased) against all dictionaries of the automaton.
+   */
   public boolean hasPrefix(String prefix) {
     if (prefix == null) return false;
+    if (isFoldCase()) prefix = prefix.toLowerCase();
     return this.ahoCorasick.hasPrefix(prefix.toCharArray());
   }
 
@@ -208,6 +222,17 @@ public abstract class AbstractAnnotator implements Annotatable {
     this.ahoCorasick = ahoCorasick;
   }
 
+  /**
+   * Turns this annotator into a view over 'sharedDictionary', which holds
+   * this annotator's mentions as dictionary number 'dictionaryIndex'.
+   */
+  void setSharedDictionary(SharedDictionary sharedDictionary,
+                           int dictionaryIndex) {
+    this.sharedDictionary = sharedDictionary;
+    this.dictionaryIndex = dictionaryIndex;
+    this.ahoCorasick = sharedDictionary.getAhoCorasick();
+  }
+
   public void setIgnoreCase(boolean tryIgnoreCase) {
     this.isIgnoreCase = tryIgnoreCase;
   }
@@ -255,37 +280,73 @@ public abstract class AbstractAnnotator implements Annotatable {
 //  protected List<Annotation> annotateCore(String text, int parentBeginOffset) {
   protected List<Annotation> annotateCore(Annotation parent) {
     String text = parent.getText();
-    Iterator<SearchResult> iter = this.ahoCorasick.search(
-        this.isIgnoreCase ? text.toLowerCase().toCharArray() : text.toCharArray());
     List<Annotation> annotations = new ArrayList<>();
 
-    while (iter.hasNext()) {
-      SearchResult result = iter.next();
-      int endOffset = result.getLastIndex();
-      if (this.isSuffixMatch && endOffset != text.length()) continue;
-
-      for (int index : result.getOutputs()) {
-        Mention mention = this.mentionList.get(index);
-        int beginOffset = result.getLastIndex() - mention.getCharLength();
-        if (this.isPrefixMatch && beginOffset != 0) continue;
-
-        // Check for character boundaries.
-        if (!hasValidBoundingChars(text, beginOffset, endOffset)) {
-          continue;
-        }
-
-        // Convert mention to annotation, and store it somewhere.
-        Annotation annotation = parent.subAnnotation(beginOffset, endOffset);
-        annotation.setValues(mention.getValues());
-        annotation.setPriority(mention.getPriority());
-        annotation.setType(this.getAnnotatorType());
-        annotations.add(annotation);
-      }
-    }
+    this.ahoCorasick.search(text, isFoldCase(), (endOffset, output) -> {
+      Mention mention = getMention(output);
+      if (mention == null || !isValidMatch(text, endOffset, mention)) return true;
+
+      // Convert mention to annotation, and store it somewhere.
+      int beginOffset = endOffset - mention.getCharLength();
+      Annotation annotation = parent.subAnnotation(beginOffset, endOffset);
+      annotation.setValues(mention.getValues());
+      annotation.setPriority(mention.getPriority());
+      annotation.setType(this.getAnnotatorType());
+      annotations.add(annotation);
+      return true;
+    });
     return annotations;
   }
 
   protected void beforeAnnotateCore(String text) {
     log.trace(String.format("Annotating %s: %s", this.getAnnotatorType(), text));
   }
+
+  /**
+   * Returns the mention of an automaton output, or null if the output
+   * belongs to another dictionary of the shared automaton.
+   */
+  Mention getMention(int output) {
+    if (SharedDictionary.getDictionaryIndex(output) != this.dictionaryIndex) {
+      return null;
+    }
+    return this.mentionList.get(SharedDictionary.getMentionIndex(output));
+  }
+
+  /**
+   * Returns true if 'mention', found right before 'endOffset' of 'text',
+   * should be annotated.
+   */
+  boolean isValidMatch(String text, int endOffset, Mention mention) {
+    if (this.isSuffixMatch && endOffset != text.length()) return false;
+
+    int beginOffset = endOffset - mention.getCharLength();
+    if (this.isPrefixMatch && beginOffset != 0) return false;
+
+    // Check for character boundaries.
+    if (!hasValidBoundingChars(text, beginOffset, endOffset)) return false;
+
+    return matchesCase(text, beginOffset, endOffset);
+  }
+
+  // A shared automaton is always searched case-insensitively.
+  private boolean isFoldCase() {
+    return this.isIgnoreCase || this.sharedDictionary != null;
+  }
+
+  // Case-sensitive annotators that are views over a shared (lower-cased)
+  // automaton must check the case of the matched text themselves.  Their
+  // mentions are all title case (see SharedDictionary).
+  private boolean matchesCase(String text, int beginOffset, int endOffset) {
+    if (this.sharedDictionary == null || this.isIgnoreCase) return true;
+    boolean isWordStart = true;
+    for (int i = beginOffset; i < endOffset; ++i) {
+      char c = text.charAt(i);
+      char lower = Character.toLowerCase(c);
+      char expected = isWordStart ? Character.toTitleCase(lower) : lower;
+      if (c != expected) return false;
+      isWordStart = Character.isWhitespace(c);
+    }
+    return true;
+  }
 }
@@ -0,0 +1,179 @@
+package com.contextsmith.nlp.annotator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.contextsmith.nlp.ahocorasick.AhoCorasick;
+import com.contextsmith.nlp.ahocorasick.DoubleArrayAutomaton;
+import com.contextsmith.utils.FileUtil;
+import com.contextsmith.utils.StringUtil;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Reads and writes a binary snapshot of a SharedDictionary, i.e. its
+ * prepared Aho-Corasick automaton and the mention lists of its members, so
+ * that the dictionaries do not have to be re-parsed and re-compiled at
+ * startup.
+ *
+ * The snapshot records a fingerprint of the source dictionaries, the
+ * stopword list and the member settings, and is ignored when any of them has
+ * changed since it was written.
+ *
+ * Snapshots are generated at build time (process-classes phase) by main().
+ */
+public class AnnotatorSnapshot {
+  private static final Logger log = LoggerFactory.getLogger(AnnotatorSnapshot.class);
+
+  // Bump this whenever the layout or MentionLineProcessor's logic changes.
+  private static final int FORMAT_VERSION = 2;
+  private static final int MAGIC = 0x43534143;  // "CSAC"
+
+  /**
+   * Loads the snapshot of 'dictionary', fills the mention lists of its
+   * members and returns the prepared automaton.  Returns null, and leaves
+   * the members untouched, if the snapshot is missing or stale.
+   */
+  public static AhoCorasick load(SharedDictionary dictionary) {
+    String snapshotPath = SharedDictionary.SNAPSHOT_PATH;
+    ByteBuffer buffer = FileUtil.findResourceAsByteBuffer(snapshotPath);
+    if (buffer == null) {
+      log.debug("No snapshot found at: {}", snapshotPath);
+      return null;
+    }
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    AbstractAnnotator[] members = dictionary.getMembers();
+    List<List<Mention>> mentionLists = new ArrayList<>();
+    AhoCorasick ahoCorasick = null;
+    try {
+      if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+        log.warn("Ignoring snapshot of unknown format: {}", snapshotPath);
+        return null;
+      }
+      if (buffer.getLong() != computeFingerprint(dictionary)) {
+        log.warn("Ignoring stale snapshot: {}", snapshotPath);
+        return null;
+      }
+      for (int i = 0; i < members.length; ++i) {
+        mentionLists.add(readMentions(buffer));
+      }
+      ahoCorasick = new AhoCorasick(DoubleArrayAutomaton.readFrom(buffer));
+    } catch (BufferUnderflowException | IllegalArgumentException |
+             NegativeArraySizeException e) {
+      log.warn("Ignoring corrupted snapshot: {}", snapshotPath);
+      return null;
+    }
+    for (int i = 0; i < members.length; ++i) {
+      members[i].getMentionList().clear();
+      members[i].getMentionList().addAll(mentionLists.get(i));
+    }
+    log.info("Loaded snapshot {} in {}", snapshotPath, stopwatch);
+    return ahoCorasick;
+  }
+
+  /**
+   * Builds the shared line feature dictionary from its text dictionaries,
+   * and writes its snapshot into the given directory (default: current
+   * directory).
+   */
+  public static void main(String[] args) throws IOException {
+    File outputDir = new File(args.length > 0 ? args[0] : ".");
+    SharedDictionary dictionary = SharedDictionary.createLineFeatureDictionary();
+    dictionary.loadTextData();
+    write(dictionary, outputDir);
+  }
+
+  /**
+   * Writes the snapshot of a loaded 'dictionary' into 'outputDir'.
+   */
+  public static File write(SharedDictionary dictionary, File outputDir)
+      throws IOException {
+    File file = new File(outputDir, SharedDictionary.SNAPSHOT_PATH);
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(computeFingerprint(dictionary));
+      for (AbstractAnnotator member : dictionary.getMembers()) {
+        writeMentions(out, member.getMentionList());
+      }
+      dictionary.getAhoCorasick().getAutomaton().writeTo(out);
+    }
+    log.info("Wrote snapshot: {} ({})", file,
+             FileUtil.getReadableFileSize(file.getPath()));
+    return file;
+  }
+
+  private static long computeFingerprint(SharedDictionary dictionary) {
+    CRC32 crc = new CRC32();
+    for (String dataPath : dictionary.getDataPaths()) updateCrc(crc, dataPath);
+    updateCrc(crc, StringUtil.EN_STOPWORD_PATH);
+    long settings = 0;
+    for (AbstractAnnotator member : dictionary.getMembers()) {
+      settings = 31 * settings + member.getMinChars();
+      settings = 31 * settings + (member.isIgnoreCase() ? 1 : 0);
+      settings = 31 * settings + (member.isTitleCase() ? 1 : 0);
+      settings = 31 * settings + (member.isPrefixMatch() ? 1 : 0);
+    }
+    return (settings << 32) ^ crc.getValue();
+  }
+
+  private static List<Mention> readMentions(ByteBuffer buffer) {
+    int size = buffer.getInt();
+    List<Mention> mentions = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i) {
+      Mention mention = new Mention();
+      mention.setCharLength(buffer.getInt());
+      mention.setPriority(buffer.get() & 0xFF);
+      String[] values = new String[buffer.getInt()];
+      for (int j = 0; j < values.length; ++j) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        values[j] = new String(bytes, StandardCharsets.UTF_8);
+      }
+      mention.setValues(values);
+      mentions.add(mention);
+    }
+    return mentions;
+  }
+
+  private static void updateCrc(CRC32 crc, String path) {
+    InputStream stream = FileUtil.findResourceAsStream(path);
+    if (stream == null) return;
+    try (InputStream in = stream) {
+      crc.update(ByteStreams.toByteArray(in));
+    } catch (IOException e) {
+      log.error("Error reading {}: {}", path, e.getMessage());
+    }
+  }
+
+  private static void writeMentions(DataOutputStream out, List<Mention> mentions)
+      throws IOException {
+    out.writeInt(mentions.size());
+    for (Mention mention : mentions) {
+      out.writeInt(mention.getCharLength());
+      out.writeByte(mention.getPriority());
+      String[] values = mention.getValues();
+      out.writeInt(values == null ? 0 : values.length);
+      if (values == null) continue;
+      for (String value : values) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    }
+  }
+}
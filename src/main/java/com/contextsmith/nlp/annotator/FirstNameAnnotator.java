@@ -9,9 +9,9 @@ public class FirstNameAnnotator extends AbstractAnnotator {
 
   public static synchronized FirstNameAnnotator getInstance() {
     if (instance == null) {
-      instance = new FirstNameAnnotator();
-      instance.loadData(MENTION_PATH);
-      instance.compile();
+      // A view over the automaton shared by all line feature dictionaries.
+      instance = (FirstNameAnnotator) SharedDictionary.getInstance().getMember(
+          SharedDictionary.FIRST_NAME);
     }
     return instance;
   }
@@ -9,9 +9,9 @@ public class LastNameAnnotator extends AbstractAnnotator {
 
   public static synchronized LastNameAnnotator getInstance() {
     if (instance == null) {
-      instance = new LastNameAnnotator();
-      instance.loadData(MENTION_PATH);
-      instance.compile();
+      // A view over the automaton shared by all line feature dictionaries.
+      instance = (LastNameAnnotator) SharedDictionary.getInstance().getMember(
+          SharedDictionary.LAST_NAME);
     }
     return instance;
   }
@@ -1,5 +1,7 @@
 package com.contextsmith.nlp.annotator;
 
+import static com.google.common.base.Preconditions.checkState;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -26,13 +28,32 @@ public class MentionLineProcessor implements LineProcessor<Object> {
   }
 
   private AhoCorasick ahoCorasick;
+  private int dictionaryIndex;
+  private boolean isLowerCaseKeys;
   private List<Mention> mentionList;
   private int minChars;
   private boolean isIgnoreCase;
   private boolean isTitleCase;
 
   public MentionLineProcessor(Annotatable annotator) {
-    this.ahoCorasick = annotator.getAhoCorasick();
+    this(annotator, annotator.getAhoCorasick(), 0, false);
+  }
+
+  /**
+   * Adds the annotator's mentions into 'ahoCorasick', a SharedDictionary
+   * automaton, as dictionary number 'dictionaryIndex'.  Keys are lower-cased
+   * since shared automata are searched case-insensitively.
+   */
+  public MentionLineProcessor(Annotatable annotator, AhoCorasick ahoCorasick,
+                              int dictionaryIndex) {
+    this(annotator, ahoCorasick, dictionaryIndex, true);
+  }
+
+  private MentionLineProcessor(Annotatable annotator, AhoCorasick ahoCorasick,
+                               int dictionaryIndex, boolean isLowerCaseKeys) {
+    this.ahoCorasick = ahoCorasick;
+    this.dictionaryIndex = dictionaryIndex;
+    this.isLowerCaseKeys = isLowerCaseKeys;
     this.mentionList = annotator.getMentionList();
     this.minChars = annotator.getMinChars();
     this.isTitleCase = annotator.isTitleCase();
@@ -87,6 +108,8 @@ public class MentionLineProcessor implements LineProcessor<Object> {
     removeStopwords(variants);
     if (variants.isEmpty()) return false;
 
+    checkState(this.mentionList.size() < SharedDictionary.MAX_MENTIONS,
+               "Too many mentions in dictionary: %s", this.mentionList.size());
     Mention mention = new Mention();
     mention.setCharLength(mentionStr.length());
     mention.setValues(values.toArray(new String[values.size()]));
@@ -94,8 +117,11 @@ public class MentionLineProcessor implements LineProcessor<Object> {
 
     for (String variant : variants) {
       // The 'key' for AhoCorasick is the 'variant', and
-      // the value is the index of this variant in the 'mentionList'.
-      this.ahoCorasick.add(variant.toCharArray(), this.mentionList.size() - 1);
+      // the value is the index of this variant in the 'mentionList'
+      // (tagged with the dictionary index, see SharedDictionary).
+      String key = this.isLowerCaseKeys ? variant.toLowerCase() : variant;
+      this.ahoCorasick.add(key.toCharArray(), SharedDictionary.makeOutput(
+          this.dictionaryIndex, this.mentionList.size() - 1));
 
       if (this.mentionList.size() % 1e4 == 0) {
         log.info("{}. {}, Storing: {}", this.mentionList.size(),
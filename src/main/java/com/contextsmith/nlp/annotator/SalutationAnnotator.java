@@ -10,9 +10,9 @@ public class SalutationAnnotator extends AbstractAnnotator {
 
   public static synchronized SalutationAnnotator getInstance() {
     if (instance == null) {
-      instance = new SalutationAnnotator();
-      instance.loadData(MENTION_PATH);
-      instance.compile();
+      // A view over the automaton shared by all line feature dictionaries.
+      instance = (SalutationAnnotator) SharedDictionary.getInstance().getMember(
+          SharedDictionary.SALUTATION);
     }
     return instance;
   }
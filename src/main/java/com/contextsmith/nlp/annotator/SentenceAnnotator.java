@@ -33,7 +33,8 @@ public class SentenceAnnotator extends AbstractAnnotator {
     interactiveRun(getInstance());
   }
 
-  private SentenceDetectorME sentenceDetector;
+  // SentenceDetectorME is not thread-safe, but its model is.
+  private ThreadLocal<SentenceDetectorME> sentenceDetector;
 
   public SentenceAnnotator() {
     super(SentenceAnnotator.class.getSimpleName());
@@ -51,7 +52,8 @@ public class SentenceAnnotator extends AbstractAnnotator {
       }
     }
     checkNotNull(model);
-    this.sentenceDetector = new SentenceDetectorME(model);
+    final SentenceModel sharedModel = model;
+    this.sentenceDetector = ThreadLocal.withInitial(() -> new SentenceDetectorME(sharedModel));
   }
 
   @Override
@@ -59,10 +61,7 @@ public class SentenceAnnotator extends AbstractAnnotator {
     List<Annotation> annotations = new ArrayList<>();
     List<Annotation> lines = AnnotationUtil.split(DOUBLE_NEW_LINES, parent);
     for (Annotation line : lines) {
-      Span[] spans = null;
-      synchronized(this.sentenceDetector) {
-        spans = this.sentenceDetector.sentPosDetect(line.getText());
-      }
+      Span[] spans = this.sentenceDetector.get().sentPosDetect(line.getText());
       if (spans == null) continue;
 
       for (Span span : spans) {
@@ -0,0 +1,186 @@
+package com.contextsmith.nlp.annotator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.contextsmith.nlp.ahocorasick.AhoCorasick;
+import com.contextsmith.nlp.ahocorasick.DoubleArrayAutomaton;
+import com.contextsmith.utils.FileUtil;
+import com.google.common.base.Stopwatch;
+
+/**
+ * A single Aho-Corasick automaton compiled from the dictionaries of several
+ * annotators, so that one pass over a text finds the mentions of all of them.
+ *
+ * Every output of the automaton is tagged with the index of its dictionary
+ * (see makeOutput()).  Keys are lower-cased and the automaton is searched
+ * case-insensitively; a member annotator must therefore either ignore case,
+ * or use title case, which it verifies on the matched text.
+ *
+ * The member annotators stay usable on their own as views over this
+ * automaton, e.g. FirstNameAnnotator.getInstance() returns the member
+ * FIRST_NAME of getInstance().
+ */
+public class SharedDictionary {
+  private static final Logger log = LoggerFactory.getLogger(SharedDictionary.class);
+
+  public static final String SNAPSHOT_PATH = "shared-dicts.bin";
+
+  // An output is (dictionary index << DICTIONARY_SHIFT | mention index).
+  public static final int DICTIONARY_SHIFT = 24;
+  public static final int MAX_MENTIONS = 1 << DICTIONARY_SHIFT;
+  public static final int MAX_DICTIONARIES = 1 << (Integer.SIZE - 1 - DICTIONARY_SHIFT);
+
+  // Dictionary indices of the line feature dictionaries.
+  public static final int SALUTATION = 0;
+  public static final int VALEDICTION = 1;
+  public static final int FIRST_NAME = 2;
+  public static final int LAST_NAME = 3;
+
+  private static SharedDictionary instance = null;
+
+  /**
+   * Creates an unloaded dictionary of the line feature annotators.
+   */
+  public static SharedDictionary createLineFeatureDictionary() {
+    return new SharedDictionary(
+        new AbstractAnnotator[] {
+          new SalutationAnnotator(), new ValedictionAnnotator(),
+          new FirstNameAnnotator(), new LastNameAnnotator() },
+        new String[] {
+          SalutationAnnotator.MENTION_PATH, ValedictionAnnotator.MENTION_PATH,
+          FirstNameAnnotator.MENTION_PATH, LastNameAnnotator.MENTION_PATH });
+  }
+
+  public static synchronized SharedDictionary getInstance() {
+    if (instance == null) {
+      instance = createLineFeatureDictionary();
+      instance.loadData();
+    }
+    return instance;
+  }
+
+  public static int getDictionaryIndex(int output) {
+    return output >>> DICTIONARY_SHIFT;
+  }
+
+  public static int getMentionIndex(int output) {
+    return output & (MAX_MENTIONS - 1);
+  }
+
+  /**
+   * Returns true if the bit of 'dictionaryIndex' is set in 'matches', the
+   * return value of match().
+   */
+  public static boolean hasMatch(int matches, int dictionaryIndex) {
+    return (matches & (1 << dictionaryIndex)) != 0;
+  }
+
+  public static int makeOutput(int dictionaryIndex, int mentionIndex) {
+    return (dictionaryIndex << DICTIONARY_SHIFT) | mentionIndex;
+  }
+
+  private final AbstractAnnotator[] members;
+  private final String[] dataPaths;
+  private AhoCorasick ahoCorasick;
+
+  public SharedDictionary(AbstractAnnotator[] members, String[] dataPaths) {
+    checkArgument(members.length == dataPaths.length,
+                  "Expected one data path per member.");
+    checkArgument(members.length <= MAX_DICTIONARIES, "Too many members.");
+    for (AbstractAnnotator member : members) {
+      checkArgument(member.isIgnoreCase() || member.isTitleCase(),
+                    "%s must ignore case or use title case.",
+                    member.getAnnotatorType());
+    }
+    this.members = members;
+    this.dataPaths = dataPaths;
+    this.ahoCorasick = null;
+  }
+
+  public AhoCorasick getAhoCorasick() {
+    return this.ahoCorasick;
+  }
+
+  public String[] getDataPaths() {
+    return this.dataPaths;
+  }
+
+  public AbstractAnnotator getMember(int dictionaryIndex) {
+    return this.members[dictionaryIndex];
+  }
+
+  public AbstractAnnotator[] getMembers() {
+    return this.members;
+  }
+
+  /**
+   * Loads the precompiled snapshot if there is an up-to-date one (see
+   * AnnotatorSnapshot), otherwise loads and compiles the text dictionaries.
+   */
+  public void loadData() {
+    AhoCorasick snapshot = AnnotatorSnapshot.load(this);
+    if (snapshot == null) {
+      loadTextData();
+      return;
+    }
+    this.ahoCorasick = snapshot;
+    attachMembers();
+  }
+
+  public void loadTextData() {
+    AhoCorasick ahoCorasick = new AhoCorasick();
+    for (int i = 0; i < this.members.length; ++i) {
+      this.members[i].getMentionList().clear();
+      MentionLineProcessor lineProcessor =
+          new MentionLineProcessor(this.members[i], ahoCorasick, i);
+      log.info("Loading mentions from: {}", this.dataPaths[i]);
+      try {
+        FileUtil.findResourceAsCharSource(this.dataPaths[i]).readLines(lineProcessor);
+      } catch (IOException e) {
+        log.error("Error loading data: {}", e.getMessage());
+      }
+    }
+
+    log.info("Compiling shared aho-corasick tree... ");
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    ahoCorasick.prepare();
+    DoubleArrayAutomaton automaton = ahoCorasick.getAutomaton();
+    log.info("Finished compilation in {} ({} states, {})", stopwatch,
+        automaton.getNumStates(),
+        FileUtil.humanReadableByteCount(automaton.sizeInBytes(), false));
+    this.ahoCorasick = ahoCorasick;
+    attachMembers();
+  }
+
+  /**
+   * Searches 'text' once, and returns a bit set (see hasMatch()) of the
+   * dictionaries whose annotator would annotate at least one mention in it.
+   */
+  public int match(String text) {
+    int allMatches = (1 << this.members.length) - 1;
+    int[] matches = new int[1];
+    this.ahoCorasick.search(text, true, (endOffset, output) -> {
+      int dictionaryIndex = getDictionaryIndex(output);
+      if (hasMatch(matches[0], dictionaryIndex)) return true;
+
+      AbstractAnnotator member = this.members[dictionaryIndex];
+      Mention mention = member.getMentionList().get(getMentionIndex(output));
+      if (member.isValidMatch(text, endOffset, mention)) {
+        matches[0] |= 1 << dictionaryIndex;
+      }
+      return matches[0] != allMatches;  // Stop once everything matched.
+    });
+    return matches[0];
+  }
+
+  private void attachMembers() {
+    for (int i = 0; i < this.members.length; ++i) {
+      this.members[i].setSharedDictionary(this, i);
+    }
+  }
+}
@@ -10,9 +10,9 @@ public class ValedictionAnnotator extends AbstractAnnotator {
 
   public static synchronized ValedictionAnnotator getInstance() {
     if (instance == null) {
-      instance = new ValedictionAnnotator();
-      instance.loadData(MENTION_PATH);
-      instance.compile();
+      // A view over the automaton shared by all line feature dictionaries.
+      instance = (ValedictionAnnotator) SharedDictionary.getInstance().getMember(
+          SharedDictionary.VALEDICTION);
     }
     return instance;
   }
@@ -0,0 +1,296 @@
+package com.contextsmith.nlp.sentiment;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.contextsmith.nlp.annotator.Annotation;
+import com.contextsmith.utils.FileUtil;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+
+/**
+ * The sentiment lexicon as sorted arrays keyed by a 64-bit hash of the
+ * lexicon key: keys, PMI scores and positive/negative counts are kept in one
+ * buffer, which is memory-mapped from a prebuilt snapshot when possible
+ * (see main()), so loading takes no parsing and no per-entry objects.
+ *
+ * Keys are looked up by hashing the token texts directly, without joining
+ * them into a string.  Two keys with the same hash are rejected when the
+ * lexicon is built; a text which is not in the lexicon has a chance of about
+ * size() / 2^64 to collide with one that is.
+ */
+public class CompactLexicon {
+  private static final Logger log = LoggerFactory.getLogger(CompactLexicon.class);
+
+  public static final String SNAPSHOT_PATH = "sentiment-lexicon.bin";
+  public static final String[] LEXICON_PATHS = {
+    LexiconLoader.DEFAULT_UNIGRAM_LEXICON_PATH,
+    LexiconLoader.DEFAULT_BIGRAM_LEXICON_PATH
+  };
+
+  private static final int MAGIC = 0x43534c58;  // "CSLX"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_BYTES = 24;  // Keeps the arrays aligned.
+  private static final int ENTRY_BYTES = 24;  // Key, PMI score and 2 counts.
+
+  // 64-bit FNV-1a.
+  private static final long HASH_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long HASH_PRIME = 0x100000001b3L;
+
+  /**
+   * Builds a lexicon from the given entries.
+   */
+  public static CompactLexicon build(Map<String, LexiconEntry> entryMap) {
+    int size = entryMap.size();
+    long[] sortedKeys = new long[size];
+    long[] keys = new long[size];
+    LexiconEntry[] entries = new LexiconEntry[size];
+    int i = 0;
+    for (Map.Entry<String, LexiconEntry> entry : entryMap.entrySet()) {
+      keys[i] = finish(update(HASH_OFFSET_BASIS, entry.getKey()));
+      sortedKeys[i] = keys[i];
+      entries[i++] = entry.getValue();
+    }
+    Arrays.sort(sortedKeys);
+    for (i = 1; i < size; ++i) {
+      checkState(sortedKeys[i - 1] != sortedKeys[i], "Lexicon key hash collision.");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + ENTRY_BYTES * size);
+    buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(computeFingerprint())
+          .putInt(size).putInt(0);
+    CompactLexicon lexicon = new CompactLexicon(buffer);
+    lexicon.keys.put(sortedKeys);
+    for (i = 0; i < size; ++i) {
+      int index = Arrays.binarySearch(sortedKeys, keys[i]);
+      lexicon.pmiScores.put(index, entries[i].pmiScore);
+      lexicon.counts.put(2 * index, entries[i].numPositive);
+      lexicon.counts.put(2 * index + 1, entries[i].numNegative);
+    }
+    return lexicon;
+  }
+
+  /**
+   * Loads the snapshot if there is an up-to-date one, otherwise builds the
+   * lexicon from the text lexicons.
+   */
+  public static CompactLexicon load() throws IOException {
+    CompactLexicon lexicon = loadSnapshot();
+    return (lexicon != null) ? lexicon : build(loadTextLexicons());
+  }
+
+  /**
+   * Writes the snapshot of the text lexicons into the given directory
+   * (default: current directory).
+   */
+  public static void main(String[] args) throws IOException {
+    File outputDir = new File(args.length > 0 ? args[0] : ".");
+    File file = new File(outputDir, SNAPSHOT_PATH);
+    build(loadTextLexicons()).write(file);
+    log.info("Wrote snapshot: {} ({})", file,
+             FileUtil.getReadableFileSize(file.getPath()));
+  }
+
+  private static long computeFingerprint() {
+    CRC32 crc = new CRC32();
+    for (String path : LEXICON_PATHS) {
+      InputStream stream = FileUtil.findResourceAsStream(path);
+      if (stream == null) {
+        crc.update(-1);  // Missing lexicons are part of the fingerprint too.
+        continue;
+      }
+      try (InputStream in = stream) {
+        crc.update(ByteStreams.toByteArray(in));
+      } catch (IOException e) {
+        log.error("Error reading {}: {}", path, e.getMessage());
+      }
+    }
+    return crc.getValue();
+  }
+
+  private static long finish(long hash) {
+    // Murmur3 fmix64, spreads the FNV hash over all bits.
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static CompactLexicon loadSnapshot() {
+    ByteBuffer buffer = FileUtil.findResourceAsByteBuffer(SNAPSHOT_PATH);
+    if (buffer == null) {
+      log.debug("No snapshot found at: {}", SNAPSHOT_PATH);
+      return null;
+    }
+    try {
+      CompactLexicon lexicon = wrap(buffer);
+      if (buffer.getLong(8) != computeFingerprint()) {
+        log.warn("Ignoring stale snapshot: {}", SNAPSHOT_PATH);
+        return null;
+      }
+      log.debug("Loaded snapshot {} ({} entries)", SNAPSHOT_PATH, lexicon.size());
+      return lexicon;
+    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+      log.warn("Ignoring snapshot {}: {}", SNAPSHOT_PATH, e.getMessage());
+      return null;
+    }
+  }
+
+  // Loads the text lexicons that exist.
+  private static Map<String, LexiconEntry> loadTextLexicons() throws IOException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    LexiconLoader loader = new LexiconLoader();
+    for (String path : LEXICON_PATHS) {
+      InputStream stream = FileUtil.findResourceAsStream(path);
+      if (stream == null) {
+        log.warn("Lexicon not found: {}", path);
+        continue;
+      }
+      stream.close();
+      loader.load(path);
+    }
+    log.info("Loaded text lexicons in {}", stopwatch);
+    return loader.getEntryMap();
+  }
+
+  // Wraps a buffer written by write(), without checking its fingerprint.
+  static CompactLexicon wrap(ByteBuffer buffer) {
+    checkArgument(buffer.getInt(0) == MAGIC && buffer.getInt(4) == FORMAT_VERSION,
+                  "Unknown format.");
+    long expectedSize = HEADER_BYTES + (long) ENTRY_BYTES * buffer.getInt(16);
+    checkArgument(buffer.capacity() == expectedSize, "Unexpected size.");
+    return new CompactLexicon(buffer);
+  }
+
+  private static long update(long hash, char c) {
+    return (hash ^ c) * HASH_PRIME;
+  }
+
+  private static long update(long hash, CharSequence text) {
+    for (int i = 0; i < text.length(); ++i) hash = update(hash, text.charAt(i));
+    return hash;
+  }
+
+  private final ByteBuffer buffer;
+  private final LongBuffer keys;
+  private final DoubleBuffer pmiScores;
+  // Positive and negative counts of entry 'i' at 2 * i and 2 * i + 1.
+  private final IntBuffer counts;
+  private final int size;
+
+  private CompactLexicon(ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.size = buffer.getInt(16);
+    int keysBegin = HEADER_BYTES;
+    int pmiScoresBegin = keysBegin + 8 * this.size;
+    int countsBegin = pmiScoresBegin + 8 * this.size;
+    this.keys = slice(keysBegin, 8 * this.size).asLongBuffer();
+    this.pmiScores = slice(pmiScoresBegin, 8 * this.size).asDoubleBuffer();
+    this.counts = slice(countsBegin, 8 * this.size).asIntBuffer();
+  }
+
+  /**
+   * Returns the entry of 'key', or null if there is none.
+   */
+  public LexiconEntry get(String key) {
+    return find(finish(update(HASH_OFFSET_BASIS, key)));
+  }
+
+  /**
+   * Returns the entry of the texts of 'tokens', joined by spaces and
+   * lower-cased.  Same as get() of that key, but the key is only built when
+   * String.toLowerCase() may not map char by char: for non-ASCII tokens, and
+   * in the locales which lower-case 'I' differently.
+   */
+  public LexiconEntry getLowerCase(Collection<Annotation> tokens) {
+    String language = Locale.getDefault().getLanguage();
+    if (language.equals("tr") || language.equals("az") || language.equals("lt")) {
+      return getLowerCaseSlowly(tokens);
+    }
+    long hash = HASH_OFFSET_BASIS;
+    boolean isFirst = true;
+    for (Annotation token : tokens) {
+      String text = token.getText();
+      if (!isFirst) hash = update(hash, ' ');
+      isFirst = false;
+      for (int i = 0; i < text.length(); ++i) {
+        char c = text.charAt(i);
+        if (c >= 0x80) return getLowerCaseSlowly(tokens);
+        hash = update(hash, (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c);
+      }
+    }
+    return find(finish(hash));
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Writes this lexicon in the binary form load() maps.
+   */
+  public void write(File file) throws IOException {
+    ByteBuffer duplicate = this.buffer.duplicate();
+    duplicate.clear();
+    try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+      while (duplicate.hasRemaining()) channel.write(duplicate);
+    }
+  }
+
+  private LexiconEntry find(long key) {
+    int low = 0;
+    int high = this.size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midKey = this.keys.get(mid);
+      if (midKey < key) {
+        low = mid + 1;
+      } else if (midKey > key) {
+        high = mid - 1;
+      } else {
+        LexiconEntry entry = new LexiconEntry();
+        entry.pmiScore = this.pmiScores.get(mid);
+        entry.numPositive = this.counts.get(2 * mid);
+        entry.numNegative = this.counts.get(2 * mid + 1);
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private LexiconEntry getLowerCaseSlowly(Collection<Annotation> tokens) {
+    StringBuilder builder = new StringBuilder();
+    for (Annotation token : tokens) {
+      if (builder.length() > 0) builder.append(" ");
+      builder.append(token.getText());
+    }
+    return get(builder.toString().toLowerCase());
+  }
+
+  private ByteBuffer slice(int begin, int length) {
+    ByteBuffer duplicate = this.buffer.duplicate();
+    duplicate.clear();
+    duplicate.position(begin).limit(begin + length);
+    return duplicate.slice();
+  }
+}
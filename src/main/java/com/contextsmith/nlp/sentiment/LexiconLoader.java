@@ -28,6 +28,10 @@ public class LexiconLoader {
     this.lexiconEntryMap = new HashMap<>();
   }
 
+  public Map<String, LexiconEntry> getEntryMap() {
+    return this.lexiconEntryMap;
+  }
+
   public LexiconEntry get(String key) {
     return this.lexiconEntryMap.get(key);
   }
@@ -11,6 +11,7 @@ import java.util.regex.Pattern;
 import com.contextsmith.nlp.annotator.AbstractAnnotator;
 import com.contextsmith.nlp.annotator.Annotation;
 import com.contextsmith.utils.AnnotationUtil;
+import com.contextsmith.utils.RegexUtil;
 
 import edu.emory.mathcs.backport.java.util.Collections;
 
@@ -74,12 +75,12 @@ public class SentimentAnnotator extends AbstractAnnotator {
     interactiveRun(getInstance());
   }
 
-  private LexiconLoader lexicon;
+  private CompactLexicon lexicon;
 
   public SentimentAnnotator() throws IOException {
     super(SentimentAnnotator.class.getSimpleName());
     super.setOutputLongestSpan(false);
-    this.lexicon = new LexiconLoader().load();
+    this.lexicon = CompactLexicon.load();
   }
 
   @Override
@@ -105,11 +106,11 @@ public class SentimentAnnotator extends AbstractAnnotator {
 
       // Added 2016-06-14 to fix "How about 2:30pm on Thursday 6/16?"
       // where "6/16" is a very negative sentiment. No effect on evaluation.
-      if (currAnn.getText().matches(".*\\d.*")) continue;
+      if (RegexUtil.containsDigit(currAnn.getText())) continue;
 
       // Added 2016-08-16 to prevent celebrity names from affecting sentiments.
       // This reduces accuracy on our evaluation data from 82% to 80%.
-      if (currAnn.getText().matches("^[A-Z].*")) continue;
+      if (RegexUtil.startsWithUpperCase(currAnn.getText())) continue;
 
       annQueue.add(currAnn);
       if (annQueue.size() < numGrams) continue;
@@ -137,13 +138,10 @@ public class SentimentAnnotator extends AbstractAnnotator {
   }
 
   private LexiconEntry findLexiconEntry(Queue<Annotation> tokenQueue) {
-    StringBuilder builder = new StringBuilder();
     for (Annotation token : tokenQueue) {
-      if (token.getText().matches("^\\W+$")) return null;
-      if (builder.length() > 0) builder.append(" ");
-      builder.append(token.getText());
+      if (RegexUtil.isNonWord(token.getText())) return null;
     }
-    return this.lexicon.get(builder.toString().toLowerCase());
+    return this.lexicon.getLowerCase(tokenQueue);
   }
 
 }
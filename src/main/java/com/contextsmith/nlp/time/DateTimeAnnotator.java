@@ -7,14 +7,18 @@ import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.contextsmith.nlp.annotator.AbstractAnnotator;
 import com.contextsmith.nlp.annotator.Annotation;
-import com.joestelmach.natty.CalendarSource;
 import com.joestelmach.natty.DateGroup;
 import com.joestelmach.natty.Parser;
 
 public class DateTimeAnnotator extends AbstractAnnotator {
-//  private static final Logger log = LoggerFactory.getLogger(DateTimeAnnotator.class);
+  private static final Logger log = LoggerFactory.getLogger(DateTimeAnnotator.class);
+  // Parser._defaultTimeZone, looked up once.
+  private static final Field TIME_ZONE_FIELD = findTimeZoneField();
   private static DateTimeAnnotator instance = null;
 
   public static synchronized DateTimeAnnotator getInstance() {
@@ -32,6 +36,26 @@ public class DateTimeAnnotator extends AbstractAnnotator {
     interactiveRun(getInstance());
   }
 
+  private static Field findTimeZoneField() {
+    try {
+      Field field = Parser.class.getDeclaredField("_defaultTimeZone");
+      field.setAccessible(true);
+      return field;
+    } catch (NoSuchFieldException | SecurityException e) {
+      log.error("Unable to set the time zone of natty parsers: {}", e.toString());
+      return null;
+    }
+  }
+
+  private static void setTimeZone(Parser parser, TimeZone timezone) {
+    if (TIME_ZONE_FIELD == null) return;
+    try {
+      TIME_ZONE_FIELD.set(parser, timezone);
+    } catch (IllegalArgumentException | IllegalAccessException e) {
+      e.printStackTrace();
+    }
+  }
+
   private static boolean hasValidBoundingChar(int beginOffset, int endOffset,
                                               String text) {
     if (beginOffset > 0 && beginOffset < text.length()) {
@@ -45,11 +69,14 @@ public class DateTimeAnnotator extends AbstractAnnotator {
     return true;
   }
 
-  private Parser parser;
+  // The natty parser is not thread-safe, and annotateCore() sets the time zone
+  // of 'baseDate' on it before each parse, so each thread has a parser of its
+  // own.
+  private ThreadLocal<Parser> parser;
 
   public DateTimeAnnotator() {
     super(DateTimeAnnotator.class.getSimpleName());
-    this.parser = new Parser();
+    this.parser = ThreadLocal.withInitial(Parser::new);
   }
 
   public List<Annotation> annotate(Annotation parent, ZonedDateTime baseDate) {
@@ -62,19 +89,16 @@ public class DateTimeAnnotator extends AbstractAnnotator {
     return annotate(new Annotation(text), baseDate);
   }
 
+  /**
+   * Sets the time zone of the parser of the calling thread, which the next
+   * annotate() call replaces with the zone of its 'baseDate' (or the JVM's
+   * default), so this has no effect on the results.
+   *
+   * @deprecated pass a 'baseDate' in the wanted zone to annotate() instead.
+   */
+  @Deprecated
   public void setParserTimeZone(TimeZone timezone) {
-    Field field = null;
-    try {
-      field = Parser.class.getDeclaredField("_defaultTimeZone");
-    } catch (NoSuchFieldException | SecurityException e) {
-      e.printStackTrace();
-    }
-    field.setAccessible(true);
-    try {
-      field.set(this.parser, timezone);
-    } catch (IllegalArgumentException | IllegalAccessException e) {
-      e.printStackTrace();
-    }
+    setTimeZone(this.parser.get(), timezone);
   }
 
   @Override
@@ -94,9 +118,10 @@ public class DateTimeAnnotator extends AbstractAnnotator {
     TimeZone timeZone = (baseDate == null) ?
         TimeZone.getDefault() : TimeZone.getTimeZone(baseDate.getZone());
 
-    setParserTimeZone(timeZone);
+    Parser parser = this.parser.get();
+    setTimeZone(parser, timeZone);
     try {
-      groups = this.parser.parse(parent.getText(), instant);
+      groups = parser.parse(parent.getText(), instant);
 
     } catch (Exception e) {  // Ignore all exceptions.
     }
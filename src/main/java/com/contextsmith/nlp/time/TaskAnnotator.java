@@ -40,6 +40,31 @@ public class TaskAnnotator extends AbstractAnnotator {
   public static final Pattern IS_PRESENT_PART_REQUEST = Pattern.compile(
       "(?i)\\b(?:am|is|are|i'm|\\w+'re|\\w's)\\s+(?:\\w+ing)\\b");
 
+  // Matches a sentence in which natty may find a date or time that is not
+  // dropped by NON_CRUCIAL_DATE_PATTERN: digits, numbers, names of weekdays,
+  // months, holidays and seasons, units of time, and words relative to now.
+  public static final Pattern MAY_HAVE_DATE_TIME = Pattern.compile(
+      "(?i)\\d|\\b(?:" +
+      "mon|tue|tues|wed|weds|thu|thur|thurs|fri|sat|sun|" +
+      "(?:mon|tues|wednes|thurs|fri|satur|sun|week)days?|" +
+      "jan|january|feb|february|mar|march|apr|april|june?|july?|" +
+      "aug|august|sep|sept|september|oct|october|nov|november|dec|december|" +
+      "tomorrow|tmrw|tonight|yesterday|noon|midnight|o'clock|" +
+      "(?:morning|afternoon|evening|night|weekend|week|fortnight|month|" +
+      "year|day|hour|hr|minute|min|second|sec)s?|" +
+      "ago|next|last|coming|upcoming|past|following|previous|" +
+      "eod|eow|eom|" +
+      "christmas|xmas|eve|thanksgiving|easter|halloween|valentine'?s?|" +
+      "independence|memorial|labor|labour|mlk|groundhog|patrick'?s?|" +
+      "patriot|election|veterans?'?|presidents?'?|kwanzaa|" +
+      "mother'?s?|father'?s?|fool'?s?|earth|flag|tax|" +
+      "spring|summer|fall|autumn|winter|" +
+      "first|third|fourth|fifth|sixth|seventh|eighth|ninth|tenth|eleventh|" +
+      "twelfth|\\w+teenth|twentieth|thirtieth|" +
+      "one|two|three|four|five|six|seven|eight|nine|ten|eleven|twelve|" +
+      "twenty|thirty|half|quarter" +
+      ")\\b");
+
   private static TaskAnnotator instance = null;
 
   public static synchronized TaskAnnotator getInstance() {
@@ -98,6 +123,7 @@ public class TaskAnnotator extends AbstractAnnotator {
   }
 
   private int windowSizeInChars;
+  private boolean isDatePrefiltered;
 
   public TaskAnnotator() {
     this(DEFAULT_WINDOW_SIZE_IN_CHARS);
@@ -106,6 +132,7 @@ public class TaskAnnotator extends AbstractAnnotator {
   public TaskAnnotator(int windowSizeInChars) {
     super(TaskAnnotator.class.getSimpleName());
     this.windowSizeInChars = windowSizeInChars;
+    this.isDatePrefiltered = true;
   }
 
   public List<Annotation> annotate(Annotation parent, ZonedDateTime baseDate) {
@@ -122,6 +149,18 @@ public class TaskAnnotator extends AbstractAnnotator {
     return this.windowSizeInChars;
   }
 
+  public boolean isDatePrefiltered() {
+    return this.isDatePrefiltered;
+  }
+
+  /**
+   * Sets whether dates are parsed only in sentences which match
+   * MAY_HAVE_DATE_TIME, which natty is too slow to run on all of.
+   */
+  public void setDatePrefiltered(boolean isDatePrefiltered) {
+    this.isDatePrefiltered = isDatePrefiltered;
+  }
+
   @Override
   protected List<Annotation> annotateCore(Annotation parent) {
     return annotateCore(parent, null);
@@ -146,6 +185,11 @@ public class TaskAnnotator extends AbstractAnnotator {
       if (IS_MEETING_REQUEST.matcher(sentence.getText()).find()) {
         continue;
       }
+      // Nothing for natty to find.
+      if (this.isDatePrefiltered &&
+          !MAY_HAVE_DATE_TIME.matcher(sentence.getText()).find()) {
+        continue;
+      }
       // We only want valid English sentences.
       // NOTE(rcwang): Because of the promise request, this is unnecessary.
       /*double enScore =
@@ -10,7 +10,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.Properties;
 import java.util.zip.GZIPInputStream;
@@ -18,6 +24,7 @@ import java.util.zip.GZIPInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharSource;
 import com.google.common.io.CharStreams;
 
@@ -25,6 +32,41 @@ public class FileUtil {
   private static final Logger log = LoggerFactory.getLogger(FileUtil.class);
   public static final String COMPRESSED_FILE_RE = ".+?\\.(gz|gzip|zip)";
 
+  /**
+   * Memory-maps the file if it exists on disk (directly or in class-path),
+   * otherwise (e.g. inside a jar) reads it fully into a heap buffer.
+   * Returns null if the file could not be found.
+   */
+  public static ByteBuffer findResourceAsByteBuffer(String filename) {
+    File f = new File(filename);
+    if (!f.exists()) {
+      ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+      URL url = classLoader.getResource(f.getName());
+      if (url == null) return null;
+      if (!url.getProtocol().equals("file")) {
+        try (InputStream stream = url.openStream()) {
+          return ByteBuffer.wrap(ByteStreams.toByteArray(stream));
+        } catch (IOException e) {
+          log.error("Error reading {}: {}", url, e.getMessage());
+          return null;
+        }
+      }
+      try {
+        f = Paths.get(url.toURI()).toFile();
+      } catch (URISyntaxException e) {
+        log.error("Invalid resource URL: {}", url);
+        return null;
+      }
+    }
+    try (FileChannel channel = FileChannel.open(f.toPath(),
+                                                StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (IOException e) {
+      log.error("Error mapping {}: {}", f, e.getMessage());
+      return null;
+    }
+  }
+
   public static CharSource findResourceAsCharSource(String filename)
       throws IOException {
     return inputStreamToCharSource(findResourceAsStream(filename));
@@ -69,7 +69,9 @@ public class InternetAddressUtil {
   }
 
   public static String getAddressDomain(String address) {
-    return address.replaceFirst("^.+?@", "");
+    // Same as replaceFirst("^.+?@", "").
+    int at = address.indexOf('@', 1);
+    return (at < 0) ? address : address.substring(at + 1);
   }
 
   public static boolean hasDomain(InternetAddress address, String domain) {
@@ -108,7 +110,10 @@ public class InternetAddressUtil {
   }
 
   public static String normalizeAddress(String address) {
-    address = address.replaceFirst("\\+.*?@", "@");
+    // Remove the sub-address, same as replaceFirst("\\+.*?@", "@").
+    int plus = address.indexOf('+');
+    int at = (plus < 0) ? -1 : address.indexOf('@', plus);
+    if (at >= 0) address = address.substring(0, plus) + address.substring(at);
     return address.toLowerCase();
   }
 
@@ -1,5 +1,6 @@
 package com.contextsmith.utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -8,24 +9,31 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.time.temporal.TemporalAccessor;
+import java.util.Base64;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import javax.mail.Address;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
+import javax.mail.Session;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
 import javax.ws.rs.core.MediaType;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -45,7 +53,14 @@ public class MimeMessageUtil {
 
   public enum AddressField { FROM, REPLY_TO, TO, CC, BCC, ANY_RECIPIENT }
 
+  /** What EmailFilterer.isUseful() looks for in the body of a message. */
+  public enum BodyTrait {
+    SUBSCRIBE_HTML,  // An HTML part containing SUBSCRIBE_WORD.
+    CALENDAR         // A text/calendar part.
+  }
+
   private static final Logger log = LoggerFactory.getLogger(MimeMessageUtil.class);
+  private static final byte[] CRLF = {'\r', '\n'};
 
   public static final String SENT_DATE_HEADER = "Date";
   public static final String MIME_MESSAGE_ID_HEADER = "Message-ID";
@@ -58,6 +73,17 @@ public class MimeMessageUtil {
 //  public static final String IN_REPLY_TO_HEADER = "In-Reply-To";
   public static final String GMAIL_THREAD_ID_HEADER = "Gmail-Thread-Id";
   public static final String GMAIL_MESSAGE_ID_HEADER = "Gmail-Message-Id";
+  // The BodyTraits of a message without its original body, e.g. rebuilt by
+  // StoredMessage: their names separated by commas, or NO_BODY_TRAITS.
+  public static final String BODY_TRAITS_HEADER = "X-Body-Traits";
+  public static final String NO_BODY_TRAITS = "none";
+  // Mailing-List indicator in email body.
+  public static final String SUBSCRIBE_WORD = "subscribe";
+  // Headers telling of an invite when the parts are not fetched.
+  public static final String CONTENT_TYPE_HEADER = "Content-Type";
+  public static final String CONTENT_CLASS_HEADER = "Content-Class";
+  public static final String CALENDAR_CONTENT_CLASS = "calendarmessage";
+  public static final String CALENDAR_SENDER = "calendar-notification@google.com";
 
   // Mime types.
   public static final String MIME_TYPE_HEADER_SUFFIX = "-content";
@@ -182,6 +208,75 @@ public class MimeMessageUtil {
                        new Document.OutputSettings().prettyPrint(false));
   }
 
+  /**
+   * Returns the BodyTraits of 'message': those of its BODY_TRAITS_HEADER if
+   * it has one, otherwise those found in its parts.
+   */
+  public static Set<BodyTrait> getBodyTraits(MimeMessage message) {
+    String header = getFirstHeader(message, BODY_TRAITS_HEADER);
+    if (header != null) {
+      Set<BodyTrait> traits = EnumSet.noneOf(BodyTrait.class);
+      for (String name : header.split(",")) {
+        name = name.trim();
+        if (name.isEmpty() || name.equals(NO_BODY_TRAITS)) continue;
+        try {
+          traits.add(BodyTrait.valueOf(name));
+        } catch (IllegalArgumentException e) {
+          log.warn("Unknown body trait: {}", name);
+        }
+      }
+      return traits;
+    }
+
+    Set<BodyTrait> traits = EnumSet.noneOf(BodyTrait.class);
+    Multimap<String, String> multimap = collectPartsRecursively(message);
+    for (String html : multimap.get(MediaType.TEXT_HTML)) {
+      if (html != null && isHtml(html) &&
+          StringUtils.containsIgnoreCase(html, SUBSCRIBE_WORD)) {
+        traits.add(BodyTrait.SUBSCRIBE_HTML);
+        break;
+      }
+    }
+    if (!multimap.get(TEXT_CALENDAR_TYPE).isEmpty()) traits.add(BodyTrait.CALENDAR);
+    return traits;
+  }
+
+  /**
+   * Returns the BodyTraits likely found in the parts of 'message', which was
+   * fetched headers-only, from its headers and 'contentType' (that of the
+   * whole message): SUBSCRIBE_HTML for a message with a List-Unsubscribe
+   * header and an HTML part, and CALENDAR for an invite by its type,
+   * Content-Class or Google Calendar sender.
+   */
+  public static Set<BodyTrait> guessBodyTraits(MimeMessage message, String contentType) {
+    Set<BodyTrait> traits = EnumSet.noneOf(BodyTrait.class);
+    String type = StringUtils.defaultString(contentType).trim().toLowerCase(Locale.ROOT);
+    if (hasMailingListInRecipients(message) &&
+        (type.startsWith(MediaType.TEXT_HTML) || type.startsWith("multipart/"))) {
+      traits.add(BodyTrait.SUBSCRIBE_HTML);
+    }
+    String contentClass = getFirstHeader(message, CONTENT_CLASS_HEADER);
+    String sender = getFirstHeader(message, "Sender");
+    if (type.startsWith(TEXT_CALENDAR_TYPE) ||
+        StringUtils.containsIgnoreCase(contentClass, CALENDAR_CONTENT_CLASS) ||
+        StringUtils.containsIgnoreCase(sender, CALENDAR_SENDER)) {
+      traits.add(BodyTrait.CALENDAR);
+    }
+    return traits;
+  }
+
+  /** Returns the value of BODY_TRAITS_HEADER for 'traits'. */
+  public static String formatBodyTraits(Set<BodyTrait> traits) {
+    if (traits.isEmpty()) return NO_BODY_TRAITS;
+    return traits.stream().map(BodyTrait::name).collect(Collectors.joining(","));
+  }
+
+  /** Keeps 'traits' in the BODY_TRAITS_HEADER of 'message'. */
+  public static void setBodyTraits(MimeMessage message, Set<BodyTrait> traits)
+      throws MessagingException {
+    message.setHeader(BODY_TRAITS_HEADER, formatBodyTraits(traits));
+  }
+
   public static boolean existHeader(MimeMessage message, String header) {
     return getFirstHeader(message, header) != null;
   }
@@ -323,7 +418,7 @@ public class MimeMessageUtil {
 
   public static String[] getListUnsubscribe(MimeMessage message) {
     String value = getFirstHeader(message, LIST_UNSUBSCRIBE_HEADER);
-    return (value == null) ? null : value.split("\\s+");
+    return (value == null) ? null : RegexUtil.WHITESPACES_PAT.split(value);
   }
 
   public static String getMessageId(MimeMessage message) {
@@ -336,7 +431,7 @@ public class MimeMessageUtil {
 
   public static String[] getReferences(MimeMessage message) {
     String value = getFirstHeader(message, REFERENCES_HEADER);
-    return (value == null) ? null : value.split("\\s+");
+    return (value == null) ? null : RegexUtil.WHITESPACES_PAT.split(value);
   }
 
   public static ZonedDateTime getSentDate(MimeMessage message)
@@ -345,10 +440,12 @@ public class MimeMessageUtil {
     if (mailDateStr == null) return null;
 
     // Remove beginning day-of-week strings (Mon, Tue, Wed, Thu, Fri, Sat, Sun)
-    mailDateStr = mailDateStr.replaceAll("^[MTWFS][ouehra][neduit], ", "").trim();
+    mailDateStr = RegexUtil.DAY_OF_WEEK_PREFIX_PAT.matcher(mailDateStr)
+                                                  .replaceAll("").trim();
 
     // Remove trailing zone name in parenthesis.
-    mailDateStr = mailDateStr.replaceAll("\\([^()]+\\)$", "").trim();
+    mailDateStr = RegexUtil.TRAILING_ZONE_NAME_PAT.matcher(mailDateStr)
+                                                  .replaceAll("").trim();
 
     TemporalAccessor ta = null;
     try {
@@ -471,11 +568,50 @@ public class MimeMessageUtil {
   }
 
   public static String normalizeSubject(String subject) {
-    return REPLY_FORWARD_PREFIX_PAT
-        .matcher(subject)
-        .replaceAll(" ")
-        .replaceAll("\\s+", " ")
-        .trim();
+    String s = REPLY_FORWARD_PREFIX_PAT.matcher(subject).replaceAll(" ");
+    return RegexUtil.WHITESPACES_PAT.matcher(s).replaceAll(" ").trim();
+  }
+
+  /**
+   * Parses a message from its URL-safe Base64 encoding (Gmail's raw format).
+   * The encoding is decoded as a stream straight into the only copy of the
+   * message bytes, which the MimeMessage shares instead of copying its
+   * content; body parts are only decoded when read.
+   */
+  public static MimeMessage parseBase64Url(Session session, String encoded)
+      throws MessagingException {
+    return parseBase64Url(session, encoded, null);
+  }
+
+  /**
+   * As parseBase64Url(session, encoded), but the message bytes are moved to
+   * 'spillFile' unless null, so that only the headers stay on the heap.
+   */
+  public static MimeMessage parseBase64Url(Session session, String encoded,
+                                           SpillFile spillFile)
+      throws MessagingException {
+    int length = encoded.length();
+    while (length > 0 && encoded.charAt(length - 1) == '=') --length;
+    byte[] bytes = new byte[(int) (length * 3L / 4)];
+    try (InputStream in = Base64.getUrlDecoder().wrap(
+             new AsciiInputStream(encoded, length))) {
+      int offset = 0;
+      for (int n; offset < bytes.length &&
+           (n = in.read(bytes, offset, bytes.length - offset)) > 0; ) {
+        offset += n;
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      // Not strict base64url, e.g. with line breaks; decode it leniently.
+      bytes = org.apache.commons.codec.binary.Base64.decodeBase64(encoded);
+    }
+    if (spillFile != null) {
+      try {
+        return new MimeMessage(session, spillFile.write(bytes, 0, bytes.length));
+      } catch (IOException e) {
+        log.warn("Unable to spill email, keeping it on the heap: {}", e.toString());
+      }
+    }
+    return new MimeMessage(session, new SharedByteArrayInputStream(bytes));
   }
 
   // For debugging purpose.
@@ -488,6 +624,34 @@ public class MimeMessageUtil {
     log.info("==================");
   }
 
+  /**
+   * Returns the header lines and raw content of 'message' as they are, to
+   * parse copies of it from.  Unlike writeTo(), this does not save changes
+   * first, which gives a message built header by header (e.g. in
+   * headers-only mode) a new Message-ID.
+   */
+  public static byte[] toBytes(MimeMessage message)
+      throws IOException, MessagingException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Enumeration<?> e = message.getAllHeaderLines(); e.hasMoreElements(); ) {
+      out.write(e.nextElement().toString().getBytes(StandardCharsets.UTF_8));
+      out.write(CRLF);
+    }
+    out.write(CRLF);
+    InputStream in;
+    try {
+      in = message.getRawInputStream();
+    } catch (MessagingException e) {
+      return out.toByteArray();  // No content, e.g. only set by setText().
+    }
+    try {
+      IOUtils.copy(in, out);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
   private static void collectPartsRecursively(
       Part message,
       Multimap<String, String> multimap)
@@ -516,4 +680,38 @@ public class MimeMessageUtil {
       }
     }
   }
-}
\ No newline at end of file
+
+  // Reads the first 'length' chars of an ASCII string as bytes, without
+  // copying them.
+  private static class AsciiInputStream extends InputStream {
+    private final CharSequence chars;
+    private final int length;
+    private int position = 0;
+
+    AsciiInputStream(CharSequence chars, int length) {
+      this.chars = chars;
+      this.length = length;
+    }
+
+    @Override
+    public int read() {
+      return (this.position < this.length) ? toByte(this.chars.charAt(this.position++)) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      if (this.position >= this.length) return -1;
+      int n = Math.min(len, this.length - this.position);
+      for (int i = 0; i < n; ++i) {
+        b[off + i] = (byte) toByte(this.chars.charAt(this.position++));
+      }
+      return n;
+    }
+
+    // Non-ASCII chars become '?', which no Base64 alphabet accepts.
+    private static int toByte(char c) {
+      return (c < 0x80) ? c : '?';
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.contextsmith.utils;
+
+import java.util.regex.Pattern;
+
+/**
+ * Precompiled patterns used on hot paths (per message or per line), since
+ * String.matches(), replaceAll(), replaceFirst() and split() compile their
+ * regex on every call; and hand-written scanners for the checks that do not
+ * need a regex at all.
+ */
+public class RegexUtil {
+
+  // Whitespace.
+  public static final Pattern WHITESPACES_PAT = Pattern.compile("\\s+");
+  public static final Pattern END_LINE_PAT = Pattern.compile("\r?\n");
+
+  // Email addresses and names.
+  public static final Pattern GIBBERISH_ADDR_PAT =
+      Pattern.compile("(?i).*?([a-z]+[0-9]+){3,}.*?@.+");
+  public static final Pattern NAME_SEPARATOR_PAT =
+      Pattern.compile("[\\p{Punct}\\s]+");
+  public static final Pattern PARENTHESIZED_PAT = Pattern.compile("\\([^()]+\\)");
+  public static final Pattern SURROUNDING_QUOTES_PAT =
+      Pattern.compile("^[\"']+|[\"']+$");
+
+  // Email headers.
+  public static final Pattern DAY_OF_WEEK_PREFIX_PAT =
+      Pattern.compile("^[MTWFS][ouehra][neduit], ");
+  public static final Pattern TRAILING_ZONE_NAME_PAT =
+      Pattern.compile("\\([^()]+\\)$");
+
+  // Lines of email text, see EnglishEmailTextParser.
+  // On Wed, Oct 21, 2015 at 11:02 AM, Richard Wang <rcwang@gmail.com> wrote:
+  public static final Pattern QUOTED_HEADER_PAT = Pattern.compile(
+      ".+? wrote:|.+? 寫道﹕|.+? a écrit :|.+?>:|On .+?>|On .+? <");
+  public static final Pattern EMAIL_ADDRESS_PAT =
+      Pattern.compile(".*\\b[\\w-]+@[\\w-]+(\\.[\\w-]+)+\\b.*");
+  public static final Pattern QUOTED_FIELD_PAT =
+      Pattern.compile("(From|Sent|To|Subject): .+");
+  public static final Pattern VALEDICTION_DASHES_PAT =
+      Pattern.compile("-{2,3}([^-]+|$)");
+
+  /**
+   * Same as text.replaceAll("[ ]+", " "), but does not copy a text without
+   * consecutive spaces.
+   */
+  public static String collapseSpaces(String text) {
+    int i = text.indexOf("  ");
+    if (i < 0) return text;
+    StringBuilder builder = new StringBuilder(text.length());
+    builder.append(text, 0, i + 1);
+    for (++i; i < text.length(); ++i) {
+      char c = text.charAt(i);
+      if (c == ' ' && text.charAt(i - 1) == ' ') continue;
+      builder.append(c);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Same as text.matches(".*\\d.*") for a single-line text.
+   */
+  public static boolean containsDigit(CharSequence text) {
+    for (int i = 0; i < text.length(); ++i) {
+      char c = text.charAt(i);
+      if (c >= '0' && c <= '9') return true;
+    }
+    return false;
+  }
+
+  /**
+   * Same as text.matches("^\\W+$"), i.e. 'text' is not empty and has no
+   * [a-zA-Z_0-9] character.
+   */
+  public static boolean isNonWord(CharSequence text) {
+    if (text.length() == 0) return false;
+    for (int i = 0; i < text.length(); ++i) {
+      if (isWordChar(text.charAt(i))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Same as text.matches("^[A-Z].*") for a single-line text.
+   */
+  public static boolean startsWithUpperCase(CharSequence text) {
+    if (text.length() == 0) return false;
+    char c = text.charAt(0);
+    return c >= 'A' && c <= 'Z';
+  }
+
+  // Same as the regex class \w.
+  private static boolean isWordChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+           (c >= '0' && c <= '9') || c == '_';
+  }
+}
@@ -0,0 +1,176 @@
+package com.contextsmith.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps bytes in a temporary file instead of on the heap, and reads them
+ * back as a SharedInputStream: a MimeMessage parsed from it keeps only its
+ * headers on the heap, and reads its content from the file when needed.
+ *
+ * The bytes are appended to a file deleted as soon as opened, which is
+ * replaced by a new one once 'maxFileBytes' long.  The disk space of a file
+ * is freed once no stream reading it is reachable.
+ */
+public class SpillFile {
+  private static final Logger log = LoggerFactory.getLogger(SpillFile.class);
+
+  public static final long DEFAULT_MAX_FILE_BYTES = 1L << 30;
+  private static final int BUFFER_SIZE = 4096;
+
+  private static SpillFile instance = null;
+
+  public static synchronized SpillFile getInstance() {
+    if (instance == null) instance = new SpillFile(DEFAULT_MAX_FILE_BYTES);
+    return instance;
+  }
+
+  private final long maxFileBytes;
+  private FileOutputStream out = null;
+  // Read by the streams: closed by its finalizer once none is reachable.
+  private FileInputStream in = null;
+  private long length = 0;
+
+  public SpillFile(long maxFileBytes) {
+    this.maxFileBytes = maxFileBytes;
+  }
+
+  /**
+   * Appends bytes[offset, offset + length) to the file, and returns a
+   * stream of them.
+   */
+  public synchronized InputStream write(byte[] bytes, int offset, int length)
+      throws IOException {
+    if (this.out == null || this.length + length > this.maxFileBytes) open();
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+    while (buffer.hasRemaining()) this.out.getChannel().write(buffer);
+    long start = this.length;
+    this.length += length;
+    return new SpilledInputStream(this.in, start, this.length);
+  }
+
+  private void open() throws IOException {
+    if (this.out != null) this.out.close();  // Its bytes are still read by 'in'.
+    File file = File.createTempFile("spill", ".tmp");
+    this.out = new FileOutputStream(file);
+    this.in = new FileInputStream(file);
+    this.length = 0;
+    if (!file.delete()) file.deleteOnExit();  // E.g. on Windows, while open.
+    log.debug("Spilling to {}", file);
+  }
+
+  /**
+   * The bytes [start, end) of a file, read without moving the position of
+   * the shared FileInputStream.  The buffer is only allocated when read,
+   * so that streams made by newStream() and kept take little heap.
+   */
+  private static class SpilledInputStream extends InputStream
+      implements SharedInputStream {
+    private final FileInputStream file;
+    private final long start;
+    private final long end;
+    private long position;
+    private long mark;
+    private byte[] buffer = null;
+    private long bufferStart = 0;
+    private int bufferLength = 0;
+
+    SpilledInputStream(FileInputStream file, long start, long end) {
+      this.file = file;
+      this.start = start;
+      this.end = end;
+      this.position = start;
+      this.mark = start;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (this.position >= this.end) return -1;
+      fill();
+      return this.buffer[(int) (this.position++ - this.bufferStart)] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (this.position >= this.end) return -1;
+      fill();
+      int n = (int) Math.min(len, this.bufferStart + this.bufferLength - this.position);
+      System.arraycopy(this.buffer, (int) (this.position - this.bufferStart), b, off, n);
+      this.position += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, this.end - this.position));
+      this.position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(this.end - this.position, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+      this.mark = this.position;
+    }
+
+    @Override
+    public void reset() {
+      this.position = this.mark;
+    }
+
+    @Override
+    public void close() {
+      this.buffer = null;  // The file is shared with the other streams.
+    }
+
+    @Override
+    public long getPosition() {
+      return this.position - this.start;
+    }
+
+    @Override
+    public InputStream newStream(long start, long end) {
+      return new SpilledInputStream(this.file, this.start + start,
+                                    end == -1 ? this.end : this.start + end);
+    }
+
+    // Makes sure the buffer holds the byte at 'position'.
+    private void fill() throws IOException {
+      if (this.buffer != null && this.position >= this.bufferStart &&
+          this.position < this.bufferStart + this.bufferLength) {
+        return;
+      }
+      if (this.buffer == null) this.buffer = new byte[BUFFER_SIZE];
+      this.bufferStart = this.position;
+      this.bufferLength = (int) Math.min(BUFFER_SIZE, this.end - this.position);
+      ByteBuffer buffer = ByteBuffer.wrap(this.buffer, 0, this.bufferLength);
+      FileChannel channel = this.file.getChannel();
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, this.bufferStart + buffer.position()) < 0) {
+          throw new EOFException();
+        }
+      }
+    }
+  }
+}
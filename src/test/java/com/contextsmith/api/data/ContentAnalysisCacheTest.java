@@ -0,0 +1,109 @@
+package com.contextsmith.api.data;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.contextsmith.email.cluster.EmailNameResolver;
+
+public class ContentAnalysisCacheTest {
+
+    private static final String TEXT =
+            "Hi Bob,\n\nThe contract is attached, please sign it.\n\nThanks,\nAlice\n\n" +
+            "> Could you send the contract?\n> Bob";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static EmailMessage newMessage(int i) throws Exception {
+        return newMessage(i, "Bob <bob@example.org>");
+    }
+
+    private static EmailMessage newMessage(int i, String to) throws Exception {
+        MimeMessage mime = new MimeMessage(Session.getDefaultInstance(new Properties()));
+        mime.setText(TEXT);
+        mime.addHeader("Message-ID", "<" + i + "@example.com>");
+        mime.addHeader("Date", "Tue, 4 Jul 2017 10:00:00 -0700");
+        mime.addHeader("From", "Alice <alice@example.com>");
+        mime.addHeader("To", to);
+        return new EmailMessage().loadFrom(mime, new EmailNameResolver());
+    }
+
+    private static void process(EmailMessage message, ContentAnalysisCache cache) {
+        message.processContent(false, false, null, null, Pattern.compile("contract"), cache);
+    }
+
+    @Test
+    public void testTakesResultsFromMemory() throws Exception {
+        ContentAnalysisCache cache = new ContentAnalysisCache(100, null);
+        EmailMessage first = newMessage(1);
+        process(first, cache);
+        EmailMessage second = newMessage(1);
+        process(second, cache);
+
+        assertSame(first.getContent(), second.getContent());
+        assertEquals(first.getSearchAnnotations(), second.getSearchAnnotations());
+        assertNotNull(second.getSearchAnnotations());
+        assertEquals(1, cache.getMemoryHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void testKeysByWhatWasAskedFor() throws Exception {
+        ContentAnalysisCache cache = new ContentAnalysisCache(100, null);
+        process(newMessage(1), cache);
+        newMessage(1).processContent(false, false, 0.5, null, null, cache);
+        process(newMessage(2), cache);
+
+        assertEquals(0, cache.getMemoryHits());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testKeysByNames() throws Exception {
+        ContentAnalysisCache cache = new ContentAnalysisCache(100, null);
+        process(newMessage(1), cache);
+        process(newMessage(1, "Robert <bob@example.org>"), cache);
+
+        assertEquals(0, cache.getMemoryHits());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEvictsBeyondMaxEntries() throws Exception {
+        ContentAnalysisCache cache = new ContentAnalysisCache(10, null);
+        for (int i = 0; i < 50; ++i) process(newMessage(i), cache);
+
+        assertTrue(cache.size() <= 10);
+    }
+
+    @Test
+    public void testTakesResultsFromDisk() throws Exception {
+        EmailMessage first = newMessage(1);
+        process(first, new ContentAnalysisCache(100, folder.getRoot()));
+        ContentAnalysisCache cache = new ContentAnalysisCache(100, folder.getRoot());
+        EmailMessage second = newMessage(1);
+        process(second, cache);
+        process(newMessage(1), cache);
+
+        assertEquals(1, cache.getDiskHits());
+        assertEquals(1, cache.getMemoryHits());
+        assertEquals(0, cache.getMisses());
+        assertEquals(first.getContent().body, second.getContent().body);
+        assertEquals(first.getContent().salutation, second.getContent().salutation);
+        assertEquals(first.getContent().signature, second.getContent().signature);
+        assertTrue(first.getContent().quotedBegin < first.getContent().quotedEnd);
+        assertEquals(first.getContent().quotedBegin, second.getContent().quotedBegin);
+        assertEquals(first.getContent().quotedEnd, second.getContent().quotedEnd);
+        assertEquals(first.getSearchAnnotations(), second.getSearchAnnotations());
+    }
+}
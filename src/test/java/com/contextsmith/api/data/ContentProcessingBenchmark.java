@@ -0,0 +1,64 @@
+package com.contextsmith.api.data;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Processing the content of 1000 messages (time, requests and sentiment,
+ * without the cache) on 1 to 8 threads of a ContentProcessingPool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentProcessingBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    private int numThreads;
+
+    private List<EmailMessage> messages;
+    private ContentProcessingPool pool;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.messages = ContentProcessingPoolTest.newMessages(1_000);
+        this.pool = new ContentProcessingPool(this.numThreads);
+        // Loads the parser, the annotators and their models.
+        this.pool.process(this.messages, true, true, 0.2, -0.2, null, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+
+    @Benchmark
+    public List<EmailMessage> process() {
+        this.pool.process(this.messages, true, true, 0.2, -0.2, null, null);
+        return this.messages;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(ContentProcessingBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
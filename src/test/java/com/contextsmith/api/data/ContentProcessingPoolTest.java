@@ -0,0 +1,116 @@
+package com.contextsmith.api.data;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+import com.contextsmith.email.cluster.EmailNameResolver;
+import com.contextsmith.nlp.annotator.Annotation;
+import com.contextsmith.nlp.sentiment.SentimentItem;
+import com.contextsmith.nlp.time.TemporalItem;
+
+public class ContentProcessingPoolTest {
+
+    private static final String[] SENTENCES = {
+        "I will send you the signed contract by next Friday.",
+        "Could you review the proposal before Monday?",
+        "We are shipping the new release on March 3rd at 5pm.",
+        "The demo was excellent and the team loved it.",
+        "I'm worried the integration is terribly late.",
+        "Let me know if you could join the call.",
+        "We should have the numbers for you tomorrow morning.",
+        "The budget was approved last week.",
+    };
+
+    private static final String[] ZONES = { "-0700", "+0000", "+0900" };
+
+    /** Returns 'count' messages of a few of SENTENCES each, in a few time zones. */
+    static List<EmailMessage> newMessages(int count) throws Exception {
+        EmailNameResolver resolver = new EmailNameResolver();
+        List<EmailMessage> messages = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            StringBuilder text = new StringBuilder("Hi Bob,\n\n");
+            for (int j = 0; j < 3; ++j) {
+                text.append(SENTENCES[(i + 3 * j) % SENTENCES.length]).append(' ');
+            }
+            text.append("\n\nThanks,\nAlice");
+            MimeMessage mime = new MimeMessage(Session.getDefaultInstance(new Properties()));
+            mime.setText(text.toString());
+            mime.addHeader("Message-ID", "<" + i + "@example.com>");
+            mime.addHeader("Date", String.format("Tue, %d Jul 2017 10:00:00 %s",
+                                                 1 + i % 28, ZONES[i % ZONES.length]));
+            mime.addHeader("From", "Alice <alice@example.com>");
+            mime.addHeader("To", "Bob <bob@example.org>");
+            messages.add(new EmailMessage().loadFrom(mime, resolver));
+        }
+        return messages;
+    }
+
+    private static void processAll(ContentProcessingPool pool, List<EmailMessage> messages) {
+        pool.process(messages, true, true, 0.2, -0.2, Pattern.compile("contract"), null);
+    }
+
+    private static String describe(EmailMessage message) {
+        StringBuilder builder = new StringBuilder(message.getContent().body);
+        if (message.getTemporalItems() != null) {
+            for (TemporalItem item : message.getTemporalItems()) {
+                builder.append('|').append(item.taskAnnotation.getText())
+                       .append(item.resolvedDates);
+            }
+        }
+        if (message.getRequestAnnotations() != null) {
+            for (Annotation request : message.getRequestAnnotations()) {
+                builder.append('|').append(request.getText());
+            }
+        }
+        if (message.getSentimentItems() != null) {
+            for (SentimentItem item : message.getSentimentItems()) {
+                builder.append('|').append(item.score);
+            }
+        }
+        if (message.getSearchAnnotations() != null) {
+            builder.append('|').append(message.getSearchAnnotations().size());
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testMatchesSerialProcessing() throws Exception {
+        List<EmailMessage> serial = newMessages(300);
+        processAll(new ContentProcessingPool(1), serial);
+        List<EmailMessage> parallel = newMessages(300);
+        ContentProcessingPool pool = new ContentProcessingPool(8);
+        try {
+            processAll(pool, parallel);
+        } finally {
+            pool.shutdown();
+        }
+
+        boolean hasTemporalItems = false;
+        for (int i = 0; i < serial.size(); ++i) {
+            assertEquals(describe(serial.get(i)), describe(parallel.get(i)));
+            hasTemporalItems |= parallel.get(i).getTemporalItems() != null;
+        }
+        assertTrue(hasTemporalItems);
+    }
+
+    @Test
+    public void testProcessesEveryMessage() throws Exception {
+        List<EmailMessage> messages = newMessages(37);
+        ContentProcessingPool pool = new ContentProcessingPool(3);
+        try {
+            pool.process(messages, false, false, null, null, null, null);
+        } finally {
+            pool.shutdown();
+        }
+        for (EmailMessage message : messages) assertNotNull(message.getContent());
+    }
+}
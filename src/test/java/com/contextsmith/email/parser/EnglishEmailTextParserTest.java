@@ -0,0 +1,130 @@
+package com.contextsmith.email.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.contextsmith.email.parser.EnglishEmailTextParser.LineFeature;
+import com.google.common.io.ByteStreams;
+
+import static org.junit.Assert.*;
+
+/**
+ * Regression test over a small corpus of email texts: the labels assigned to
+ * every line must stay exactly the same as recorded in the .expected files.
+ */
+public class EnglishEmailTextParserTest {
+
+    private static final String CORPUS_DIR = "/email-text-parser/";
+    private static final String[] CORPUS = {
+        "01-simple", "02-quoted-gmail", "03-outlook-header", "04-no-salutation",
+        "05-short", "06-champion", "07-french-header", "08-thread",
+        "09-signature-block", "10-one-liner", "11-sent-from-phone", "12-list"
+    };
+
+    private static String readResource(String path) throws IOException {
+        try (InputStream in = EnglishEmailTextParserTest.class.getResourceAsStream(path)) {
+            assertNotNull("Missing resource: " + path, in);
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String normalize(String text) {
+        return text.replace("\r\n", "\n").trim();
+    }
+
+    @Test
+    public void testCorpus() throws IOException {
+        for (String name : CORPUS) {
+            String text = readResource(CORPUS_DIR + name + ".txt");
+            String expected = readResource(CORPUS_DIR + name + ".expected");
+            String actual = new EnglishEmailTextParser().parse(text).toString();
+            assertEquals(name, normalize(expected), normalize(actual));
+        }
+    }
+
+    @Test
+    public void testParserIsReusable() throws IOException {
+        EnglishEmailTextParser parser = new EnglishEmailTextParser();
+        String first = parser.parse(readResource(CORPUS_DIR + "02-quoted-gmail.txt")).toString();
+        parser.parse(readResource(CORPUS_DIR + "01-simple.txt"));
+        String second = parser.parse(readResource(CORPUS_DIR + "02-quoted-gmail.txt")).toString();
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testQuotedLinesAreNotScored() {
+        String text = "Hi Mary,\n\nThe report is attached.\n\nBest,\nWill\n\n" +
+                      "On Mon, Oct 19, 2015 at 9:00 AM, Mary <mary@example.com> wrote:\n" +
+                      "> Could you send me the report?\n> It is due on Friday.\n" +
+                      "> Please include the numbers from last week as well.\n";
+        EnglishEmailTextParser.resetMetrics();
+        EnglishEmailTextParser parser = new EnglishEmailTextParser().parse(text);
+        assertTrue(parser.getQuoted().contains("> It is due on Friday."));
+        // Only lines before the quoted block may need the English scorer.
+        long evaluations =
+            EnglishEmailTextParser.getFeatureEvaluationCounts().get(LineFeature.IS_SENTENCE);
+        assertTrue(evaluations <= 6);
+        assertEquals(11, EnglishEmailTextParser.getLinesParsed());
+        assertEquals(11L, EnglishEmailTextParser.getMetrics().get("linesParsed"));
+        assertEquals(evaluations, EnglishEmailTextParser.getMetrics().get(LineFeature.IS_SENTENCE.name()));
+    }
+
+    @Test
+    public void testNewContentEnd() throws IOException {
+        for (String name : CORPUS) {
+            String text = readResource(CORPUS_DIR + name + ".txt");
+            String newContent = text.substring(0, EnglishEmailTextParser.findNewContentEnd(text));
+            EnglishEmailTextParser full = new EnglishEmailTextParser().parse(text);
+            EnglishEmailTextParser truncated = new EnglishEmailTextParser().parse(newContent);
+            assertEquals(name, full.getSalutation(), truncated.getSalutation());
+            assertEquals(name, full.getBody(), truncated.getBody());
+            assertEquals(name, full.getSignature(), truncated.getSignature());
+        }
+
+        String thread = readResource(CORPUS_DIR + "08-thread.txt");
+        String newContent = thread.substring(0, EnglishEmailTextParser.findNewContentEnd(thread));
+        assertTrue(newContent.trim().endsWith("<linda@example.com> wrote:"));
+
+        // A quoted looking line among the first lines may be the salutation.
+        String text = "> Dear Mary,\nThanks!\n> Sent from my phone\nBob\n> Quoted";
+        assertEquals(text.indexOf("\nBob"), EnglishEmailTextParser.findNewContentEnd(text));
+        text = "Hi Bob,\nThanks.\nBest,\nAl\n> x\n> y";
+        assertEquals(text.indexOf("\n> y"), EnglishEmailTextParser.findNewContentEnd(text));
+        assertEquals(0, EnglishEmailTextParser.findNewContentEnd(""));
+    }
+
+    @Test
+    public void testQuotedOfNewContent() throws IOException {
+        String[] texts = {
+            // A quote of several lines, and one of several messages.
+            "Hi Mary,\nThe report is attached.\n\nBest,\nBob\n\n" +
+            "On Mon, Oct 19, 2015 at 9:00 AM, Mary <mary@example.com> wrote:\n" +
+            "> Could you send me the report?\n> It is due on Friday.\n>\n> Mary\n",
+            readResource(CORPUS_DIR + "08-thread.txt"),
+            // Quotes in the first MAX_SALUTATION_LINES lines.
+            "> Dear Mary,\nThanks!\n> Sent from my phone\nBob\n> Quoted\n> More quoted",
+            "Thanks!\n> Quoted\n> More quoted\n> Still quoted\nBob\n> Last"
+        };
+        for (String text : texts) {
+            EnglishEmailTextParser full = new EnglishEmailTextParser().parse(text);
+            EnglishEmailTextParser parser =
+                new EnglishEmailTextParser().parseNewContent(text, null, null);
+            assertEquals(text, full.getQuoted(), parser.getQuoted());
+            assertEquals(text, full.getQuotedBegin(), parser.getQuotedBegin());
+        }
+
+        String text = texts[0];
+        EnglishEmailTextParser parser =
+            new EnglishEmailTextParser().parseNewContent(text, null, null);
+        assertEquals(text.indexOf("On Mon"), parser.getQuotedBegin());
+        assertTrue(parser.getQuoted().contains("> It is due on Friday."));
+        assertTrue(parser.getQuoted().contains("> Mary"));
+        text = texts[3];
+        parser = new EnglishEmailTextParser().parseNewContent(text, null, null);
+        assertEquals(text.indexOf("> Quoted"), parser.getQuotedBegin());
+        assertTrue(parser.getQuoted().contains("> Last"));
+    }
+}
@@ -0,0 +1,126 @@
+package com.contextsmith.email.parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import org.junit.Test;
+
+import com.contextsmith.utils.FileUtil;
+
+import static org.junit.Assert.*;
+
+public class EnglishScorerTest {
+
+    private static final String[] WORDS = {
+        "the", "of", "and", "to", "in", "is", "that", "for", "it", "was", "Hello",
+        "WORLD", "Thanks", "report", "Friday", "qq", "Aa", "BB", "AaBB", "BBAa"
+    };
+
+    // The scoring as originally written, with a HashMap<String, Double>.
+    private static double referenceScore(String text) {
+        Map<String, Double> freqDist = new HashMap<>();
+        Matcher m = EnglishScorer.EN_WORD_TOKEN_RE.matcher(text.toLowerCase());
+        int total = 0;
+        while (m.find()) {
+            Double count = freqDist.get(m.group());
+            if (count == null) count = 0.0;
+            freqDist.put(m.group(), ++count);
+            ++total;
+        }
+        for (String word : freqDist.keySet()) {
+            freqDist.put(word, freqDist.get(word) / total);
+        }
+
+        Map<String, Double> wordProbs = new HashMap<>();
+        double wordProbMagnitude = 0;
+        for (String line : FileUtil.findResourceAsStringList(
+                EnglishScorer.DEFAULT_EN_WORD_PROB_FILE)) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length != 2) continue;
+            double prob = Double.parseDouble(parts[1]);
+            wordProbs.put(parts[0], prob);
+            wordProbMagnitude += Math.pow(prob, 2);
+        }
+        wordProbMagnitude = Math.sqrt(wordProbMagnitude);
+
+        double dotProduct = 0;
+        double inputMagnitude = 0;
+        for (Map.Entry<String, Double> entry : freqDist.entrySet()) {
+            inputMagnitude += Math.pow(entry.getValue(), 2);
+            Double wordProb = wordProbs.get(entry.getKey());
+            if (wordProb != null) dotProduct += entry.getValue() * wordProb;
+        }
+        inputMagnitude = Math.sqrt(inputMagnitude);
+        if (inputMagnitude == 0) return 0;
+        return dotProduct / (inputMagnitude * wordProbMagnitude);
+    }
+
+    @Test
+    public void testScoresAreIdentical() {
+        EnglishScorer scorer = EnglishScorer.getInstance();
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; ++i) {
+            StringBuilder builder = new StringBuilder();
+            int numWords = random.nextInt(i % 10 == 0 ? 300 : 20);
+            for (int j = 0; j < numWords; ++j) {
+                if (random.nextBoolean()) {
+                    builder.append(WORDS[random.nextInt(WORDS.length)]);
+                } else {
+                    for (int k = random.nextInt(6); k >= 0; --k) {
+                        builder.append((char) ('a' + random.nextInt(26)));
+                    }
+                }
+                builder.append(random.nextBoolean() ? " " : ", ");
+            }
+            String text = builder.toString();
+            assertEquals(text, referenceScore(text), scorer.computeScore(text), 0.0);
+        }
+        assertEquals(0, scorer.computeScore("123 !!!"), 0.0);
+        assertEquals(referenceScore("İstanbul Kelvin the"),
+                     scorer.computeScore("İstanbul Kelvin the"), 0.0);
+    }
+
+    @Test
+    public void testScoresAreIdenticalWithCrowdedBins() {
+        // Words all in one bin of any HashMap up to 1024 bins, so that the
+        // map grows early, or makes a tree once it has 64 bins.
+        List<String> crowded = new ArrayList<>();
+        Random random = new Random(42);
+        while (crowded.size() < 20) {
+            char[] chars = new char[6];
+            for (int i = 0; i < chars.length; ++i) chars[i] = (char) ('a' + random.nextInt(26));
+            String word = new String(chars);
+            int hash = word.hashCode();
+            if (((hash ^ (hash >>> 16)) & 1023) == 0 && !crowded.contains(word)) {
+                crowded.add(word);
+            }
+        }
+
+        EnglishScorer scorer = EnglishScorer.getInstance();
+        for (int numCrowded = 1; numCrowded <= crowded.size(); ++numCrowded) {
+            for (int numOthers : new int[] { 0, 5, 30, 60 }) {
+                StringBuilder builder = new StringBuilder();
+                for (int i = 0; i < Math.max(numCrowded, numOthers); ++i) {
+                    if (i < numOthers) {
+                        builder.append(i < WORDS.length ? WORDS[i] : "x" + (char) ('a' + i));
+                        builder.append(' ');
+                    }
+                    if (i < numCrowded) builder.append(crowded.get(i)).append(' ');
+                }
+                String text = builder.toString();
+                assertEquals(text, referenceScore(text), scorer.computeScore(text), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testCountTokens() {
+        for (String text : new String[] { "", "hello", "hello, world!", "it's 2pm", " a b " }) {
+            assertEquals(text, EnglishScorer.tokenize(text).size(), EnglishScorer.countTokens(text));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.contextsmith.email.parser;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Parsing a long reply chain as a whole vs. parsing only the new content
+ * found by EnglishEmailTextParser.findNewContentEnd().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuotedHistoryBenchmark {
+
+    @Param({"1", "5", "20"})
+    private int numQuotedMessages;
+
+    private String thread;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Hi Linda,\n\nThe new reports are live, please review them before\n")
+               .append("Friday and send me any feedback.\n\nThanks,\nDavid\n\n");
+        for (int i = 0; i < this.numQuotedMessages; ++i) {
+            builder.append(String.format(
+                "On Mon, Jun %d, 2017 at 4:20 PM, Linda Garcia <linda@example.com> wrote:\n", i + 1));
+            builder.append("> Hi David,\n>\n> Any update on the migration? We need the numbers\n")
+                   .append("> for the quarterly review, and the team is waiting on it.\n>\n")
+                   .append("> Thanks,\n> Linda\n>\n");
+        }
+        this.thread = builder.toString();
+        // Loads the dictionaries and the English scorer.
+        new EnglishEmailTextParser().parse(this.thread);
+    }
+
+    @Benchmark
+    public String parseAll() {
+        return new EnglishEmailTextParser().parse(this.thread).getBody();
+    }
+
+    @Benchmark
+    public String parseNewContent() {
+        int newContentEnd = EnglishEmailTextParser.findNewContentEnd(this.thread);
+        return new EnglishEmailTextParser()
+            .parse(this.thread.substring(0, newContentEnd)).getBody();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(QuotedHistoryBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
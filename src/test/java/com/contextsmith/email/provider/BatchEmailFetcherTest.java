@@ -0,0 +1,271 @@
+package com.contextsmith.email.provider;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.contextsmith.email.store.MessageStore;
+import com.contextsmith.email.store.StoredMessage;
+import com.contextsmith.utils.MimeMessageUtil;
+
+public class BatchEmailFetcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Set<String> gmailIds(List<MimeMessage> messages) {
+        Set<String> ids = new HashSet<>();
+        for (MimeMessage message : messages) {
+            ids.add(MimeMessageUtil.getGmailMessageId(message));
+        }
+        return ids;
+    }
+
+    private static String mime(String id, String headers, String contentType, String body) {
+        return headers +
+               "Message-ID: <" + id + "@example.com>\r\n" +
+               "Date: Mon, 5 Oct 2026 09:30:00 -0700\r\n" +
+               "From: Alice <alice@example.com>\r\n" +
+               "To: Bob <bob@example.com>\r\n" +
+               "Subject: About " + id + "\r\n" +
+               "MIME-Version: 1.0\r\n" +
+               "Content-Type: " + contentType + "\r\n\r\n" +
+               body;
+    }
+
+    // A plain message, an HTML newsletter and a meeting invite.
+    private static FakeGmailServer setMimes(FakeGmailServer server) {
+        return server
+            .setMime(FakeGmailServer.messageId(0), mime(
+                "m0", "", "text/plain; charset=UTF-8", "Could you send the contract?\r\n"))
+            .setMime(FakeGmailServer.messageId(1), mime(
+                "m1", "List-Unsubscribe: <mailto:unsubscribe@example.com>\r\n",
+                "multipart/alternative; boundary=\"b1\"",
+                "--b1\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\n" +
+                "This week's news.\r\n" +
+                "--b1\r\nContent-Type: text/html; charset=UTF-8\r\n\r\n" +
+                "<html><body><p>This week's news.</p>" +
+                "<a href=\"https://example.com/u\">Unsubscribe</a></body></html>\r\n" +
+                "--b1--\r\n"))
+            .setMime(FakeGmailServer.messageId(2), mime(
+                "m2", "Sender: Google Calendar <calendar-notification@google.com>\r\n",
+                "multipart/alternative; boundary=\"b2\"",
+                "--b2\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\n" +
+                "You are invited.\r\n" +
+                "--b2\r\nContent-Type: text/calendar; charset=UTF-8; method=REQUEST\r\n\r\n" +
+                "BEGIN:VCALENDAR\r\nMETHOD:REQUEST\r\nBEGIN:VEVENT\r\n" +
+                "SUMMARY:Contract review\r\nEND:VEVENT\r\nEND:VCALENDAR\r\n" +
+                "--b2--\r\n"));
+    }
+
+    private static Map<String, Boolean> usefulness(List<MimeMessage> messages) {
+        EmailFilterer filterer = new EmailFilterer();
+        Map<String, Boolean> useful = new HashMap<>();
+        for (MimeMessage message : messages) {
+            useful.put(MimeMessageUtil.getGmailMessageId(message), filterer.isUseful(message));
+        }
+        return useful;
+    }
+
+    @Test
+    public void testFetchesWithoutWaitingWithinQuota() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(250, 100_000)) {
+            QuotaRateLimiter limiter = FakeGmailServer.newRateLimiter(1_000);
+            BatchEmailFetcher fetcher =
+                new BatchEmailFetcher(server.newGmailService(), limiter);
+            List<MimeMessage> messages = fetcher.fetchMimeMessages("me", "", 250);
+
+            assertEquals(250, messages.size());
+            assertEquals(250, gmailIds(messages).size());
+            assertEquals(3, server.getListRequests());
+            assertEquals(3, server.getBatchRequests());
+            assertEquals(0, limiter.getThrottledMillis());
+            assertEquals(0, limiter.getRateLimitErrors());
+            assertEquals(250 * QuotaRateLimiter.MESSAGES_GET_UNITS,
+                         limiter.getUnitsSucceeded());
+        }
+    }
+
+    @Test
+    public void testBacksOffOnRateLimitErrors() throws Exception {
+        // Gmail takes 300 messages per second; the limiter starts at 1000.
+        try (FakeGmailServer server = new FakeGmailServer(
+                 800, 300 * QuotaRateLimiter.MESSAGES_GET_UNITS)) {
+            QuotaRateLimiter limiter = FakeGmailServer.newRateLimiter(
+                1_000 * QuotaRateLimiter.MESSAGES_GET_UNITS);
+            BatchEmailFetcher fetcher =
+                new BatchEmailFetcher(server.newGmailService(), limiter);
+            List<MimeMessage> messages = fetcher.fetchMimeMessages("me", "", 800);
+
+            assertEquals(800, gmailIds(messages).size());
+            assertTrue(server.getRateLimitedRequests() > 0);
+            assertTrue(limiter.getRateLimitErrors() > 0);
+            assertTrue(limiter.getUnitsPerSec() < 1_000 * QuotaRateLimiter.MESSAGES_GET_UNITS);
+            assertTrue(limiter.getThrottledMillis() > 0);
+        }
+    }
+
+    @Test
+    public void testFetchesWhileListing() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(1_000, 100_000)) {
+            server.setListLatencyMillis(50).setBatchLatencyMillis(50);
+            BatchEmailFetcher fetcher = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000));
+            List<MimeMessage> messages = fetcher.fetchMimeMessages("me", "", 1_000);
+
+            assertEquals(1_000, gmailIds(messages).size());
+            assertTrue(server.isListingOverlapped());
+        }
+    }
+
+    @Test
+    public void testListingWaitsForFetching() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(3_000, 100_000)) {
+            server.setBatchLatencyMillis(100);
+            BatchEmailFetcher fetcher = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000));
+            List<MimeMessage> messages = fetcher.fetchMimeMessages("me", "", 3_000);
+
+            assertEquals(3_000, gmailIds(messages).size());
+            // Pages queued, being fetched, and being listed; one batch each.
+            assertTrue(server.getMaxListLead() <= BatchEmailFetcher.MAX_QUEUED_ID_PAGES +
+                       2 * BatchEmailFetcher.MAX_CONCURRENT_THREADS + 2);
+        }
+    }
+
+    @Test
+    public void testRetriesOnlyFailedMessages() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(250, 100_000)) {
+            server.setUnavailable("m7", 2).setUnavailable("m120", 1).setMissing("m42");
+            BatchEmailFetcher fetcher = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000));
+            List<MimeMessage> messages = fetcher.fetchMimeMessages("me", "", 250);
+
+            Set<String> ids = gmailIds(messages);
+            assertEquals(249, ids.size());
+            assertTrue(ids.contains("m7"));
+            assertTrue(ids.contains("m120"));
+            assertFalse(ids.contains("m42"));  // A 404 is not retried.
+            assertEquals(3, (int) fetcher.getFailureCounts().get(
+                BatchEmailFetcher.FetchFailure.SERVER_ERROR));
+            assertEquals(1, (int) fetcher.getFailureCounts().get(
+                BatchEmailFetcher.FetchFailure.NOT_FOUND));
+            // 3 batches of new IDs, and the retries in a few small ones.
+            assertTrue(server.getBatchRequests() <= 3 + 3);
+        }
+    }
+
+    @Test
+    public void testFetchesHeadersOnly() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(150, 100_000)) {
+            BatchEmailFetcher rawFetcher = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000));
+            rawFetcher.fetchMimeMessages("me", "", 150);
+            BatchEmailFetcher fetcher = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000))
+                .setHeadersOnly(true);
+            List<MimeMessage> messages = fetcher.fetchMimeMessages("me", "", 150);
+
+            assertEquals(150, gmailIds(messages).size());
+            MimeMessage message = messages.get(0);
+            assertEquals("<" + MimeMessageUtil.getGmailMessageId(message) + "@example.com>",
+                         MimeMessageUtil.getMessageId(message));
+            assertEquals(1, MimeMessageUtil.getValidSenders(message).size());
+            assertEquals("", MimeMessageUtil.extractPlainText(message));
+            assertTrue(fetcher.getBytesFetched() > 0);
+            assertTrue(fetcher.getBytesFetched() < rawFetcher.getBytesFetched());
+        }
+    }
+
+    @Test
+    public void testTakesStoredMessagesFromStore() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(150, 100_000)) {
+            MessageStore store = new MessageStore(folder.getRoot(), 1 << 20);
+            List<MimeMessage> fetched = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000))
+                .setMessageStore(store, "me@example.com")
+                .fetchMimeMessages("me", "", 150);
+            BatchEmailFetcher fetcher = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000))
+                .setMessageStore(store, "me@example.com");
+            List<MimeMessage> messages = fetcher.fetchMimeMessages("me", "", 150);
+
+            assertEquals(150, server.getGetRequests());
+            assertEquals(150, fetcher.getNumFromStore());
+            assertEquals(gmailIds(fetched), gmailIds(messages));
+            for (MimeMessage message : messages) {
+                assertEquals("<" + MimeMessageUtil.getGmailMessageId(message) + "@example.com>",
+                             MimeMessageUtil.getMessageId(message));
+            }
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void testRetriesBatchesFailingAtRuntime() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(150, 100_000)) {
+            AtomicBoolean hasThrown = new AtomicBoolean();
+            MessageStore store = new MessageStore(folder.getRoot(), 1 << 20) {
+                @Override
+                public void put(String source, StoredMessage message) {
+                    if (!hasThrown.getAndSet(true)) throw new IllegalStateException("broken");
+                }
+            };
+            List<MimeMessage> messages = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000))
+                .setMessageStore(store, "me@example.com")
+                .fetchMimeMessages("me", "", 150);
+
+            assertTrue(hasThrown.get());
+            assertEquals(150, gmailIds(messages).size());
+        }
+    }
+
+    @Test
+    public void testFiltersStoredMessagesAsFetched() throws Exception {
+        try (FakeGmailServer server = setMimes(new FakeGmailServer(3, 100_000))) {
+            MessageStore store = new MessageStore(folder.getRoot(), 1 << 20);
+            List<MimeMessage> fetched = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000))
+                .setMessageStore(store, "me@example.com")
+                .fetchMimeMessages("me", "", 3);
+            BatchEmailFetcher fetcher = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000))
+                .setMessageStore(store, "me@example.com");
+            List<MimeMessage> messages = fetcher.fetchMimeMessages("me", "", 3);
+
+            assertEquals(3, fetcher.getNumFromStore());
+            Map<String, Boolean> useful = usefulness(fetched);
+            assertTrue(useful.get("m0"));
+            assertFalse(useful.get("m1"));
+            assertFalse(useful.get("m2"));
+            assertEquals(useful, usefulness(messages));
+        }
+    }
+
+    @Test
+    public void testFiltersHeadersOnlyMessagesAsFetched() throws Exception {
+        try (FakeGmailServer server = setMimes(new FakeGmailServer(3, 100_000))) {
+            List<MimeMessage> fetched = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000))
+                .fetchMimeMessages("me", "", 3);
+            List<MimeMessage> messages = new BatchEmailFetcher(
+                server.newGmailService(), FakeGmailServer.newRateLimiter(100_000))
+                .setHeadersOnly(true)
+                .fetchMimeMessages("me", "", 3);
+
+            assertEquals(3, messages.size());
+            assertEquals(usefulness(fetched), usefulness(messages));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.contextsmith.email.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.contextsmith.email.provider.CrawlScheduler.ExecutionMode;
+import com.contextsmith.email.provider.CrawlScheduler.Provider;
+
+/**
+ * Crawling NUM_MAILBOXES mailboxes at once, each blocked on HTTP for
+ * PAGES_PER_CRAWL pages, with the default pool of crawl threads vs. one
+ * thread per crawl limited by the upstream's permits.  Prints the most
+ * crawls that ran at once; virtual threads need a Java 21+ JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class CrawlLoadBenchmark {
+
+    public static final int NUM_MAILBOXES = 1_000;
+    public static final int PAGES_PER_CRAWL = 5;
+    public static final long PAGE_MILLIS = 50;
+    // Gmail allows far more concurrent users than a node has threads.
+    public static final int UPSTREAM_PERMITS = 1_000;
+
+    @Param({"POOLED", "VIRTUAL"})
+    private ExecutionMode mode;
+
+    private CrawlScheduler scheduler;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int crawlLimit = (this.mode == ExecutionMode.POOLED) ?
+            CrawlScheduler.DEFAULT_CRAWL_THREADS : UPSTREAM_PERMITS;
+        this.scheduler = new CrawlScheduler(
+            this.mode, 1, 1, crawlLimit, CrawlScheduler.DEFAULT_PAGE_THREADS,
+            CrawlScheduler.DEFAULT_CALLBACK_PERMITS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.printf("%n%s: up to %d concurrent mailbox crawls%n",
+                          this.mode, this.maxRunning.get());
+    }
+
+    @Benchmark
+    public int crawlMailboxes() throws Exception {
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < NUM_MAILBOXES; ++i) {
+            futures.add(this.scheduler.submitCrawl(Provider.GOOGLE, "t" + (i % 10), () -> {
+                this.maxRunning.accumulateAndGet(this.running.incrementAndGet(), Math::max);
+                try {
+                    for (int page = 0; page < PAGES_PER_CRAWL; ++page) {
+                        Thread.sleep(PAGE_MILLIS);
+                    }
+                } finally {
+                    this.running.decrementAndGet();
+                }
+                return PAGES_PER_CRAWL;
+            }));
+        }
+        int pages = 0;
+        for (Future<Integer> future : futures) pages += future.get();
+        return pages;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(CrawlLoadBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,68 @@
+package com.contextsmith.email.provider;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.contextsmith.email.provider.CrawlScheduler.ExecutionMode;
+import com.contextsmith.email.provider.CrawlScheduler.Provider;
+
+public class CrawlSchedulerTest {
+
+    // Runs 'numCrawls' blocking crawls, and returns the most run at once.
+    private static int runCrawls(CrawlScheduler scheduler, int numCrawls)
+            throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < numCrawls; ++i) {
+            final int n = i;
+            futures.add(scheduler.submitCrawl(Provider.GOOGLE, "t" + (i % 3), () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(20);  // Blocked on HTTP.
+                running.decrementAndGet();
+                return n;
+            }));
+        }
+        for (int i = 0; i < numCrawls; ++i) {
+            assertEquals(i, (int) futures.get(i).get());
+        }
+        return maxRunning.get();
+    }
+
+    @Test
+    public void testPooledModeLimitsCrawlsByThreads() throws Exception {
+        CrawlScheduler scheduler = new CrawlScheduler(ExecutionMode.POOLED, 1, 1, 4, 4, 4);
+        int maxRunning = runCrawls(scheduler, 40);
+        assertTrue(maxRunning <= 4);
+        assertEquals(0, scheduler.getMetrics().get("crawls.google").get("active").intValue());
+    }
+
+    @Test
+    public void testVirtualModeLimitsCrawlsByPermits() throws Exception {
+        CrawlScheduler scheduler = new CrawlScheduler(ExecutionMode.VIRTUAL, 1, 1, 30, 4, 4);
+        int maxRunning = runCrawls(scheduler, 200);
+        assertTrue(maxRunning <= 30);
+        assertTrue(maxRunning > 4);
+        assertEquals(0, scheduler.getMetrics().get("crawls.google").get("active").intValue());
+        assertEquals(30, scheduler.getMetrics().get("crawls.google").get("permits").intValue());
+    }
+
+    @Test
+    public void testCallbacks() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        new CrawlScheduler(ExecutionMode.POOLED, 1, 1, 1, 1, 1)
+            .executeCallback(calls::incrementAndGet);
+        assertEquals(1, calls.get());  // On this thread.
+
+        CrawlScheduler scheduler = new CrawlScheduler(ExecutionMode.VIRTUAL, 1, 1, 1, 1, 1);
+        scheduler.executeCallback(calls::incrementAndGet);
+        for (int i = 0; i < 100 && calls.get() < 2; ++i) Thread.sleep(10);
+        assertEquals(2, calls.get());
+    }
+}
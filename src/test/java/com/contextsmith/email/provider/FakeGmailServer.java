@@ -0,0 +1,459 @@
+package com.contextsmith.email.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.gmail.Gmail;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local Gmail endpoint serving messages.list and batches of messages.get
+ * (format=raw or metadata) for a mailbox of generated messages.  Like Gmail, it answers
+ * 429 to the requests beyond a given number of quota units per second, and
+ * it can delay its responses to simulate latency.  Messages can be added and
+ * deleted, which getProfile and history.list tell about, and given MIME
+ * content instead of a generated one.
+ */
+public class FakeGmailServer implements AutoCloseable {
+
+    public static final int PAGE_SIZE = 100;
+    public static final String BOUNDARY = "batch_fake_gmail";
+
+    private static final Pattern GET_MESSAGE_PAT =
+        Pattern.compile("GET \\S*/messages/([^/?\\s]+)(\\S*)");
+    private static final Pattern PAGE_TOKEN_PAT = Pattern.compile("pageToken=(\\d+)");
+    private static final Pattern START_HISTORY_ID_PAT =
+        Pattern.compile("startHistoryId=(\\d+)");
+    private static final Pattern METADATA_HEADER_PAT =
+        Pattern.compile("metadataHeaders=([^&\\s]+)");
+    private static final Pattern QUERY_PAT = Pattern.compile("(?:^|&)q=([^&]*)");
+    private static final Pattern AFTER_PAT = Pattern.compile("(?:^|\\s)after:(\\d+)");
+    // How long before the server starts its first messages were received.
+    private static final long INITIAL_AGE_SECONDS = TimeUnit.DAYS.toSeconds(2);
+
+    public static String messageId(int i) {
+        return "m" + i;
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    // Gmail IDs as listed, newest first, and the changes to them.
+    private final List<String> mailbox = new ArrayList<>();
+    private final List<String> historyJson = new ArrayList<>();
+    // Epoch seconds at which each message was received, as "after:" matches.
+    private final Map<String, Long> receivedSeconds = new ConcurrentHashMap<>();
+    private long historyId = 1000;
+    private long firstHistoryId = 1000;  // Of the history still kept.
+    private int numAdded = 0;
+    private final int maxUnitsPerSecond;
+    private final Deque<Long> recentUnitNanos = new ArrayDeque<>();
+
+    private final AtomicInteger batchRequests = new AtomicInteger();
+    private final AtomicInteger getRequests = new AtomicInteger();
+    private final AtomicInteger listRequests = new AtomicInteger();
+    private final AtomicInteger historyRequests = new AtomicInteger();
+    private final AtomicInteger rateLimitedRequests = new AtomicInteger();
+    // Most list requests received before the batch requests of their IDs.
+    private final AtomicInteger maxListLead = new AtomicInteger();
+    // Gets answered with a 404, and with a 503 for the given number of times.
+    private final Set<String> missingIds = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> unavailableIds = new ConcurrentHashMap<>();
+    // MIME content of messages, instead of the generated one.
+    private final Map<String, String> mimes = new ConcurrentHashMap<>();
+    private volatile long listLatencyMillis = 0;
+    private volatile long batchLatencyMillis = 0;
+    private volatile long firstBatchNanos = Long.MAX_VALUE;
+    private volatile long lastListNanos = Long.MIN_VALUE;
+
+    public FakeGmailServer(int numMessages, int maxUnitsPerSecond) throws IOException {
+        long startSeconds = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < numMessages; ++i) {
+            this.mailbox.add(messageId(i));
+            this.receivedSeconds.put(messageId(i), startSeconds - INITIAL_AGE_SECONDS - i);
+        }
+        this.numAdded = numMessages;
+        this.maxUnitsPerSecond = maxUnitsPerSecond;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Returns true if a batch was requested before the last page was listed.
+     */
+    public boolean isListingOverlapped() {
+        return this.firstBatchNanos < this.lastListNanos;
+    }
+
+    public int getBatchRequests() {
+        return this.batchRequests.get();
+    }
+
+    public int getGetRequests() {
+        return this.getRequests.get();
+    }
+
+    public int getHistoryRequests() {
+        return this.historyRequests.get();
+    }
+
+    public int getListRequests() {
+        return this.listRequests.get();
+    }
+
+    public int getMaxListLead() {
+        return this.maxListLead.get();
+    }
+
+    public int getRateLimitedRequests() {
+        return this.rateLimitedRequests.get();
+    }
+
+    public String getRootUrl() {
+        return "http://localhost:" + this.server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Adds a new message on top of the mailbox, and returns its ID.
+     */
+    public synchronized String addMessage() {
+        String id = messageId(this.numAdded++);
+        this.mailbox.add(0, id);
+        this.receivedSeconds.put(id, System.currentTimeMillis() / 1000);
+        this.historyJson.add(historyJson(++this.historyId, "messagesAdded", id));
+        return id;
+    }
+
+    public synchronized void deleteMessage(String id) {
+        this.mailbox.remove(id);
+        this.missingIds.add(id);
+        this.historyJson.add(historyJson(++this.historyId, "messagesDeleted", id));
+    }
+
+    /**
+     * Forgets the history so far, as Gmail does after about a week.
+     */
+    public synchronized void expireHistory() {
+        this.historyJson.clear();
+        this.firstHistoryId = this.historyId;
+    }
+
+    public FakeGmailServer setMissing(String id) {
+        this.missingIds.add(id);
+        return this;
+    }
+
+    /** Serves 'mime', with CRLF line ends, as the content of message 'id'. */
+    public FakeGmailServer setMime(String id, String mime) {
+        this.mimes.put(id, mime);
+        return this;
+    }
+
+    public FakeGmailServer setUnavailable(String id, int times) {
+        this.unavailableIds.put(id, times);
+        return this;
+    }
+
+    public FakeGmailServer setBatchLatencyMillis(long millis) {
+        this.batchLatencyMillis = millis;
+        return this;
+    }
+
+    public FakeGmailServer setListLatencyMillis(long millis) {
+        this.listLatencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Returns a limiter of its own global limiter, so that no debt is left to
+     * other tests.
+     */
+    public static QuotaRateLimiter newRateLimiter(double unitsPerSec) {
+        return new QuotaRateLimiter("test", unitsPerSec, new QuotaRateLimiter(
+            "global", QuotaRateLimiter.DEFAULT_GLOBAL_UNITS_PER_SEC, null));
+    }
+
+    public Gmail newGmailService() {
+        return new Gmail.Builder(new NetHttpTransport(),
+                                 JacksonFactory.getDefaultInstance(), null)
+            .setRootUrl(getRootUrl())
+            .setApplicationName(getClass().getSimpleName())
+            .build();
+    }
+
+    // Returns true if the get of 'id' is to fail with a 503 this time.
+    private synchronized boolean takeUnavailable(String id) {
+        Integer times = this.unavailableIds.get(id);
+        if (times == null) return false;
+        if (times > 1) {
+            this.unavailableIds.put(id, times - 1);
+        } else {
+            this.unavailableIds.remove(id);
+        }
+        return true;
+    }
+
+    // Takes 'units' from the last second's quota, false if there are not enough.
+    private synchronized boolean takeUnits(int units) {
+        long now = System.nanoTime();
+        while (!this.recentUnitNanos.isEmpty() &&
+               now - this.recentUnitNanos.peekFirst() > 1_000_000_000L) {
+            this.recentUnitNanos.removeFirst();
+        }
+        if (this.recentUnitNanos.size() + units > this.maxUnitsPerSecond) return false;
+        for (int i = 0; i < units; ++i) this.recentUnitNanos.addLast(now);
+        return true;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String body = new String(readFully(exchange.getRequestBody()),
+                                 StandardCharsets.UTF_8);
+        // "/batch", or "/batch/gmail/v1" of newer clients.
+        if (path.startsWith("/batch")) {
+            handleBatch(exchange, body);
+        } else if (path.endsWith("/messages")) {
+            handleList(exchange);
+        } else if (path.endsWith("/history")) {
+            handleHistory(exchange);
+        } else if (path.endsWith("/profile")) {
+            respond(exchange, 200, "application/json; charset=UTF-8", profileJson());
+        } else {
+            respond(exchange, 404, "application/json", "{}");
+        }
+    }
+
+    private void handleBatch(HttpExchange exchange, String body) throws IOException {
+        synchronized (this) {
+            this.batchRequests.incrementAndGet();
+            this.firstBatchNanos = Math.min(this.firstBatchNanos, System.nanoTime());
+        }
+        sleep(this.batchLatencyMillis);
+        StringBuilder response = new StringBuilder();
+        Matcher m = GET_MESSAGE_PAT.matcher(body);
+        for (int part = 1; m.find(); ++part) {
+            this.getRequests.incrementAndGet();
+            response.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: response-").append(part).append("\r\n\r\n");
+            String id = m.group(1);
+            if (this.missingIds.contains(id)) {
+                response.append("HTTP/1.1 404 Not Found\r\n")
+                        .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                        .append(errorJson(404, "notFound")).append("\r\n");
+            } else if (takeUnavailable(id)) {
+                response.append("HTTP/1.1 503 Service Unavailable\r\n")
+                        .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                        .append(errorJson(503, "backendError")).append("\r\n");
+            } else if (takeUnits(QuotaRateLimiter.MESSAGES_GET_UNITS)) {
+                response.append("HTTP/1.1 200 OK\r\n")
+                        .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                        .append(m.group(2).contains("format=metadata") ?
+                                metadataJson(id, m.group(2)) : messageJson(id)).append("\r\n");
+            } else {
+                this.rateLimitedRequests.incrementAndGet();
+                response.append("HTTP/1.1 429 Too Many Requests\r\n")
+                        .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                        .append(errorJson(429, QuotaRateLimiter.RATE_LIMIT_EXCEEDED)).append("\r\n");
+            }
+        }
+        response.append("--").append(BOUNDARY).append("--\r\n");
+        respond(exchange, 200, "multipart/mixed; boundary=" + BOUNDARY,
+                response.toString());
+    }
+
+    private void handleList(HttpExchange exchange) throws IOException {
+        synchronized (this) {
+            int lead = this.listRequests.incrementAndGet() - this.batchRequests.get();
+            this.maxListLead.set(Math.max(this.maxListLead.get(), lead));
+        }
+        sleep(this.listLatencyMillis);
+        this.lastListNanos = System.nanoTime();
+        if (!takeUnits(QuotaRateLimiter.MESSAGES_LIST_UNITS)) {
+            this.rateLimitedRequests.incrementAndGet();
+            respond(exchange, 429, "application/json", errorJson(429, QuotaRateLimiter.RATE_LIMIT_EXCEEDED));
+            return;
+        }
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) query = "";
+        Matcher m = PAGE_TOKEN_PAT.matcher(query);
+        int begin = m.find() ? Integer.parseInt(m.group(1)) : 0;
+        // Only "after:" of the search query is followed.
+        m = QUERY_PAT.matcher(query);
+        m = AFTER_PAT.matcher(m.find() ? URLDecoder.decode(m.group(1), "UTF-8") : "");
+        long afterSeconds = m.find() ? Long.parseLong(m.group(1)) : Long.MIN_VALUE;
+        List<String> mailbox = new ArrayList<>();
+        synchronized (this) {
+            for (String id : this.mailbox) {
+                if (this.receivedSeconds.get(id) > afterSeconds) mailbox.add(id);
+            }
+        }
+        int end = Math.min(mailbox.size(), begin + PAGE_SIZE);
+
+        List<String> messages = new ArrayList<>();
+        for (String id : mailbox.subList(Math.min(begin, end), end)) {
+            messages.add(String.format("{\"id\":\"%s\",\"threadId\":\"t%s\"}",
+                                       id, id.substring(1)));
+        }
+        String json = "{\"messages\":[" + String.join(",", messages) + "]" +
+            (end < mailbox.size() ? ",\"nextPageToken\":\"" + end + "\"" : "") +
+            ",\"resultSizeEstimate\":" + mailbox.size() + "}";
+        respond(exchange, 200, "application/json; charset=UTF-8", json);
+    }
+
+    private void handleHistory(HttpExchange exchange) throws IOException {
+        this.historyRequests.incrementAndGet();
+        Matcher m = START_HISTORY_ID_PAT.matcher(exchange.getRequestURI().getRawQuery());
+        long startHistoryId = m.find() ? Long.parseLong(m.group(1)) : 0;
+        String json;
+        synchronized (this) {
+            if (startHistoryId < this.firstHistoryId) {
+                json = null;
+            } else {
+                // Records are numbered firstHistoryId + 1 on.
+                int begin = (int) Math.min(startHistoryId - this.firstHistoryId,
+                                           this.historyJson.size());
+                json = "{\"history\":[" +
+                    String.join(",", this.historyJson.subList(begin, this.historyJson.size())) +
+                    "],\"historyId\":\"" + this.historyId + "\"}";
+            }
+        }
+        if (json == null) {
+            respond(exchange, 404, "application/json", errorJson(404, "notFound"));
+        } else {
+            respond(exchange, 200, "application/json; charset=UTF-8", json);
+        }
+    }
+
+    private synchronized String profileJson() {
+        return String.format(
+            "{\"emailAddress\":\"me@example.com\",\"messagesTotal\":%d," +
+            "\"historyId\":\"%d\"}", this.mailbox.size(), this.historyId);
+    }
+
+    private static String historyJson(long historyId, String change, String id) {
+        return String.format(
+            "{\"id\":\"%d\",\"%s\":[{\"message\":{\"id\":\"%s\",\"threadId\":\"t%s\"}}]}",
+            historyId, change, id, id.substring(1));
+    }
+
+    // The headers asked for in 'query', and the type of the message.
+    private String metadataJson(String id, String query) throws IOException {
+        String mime = this.mimes.get(id);
+        if (mime == null) return metadataJson(id);
+
+        Set<String> names = new HashSet<>();
+        Matcher m = METADATA_HEADER_PAT.matcher(query);
+        while (m.find()) names.add(URLDecoder.decode(m.group(1), "UTF-8").toLowerCase(Locale.ROOT));
+        List<String> headers = new ArrayList<>();
+        String mimeType = "text/plain";
+        String head = mime.substring(0, mime.indexOf("\r\n\r\n"));
+        for (String line : head.split("\r\n(?![ \t])")) {
+            int colon = line.indexOf(':');
+            String name = line.substring(0, colon);
+            String value = line.substring(colon + 1).replaceAll("\r\n[ \t]+", " ").trim();
+            if (name.equalsIgnoreCase("Content-Type")) {
+                mimeType = value.split(";")[0].trim().toLowerCase(Locale.ROOT);
+            }
+            if (names.contains(name.toLowerCase(Locale.ROOT))) {
+                headers.add(String.format("{\"name\":\"%s\",\"value\":\"%s\"}",
+                                          name, escapeJson(value)));
+            }
+        }
+        return String.format(
+            "{\"id\":\"%s\",\"threadId\":\"t%s\",\"payload\":{\"mimeType\":\"%s\"," +
+            "\"headers\":[%s]}}", id, id.substring(1), mimeType, String.join(",", headers));
+    }
+
+    private static String escapeJson(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static String metadataJson(String id) {
+        return String.format(
+            "{\"id\":\"%s\",\"threadId\":\"t%s\",\"payload\":{\"headers\":[" +
+            "{\"name\":\"Message-ID\",\"value\":\"<%s@example.com>\"}," +
+            "{\"name\":\"From\",\"value\":\"sender@example.com\"}," +
+            "{\"name\":\"To\",\"value\":\"recipient@example.com\"}," +
+            "{\"name\":\"Subject\",\"value\":\"Message %s\"}]}}",
+            id, id.substring(1), id, id);
+    }
+
+    private String messageJson(String id) {
+        String mime = this.mimes.get(id);
+        if (mime == null) {
+            mime = "Message-ID: <" + id + "@example.com>\r\n" +
+                   "From: sender@example.com\r\n" +
+                   "To: recipient@example.com\r\n" +
+                   "Subject: Message " + id + "\r\n\r\n" +
+                   "Body of " + id + "\r\n";
+        }
+        String raw = Base64.getUrlEncoder().encodeToString(
+            mime.getBytes(StandardCharsets.UTF_8));
+        return String.format("{\"id\":\"%s\",\"threadId\":\"t%s\",\"raw\":\"%s\"}",
+                             id, id.substring(1), raw);
+    }
+
+    private static String errorJson(int code, String reason) {
+        return String.format(
+            "{\"error\":{\"errors\":[{\"domain\":\"global\",\"reason\":\"%s\"," +
+            "\"message\":\"%s\"}],\"code\":%d,\"message\":\"%s\"}}",
+            reason, reason, code, reason);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int code, String contentType,
+                                String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
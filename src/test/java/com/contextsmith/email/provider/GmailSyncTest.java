@@ -0,0 +1,256 @@
+package com.contextsmith.email.provider;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.contextsmith.utils.MimeMessageUtil;
+import com.google.api.client.util.store.DataStoreFactory;
+import com.google.api.client.util.store.FileDataStoreFactory;
+import com.google.api.client.util.store.MemoryDataStoreFactory;
+
+public class GmailSyncTest {
+
+    private static final String ACCOUNT = "me@example.com";
+    private static final long MAX_CACHED_BYTES = 16 << 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Set<String> gmailIds(List<MimeMessage> messages) {
+        Set<String> ids = new HashSet<>();
+        for (MimeMessage message : messages) {
+            ids.add(MimeMessageUtil.getGmailMessageId(message));
+        }
+        return ids;
+    }
+
+    private static BatchEmailFetcher newFetcher(FakeGmailServer server) {
+        return new BatchEmailFetcher(server.newGmailService(),
+                                     FakeGmailServer.newRateLimiter(100_000));
+    }
+
+    @Test
+    public void testFetchesOnlyAddedMessages() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(250, 100_000)) {
+            GmailSync sync = new GmailSync(new MemoryDataStoreFactory(), MAX_CACHED_BYTES);
+            List<MimeMessage> messages =
+                sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 1_000);
+            assertEquals(250, gmailIds(messages).size());
+            assertEquals(250, server.getGetRequests());
+
+            String added1 = server.addMessage();
+            String added2 = server.addMessage();
+            server.deleteMessage("m5");
+            int listRequests = server.getListRequests();
+            messages = sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 1_000);
+
+            Set<String> ids = gmailIds(messages);
+            assertEquals(251, ids.size());
+            assertTrue(ids.contains(added1));
+            assertTrue(ids.contains(added2));
+            assertFalse(ids.contains("m5"));
+            assertEquals(250 + 2, server.getGetRequests());
+            assertEquals(1, server.getHistoryRequests());
+            assertEquals(1, sync.getNumCrawlsFromScratch());
+            assertEquals(1, sync.getNumIncrementalCrawls());
+            // Only the added messages are listed, to match them to the query.
+            assertEquals(1, server.getListRequests() - listRequests);
+        }
+    }
+
+    @Test
+    public void testServerListsOnlyMessagesAfter() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(150, 100_000)) {
+            long afterSeconds = System.currentTimeMillis() / 1000 - 60;
+            String added1 = server.addMessage();
+            String added2 = server.addMessage();
+            BatchEmailFetcher fetcher = newFetcher(server);
+
+            assertEquals(Arrays.asList(added2, added1), fetcher.listMessageIds(
+                UserInboxCrawler.DEFAULT_GMAIL_USER, "after:" + afterSeconds, 1_000));
+            assertEquals(Arrays.asList(added2, added1), fetcher.listMessageIds(
+                UserInboxCrawler.DEFAULT_GMAIL_USER, "subject:other after:" + afterSeconds, 1_000));
+            assertEquals(152, fetcher.listMessageIds(
+                UserInboxCrawler.DEFAULT_GMAIL_USER, "", 1_000).size());
+        }
+    }
+
+    @Test
+    public void testBackfillsDeletedMessages() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(150, 100_000)) {
+            GmailSync sync = new GmailSync(new MemoryDataStoreFactory(), MAX_CACHED_BYTES);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 100);
+            server.deleteMessage("m3");
+            server.deleteMessage("m4");
+            List<MimeMessage> messages = sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 100);
+
+            Set<String> ids = gmailIds(messages);
+            assertEquals(100, ids.size());
+            assertFalse(ids.contains("m3"));
+            assertTrue(ids.contains("m100"));
+            assertTrue(ids.contains("m101"));
+            // Only the older messages are fetched.
+            assertEquals(100 + 2, server.getGetRequests());
+            assertEquals(1, sync.getNumIncrementalCrawls());
+        }
+    }
+
+    @Test
+    public void testEvictsLeastRecentlySyncedStates() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(20, 100_000)) {
+            GmailSync sync = new GmailSync(new MemoryDataStoreFactory(), MAX_CACHED_BYTES, 2);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "subject:a", 100);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "subject:b", 100);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "subject:a", 100);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "subject:c", 100);
+            assertEquals(2, sync.getNumStates());
+            assertEquals(3, sync.getNumCrawlsFromScratch());
+
+            // Of "b", the least recently synced.
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "subject:a", 100);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "subject:b", 100);
+            assertEquals(4, sync.getNumCrawlsFromScratch());
+        }
+    }
+
+    @Test
+    public void testDropsExpiredStates() throws Exception {
+        DataStoreFactory factory = new MemoryDataStoreFactory();
+        long now = System.currentTimeMillis();
+        HashMap<String, GmailSync.SyncState> states = new HashMap<>();
+        states.put("expired", new GmailSync.SyncState(
+            BigInteger.ONE, now - GmailSync.MAX_STATE_AGE_MILLIS, now, 100, Arrays.asList("m0")));
+        states.put("fresh", new GmailSync.SyncState(
+            BigInteger.ONE, now, now, 100, Arrays.asList("m0")));
+        factory.<HashMap<String, GmailSync.SyncState>>getDataStore(GmailSync.STATE_STORE_ID)
+            .set(GmailSync.STATES_KEY, states);
+
+        GmailSync sync = new GmailSync(factory, MAX_CACHED_BYTES);
+        assertEquals(1, sync.getNumStates());
+        sync.flush();
+        assertEquals(1, new GmailSync(factory, MAX_CACHED_BYTES).getNumStates());
+    }
+
+    @Test
+    public void testFetchesNothingWithoutChanges() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(150, 100_000)) {
+            GmailSync sync = new GmailSync(new MemoryDataStoreFactory(), MAX_CACHED_BYTES);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 1_000);
+            int listRequests = server.getListRequests();
+            List<MimeMessage> messages =
+                sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 1_000);
+
+            assertEquals(150, gmailIds(messages).size());
+            assertEquals(150, server.getGetRequests());
+            assertEquals(listRequests, server.getListRequests());
+        }
+    }
+
+    @Test
+    public void testReturnsCopiesOfCachedMessages() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(10, 100_000)) {
+            GmailSync sync = new GmailSync(new MemoryDataStoreFactory(), MAX_CACHED_BYTES);
+            BatchEmailFetcher fetcher = newFetcher(server).setHeadersOnly(true);
+            for (MimeMessage message : sync.fetchMimeMessages(fetcher, ACCOUNT, "", 100)) {
+                message.addHeader(MimeMessageUtil.SOURCE_INBOX_HEADER, ACCOUNT);
+            }
+            fetcher = newFetcher(server).setHeadersOnly(true);
+            List<MimeMessage> messages = sync.fetchMimeMessages(fetcher, ACCOUNT, "", 100);
+
+            assertEquals(10, server.getGetRequests());
+            for (MimeMessage message : messages) {
+                assertEquals("<" + MimeMessageUtil.getGmailMessageId(message) + "@example.com>",
+                             MimeMessageUtil.getMessageId(message));
+                assertNull(message.getHeader(MimeMessageUtil.SOURCE_INBOX_HEADER));
+            }
+        }
+    }
+
+    @Test
+    public void testCrawlsFromScratchOnceHistoryExpired() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(120, 100_000)) {
+            GmailSync sync = new GmailSync(new MemoryDataStoreFactory(), MAX_CACHED_BYTES);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 1_000);
+            server.addMessage();
+            server.expireHistory();
+            List<MimeMessage> messages =
+                sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 1_000);
+
+            assertEquals(121, gmailIds(messages).size());
+            assertEquals(2, sync.getNumCrawlsFromScratch());
+            assertEquals(0, sync.getNumIncrementalCrawls());
+        }
+    }
+
+    @Test
+    public void testKeepsStateAcrossInstances() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(120, 100_000)) {
+            new GmailSync(new FileDataStoreFactory(folder.getRoot()), MAX_CACHED_BYTES)
+                .fetchMimeMessages(newFetcher(server), ACCOUNT, "", 1_000);
+            String added = server.addMessage();
+            // Nothing cached: the messages are fetched by ID, without listing them all.
+            GmailSync sync = new GmailSync(new FileDataStoreFactory(folder.getRoot()), MAX_CACHED_BYTES);
+            int listRequests = server.getListRequests();
+            List<MimeMessage> messages =
+                sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 1_000);
+
+            assertTrue(gmailIds(messages).contains(added));
+            assertEquals(121, messages.size());
+            assertEquals(1, sync.getNumIncrementalCrawls());
+            assertTrue(server.getListRequests() - listRequests <= 2);
+        }
+    }
+
+    @Test
+    public void testKeepsSourcesApart() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(50, 100_000)) {
+            GmailSync sync = new GmailSync(new MemoryDataStoreFactory(), MAX_CACHED_BYTES);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 1_000);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "subject:other", 1_000);
+            sync.fetchMimeMessages(newFetcher(server).setHeadersOnly(true), ACCOUNT, "", 1_000);
+
+            assertEquals(3, sync.getNumCrawlsFromScratch());
+        }
+    }
+
+    @Test
+    public void testCachesUpToMaxBytes() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(150, 100_000)) {
+            GmailSync sync = new GmailSync(new MemoryDataStoreFactory(), 10_000);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 1_000);
+
+            assertTrue(sync.getNumCachedMessages() > 0);
+            assertTrue(sync.getNumCachedMessages() < 150);
+        }
+    }
+
+    @Test
+    public void testBatchesStateWrites() throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(50, 100_000)) {
+            GmailSync sync = new GmailSync(new FileDataStoreFactory(folder.getRoot()),
+                                           MAX_CACHED_BYTES);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "", 1_000);
+            sync.fetchMimeMessages(newFetcher(server), ACCOUNT, "subject:other", 1_000);
+            assertEquals(2, sync.getNumStates());
+            // Only the first state is written at once.
+            assertEquals(1, new GmailSync(new FileDataStoreFactory(folder.getRoot()),
+                                          MAX_CACHED_BYTES).getNumStates());
+
+            sync.flush();
+            assertEquals(2, new GmailSync(new FileDataStoreFactory(folder.getRoot()),
+                                          MAX_CACHED_BYTES).getNumStates());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.contextsmith.email.provider;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonError.ErrorInfo;
+import com.google.common.base.Ticker;
+
+public class QuotaRateLimiterTest {
+
+    private static class FakeTicker extends Ticker {
+        long nanos = 0;
+
+        @Override
+        public long read() {
+            return this.nanos;
+        }
+
+        void advanceMillis(long millis) {
+            this.nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    private static GoogleJsonError error(int code, String reason) {
+        ErrorInfo info = new ErrorInfo();
+        info.setReason(reason);
+        GoogleJsonError error = new GoogleJsonError();
+        error.setCode(code);
+        error.setErrors(Arrays.asList(info));
+        return error;
+    }
+
+    @Test
+    public void testReserveWaitsForDebt() {
+        FakeTicker ticker = new FakeTicker();
+        QuotaRateLimiter limiter = new QuotaRateLimiter("test", 100, null, ticker);
+
+        // The bucket starts full (200 units), and a request may overdraw it.
+        assertEquals(0, limiter.reserve(150));
+        assertEquals(0, limiter.reserve(150));
+        // 100 units in debt at 100 units/sec.
+        assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.reserve(10));
+
+        ticker.advanceMillis(1_100);  // Refills 110 units.
+        assertEquals(0, limiter.reserve(10));
+        ticker.advanceMillis(60_000);  // Refills up to the burst size only.
+        assertEquals(0, limiter.reserve(200));
+        assertEquals(0, limiter.reserve(1));
+        assertTrue(limiter.reserve(1) > 0);
+        assertEquals(522, limiter.getUnitsAcquired());
+    }
+
+    @Test
+    public void testAdaptsToRateLimitErrors() {
+        FakeTicker ticker = new FakeTicker();
+        QuotaRateLimiter limiter = new QuotaRateLimiter("test", 100, null, ticker);
+
+        limiter.onRateLimited(error(429, QuotaRateLimiter.RATE_LIMIT_EXCEEDED));
+        assertEquals(50, limiter.getUnitsPerSec(), 1e-9);
+        // Errors of requests sent before the back-off do not back off again.
+        limiter.onRateLimited(error(429, QuotaRateLimiter.RATE_LIMIT_EXCEEDED));
+        assertEquals(50, limiter.getUnitsPerSec(), 1e-9);
+        assertEquals(2, limiter.getRateLimitErrors());
+        // Requests pause for the back-off interval.
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(QuotaRateLimiter.BACKOFF_INTERVAL_MILLIS),
+                     limiter.reserve(1), 1e3);
+
+        for (int i = 0; i < 10; ++i) {
+            ticker.advanceMillis(QuotaRateLimiter.BACKOFF_INTERVAL_MILLIS);
+            limiter.onRateLimited(error(429, QuotaRateLimiter.RATE_LIMIT_EXCEEDED));
+        }
+        assertEquals(100 * QuotaRateLimiter.MIN_SLOWDOWN, limiter.getUnitsPerSec(), 1e-9);
+
+        for (int i = 0; i < 100_000; ++i) limiter.onSuccess(QuotaRateLimiter.MESSAGES_GET_UNITS);
+        assertEquals(100 * QuotaRateLimiter.MAX_SPEEDUP, limiter.getUnitsPerSec(), 1e-9);
+    }
+
+    @Test
+    public void testBacksOffInjectedGlobalLimiter() {
+        FakeTicker ticker = new FakeTicker();
+        QuotaRateLimiter global = new QuotaRateLimiter("global", 100, null, ticker);
+        QuotaRateLimiter limiter = new QuotaRateLimiter("test", 1_000, global, ticker);
+
+        // Only a 403 rateLimitExceeded is about the project's quota.
+        limiter.onRateLimited(error(429, QuotaRateLimiter.RATE_LIMIT_EXCEEDED));
+        assertEquals(0, global.getRateLimitErrors());
+        ticker.advanceMillis(QuotaRateLimiter.BACKOFF_INTERVAL_MILLIS);
+        limiter.onRateLimited(error(403, QuotaRateLimiter.RATE_LIMIT_EXCEEDED));
+        assertEquals(1, global.getRateLimitErrors());
+        assertEquals(50, global.getUnitsPerSec(), 1e-9);
+    }
+
+    @Test
+    public void testIsRateLimitError() {
+        assertTrue(QuotaRateLimiter.isRateLimitError(error(429, "anything")));
+        assertTrue(QuotaRateLimiter.isRateLimitError(
+            error(403, QuotaRateLimiter.USER_RATE_LIMIT_EXCEEDED)));
+        assertTrue(QuotaRateLimiter.isRateLimitError(
+            error(403, QuotaRateLimiter.RATE_LIMIT_EXCEEDED)));
+        assertFalse(QuotaRateLimiter.isRateLimitError(error(403, "dailyLimitExceeded")));
+        assertFalse(QuotaRateLimiter.isRateLimitError(error(404, "notFound")));
+        assertFalse(QuotaRateLimiter.isRateLimitError(null));
+    }
+}
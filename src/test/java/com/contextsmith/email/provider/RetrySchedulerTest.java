@@ -0,0 +1,55 @@
+package com.contextsmith.email.provider;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RetrySchedulerTest {
+
+    @Test
+    public void testBacksOffExponentiallyWithJitter() {
+        RetryScheduler<String> retries =
+            new RetryScheduler<>(10, 100, 1_000, new Random(42));
+        for (int i = 0; i < 100; ++i) {
+            long first = retries.computeDelayMillis(1);
+            assertTrue(first >= 50 && first <= 100);
+            long third = retries.computeDelayMillis(3);
+            assertTrue(third >= 200 && third <= 400);
+            // Capped at the max delay, even when the shift would overflow.
+            long last = retries.computeDelayMillis(100);
+            assertTrue(last >= 500 && last <= 1_000);
+        }
+    }
+
+    @Test
+    public void testGivesUpAfterMaxRetries() throws Exception {
+        RetryScheduler<String> retries =
+            new RetryScheduler<>(2, 0, 0, new Random(42));
+        assertTrue(retries.schedule("a", 1));
+        assertTrue(retries.schedule("a", 2));
+        assertFalse(retries.schedule("a", 3));
+        assertEquals(2, retries.getNumScheduled());
+        assertEquals(1, retries.getNumExhausted());
+        assertEquals(2, retries.size());
+
+        RetryScheduler.Retry<String> retry = retries.poll(1, TimeUnit.SECONDS);
+        assertEquals("a", retry.getItem());
+        assertNotNull(retries.poll(1, TimeUnit.SECONDS));
+        assertTrue(retries.isEmpty());
+    }
+
+    @Test
+    public void testHoldsItemsUntilDue() throws Exception {
+        RetryScheduler<String> retries =
+            new RetryScheduler<>(5, 200, 200, new Random(42));
+        retries.schedule("slow", 1);
+        assertNull(retries.poll());
+        assertNull(retries.poll(50, TimeUnit.MILLISECONDS));
+        RetryScheduler.Retry<String> retry = retries.poll(1, TimeUnit.SECONDS);
+        assertEquals("slow", retry.getItem());
+        assertEquals(1, retry.getFailures());
+    }
+}
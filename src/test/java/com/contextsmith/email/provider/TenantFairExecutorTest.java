@@ -0,0 +1,85 @@
+package com.contextsmith.email.provider;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TenantFairExecutorTest {
+
+    @Test
+    public void testServesTenantsInTurn() throws Exception {
+        TenantFairExecutor executor = new TenantFairExecutor("test", 1, 100);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        executor.submit("a", () -> {
+            started.countDown();
+            return blocked.await(10, TimeUnit.SECONDS);
+        });
+        started.await();
+
+        // Tenant 'a' queues 4 tasks before 'b' queues 2.
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 4; ++i) {
+            executor.submit("a", () -> order.add("a"));
+        }
+        for (int i = 0; i < 2; ++i) {
+            executor.submit("b", () -> order.add("b"));
+        }
+        assertEquals(6, executor.getNumQueued());
+        blocked.countDown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        // 'a' queued its first task ahead of 'b', so it goes first.
+        assertEquals(Arrays.asList("a", "b", "a", "b", "a", "a"), order);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRejectsWhenSaturated() throws Exception {
+        TenantFairExecutor executor = new TenantFairExecutor("test", 2, 1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            futures.add(executor.submit("a", () -> blocked.await(10, TimeUnit.SECONDS)));
+        }
+        assertTrue(executor.isSaturated());
+        try {
+            executor.submit("b", () -> true);
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, executor.getNumRejected());
+        }
+        blocked.countDown();
+        for (Future<Boolean> future : futures) {
+            assertTrue(future.get());
+        }
+        assertFalse(executor.isSaturated());
+        assertTrue(executor.submit("b", () -> true).get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testUnboundedQueue() throws Exception {
+        TenantFairExecutor executor =
+            new TenantFairExecutor("test", 1, TenantFairExecutor.UNBOUNDED);
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 1_000; ++i) {
+            final int n = i;
+            futures.add(executor.submit("t" + (i % 7), () -> n));
+        }
+        assertFalse(executor.isSaturated());
+        int sum = 0;
+        for (Future<Integer> future : futures) sum += future.get();
+        assertEquals(999 * 1_000 / 2, sum);
+        executor.shutdown();
+    }
+}
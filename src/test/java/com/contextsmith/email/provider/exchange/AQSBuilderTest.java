@@ -0,0 +1,48 @@
+package com.contextsmith.email.provider.exchange;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Test;
+
+public class AQSBuilderTest {
+
+    @Test
+    public void testToQueriesWithoutAddresses() {
+        assertEquals(Collections.singletonList("subject:Hi"),
+                     new AQSBuilder().subject("Hi").toQueries(null, 100));
+        assertEquals(Collections.singletonList(""),
+                     new AQSBuilder((String) null).toQueries(Collections.emptyList(), 100));
+    }
+
+    @Test
+    public void testToQueriesOfAddresses() throws Exception {
+        List<InternetAddress> addresses = Arrays.asList(
+                new InternetAddress("A@example.com"), new InternetAddress("b@example.com"),
+                new InternetAddress("a@example.com"));
+        assertEquals(Collections.singletonList(
+                         "subject:Hi (participants:a@example.com OR participants:b@example.com)"),
+                     new AQSBuilder().subject("Hi").toQueries(addresses, 100));
+        assertEquals(Collections.singletonList("(participants:a@example.com)"),
+                     new AQSBuilder().toQueries(addresses.subList(0, 1), 100));
+    }
+
+    @Test
+    public void testToQueriesSplitsLongQueries() throws Exception {
+        List<InternetAddress> addresses = Arrays.asList(
+                new InternetAddress("a@example.com"), new InternetAddress("b@example.com"),
+                new InternetAddress("c@example.com"));
+        List<String> queries = new AQSBuilder().subject("Hi").toQueries(addresses, 70);
+
+        assertEquals(Arrays.asList(
+                         "subject:Hi (participants:a@example.com OR participants:b@example.com)",
+                         "subject:Hi (participants:c@example.com)"),
+                     queries);
+        for (String query : queries) assertTrue(query.length() <= 70);
+    }
+}
@@ -0,0 +1,267 @@
+package com.contextsmith.email.provider.exchange;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+import microsoft.exchange.webservices.data.core.ExchangeService;
+
+public class MimeMessageProducerTest {
+
+    private static final Pattern PARTICIPANT_PAT = Pattern.compile("participants:([^\\s)]+)");
+
+    /**
+     * An inbox of generated messages standing in for findItems and
+     * loadPropertiesForItems, which takes 'latencyMillis' per page.  Message
+     * i is from sender(i % NUM_SENDERS), and a query with "participants:"
+     * clauses finds only the messages of those senders.
+     */
+    static class FakeInboxProducer extends MimeMessageProducer {
+        private final int numMessages;
+        private final long latencyMillis;
+        private final AtomicInteger pageRequests = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+        private volatile int maxOffsetRequested = -1;
+        private volatile int failAtOffset = -1;
+        // The page found at this offset has items, but none are messages.
+        private volatile int noMessagesAtOffset = -1;
+        private final AtomicInteger itemsFound = new AtomicInteger();
+
+        FakeInboxProducer(int numMessages, long latencyMillis) {
+            super(null);
+            this.numMessages = numMessages;
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        Page fetchPage(String query, int offset, int size) throws Exception {
+            this.pageRequests.incrementAndGet();
+            int now = this.running.incrementAndGet();
+            this.maxRunning.accumulateAndGet(now, Math::max);
+            synchronized (this) {
+                this.maxOffsetRequested = Math.max(this.maxOffsetRequested, offset);
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(this.latencyMillis);
+                if (offset == this.failAtOffset) throw new IllegalStateException("page " + offset);
+                List<Integer> found = find(query);
+                List<MimeMessage> messages = new ArrayList<>();
+                int end = Math.min(found.size(), offset + size);
+                List<Integer> items = found.subList(Math.min(offset, end), end);
+                for (int i : items) {
+                    if (offset == this.noMessagesAtOffset) break;
+                    MimeMessage mime = new MimeMessage(session);
+                    mime.addHeader("Message-ID", "<" + i + "@example.com>");
+                    mime.setFrom(new InternetAddress(sender(i % NUM_SENDERS)));
+                    mime.setText("Body of " + i);
+                    messages.add(mime);
+                }
+                this.itemsFound.addAndGet(messages.size());
+                return new Page(messages, items.size(), end < found.size(), found.size());
+            } finally {
+                this.running.decrementAndGet();
+            }
+        }
+
+        private List<Integer> find(String query) {
+            Set<String> participants = new HashSet<>();
+            Matcher m = PARTICIPANT_PAT.matcher(query == null ? "" : query);
+            while (m.find()) participants.add(m.group(1));
+            List<Integer> found = new ArrayList<>();
+            for (int i = 0; i < this.numMessages; ++i) {
+                if (participants.isEmpty() || participants.contains(sender(i % NUM_SENDERS))) {
+                    found.add(i);
+                }
+            }
+            return found;
+        }
+    }
+
+    static final int NUM_SENDERS = 20;
+
+    static String sender(int i) {
+        return "sender" + i + "@example.com";
+    }
+
+    private static List<String> messageIds(List<MimeMessage> messages) throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (MimeMessage message : messages) ids.add(message.getMessageID());
+        return ids;
+    }
+
+    private static List<String> expectedIds(int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; ++i) ids.add("<" + i + "@example.com>");
+        return ids;
+    }
+
+    @Test
+    public void testProducesPagesInOrder() throws Exception {
+        FakeInboxProducer producer = new FakeInboxProducer(230, 10);
+        producer.pageSize(50).pagesInFlight(4);
+        List<MimeMessage> messages = producer.asFlux().collectList().block();
+
+        assertEquals(expectedIds(230), messageIds(messages));
+    }
+
+    @Test
+    public void testStopsAtMaxMessages() throws Exception {
+        FakeInboxProducer producer = new FakeInboxProducer(1_000, 0);
+        producer.pageSize(50).pagesInFlight(4).maxMessages(120);
+        List<MimeMessage> messages = producer.asFlux().collectList().block();
+
+        assertEquals(expectedIds(120), messageIds(messages));
+        assertEquals(3, producer.pageRequests.get());  // 50 + 50 + 20.
+        assertEquals(100, producer.maxOffsetRequested);
+    }
+
+    @Test
+    public void testKeepsPagesInFlight() throws Exception {
+        FakeInboxProducer producer = new FakeInboxProducer(400, 50);
+        producer.pageSize(50).pagesInFlight(4);
+        long start = System.nanoTime();
+        List<MimeMessage> messages = producer.asFlux().collectList().block();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(400, messages.size());
+        assertTrue(producer.maxRunning.get() > 1);
+        assertTrue(producer.maxRunning.get() <= 4);
+        assertTrue(millis < 8 * 50);  // The time of 8 pages one after another.
+    }
+
+    @Test
+    public void testRequestsNoPagesBeyondTheLast() throws Exception {
+        FakeInboxProducer producer = new FakeInboxProducer(60, 0);
+        producer.pageSize(50).pagesInFlight(4);
+        List<MimeMessage> messages = producer.asFlux().collectList().block();
+
+        assertEquals(60, messages.size());
+        // Those requested before the first page told the number of items.
+        assertTrue(producer.pageRequests.get() <= 4);
+        assertTrue(producer.maxOffsetRequested <= 150);
+    }
+
+    @Test
+    public void testGoesOnPastPagesWithoutMessages() throws Exception {
+        FakeInboxProducer producer = new FakeInboxProducer(230, 0);
+        producer.pageSize(50).pagesInFlight(4);
+        producer.noMessagesAtOffset = 50;
+        List<MimeMessage> messages = producer.asFlux().collectList().block();
+
+        List<String> expected = expectedIds(230);
+        expected.subList(50, 100).clear();
+        assertEquals(expected, messageIds(messages));
+    }
+
+    @Test
+    public void testFailsWithTheFailingPage() throws Exception {
+        FakeInboxProducer producer = new FakeInboxProducer(400, 0);
+        producer.pageSize(50).pagesInFlight(4);
+        producer.failAtOffset = 100;
+        List<MimeMessage> received = new ArrayList<>();
+        try {
+            producer.asFlux().doOnNext(received::add).blockLast();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("page 100", e.getMessage());
+        }
+        assertEquals(expectedIds(100), messageIds(received));
+    }
+
+    @Test
+    public void testProducesEachItemOfSeveralQueriesOnce() throws Exception {
+        FakeInboxProducer producer = new FakeInboxProducer(400, 0);
+        producer.pageSize(50).queries(Arrays.asList(
+                "participants:" + sender(1), "participants:" + sender(2),
+                "(participants:" + sender(1) + " OR participants:" + sender(3) + ")"));
+        List<MimeMessage> messages = producer.asFlux().collectList().block();
+
+        Set<String> ids = new HashSet<>(messageIds(messages));
+        assertEquals(messages.size(), ids.size());
+        assertEquals(3 * 400 / NUM_SENDERS, ids.size());
+    }
+
+    @Test
+    public void testFindsOnlyMessagesOfClusters() throws Exception {
+        List<InternetAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) addresses.add(new InternetAddress(sender(i)));
+        // Small enough for a query per couple of addresses.
+        List<String> queries = new AQSBuilder("sent:01/01/17..12/31/17").toQueries(addresses, 100);
+        assertTrue(queries.size() > 1);
+
+        FakeInboxProducer unfiltered = new FakeInboxProducer(2_000, 0);
+        List<MimeMessage> all = unfiltered.asFlux().collectList().block();
+        FakeInboxProducer filtered = new FakeInboxProducer(2_000, 0);
+        List<MimeMessage> found = filtered.queries(queries).asFlux().collectList().block();
+
+        assertEquals(2_000, unfiltered.itemsFound.get());
+        assertEquals(5 * 2_000 / NUM_SENDERS, filtered.itemsFound.get());
+        Set<String> expected = new HashSet<>();
+        for (MimeMessage message : all) {
+            if (addresses.contains(message.getFrom()[0])) expected.add(message.getMessageID());
+        }
+        assertEquals(expected, new HashSet<>(messageIds(found)));
+    }
+
+    @Test
+    public void testFetchesEachPageInFlightWithItsOwnService() throws Exception {
+        Set<ExchangeService> busy = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<ExchangeService> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        AtomicInteger shared = new AtomicInteger();
+        ExchangeService original = new ExchangeService();
+        MimeMessageProducer producer = new MimeMessageProducer(original) {
+            @Override
+            ExchangeService newService(ExchangeService service) {
+                return new ExchangeService();
+            }
+
+            @Override
+            Page fetchPage(ExchangeService service, String query, int offset, int size)
+                    throws Exception {
+                synchronized (busy) {
+                    if (!busy.add(service)) shared.incrementAndGet();
+                    used.add(service);
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(20);
+                    List<MimeMessage> messages = new ArrayList<>();
+                    for (int i = offset; i < Math.min(400, offset + size); ++i) {
+                        MimeMessage mime = new MimeMessage(session);
+                        mime.addHeader("Message-ID", "<" + i + "@example.com>");
+                        mime.setText("Body of " + i);
+                        messages.add(mime);
+                    }
+                    return new Page(messages, messages.size(), offset + size < 400, 400);
+                } finally {
+                    synchronized (busy) {
+                        busy.remove(service);
+                    }
+                }
+            }
+        };
+        List<MimeMessage> messages = producer.pageSize(50).pagesInFlight(4)
+                .asFlux().collectList().block();
+
+        assertEquals(expectedIds(400), messageIds(messages));
+        assertEquals(0, shared.get());
+        assertTrue(used.contains(original));
+        assertTrue(used.size() > 1);
+        assertTrue(used.size() <= 4);
+    }
+}
@@ -0,0 +1,130 @@
+package com.contextsmith.email.store;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.contextsmith.utils.MimeMessageUtil;
+import com.contextsmith.utils.MimeMessageUtil.BodyTrait;
+
+public class MessageStoreTest {
+
+    private static final String SOURCE = "me@example.com";
+    private static final Session SESSION = Session.getDefaultInstance(new Properties());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static StoredMessage message(int i, String text) throws Exception {
+        MimeMessage mime = new MimeMessage(SESSION);
+        mime.setText(text == null ? "" : text);
+        mime.addHeader("Message-ID", "<" + i + "@example.com>");
+        mime.addHeader("Date", "Tue, 4 Jul 2017 10:00:00 -0700");
+        mime.addHeader("From", "Sender <sender@example.com>");
+        mime.addHeader("To", "a@example.com,\r\n b@example.com");
+        mime.addHeader("Subject", "Message " + i);
+        mime.addHeader("X-Unstored", "x");
+        return StoredMessage.from(mime, "g" + i, text != null);
+    }
+
+    @Test
+    public void testRebuildsMessages() throws Exception {
+        MessageStore store = new MessageStore(folder.getRoot(), 1 << 20);
+        store.put(SOURCE, message(1, "Hello there"));
+        store.put(SOURCE, message(2, null));
+
+        StoredMessage stored = store.getByProviderId(SOURCE, "g1");
+        assertEquals("<1@example.com>", stored.getMessageId());
+        MimeMessage mime = stored.toMimeMessage(SESSION, true);
+        assertEquals("<1@example.com>", MimeMessageUtil.getMessageId(mime));
+        assertEquals("Message 1", mime.getSubject());
+        assertEquals(2, MimeMessageUtil.getValidRecipientTo(mime).size());
+        assertNotNull(MimeMessageUtil.getSentDate(mime));
+        assertNull(mime.getHeader("X-Unstored"));
+        assertEquals("Hello there", MimeMessageUtil.extractPlainText(mime).trim());
+        assertEquals("", MimeMessageUtil.extractPlainText(stored.toMimeMessage(SESSION, false)));
+
+        stored = store.getByMessageId(SOURCE, "<2@example.com>");
+        assertFalse(stored.hasText());
+        assertNull(store.getByProviderId(SOURCE, "g3"));
+        assertNull(store.getByProviderId("other@example.com", "g1"));
+        assertEquals(2, store.getNumHits());
+        assertEquals(2, store.getNumMisses());
+    }
+
+    @Test
+    public void testReplacesEarlierRecords() throws Exception {
+        MessageStore store = new MessageStore(folder.getRoot(), 1 << 20);
+        store.put(SOURCE, message(1, null));
+        store.put(SOURCE, message(1, "Now with text"));
+
+        assertTrue(store.getByProviderId(SOURCE, "g1").hasText());
+        assertTrue(new MessageStore(folder.getRoot(), 1 << 20)
+                       .getByMessageId(SOURCE, "<1@example.com>").hasText());
+    }
+
+    @Test
+    public void testReloadsIndexAndDropsBrokenTail() throws Exception {
+        MessageStore store = new MessageStore(folder.getRoot(), 1 << 20);
+        for (int i = 0; i < 10; ++i) store.put(SOURCE, message(i, "Text " + i));
+        long size = store.getSizeBytes(SOURCE);
+        // A record cut short, as by a crash while appending.
+        File segment = folder.getRoot().listFiles()[0].listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        store = new MessageStore(folder.getRoot(), 1 << 20);
+        assertNotNull(store.getByProviderId(SOURCE, "g8"));
+        assertNull(store.getByProviderId(SOURCE, "g9"));
+        assertTrue(store.getSizeBytes(SOURCE) < size - 5);
+        store.put(SOURCE, message(9, "Text 9"));
+        assertEquals("Text 9", new MessageStore(folder.getRoot(), 1 << 20)
+                                   .getByProviderId(SOURCE, "g9").getPlainText().trim());
+    }
+
+    @Test
+    public void testCompactsToSizeCap() throws Exception {
+        char[] text = new char[1_000];
+        Arrays.fill(text, 'x');
+        MessageStore store = new MessageStore(folder.getRoot(), 20_000);
+        for (int i = 0; i < 100; ++i) store.put(SOURCE, message(i, new String(text)));
+
+        assertTrue(store.getSizeBytes(SOURCE) <= 20_000);
+        assertNotNull(store.getByProviderId(SOURCE, "g99"));  // The newest are kept.
+        assertNull(store.getByProviderId(SOURCE, "g0"));
+        assertEquals(1, folder.getRoot().listFiles()[0].listFiles().length);
+        assertNotNull(new MessageStore(folder.getRoot(), 20_000).getByProviderId(SOURCE, "g99"));
+    }
+
+    @Test
+    public void testKeepsBodyTraits() throws Exception {
+        MimeMessage mime = new MimeMessage(SESSION);
+        mime.setContent("<p>Click to un<b>subscribe</b></p>", "text/html");
+        mime.addHeader("Message-ID", "<1@example.com>");
+        mime.saveChanges();
+        StoredMessage stored = StoredMessage.from(mime, "g1", true);
+        StoredMessage headersOnly = message(2, null);
+
+        assertTrue(stored.hasBodyTraits());
+        assertEquals(EnumSet.of(BodyTrait.SUBSCRIBE_HTML),
+                     MimeMessageUtil.getBodyTraits(stored.toMimeMessage(SESSION, true)));
+        assertEquals(EnumSet.of(BodyTrait.SUBSCRIBE_HTML),
+                     MimeMessageUtil.getBodyTraits(stored.toMimeMessage(SESSION, false)));
+        assertTrue(message(3, "Plain").hasBodyTraits());
+        assertTrue(MimeMessageUtil.getBodyTraits(message(3, "Plain").toMimeMessage(SESSION, true))
+                       .isEmpty());
+        assertFalse(headersOnly.hasBodyTraits());
+    }
+}
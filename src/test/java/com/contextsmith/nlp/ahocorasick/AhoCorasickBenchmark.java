@@ -0,0 +1,91 @@
+package com.contextsmith.nlp.ahocorasick;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.contextsmith.nlp.annotator.FirstNameAnnotator;
+
+/**
+ * Compares the iterator search (which copies the text into a char[] and
+ * allocates per hit) with the streaming visitor search.  Run main() to get
+ * the "gc.alloc.rate.norm" numbers from the GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AhoCorasickBenchmark {
+
+    private AhoCorasick ahoCorasick;
+    private String text;
+
+    private static final String[] NAMES = {
+        "Aaron", "Mary", "William", "Jennifer", "Richard", "Patricia", "Joseph"
+    };
+
+    @Setup
+    public void setUp() {
+        this.ahoCorasick = FirstNameAnnotator.getInstance().getAhoCorasick();
+
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; ++i) {
+            if (random.nextInt(5) == 0) {
+                builder.append(NAMES[random.nextInt(NAMES.length)]);
+            } else {
+                builder.append("Thanks for the quick reply");
+            }
+            builder.append(", ");
+        }
+        this.text = builder.toString();
+    }
+
+    @Benchmark
+    public long iteratorSearch() {
+        long hash = 0;
+        Iterator<SearchResult> iter =
+            this.ahoCorasick.search(this.text.toLowerCase().toCharArray());
+        while (iter.hasNext()) {
+            SearchResult result = iter.next();
+            for (int output : result.getOutputs()) {
+                hash = 31 * hash + result.getLastIndex() + output;
+            }
+        }
+        return hash;
+    }
+
+    @Benchmark
+    public long visitorSearch() {
+        long[] hash = new long[1];
+        this.ahoCorasick.search(this.text, true, (endOffset, output) -> {
+            hash[0] = 31 * hash[0] + endOffset + output;
+            return true;
+        });
+        return hash[0];
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(AhoCorasickBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
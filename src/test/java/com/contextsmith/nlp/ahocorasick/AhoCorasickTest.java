@@ -0,0 +1,95 @@
+package com.contextsmith.nlp.ahocorasick;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AhoCorasickTest {
+
+    private static AhoCorasick build(String... keywords) {
+        AhoCorasick tree = new AhoCorasick();
+        for (int i = 0; i < keywords.length; ++i) {
+            tree.add(keywords[i].toCharArray(), i);
+        }
+        tree.prepare();
+        return tree;
+    }
+
+    private static List<String> search(AhoCorasick tree, String text) {
+        List<String> results = new ArrayList<>();
+        Iterator<SearchResult> iter = tree.search(text.toCharArray());
+        while (iter.hasNext()) {
+            SearchResult result = iter.next();
+            results.add(result.getLastIndex() + ":" + Arrays.toString(result.getOutputs()));
+        }
+        return results;
+    }
+
+    @Test
+    public void testOverlappingKeywords() {
+        AhoCorasick tree = build("he", "she", "his", "hers");
+        assertEquals(Arrays.asList("7:[1, 0]", "13:[3]"), search(tree, "I'm she, hers."));
+    }
+
+    @Test
+    public void testWordBoundary() {
+        AhoCorasick tree = build("ann", "anna");
+        // "ann" must not match in the middle of "annabelle".
+        assertEquals(Arrays.asList(), search(tree, "annabelle"));
+        assertEquals(Arrays.asList("4:[1]"), search(tree, "anna!"));
+    }
+
+    @Test
+    public void testNonAsciiAndMissingChars() {
+        AhoCorasick tree = build("josé", "zoë");
+        assertEquals(Arrays.asList("4:[0]", "12:[1]"), search(tree, "josé und zoë"));
+        assertTrue(search(tree, "中文").isEmpty());
+    }
+
+    @Test
+    public void testVisitorMatchesIterator() {
+        AhoCorasick tree = build("he", "she", "his", "hers", "ann");
+        String text = "I'm she, hers. Annabelle, ann!";
+        List<String> results = new ArrayList<>();
+        tree.search(text, false, (endOffset, output) -> {
+            results.add(endOffset + ":" + output);
+            return true;
+        });
+        assertEquals(Arrays.asList("7:1", "7:0", "13:3", "29:4"), results);
+
+        // Case folding and offset range.
+        results.clear();
+        tree.search(text, 15, text.length(), true, (endOffset, output) -> {
+            results.add(endOffset + ":" + output);
+            return true;
+        });
+        assertEquals(Arrays.asList("29:4"), results);
+
+        // Stop after the first match.
+        results.clear();
+        tree.search(text, false, (endOffset, output) -> {
+            results.add(endOffset + ":" + output);
+            return false;
+        });
+        assertEquals(Arrays.asList("7:1"), results);
+    }
+
+    @Test
+    public void testHasPrefix() {
+        AhoCorasick tree = build("hello", "help");
+        assertTrue(tree.hasPrefix("hel".toCharArray()));
+        assertTrue(tree.hasPrefix("help".toCharArray()));
+        assertFalse(tree.hasPrefix("hex".toCharArray()));
+        assertFalse(tree.hasPrefix("x".toCharArray()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterPrepare() {
+        build("hello").add("world".toCharArray(), 1);
+    }
+}
@@ -0,0 +1,70 @@
+package com.contextsmith.nlp.annotator;
+
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static com.contextsmith.nlp.annotator.SharedDictionary.*;
+import static org.junit.Assert.*;
+
+public class SharedDictionaryTest {
+
+    // The line feature annotators, each with its own automaton as before
+    // they shared one.
+    private static AbstractAnnotator[] separate;
+
+    @BeforeClass
+    public static void compileSeparateAnnotators() {
+        SharedDictionary unloaded = SharedDictionary.createLineFeatureDictionary();
+        separate = unloaded.getMembers();
+        for (int i = 0; i < separate.length; ++i) {
+            separate[i].loadData(unloaded.getDataPaths()[i]);
+            separate[i].compile();
+        }
+    }
+
+    // Checks the shared dictionary and its views against the separate annotators.
+    private static void assertMatchesSeparate(String line) {
+        SharedDictionary shared = SharedDictionary.getInstance();
+        int matches = shared.match(line);
+        for (int i = 0; i < separate.length; ++i) {
+            assertNotSame(separate[i], shared.getMember(i));
+            List<Annotation> expected = separate[i].annotate(line);
+            assertEquals(line, expected, shared.getMember(i).annotate(line));
+            assertEquals(line, !expected.isEmpty(), hasMatch(matches, i));
+        }
+    }
+
+    @Test
+    public void testMatch() {
+        int matches = SharedDictionary.getInstance().match("Dear William,");
+        assertTrue(hasMatch(matches, SALUTATION));
+        assertTrue(hasMatch(matches, FIRST_NAME));
+        assertFalse(hasMatch(matches, VALEDICTION));
+
+        matches = SharedDictionary.getInstance().match("Best regards,");
+        assertTrue(hasMatch(matches, VALEDICTION));
+        assertFalse(hasMatch(matches, SALUTATION));
+        assertFalse(hasMatch(matches, FIRST_NAME));
+    }
+
+    @Test
+    public void testLastNameIsCaseSensitive() {
+        assertFalse(LastNameAnnotator.getInstance().annotate("Johnson").isEmpty());
+        assertTrue(LastNameAnnotator.getInstance().annotate("johnson").isEmpty());
+        assertTrue(LastNameAnnotator.getInstance().annotate("JOHNSON").isEmpty());
+        // The first name dictionary ignores case.
+        assertFalse(FirstNameAnnotator.getInstance().annotate("johnson").isEmpty());
+    }
+
+    @Test
+    public void testMatchesSeparateAnnotators() {
+        String[] lines = {
+            "Hi William,", "Dear Mr. Brown:", "Best regards,", "-- Will", "Cheers!",
+            "You guys", "Thanks William, appreciated it,", "O'brien", "O'Brien",
+            "mary", "MARY", "Mary Johnson", "Sincerely, john doe"
+        };
+        for (String line : lines) assertMatchesSeparate(line);
+    }
+}
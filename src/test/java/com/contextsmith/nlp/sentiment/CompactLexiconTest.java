@@ -0,0 +1,88 @@
+package com.contextsmith.nlp.sentiment;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.contextsmith.nlp.annotator.Annotation;
+
+public class CompactLexiconTest {
+
+    private static void assertEntryEquals(LexiconEntry expected, LexiconEntry actual) {
+        assertNotNull(actual);
+        assertEquals(expected.pmiScore, actual.pmiScore, 0);
+        assertEquals(expected.numPositive, actual.numPositive);
+        assertEquals(expected.numNegative, actual.numNegative);
+    }
+
+    @Test
+    public void testMatchesTextLexicon() throws IOException {
+        LexiconLoader loader = new LexiconLoader();
+        loader.load(LexiconLoader.DEFAULT_UNIGRAM_LEXICON_PATH);
+        CompactLexicon lexicon = CompactLexicon.build(loader.getEntryMap());
+
+        assertEquals(loader.getEntryMap().size(), lexicon.size());
+        for (Map.Entry<String, LexiconEntry> entry : loader.getEntryMap().entrySet()) {
+            assertEntryEquals(entry.getValue(), lexicon.get(entry.getKey()));
+        }
+        assertNull(lexicon.get("no-such-sentiment-word"));
+        assertNull(lexicon.get(""));
+    }
+
+    @Test
+    public void testGetLowerCase() {
+        LexiconEntry great = new LexiconEntry();
+        great.pmiScore = 1.5;
+        great.numPositive = 3;
+        great.numNegative = 1;
+        LexiconEntry notGreat = new LexiconEntry();
+        notGreat.pmiScore = -0.5;
+        notGreat.numPositive = 1;
+        notGreat.numNegative = 2;
+        Map<String, LexiconEntry> entryMap = new HashMap<>();
+        entryMap.put("great", great);
+        entryMap.put("not great", notGreat);
+        entryMap.put("café", great);
+        CompactLexicon lexicon = CompactLexicon.build(entryMap);
+
+        assertEntryEquals(great, lexicon.getLowerCase(
+            Arrays.asList(new Annotation("GreaT"))));
+        assertEntryEquals(notGreat, lexicon.getLowerCase(
+            Arrays.asList(new Annotation("Not"), new Annotation("great"))));
+        assertEntryEquals(great, lexicon.getLowerCase(
+            Arrays.asList(new Annotation("CAFÉ"))));
+        assertNull(lexicon.getLowerCase(
+            Arrays.asList(new Annotation("not"), new Annotation("good"))));
+        assertNull(lexicon.getLowerCase(Arrays.asList(new Annotation("notgreat"))));
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        LexiconLoader loader = new LexiconLoader();
+        loader.load(LexiconLoader.DEFAULT_UNIGRAM_LEXICON_PATH);
+        CompactLexicon lexicon = CompactLexicon.build(loader.getEntryMap());
+
+        File file = File.createTempFile("sentiment-lexicon", ".bin");
+        file.deleteOnExit();
+        lexicon.write(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CompactLexicon mapped = CompactLexicon.wrap(buffer);
+            assertEquals(lexicon.size(), mapped.size());
+            for (Map.Entry<String, LexiconEntry> entry : loader.getEntryMap().entrySet()) {
+                assertEntryEquals(entry.getValue(), mapped.get(entry.getKey()));
+            }
+        }
+    }
+}
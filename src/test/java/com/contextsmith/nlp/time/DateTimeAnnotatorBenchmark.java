@@ -0,0 +1,67 @@
+package com.contextsmith.nlp.time;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.contextsmith.nlp.annotator.Annotation;
+
+/**
+ * Sentences annotated by the shared DateTimeAnnotator per second, on 1 to 8
+ * threads at once, in time zones changing from call to call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DateTimeAnnotatorBenchmark {
+
+    private static final String SENTENCE =
+        "We will be moving the team outing to next thursday, March 3rd at 5pm.";
+
+    private ZonedDateTime[] baseDates;
+
+    @Setup
+    public void setUp() {
+        ZonedDateTime baseDate = ZonedDateTime.of(2017, 7, 4, 16, 38, 0, 0, ZoneId.of("UTC"));
+        this.baseDates = new ZonedDateTime[] {
+            baseDate,
+            baseDate.withZoneSameInstant(ZoneId.of("America/Los_Angeles")),
+            baseDate.withZoneSameInstant(ZoneId.of("Asia/Tokyo")),
+        };
+        DateTimeAnnotator.getInstance().annotate(SENTENCE, baseDate);
+    }
+
+    @Benchmark
+    public List<Annotation> annotate() {
+        ZonedDateTime baseDate =
+            this.baseDates[(int) (Thread.currentThread().getId() % this.baseDates.length)];
+        return DateTimeAnnotator.getInstance().annotate(SENTENCE, baseDate);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            new Runner(new OptionsBuilder()
+                .include(DateTimeAnnotatorBenchmark.class.getSimpleName())
+                .threads(threads)
+                .build()).run();
+        }
+    }
+}
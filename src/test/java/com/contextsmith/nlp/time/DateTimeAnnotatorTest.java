@@ -0,0 +1,95 @@
+package com.contextsmith.nlp.time;
+
+import static org.junit.Assert.*;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.contextsmith.nlp.annotator.Annotation;
+import com.joestelmach.natty.DateGroup;
+
+public class DateTimeAnnotatorTest {
+
+    private static final String[] TEXTS = {
+        "I will send the contract by next Friday.",
+        "We are meeting on March 3rd at 5pm.",
+        "Please reply before tomorrow 1am.",
+        "The assignment is due Jan. 28, 2016, right before our final exam.",
+        "Let's talk on Thursday at 10:30.",
+        "We will be moving the team outing to next thursday, March 3rd.",
+        "Nothing to see here.",
+    };
+
+    private static final String[] ZONES = {
+        "America/Los_Angeles", "UTC", "Asia/Tokyo", "Europe/Berlin",
+    };
+
+    private static final ZonedDateTime BASE_DATE =
+            ZonedDateTime.of(2017, 7, 4, 16, 38, 0, 0, ZoneId.of("UTC"));
+
+    // What was found in 'text', with the dates in 'zone'.
+    private static String describe(String text, ZoneId zone) {
+        ZonedDateTime baseDate = BASE_DATE.withZoneSameInstant(zone);
+        DateTimeFormatter dayFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+        DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+        StringBuilder builder = new StringBuilder();
+        for (Annotation ann : DateTimeAnnotator.getInstance().annotate(text, baseDate)) {
+            DateGroup group = DateTimeAnnotator.getPayload(ann);
+            builder.append(ann.getText()).append(':');
+            for (Date date : group.getDates()) {
+                ZonedDateTime zdt = ZonedDateTime.ofInstant(date.toInstant(), zone);
+                builder.append((group.isTimeInferred() ? dayFormat : timeFormat).format(zdt))
+                       .append(',');
+            }
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testUsesTimeZoneOfBaseDate() {
+        String text = "We are meeting on March 3rd at 5pm.";
+        assertTrue(describe(text, ZoneId.of("UTC")).contains("-03-03 17:00"));
+        assertTrue(describe(text, ZoneId.of("Asia/Tokyo")).contains("-03-03 17:00"));
+    }
+
+    @Test
+    public void testMatchesSingleThreadedParsing() throws Exception {
+        List<String> expected = new ArrayList<>();
+        for (String zone : ZONES) {
+            for (String text : TEXTS) expected.add(describe(text, ZoneId.of(zone)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; ++t) {
+                final int offset = t;
+                futures.add(executor.submit(() -> {
+                    int mismatches = 0;
+                    for (int i = 0; i < 50 * expected.size(); ++i) {
+                        // Each thread goes through the zones and texts in its own order.
+                        int index = (offset * 7 + i * 3) % expected.size();
+                        String zone = ZONES[index / TEXTS.length];
+                        String text = TEXTS[index % TEXTS.length];
+                        if (!expected.get(index).equals(describe(text, ZoneId.of(zone)))) {
+                            ++mismatches;
+                        }
+                    }
+                    return mismatches;
+                }));
+            }
+            for (Future<Integer> future : futures) assertEquals(0, future.get().intValue());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
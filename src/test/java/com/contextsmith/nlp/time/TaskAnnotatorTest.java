@@ -1,8 +1,16 @@
 package com.contextsmith.nlp.time;
 
 import com.contextsmith.nlp.annotator.Annotation;
+import com.contextsmith.nlp.annotator.SentenceAnnotator;
+import com.google.common.io.Resources;
+import com.joestelmach.natty.DateGroup;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -12,6 +20,58 @@ import static org.junit.Assert.*;
  */
 public class TaskAnnotatorTest {
 
+    private static final String FIXTURE = "/task-annotator/sentences.txt";
+    private static final String CORPUS_DIR = "/email-text-parser/";
+    private static final String[] CORPUS = {
+        "01-simple", "02-quoted-gmail", "03-outlook-header", "04-no-salutation",
+        "05-short", "06-champion", "07-french-header", "08-thread",
+        "09-signature-block", "10-one-liner", "11-sent-from-phone", "12-list"
+    };
+    private static final String[] TEST_CASES = {
+        "Let me know if it doesn't work and I'll come over tomorrow.",
+        "Let me know if it doesn't work and I'll reschedule tomorrow.",
+        "Let me know if it doesn't work and I'll schedule tomorrow.",
+        "I am available this weekend. Have a nice weekend!",
+    };
+    private static final ZonedDateTime BASE_DATE =
+            ZonedDateTime.of(2017, 7, 4, 16, 38, 0, 0, ZoneId.of("America/Los_Angeles"));
+
+    private static String readResource(String path) throws IOException {
+        return Resources.toString(TaskAnnotatorTest.class.getResource(path),
+                                  StandardCharsets.UTF_8);
+    }
+
+    // The sentences of the fixture, the corpus of the email text parser and
+    // the cases of this test.
+    private static List<String> readSentences() throws IOException {
+        List<String> sentences = new ArrayList<>();
+        for (String line : readResource(FIXTURE).split("\n")) {
+            if (!line.trim().isEmpty() && !line.startsWith("#")) sentences.add(line.trim());
+        }
+        List<String> texts = new ArrayList<>();
+        for (String name : CORPUS) texts.add(readResource(CORPUS_DIR + name + ".txt"));
+        for (String testCase : TEST_CASES) texts.add(testCase);
+        for (String text : texts) {
+            for (Annotation sentence : SentenceAnnotator.getInstance().annotate(text)) {
+                sentences.add(sentence.getText());
+            }
+        }
+        return sentences;
+    }
+
+    private static String toString(List<Annotation> tasks) {
+        StringBuilder builder = new StringBuilder();
+        for (Annotation task : tasks) {
+            Annotation date = TaskAnnotator.getPayload(task);
+            DateGroup group = DateTimeAnnotator.getPayload(date);
+            builder.append(task.getText()).append(" -> ").append(date.getText());
+            // An inferred time may be taken from the clock.
+            if (!group.isTimeInferred()) builder.append(' ').append(group.getDates());
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
     @Test
     public void testReschedule() {
         List<Annotation> anns = TaskAnnotator.getInstance().annotate("Let me know if it doesn't work and I'll come over tomorrow.");
@@ -24,6 +84,46 @@ public class TaskAnnotatorTest {
         assertTrue(anns.size() == 0);
     }
 
+    @Test
+    public void testPrefilterKeepsEveryDate() throws IOException {
+        int numWithDates = 0;
+        int numFiltered = 0;
+        List<String> missed = new ArrayList<>();
+        for (String sentence : readSentences()) {
+            boolean hasDate = false;
+            for (Annotation date : DateTimeAnnotator.getInstance().annotate(sentence, BASE_DATE)) {
+                if (!TaskAnnotator.NON_CRUCIAL_DATE_PATTERN.matcher(date.getText()).find()) {
+                    hasDate = true;
+                }
+            }
+            boolean mayHaveDate = TaskAnnotator.MAY_HAVE_DATE_TIME.matcher(sentence).find();
+            if (hasDate) ++numWithDates;
+            if (hasDate && !mayHaveDate) missed.add(sentence);
+            if (!mayHaveDate) ++numFiltered;
+        }
+        // Recall must be 100%; most sentences without dates are filtered.
+        assertEquals(new ArrayList<String>(), missed);
+        assertTrue(numWithDates >= 30);
+        assertTrue(numFiltered >= 30);
+    }
 
+    @Test
+    public void testPrefilterChangesNoTasks() throws IOException {
+        TaskAnnotator filtered = new TaskAnnotator();
+        TaskAnnotator unfiltered = new TaskAnnotator();
+        unfiltered.setDatePrefiltered(false);
+        for (String sentence : readSentences()) {
+            assertEquals(sentence, toString(unfiltered.annotate(sentence, BASE_DATE)),
+                         toString(filtered.annotate(sentence, BASE_DATE)));
+        }
+    }
 
-}
\ No newline at end of file
+    @Test
+    public void testPrefilterSkipsSentencesWithoutDates() {
+        assertFalse(TaskAnnotator.MAY_HAVE_DATE_TIME.matcher("I will send it over.").find());
+        assertFalse(TaskAnnotator.MAY_HAVE_DATE_TIME.matcher("We are working on the fix.").find());
+        assertFalse(TaskAnnotator.MAY_HAVE_DATE_TIME.matcher("I am adding notes, as we discussed.").find());
+        assertTrue(TaskAnnotator.MAY_HAVE_DATE_TIME.matcher("I'll call you at five.").find());
+        assertTrue(TaskAnnotator.MAY_HAVE_DATE_TIME.matcher("We are meeting on Weds.").find());
+    }
+}
@@ -0,0 +1,77 @@
+package com.contextsmith.utils;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.Test;
+
+public class MimeMessageUtilTest {
+
+    private static final Session SESSION = Session.getDefaultInstance(new Properties());
+
+    private static final String MIME =
+        "Message-ID: <m1@example.com>\r\n" +
+        "From: Linda Garcia <linda@example.com>\r\n" +
+        "To: david@example.com\r\n" +
+        "Subject: Quarterly review\r\n" +
+        "MIME-Version: 1.0\r\n" +
+        "Content-Type: multipart/alternative; boundary=\"b1\"\r\n\r\n" +
+        "--b1\r\n" +
+        "Content-Type: text/plain; charset=UTF-8\r\n\r\n" +
+        "Hi David, the numbers are in. über\r\n" +
+        "--b1\r\n" +
+        "Content-Type: text/html; charset=UTF-8\r\n\r\n" +
+        "<p>Hi David, the numbers are in.</p>\r\n" +
+        "--b1--\r\n";
+
+    private static void assertParsed(MimeMessage message) throws Exception {
+        assertEquals("<m1@example.com>", MimeMessageUtil.getMessageId(message));
+        assertEquals("Quarterly review", message.getSubject());
+        MimeMultipart parts = (MimeMultipart) message.getContent();
+        assertEquals(2, parts.getCount());
+        assertEquals("Hi David, the numbers are in. über",
+                     parts.getBodyPart(0).getContent().toString().trim());
+    }
+
+    @Test
+    public void testParseBase64Url() throws Exception {
+        assertParsed(MimeMessageUtil.parseBase64Url(
+            SESSION, Base64.getUrlEncoder().encodeToString(MIME.getBytes(StandardCharsets.UTF_8))));
+
+        // Lengths with each amount of padding, with and without it.
+        for (String body : new String[] {"Hi", "Hi!", "Hi!!"}) {
+            byte[] bytes = ("Subject: Hi\r\n\r\n" + body).getBytes(StandardCharsets.UTF_8);
+            for (Base64.Encoder encoder : new Base64.Encoder[] {
+                     Base64.getUrlEncoder(), Base64.getUrlEncoder().withoutPadding()}) {
+                MimeMessage message =
+                    MimeMessageUtil.parseBase64Url(SESSION, encoder.encodeToString(bytes));
+                assertEquals(body, message.getContent());
+            }
+        }
+    }
+
+    @Test
+    public void testParseBase64UrlSpilled() throws Exception {
+        SpillFile spillFile = new SpillFile(SpillFile.DEFAULT_MAX_FILE_BYTES);
+        byte[] bytes = MIME.getBytes(StandardCharsets.UTF_8);
+        MimeMessage message = MimeMessageUtil.parseBase64Url(
+            SESSION, Base64.getUrlEncoder().encodeToString(bytes), spillFile);
+        assertParsed(message);
+        assertArrayEquals(bytes, MimeMessageUtil.toBytes(message));
+    }
+
+    @Test
+    public void testParseBase64UrlLeniently() throws Exception {
+        // The standard alphabet with line breaks is decoded too.
+        String mime = Base64.getMimeEncoder().encodeToString(
+            MIME.getBytes(StandardCharsets.UTF_8));
+        assertParsed(MimeMessageUtil.parseBase64Url(SESSION, mime));
+    }
+}
@@ -0,0 +1,152 @@
+package com.contextsmith.utils;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Parsing a Gmail raw message by decoding it into a byte[] which
+ * MimeMessage copies, vs. MimeMessageUtil.parseBase64Url() without and with
+ * a SpillFile.  The benchmarks report the bytes allocated per message
+ * (gc.alloc.rate.norm of the GC profiler); main() first prints the heap
+ * each parsed message keeps, see measureRetainedBytes().
+ *
+ * Only parseSpilled() keeps the body off the heap; the other two keep the
+ * whole decoded message.  Retained bytes per message on JDK 17, -Xmx2g:
+ *
+ *   attachmentKb    copied    shared   spilled
+ *              1      2867      2957      1260
+ *             64     80897     91604      1012
+ *           1024   1450626   1443106       487
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RawMessageBenchmark {
+
+    private static final Session SESSION = Session.getDefaultInstance(new Properties());
+
+    // Size of the attachment of the synthetic message, in KB.
+    @Param({"1", "64", "1024"})
+    private int attachmentKb;
+
+    private String raw;
+    private final SpillFile spillFile = new SpillFile(SpillFile.DEFAULT_MAX_FILE_BYTES);
+
+    @Setup
+    public void setUp() {
+        byte[] attachment = new byte[this.attachmentKb * 1024];
+        new Random(42).nextBytes(attachment);
+        String mime =
+            "Message-ID: <m1@example.com>\r\n" +
+            "From: Linda Garcia <linda@example.com>\r\n" +
+            "To: david@example.com\r\n" +
+            "Subject: Quarterly review\r\n" +
+            "MIME-Version: 1.0\r\n" +
+            "Content-Type: multipart/mixed; boundary=\"b1\"\r\n\r\n" +
+            "--b1\r\n" +
+            "Content-Type: text/plain; charset=UTF-8\r\n\r\n" +
+            "Hi David,\r\n\r\nThe numbers are attached.\r\n\r\nThanks,\r\nLinda\r\n" +
+            "--b1\r\n" +
+            "Content-Type: application/octet-stream; name=\"numbers.bin\"\r\n" +
+            "Content-Transfer-Encoding: base64\r\n\r\n" +
+            Base64.getMimeEncoder().encodeToString(attachment) + "\r\n" +
+            "--b1--\r\n";
+        this.raw = Base64.getUrlEncoder().encodeToString(
+            mime.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public MimeMessage parseCopied() throws MessagingException {
+        byte[] bytes = org.apache.commons.codec.binary.Base64.decodeBase64(this.raw);
+        return new MimeMessage(SESSION, new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public MimeMessage parseShared() throws MessagingException {
+        return MimeMessageUtil.parseBase64Url(SESSION, this.raw);
+    }
+
+    @Benchmark
+    public MimeMessage parseSpilled() throws MessagingException {
+        return MimeMessageUtil.parseBase64Url(SESSION, this.raw, this.spillFile);
+    }
+
+    /**
+     * Returns the heap in use per message, after a full GC, while 'count'
+     * messages parsed by parseCopied(), parseShared() or parseSpilled()
+     * ('method' 0, 1 or 2) are kept.
+     */
+    static long measureRetainedBytes(int attachmentKb, int method, int count)
+            throws MessagingException {
+        RawMessageBenchmark benchmark = new RawMessageBenchmark();
+        benchmark.attachmentKb = attachmentKb;
+        benchmark.setUp();
+        MimeMessage[] messages = new MimeMessage[count];
+        long before = getUsedHeapAfterGc();
+        for (int i = 0; i < count; ++i) {
+            messages[i] = (method == 0) ? benchmark.parseCopied() :
+                          (method == 1) ? benchmark.parseShared() : benchmark.parseSpilled();
+        }
+        long after = getUsedHeapAfterGc();
+        // Keeps the messages, and the raw message they were parsed from,
+        // reachable until measured.
+        if (messages[count - 1].getMessageID() == null || benchmark.raw == null) {
+            throw new IllegalStateException();
+        }
+        return (after - before) / count;
+    }
+
+    private static long getUsedHeapAfterGc() {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            System.runFinalization();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    public static void main(String[] args) throws MessagingException, RunnerException {
+        System.out.println("Retained bytes per message:");
+        System.out.println("attachmentKb    copied    shared   spilled");
+        for (int attachmentKb : new int[] { 1, 64, 1024 }) {
+            int count = Math.max(100, 50_000 / attachmentKb);
+            // Spilled messages keep so little that more of them are needed
+            // for it to stand out of the noise of the heap (about 2 MB).
+            System.out.format("%12d  %8d  %8d  %8d%n", attachmentKb,
+                              measureRetainedBytes(attachmentKb, 0, count),
+                              measureRetainedBytes(attachmentKb, 1, count),
+                              measureRetainedBytes(attachmentKb, 2, Math.max(1_000, count)));
+        }
+        new Runner(new OptionsBuilder()
+            .include(RawMessageBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -0,0 +1,100 @@
+package com.contextsmith.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.contextsmith.email.provider.EmailFilterer;
+
+/**
+ * Per-message cost of the address filter and the content clean-up, with the
+ * String.matches()/replaceAll() calls of before ("*Before") and with the
+ * precompiled patterns and scanners of RegexUtil ("*After").
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegexBenchmark {
+
+    // The regex EmailFilterer.isNoReplyAddress() replaced.
+    private static final String NO_REPLY_ADDR_RE = "(?i).*?reply.*?@.+";
+
+    private static final String[] ADDRESSES = {
+        "john.smith+newsletter@example.com", "no-reply@notifications.example.com",
+        "mary@example.org", "ab12cd34ef56@example.net"
+    };
+
+    private static final String[] TOKENS = {
+        "How", "about", "2:30pm", "on", "Thursday", "6/16", "?", "I", "am",
+        "really", "happy", "with", "the", "results", "!"
+    };
+
+    private static final String BODY =
+        "Hi  Linda,  the new reports are live.   Please review them before Friday.";
+
+    @Benchmark
+    public int filterBefore() {
+        int count = 0;
+        for (String address : ADDRESSES) {
+            if (address.matches(NO_REPLY_ADDR_RE)) ++count;
+            if (address.matches(EmailFilterer.GIBBERISH_ADDR_RE)) ++count;
+            count += address.replaceFirst("^.+?@", "").length();
+            count += address.replaceFirst("\\+.*?@", "@").toLowerCase().length();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int filterAfter() {
+        int count = 0;
+        for (String address : ADDRESSES) {
+            if (EmailFilterer.isNoReplyAddress(address)) ++count;
+            if (RegexUtil.GIBBERISH_ADDR_PAT.matcher(address).matches()) ++count;
+            count += InternetAddressUtil.getAddressDomain(address).length();
+            count += InternetAddressUtil.normalizeAddress(address).length();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int parseBefore() {
+        int count = BODY.replaceAll("[ ]+", " ").length();
+        for (String token : TOKENS) {
+            if (token.matches(".*\\d.*")) ++count;
+            if (token.matches("^[A-Z].*")) ++count;
+            if (token.matches("^\\W+$")) ++count;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int parseAfter() {
+        int count = RegexUtil.collapseSpaces(BODY).length();
+        for (String token : TOKENS) {
+            if (RegexUtil.containsDigit(token)) ++count;
+            if (RegexUtil.startsWithUpperCase(token)) ++count;
+            if (RegexUtil.isNonWord(token)) ++count;
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(RegexBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,50 @@
+package com.contextsmith.utils;
+
+import org.junit.Test;
+
+import com.contextsmith.email.provider.EmailFilterer;
+
+import static org.junit.Assert.*;
+
+/**
+ * The hand-written scanners must agree with the regexes they replace.
+ */
+public class RegexUtilTest {
+
+    // The regex EmailFilterer.isNoReplyAddress() replaced.
+    private static final String NO_REPLY_ADDR_RE = "(?i).*?reply.*?@.+";
+
+    private static final String[] TOKENS = {
+        "", "a", "A", "Zebra", "zebra", "6/16", "2:30pm", "...", "!?", "_", "-",
+        " ", "über", "Émile", "x1", "  two  spaces ", "a   b  c", "   "
+    };
+
+    private static final String[] ADDRESSES = {
+        "noreply@example.com", "no-reply@example.com", "NoReply@example.com",
+        "reply@", "reply@x", "john@reply.com", "replyto", "bob+news@example.com",
+        "bob+@example.com", "+@example.com", "bob@example+x.com", "@example.com",
+        "a@b@c.com", "bob", "ab12cd34ef56@example.com", "john.smith@example.com"
+    };
+
+    @Test
+    public void testScanners() {
+        for (String token : TOKENS) {
+            assertEquals(token, token.matches(".*\\d.*"), RegexUtil.containsDigit(token));
+            assertEquals(token, token.matches("^[A-Z].*"), RegexUtil.startsWithUpperCase(token));
+            assertEquals(token, token.matches("^\\W+$"), RegexUtil.isNonWord(token));
+            assertEquals(token, token.replaceAll("[ ]+", " "), RegexUtil.collapseSpaces(token));
+        }
+    }
+
+    @Test
+    public void testAddressScanners() {
+        for (String address : ADDRESSES) {
+            assertEquals(address, address.matches(NO_REPLY_ADDR_RE),
+                         EmailFilterer.isNoReplyAddress(address));
+            assertEquals(address, address.replaceFirst("^.+?@", ""),
+                         InternetAddressUtil.getAddressDomain(address));
+            assertEquals(address, address.replaceFirst("\\+.*?@", "@").toLowerCase(),
+                         InternetAddressUtil.normalizeAddress(address));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.contextsmith.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class SpillFileTest {
+
+    private static String read(InputStream in) throws IOException {
+        return new String(IOUtils.toByteArray(in), StandardCharsets.US_ASCII);
+    }
+
+    private static InputStream write(SpillFile spillFile, String s) throws IOException {
+        byte[] bytes = ("<" + s + ">").getBytes(StandardCharsets.US_ASCII);
+        return spillFile.write(bytes, 1, bytes.length - 2);
+    }
+
+    @Test
+    public void testReadsBackWhatWasWritten() throws Exception {
+        SpillFile spillFile = new SpillFile(SpillFile.DEFAULT_MAX_FILE_BYTES);
+        InputStream first = write(spillFile, "first");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000; ++i) builder.append(i).append(' ');
+        InputStream second = write(spillFile, builder.toString());
+
+        assertEquals(builder.toString(), read(second));
+        assertEquals("first", read(first));
+        assertEquals(-1, first.read());
+    }
+
+    @Test
+    public void testSharesRangesOfTheStream() throws Exception {
+        SpillFile spillFile = new SpillFile(SpillFile.DEFAULT_MAX_FILE_BYTES);
+        write(spillFile, "before");
+        InputStream in = write(spillFile, "headers\r\n\r\nbody");
+        SharedInputStream shared = (SharedInputStream) in;
+
+        assertEquals('h', in.read());
+        in.mark(100);
+        assertEquals(7, in.skip(7));
+        assertEquals(8, shared.getPosition());
+        in.reset();
+        assertEquals(1, shared.getPosition());
+        assertEquals("body", read(shared.newStream(11, -1)));
+        assertEquals("head", read(shared.newStream(0, 4)));
+        assertEquals("eaders\r\n\r\nbody", read(in));
+    }
+
+    @Test
+    public void testMovesToNewFilesOnceFull() throws Exception {
+        SpillFile spillFile = new SpillFile(10);
+        InputStream first = write(spillFile, "0123456");
+        InputStream second = write(spillFile, "abcdefg");
+        InputStream third = write(spillFile, "0123456789abc");
+
+        assertEquals("0123456", read(first));
+        assertEquals("abcdefg", read(second));
+        assertEquals("0123456789abc", read(third));
+    }
+}